@@ -0,0 +1,291 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.web.servlet;
+
+import httl.Context;
+import httl.Engine;
+import httl.Template;
+import httl.spi.Resolver;
+import httl.util.ConcurrentLinkedHashMap;
+import httl.util.Digest;
+import httl.util.StreamEncoder;
+import httl.util.UnsafeByteArrayOutputStream;
+import httl.util.UnsafeStringWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * ConditionalRenderer. (Integration, Singleton, ThreadSafe)
+ * <p>
+ * Render the template into a pooled buffer, send it with Content-Length and a strong ETag,
+ * and answer If-None-Match with 304 Not Modified.
+ * <p>
+ * With response.etag.variables, the ETag is derived from the template name and locale, the last modified
+ * times of the templates it rendered (including the extended and included templates) and the variable values,
+ * so a matching request is answered without rendering, and the same inputs give the same ETag on every node.
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class ConditionalRenderer {
+
+	private static final String ETAG_KEY = "response.etag";
+
+	private static final String ETAG_VARIABLES_KEY = "response.etag.variables";
+
+	private static final String ETAG_HEADER = "ETag";
+
+	private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+
+	private static final String DIGEST_ALGORITHM = "MD5";
+
+	// 超过此大小的缓冲区不放回池中，避免大页面长期占用内存
+	private static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<UnsafeByteArrayOutputStream> BUFFER_POOL = new ThreadLocal<UnsafeByteArrayOutputStream>();
+
+	private static final ThreadLocal<MessageDigest> DIGEST_POOL = new ThreadLocal<MessageDigest>();
+
+	// 记录的模板数上限，超过时淘汰最久未用的，被淘汰的模板下次渲染后重新记录
+	private static final int MAX_DEPENDENCIES = 1000;
+
+	private final Engine engine;
+
+	private final boolean enabled;
+
+	private final boolean stream;
+
+	private final boolean reloadable;
+
+	private final StreamEncoder encoder;
+
+	private final String[] variables;
+
+	private final Resolver resolver;
+
+	private final ConcurrentMap<String, Dependencies> dependencies = new ConcurrentLinkedHashMap<String, Dependencies>(MAX_DEPENDENCIES);
+
+	public ConditionalRenderer(Engine engine) {
+		this.engine = engine;
+		this.enabled = engine.getProperty(ETAG_KEY, false);
+		this.stream = engine.getProperty("output.stream", true);
+		this.reloadable = engine.getProperty("reloadable", false);
+		this.encoder = StreamEncoder.getEncoder(engine.getProperty("output.encoding", (String) null));
+		this.variables = engine.getProperty(ETAG_VARIABLES_KEY, new String[0]);
+		this.resolver = engine.getProperty("resolver", Resolver.class);
+	}
+
+	/**
+	 * httl.properties: response.etag=true
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void render(Template template, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ParseException {
+		boolean conditional = isConditional(request);
+		String ifNoneMatch = conditional ? request.getHeader(IF_NONE_MATCH_HEADER) : null;
+		String etag = null;
+		String key = null;
+		Dependencies recorded = null;
+		if (variables.length > 0) {
+			// response.etag.variables=...
+			// 模板、其继承及包含的模板和声明的输入变量未变时，不渲染直接返回304
+			key = template.getName() + "\n" + template.getLocale();
+			recorded = dependencies.get(key);
+			if (recorded != null && reloadable && recorded.isModified(engine)) {
+				recorded = null;
+			}
+			if (recorded != null) {
+				etag = getInputTag(template, recorded);
+				if (isMatch(ifNoneMatch, etag)) {
+					sendNotModified(response, etag);
+					return;
+				}
+			}
+		}
+		UnsafeByteArrayOutputStream buffer = borrowBuffer();
+		try {
+			if (key == null) {
+				MessageDigest digest = getDigest();
+				render(template, new DigestOutputStream(buffer, digest));
+				etag = toTag(digest.digest());
+			} else {
+				Dependencies rendered = render(template, buffer);
+				Dependencies union = recorded == null ? rendered : recorded.union(rendered);
+				if (union != recorded) {
+					// 首次渲染或依赖的模板有变化，记录后重新计算
+					dependencies.put(key, union);
+					etag = getInputTag(template, union);
+				}
+			}
+			if (isMatch(ifNoneMatch, etag)) {
+				sendNotModified(response, etag);
+				return;
+			}
+			response.setHeader(ETAG_HEADER, etag);
+			response.setContentLength(buffer.size());
+			buffer.writeTo(response.getOutputStream());
+		} finally {
+			returnBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Send the rendered bytes, answer 304 if enabled and the etag matches.
+	 */
+	public void send(byte[] bytes, String etag, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		if (enabled && etag != null) {
+			if (isConditional(request) && isMatch(request.getHeader(IF_NONE_MATCH_HEADER), etag)) {
+				sendNotModified(response, etag);
+				return;
+			}
+			response.setHeader(ETAG_HEADER, etag);
+		}
+		response.setContentLength(bytes.length);
+		response.getOutputStream().write(bytes);
+	}
+
+	/**
+	 * Render the template into the output stream, encoded with the output encoding
+	 * when the template only has the writer flavour (output.stream=false).
+	 * 
+	 * @return the rendered templates, including the extended and included templates.
+	 */
+	Dependencies render(Template template, OutputStream output) throws IOException, ParseException {
+		List<Template> dependencies = new ArrayList<Template>();
+		Context context = Context.getContext();
+		Collection<Template> parent = context.getDependencies();
+		context.setDependencies(dependencies);
+		try {
+			if (stream) {
+				template.render(output);
+			} else {
+				UnsafeStringWriter writer = new UnsafeStringWriter();
+				template.render(writer);
+				encoder.write(output, writer.getBuffer(), false);
+			}
+		} finally {
+			context.setDependencies(parent);
+		}
+		if (parent != null) {
+			parent.addAll(dependencies);
+		}
+		return new Dependencies(dependencies);
+	}
+
+	/**
+	 * Get the strong etag of the bytes.
+	 */
+	public static String getTag(byte[] bytes) {
+		return toTag(getDigest().digest(bytes));
+	}
+
+	private String getInputTag(Template template, Dependencies dependencies) {
+		StringBuilder buf = new StringBuilder();
+		buf.append(template.getName());
+		buf.append('\n').append(template.getLocale());
+		dependencies.appendTo(buf);
+		for (String variable : variables) {
+			Object value = resolver == null ? null : resolver.get(variable);
+			buf.append('\n').append(variable).append('=');
+			if (value instanceof Object[]) {
+				buf.append(Arrays.toString((Object[]) value));
+			} else {
+				buf.append(value);
+			}
+		}
+		try {
+			return toTag(getDigest().digest(buf.toString().getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	static boolean isConditional(HttpServletRequest request) {
+		String method = request.getMethod();
+		return "GET".equals(method) || "HEAD".equals(method);
+	}
+
+	private static boolean isMatch(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null || ifNoneMatch.length() == 0) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if ("*".equals(tag) || etag.equals(tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void sendNotModified(HttpServletResponse response, String etag) {
+		response.setHeader(ETAG_HEADER, etag);
+		response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	}
+
+	private static String toTag(byte[] digest) {
+		return "\"" + Digest.getHEX(digest) + "\"";
+	}
+
+	private static MessageDigest getDigest() {
+		MessageDigest digest = DIGEST_POOL.get();
+		if (digest == null) {
+			try {
+				digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+			DIGEST_POOL.set(digest);
+		} else {
+			digest.reset();
+		}
+		return digest;
+	}
+
+	private static UnsafeByteArrayOutputStream borrowBuffer() {
+		UnsafeByteArrayOutputStream buffer = BUFFER_POOL.get();
+		if (buffer == null) {
+			return new UnsafeByteArrayOutputStream(8192);
+		}
+		BUFFER_POOL.set(null); // 嵌套渲染时不共用同一缓冲区
+		return buffer;
+	}
+
+	private static void returnBuffer(UnsafeByteArrayOutputStream buffer) {
+		if (buffer.size() <= MAX_POOLED_SIZE) {
+			buffer.reset();
+			BUFFER_POOL.set(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.web.servlet;
+
+import httl.Engine;
+import httl.Template;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Dependencies. (Integration, Prototype, ThreadSafe)
+ * <p>
+ * The name, locale, encoding and last modified time of the templates rendered for a page,
+ * including the extended and included templates, sorted by name and locale.
+ * 
+ * @see httl.Context#setDependencies(Collection)
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+class Dependencies {
+
+	private final Dependency[] dependencies;
+
+	Dependencies(Collection<Template> templates) {
+		SortedMap<String, Dependency> map = new TreeMap<String, Dependency>();
+		for (Template template : templates) {
+			Dependency dependency = new Dependency(template);
+			if (! map.containsKey(dependency.key)) {
+				map.put(dependency.key, dependency);
+			}
+		}
+		this.dependencies = map.values().toArray(new Dependency[map.size()]);
+	}
+
+	private Dependencies(SortedMap<String, Dependency> map) {
+		this.dependencies = map.values().toArray(new Dependency[map.size()]);
+	}
+
+	/**
+	 * Merge the templates rendered later, their last modified times take precedence.
+	 */
+	Dependencies union(Dependencies other) {
+		SortedMap<String, Dependency> map = new TreeMap<String, Dependency>();
+		for (Dependency dependency : dependencies) {
+			map.put(dependency.key, dependency);
+		}
+		boolean changed = false;
+		for (Dependency dependency : other.dependencies) {
+			Dependency old = map.put(dependency.key, dependency);
+			if (old == null || old.lastModified != dependency.lastModified) {
+				changed = true;
+			}
+		}
+		return changed ? new Dependencies(map) : this;
+	}
+
+	/**
+	 * Check whether any of the templates has been reloaded since recorded.
+	 */
+	boolean isModified(Engine engine) {
+		for (Dependency dependency : dependencies) {
+			try {
+				if (engine.getTemplate(dependency.name, dependency.locale, dependency.encoding).getLastModified()
+						!= dependency.lastModified) {
+					return true;
+				}
+			} catch (Exception e) {
+				// 模板已删除或无法解析时，视为已改变，由重新渲染报告错误
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Append the names, locales and last modified times.
+	 */
+	void appendTo(StringBuilder buf) {
+		for (Dependency dependency : dependencies) {
+			buf.append('\n').append(dependency.name);
+			buf.append('\n').append(dependency.locale);
+			buf.append('\n').append(dependency.lastModified);
+		}
+	}
+
+	private static class Dependency {
+
+		private final String key;
+
+		private final String name;
+
+		private final Locale locale;
+
+		private final String encoding;
+
+		private final long lastModified;
+
+		Dependency(Template template) {
+			this.name = template.getName();
+			this.locale = template.getLocale();
+			this.encoding = template.getEncoding();
+			this.lastModified = template.getLastModified();
+			this.key = name + "\n" + locale;
+		}
+
+	}
+
+}
@@ -15,6 +15,7 @@
  */
 package httl.web.servlet;
 
+import httl.Template;
 import httl.web.WebEngine;
 
 import java.io.IOException;
@@ -38,8 +39,14 @@ public class HttlFilter implements Filter {
 
 	private String suffix;
 
+	private ConditionalRenderer renderer;
+
+	private PageCache cache;
+
 	public void init(FilterConfig config) throws ServletException {
 		suffix = WebEngine.getTemplateSuffix(config.getServletContext());
+		renderer = new ConditionalRenderer(WebEngine.getEngine());
+		cache = new PageCache(WebEngine.getEngine(), renderer);
 	}
 
 	public void doFilter(ServletRequest request, ServletResponse response,
@@ -52,7 +59,14 @@ public class HttlFilter implements Filter {
 		chain.doFilter(request, response);
 		try {
 			WebEngine.setRequestAndResponse(request, response);
-			WebEngine.getEngine().getTemplate(getTemplatePath(request), request.getLocale()).render(response);
+			Template template = WebEngine.getEngine().getTemplate(getTemplatePath(request), request.getLocale());
+			if (cache.isCacheable(request)) {
+				cache.render(template, request, response);
+			} else if (renderer.isEnabled()) {
+				renderer.render(template, request, response);
+			} else {
+				template.render(response);
+			}
 		} catch (ParseException e) {
 			throw new ServletException(e.getMessage(), e);
 		}
@@ -15,6 +15,7 @@
  */
 package httl.web.servlet;
 
+import httl.Template;
 import httl.web.WebEngine;
 
 import java.io.IOException;
@@ -36,9 +37,15 @@ public class HttlServlet extends HttpServlet {
 
 	private String suffix;
 
+	private ConditionalRenderer renderer;
+
+	private PageCache cache;
+
 	@Override
 	public void init() throws ServletException {
 		suffix = WebEngine.getTemplateSuffix(getServletContext());
+		renderer = new ConditionalRenderer(WebEngine.getEngine());
+		cache = new PageCache(WebEngine.getEngine(), renderer);
 	}
 
 	public void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -50,7 +57,14 @@ public class HttlServlet extends HttpServlet {
 			throws ServletException, IOException {
 		try {
 			WebEngine.setRequestAndResponse(request, response);
-			WebEngine.getEngine().getTemplate(getTemplatePath(request), request.getLocale()).render(response);
+			Template template = WebEngine.getEngine().getTemplate(getTemplatePath(request), request.getLocale());
+			if (cache.isCacheable(request)) {
+				cache.render(template, request, response);
+			} else if (renderer.isEnabled()) {
+				renderer.render(template, request, response);
+			} else {
+				template.render(response);
+			}
 		} catch (ParseException e) {
 			throw new ServletException(e.getMessage(), e);
 		}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.web.servlet;
+
+import httl.Engine;
+import httl.Template;
+import httl.util.ConcurrentLinkedHashMap;
+import httl.util.UnsafeByteArrayOutputStream;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * PageCache. (Integration, Singleton, ThreadSafe)
+ * <p>
+ * Cache the encoded page bytes by template, locale and the configured request parameters and headers.
+ * Concurrent misses are rendered only once, and the stale page is served while one request refreshes it
+ * after its response is committed. When the templates are reloadable, the page is dropped once any of
+ * the rendered templates, including the extended and included templates, is reloaded.
+ * 
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public class PageCache {
+
+	private static final String TTL_KEY = "page.cache.ttl";
+
+	private static final String CAPACITY_KEY = "page.cache.capacity";
+
+	private static final String PARAMETERS_KEY = "page.cache.parameters";
+
+	private static final String HEADERS_KEY = "page.cache.headers";
+
+	private final Engine engine;
+
+	private final ConditionalRenderer renderer;
+
+	private final boolean reloadable;
+
+	private final long ttl;
+
+	private final String[] parameters;
+
+	private final String[] headers;
+
+	private final ConcurrentMap<String, Page> pages;
+
+	private final ConcurrentMap<String, Loader> loaders = new ConcurrentHashMap<String, Loader>();
+
+	public PageCache(Engine engine, ConditionalRenderer renderer) {
+		this.engine = engine;
+		this.renderer = renderer;
+		this.reloadable = engine.getProperty("reloadable", false);
+		this.ttl = engine.getProperty(TTL_KEY, 0) * 1000L;
+		this.parameters = engine.getProperty(PARAMETERS_KEY, new String[0]);
+		this.headers = engine.getProperty(HEADERS_KEY, new String[0]);
+		this.pages = new ConcurrentLinkedHashMap<String, Page>(engine.getProperty(CAPACITY_KEY, 1000));
+	}
+
+	/**
+	 * httl.properties: page.cache.ttl=60
+	 */
+	public boolean isCacheable(HttpServletRequest request) {
+		return ttl > 0 && ConditionalRenderer.isConditional(request);
+	}
+
+	public void render(Template template, HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ParseException {
+		String key = getKey(template, request);
+		Page page = pages.get(key);
+		if (page != null && reloadable && page.dependencies.isModified(engine)) {
+			// 页面或其包含、继承的模板已重新加载，丢弃旧页面
+			pages.remove(key, page);
+			page = null;
+		}
+		if (page == null) {
+			page = load(key, template, response);
+			renderer.send(page.bytes, page.etag, request, response);
+			return;
+		}
+		renderer.send(page.bytes, page.etag, request, response);
+		// 只有一个请求刷新过期页面，刷新前先提交旧页面，其它请求继续使用旧页面
+		if (page.expired <= System.currentTimeMillis()
+				&& page.refreshing.compareAndSet(false, true)) {
+			try {
+				response.flushBuffer();
+				pages.replace(key, page, render(template));
+			} finally {
+				page.refreshing.set(false);
+			}
+		}
+	}
+
+	private Page load(String key, Template template, HttpServletResponse response)
+			throws IOException, ParseException {
+		Loader loader = new Loader();
+		Loader old = loaders.putIfAbsent(key, loader);
+		if (old != null) {
+			// 同一页面的并发未命中，等待首个请求的渲染结果
+			Page page = old.await();
+			if (page != null) {
+				return page;
+			}
+			return render(template);
+		}
+		try {
+			Page page = render(template);
+			if (! response.isCommitted()) {
+				pages.put(key, page);
+			}
+			loader.page = page;
+			return page;
+		} finally {
+			loader.latch.countDown();
+			loaders.remove(key, loader);
+		}
+	}
+
+	private Page render(Template template) throws IOException, ParseException {
+		UnsafeByteArrayOutputStream buffer = new UnsafeByteArrayOutputStream(8192);
+		Dependencies dependencies = renderer.render(template, buffer);
+		byte[] bytes = buffer.toByteArray();
+		return new Page(bytes, ConditionalRenderer.getTag(bytes), dependencies, System.currentTimeMillis() + ttl);
+	}
+
+	private String getKey(Template template, HttpServletRequest request) {
+		StringBuilder buf = new StringBuilder();
+		buf.append(template.getName());
+		buf.append('\n').append(template.getLocale());
+		for (String parameter : parameters) {
+			buf.append('\n').append(parameter).append('=');
+			String[] values = request.getParameterValues(parameter);
+			if (values != null) {
+				for (int i = 0; i < values.length; i++) {
+					if (i > 0) {
+						buf.append(',');
+					}
+					buf.append(values[i]);
+				}
+			}
+		}
+		for (String header : headers) {
+			buf.append('\n').append(header).append(':').append(request.getHeader(header));
+		}
+		return buf.toString();
+	}
+
+	private static class Page {
+
+		private final byte[] bytes;
+
+		private final String etag;
+
+		private final Dependencies dependencies;
+
+		private final long expired;
+
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		Page(byte[] bytes, String etag, Dependencies dependencies, long expired) {
+			this.bytes = bytes;
+			this.etag = etag;
+			this.dependencies = dependencies;
+			this.expired = expired;
+		}
+
+	}
+
+	private static class Loader {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		private volatile Page page;
+
+		Page await() {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return page;
+		}
+
+	}
+
+}
@@ -0,0 +1,113 @@
+package httl.web.servlet;
+
+import httl.Context;
+import httl.Engine;
+import httl.Template;
+import httl.spi.loaders.StringLoader;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ConditionalRendererTest {
+
+	private static final String SOURCE = "<b>中文&amp;${1 + 1}</b>";
+
+	private static final String GATE_SOURCE = "#set(" + PageCacheTest.Gate.class.getName() + " gate)<p>${gate.enter()}</p>";
+
+	@Test
+	public void testStreamTemplate() throws Exception {
+		assertConditional("httl-etag-stream.properties");
+	}
+
+	@Test
+	public void testWriterTemplate() throws Exception {
+		// output.stream=false时，只有Writer模板，渲染后按输出编码写入
+		assertConditional("httl-etag-writer.properties");
+	}
+
+	@Test
+	public void testSameTag() throws Exception {
+		assertEquals(render("httl-etag-stream.properties", null).headers.get("ETag"),
+				render("httl-etag-writer.properties", null).headers.get("ETag"));
+		assertEquals(ConditionalRenderer.getTag("<b>中文&amp;2</b>".getBytes("UTF-8")),
+				render("httl-etag-writer.properties", null).headers.get("ETag"));
+	}
+
+	@Test
+	public void testVariablesTag() throws Exception {
+		PageCacheTest.Gate gate = new PageCacheTest.Gate();
+		Engine engine = Engine.getEngine("httl-etag-variables.properties");
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add("/variables-header.httl", "<b>a</b>");
+		loader.add("/variables.httl", GATE_SOURCE + "${include(\"/variables-header.httl\")}");
+		Template template = engine.getTemplate("/variables.httl");
+		ServletStubs.Response response = render(new ConditionalRenderer(engine), template, gate, null);
+		assertEquals("<p>1</p><b>a</b>", response.getBody());
+		String etag = response.headers.get("ETag");
+		assertNotNull(etag);
+		// 输入未变时，不渲染直接返回304，且其它实例得到相同的ETag
+		Thread.sleep(10);
+		ConditionalRenderer renderer = new ConditionalRenderer(engine);
+		response = render(renderer, template, gate, null);
+		assertEquals(etag, response.headers.get("ETag"));
+		response = render(renderer, template, gate, etag);
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+		assertEquals(2, gate.count.get());
+		// 包含的模板改变后，重新渲染并得到新的ETag
+		Thread.sleep(10);
+		loader.add("/variables-header.httl", "<b>b</b>");
+		response = render(renderer, template, gate, etag);
+		assertEquals(HttpServletResponse.SC_OK, response.status);
+		assertEquals("<p>3</p><b>b</b>", response.getBody());
+		String modified = response.headers.get("ETag");
+		assertFalse(etag.equals(modified));
+		response = render(renderer, template, gate, modified);
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+		assertEquals(3, gate.count.get());
+	}
+
+	private static void assertConditional(String config) throws Exception {
+		ServletStubs.Response response = render(config, null);
+		byte[] expected = "<b>中文&amp;2</b>".getBytes("UTF-8");
+		assertEquals(HttpServletResponse.SC_OK, response.status);
+		assertArrayEquals(expected, response.body.toByteArray());
+		assertEquals(expected.length, response.contentLength);
+		String etag = response.headers.get("ETag");
+		assertNotNull(etag);
+		response = render(config, etag);
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+		assertEquals(etag, response.headers.get("ETag"));
+		assertEquals(0, response.body.size());
+		response = render(config, "\"other\"");
+		assertEquals(HttpServletResponse.SC_OK, response.status);
+		assertArrayEquals(expected, response.body.toByteArray());
+	}
+
+	private static ServletStubs.Response render(String config, String ifNoneMatch) throws Exception {
+		Engine engine = Engine.getEngine(config);
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add("/etag.httl", SOURCE);
+		Template template = engine.getTemplate("/etag.httl");
+		ConditionalRenderer renderer = new ConditionalRenderer(engine);
+		assertTrue(renderer.isEnabled());
+		ServletStubs.Response response = new ServletStubs.Response();
+		renderer.render(template, ServletStubs.get(ifNoneMatch), response.proxy);
+		return response;
+	}
+
+	private static ServletStubs.Response render(ConditionalRenderer renderer, Template template,
+			PageCacheTest.Gate gate, String ifNoneMatch) throws Exception {
+		ServletStubs.Response response = new ServletStubs.Response();
+		Context context = Context.pushContext();
+		try {
+			context.put("gate", gate);
+			renderer.render(template, ServletStubs.get(ifNoneMatch), response.proxy);
+		} finally {
+			Context.popContext();
+		}
+		return response;
+	}
+
+}
@@ -0,0 +1,195 @@
+package httl.web.servlet;
+
+import httl.Context;
+import httl.Engine;
+import httl.Template;
+import httl.spi.loaders.StringLoader;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PageCacheTest {
+
+	private static final String SOURCE = "#set(" + Gate.class.getName() + " gate)<p>${gate.enter()}</p>";
+
+	@Test
+	public void testCoalescing() throws Exception {
+		final Gate gate = new Gate();
+		final PageCache cache = createCache("httl-page-coalescing.properties");
+		final Template template = getTemplate("httl-page-coalescing.properties", "/coalescing.httl", SOURCE);
+		gate.close();
+		Request first = new Request(cache, template, gate);
+		first.start();
+		gate.waitEntered(1);
+		Request second = new Request(cache, template, gate);
+		second.start();
+		second.join(200);
+		// 第二个请求等待首个请求的渲染结果，不再渲染
+		assertTrue(second.isAlive());
+		assertEquals(1, gate.count.get());
+		gate.open();
+		first.join();
+		second.join();
+		assertEquals("<p>1</p>", first.body.get());
+		assertEquals("<p>1</p>", second.body.get());
+		assertEquals(1, gate.count.get());
+	}
+
+	@Test
+	public void testStaleWhileRefresh() throws Exception {
+		Gate gate = new Gate();
+		PageCache cache = createCache("httl-page-stale.properties");
+		Template template = getTemplate("httl-page-stale.properties", "/stale.httl", SOURCE);
+		assertEquals("<p>1</p>", render(cache, template, gate).getBody());
+		// 未过期时使用缓存的页面
+		assertEquals("<p>1</p>", render(cache, template, gate).getBody());
+		assertEquals(1, gate.count.get());
+		Thread.sleep(1100);
+		gate.close();
+		Request refresh = new Request(cache, template, gate);
+		refresh.start();
+		gate.waitEntered(2);
+		// 触发刷新的请求先提交旧页面，再刷新
+		assertTrue(refresh.isAlive());
+		assertTrue(refresh.response.committed);
+		assertEquals("<p>1</p>", refresh.response.getBody());
+		// 过期页面刷新时，其它请求继续使用旧页面
+		assertEquals("<p>1</p>", render(cache, template, gate).getBody());
+		gate.open();
+		refresh.join();
+		assertEquals("<p>1</p>", refresh.body.get());
+		assertEquals("<p>2</p>", render(cache, template, gate).getBody());
+		assertEquals(2, gate.count.get());
+	}
+
+	@Test
+	public void testTtl() throws Exception {
+		Gate gate = new Gate();
+		PageCache cache = createCache("httl-page-ttl.properties");
+		Template template = getTemplate("httl-page-ttl.properties", "/ttl.httl", SOURCE);
+		assertTrue(cache.isCacheable(ServletStubs.get(null)));
+		assertFalse(cache.isCacheable(ServletStubs.request("POST", null, null)));
+		assertEquals("<p>1</p>", render(cache, template, gate).getBody());
+		assertEquals("<p>1</p>", render(cache, template, gate).getBody());
+		Thread.sleep(1100);
+		// 触发刷新的请求仍使用旧页面
+		assertEquals("<p>1</p>", render(cache, template, gate).getBody());
+		assertEquals("<p>2</p>", render(cache, template, gate).getBody());
+		assertEquals("<p>2</p>", render(cache, template, gate).getBody());
+	}
+
+	@Test
+	public void testReloadable() throws Exception {
+		Gate gate = new Gate();
+		PageCache cache = createCache("httl-page-reloadable.properties");
+		assertTrue(cache.isCacheable(ServletStubs.get(null)));
+		getTemplate("httl-page-reloadable.properties", "/reload-header.httl", "<b>a</b>");
+		Template template = getTemplate("httl-page-reloadable.properties", "/reload.httl",
+				SOURCE + "${include(\"/reload-header.httl\")}");
+		assertEquals("<p>1</p><b>a</b>", render(cache, template, gate).getBody());
+		assertEquals("<p>1</p><b>a</b>", render(cache, template, gate).getBody());
+		// 包含的模板重新加载后，丢弃缓存的页面
+		Thread.sleep(10);
+		getTemplate("httl-page-reloadable.properties", "/reload-header.httl", "<b>b</b>");
+		assertEquals("<p>2</p><b>b</b>", render(cache, template, gate).getBody());
+		assertEquals("<p>2</p><b>b</b>", render(cache, template, gate).getBody());
+		// 页面模板本身重新加载后，同样丢弃缓存的页面
+		Thread.sleep(10);
+		template = getTemplate("httl-page-reloadable.properties", "/reload.httl", SOURCE);
+		assertEquals("<p>3</p>", render(cache, template, gate).getBody());
+		assertEquals(3, gate.count.get());
+	}
+
+	private static PageCache createCache(String config) throws Exception {
+		Engine engine = Engine.getEngine(config);
+		return new PageCache(engine, new ConditionalRenderer(engine));
+	}
+
+	private static Template getTemplate(String config, String name, String source) throws Exception {
+		Engine engine = Engine.getEngine(config);
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add(name, source);
+		return engine.getTemplate(name);
+	}
+
+	private static ServletStubs.Response render(PageCache cache, Template template, Gate gate) throws Exception {
+		return render(cache, template, gate, new ServletStubs.Response());
+	}
+
+	private static ServletStubs.Response render(PageCache cache, Template template, Gate gate,
+			ServletStubs.Response response) throws Exception {
+		Context context = Context.pushContext();
+		try {
+			context.put("gate", gate);
+			cache.render(template, ServletStubs.get(null), response.proxy);
+		} finally {
+			Context.popContext();
+		}
+		return response;
+	}
+
+	private static class Request extends Thread {
+
+		private final PageCache cache;
+
+		private final Template template;
+
+		private final Gate gate;
+
+		private final ServletStubs.Response response = new ServletStubs.Response();
+
+		private final AtomicReference<String> body = new AtomicReference<String>();
+
+		Request(PageCache cache, Template template, Gate gate) {
+			this.cache = cache;
+			this.template = template;
+			this.gate = gate;
+		}
+
+		@Override
+		public void run() {
+			try {
+				body.set(render(cache, template, gate, response).getBody());
+			} catch (Exception e) {
+				body.set(e.toString());
+			}
+		}
+
+	}
+
+	public static class Gate {
+
+		final AtomicInteger count = new AtomicInteger();
+
+		private volatile CountDownLatch latch;
+
+		public int enter() throws InterruptedException {
+			int n = count.incrementAndGet();
+			CountDownLatch latch = this.latch;
+			if (latch != null) {
+				latch.await();
+			}
+			return n;
+		}
+
+		void close() {
+			latch = new CountDownLatch(1);
+		}
+
+		void open() {
+			latch.countDown();
+		}
+
+		void waitEntered(int n) throws InterruptedException {
+			while (count.get() < n) {
+				Thread.sleep(10);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,93 @@
+package httl.web.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The request and response stubs, only the methods used by the renderer and the page cache are implemented.
+ */
+public class ServletStubs {
+
+	public static HttpServletRequest request(final String method, final Map<String, String> headers, final Map<String, String[]> parameters) {
+		return (HttpServletRequest) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+				new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				String name = m.getName();
+				if ("getMethod".equals(name)) {
+					return method;
+				} else if ("getHeader".equals(name)) {
+					return headers == null ? null : headers.get(args[0]);
+				} else if ("getParameterValues".equals(name)) {
+					return parameters == null ? null : parameters.get(args[0]);
+				}
+				throw new UnsupportedOperationException(name);
+			}
+		});
+	}
+
+	public static HttpServletRequest get(String ifNoneMatch) {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("If-None-Match", ifNoneMatch);
+		return request("GET", headers, null);
+	}
+
+	public static class Response implements InvocationHandler {
+
+		public final Map<String, String> headers = new HashMap<String, String>();
+
+		public final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		public int status = HttpServletResponse.SC_OK;
+
+		public int contentLength = -1;
+
+		public volatile boolean committed;
+
+		public final HttpServletResponse proxy = (HttpServletResponse) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+				new Class<?>[] {HttpServletResponse.class}, this);
+
+		private final ServletOutputStream output = new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				body.write(b);
+			}
+		};
+
+		public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+			String name = m.getName();
+			if ("setHeader".equals(name)) {
+				headers.put((String) args[0], (String) args[1]);
+				return null;
+			} else if ("setStatus".equals(name)) {
+				status = (Integer) args[0];
+				return null;
+			} else if ("setContentLength".equals(name)) {
+				contentLength = (Integer) args[0];
+				return null;
+			} else if ("getOutputStream".equals(name)) {
+				return output;
+			} else if ("isCommitted".equals(name)) {
+				return committed;
+			} else if ("flushBuffer".equals(name)) {
+				committed = true;
+				return null;
+			}
+			throw new UnsupportedOperationException(name);
+		}
+
+		public String getBody() throws IOException {
+			return new String(body.toByteArray(), "UTF-8");
+		}
+
+	}
+
+}
@@ -67,11 +67,14 @@ public final class Context implements Map<String, Object> {
     private Template template;
     // The current engine.
     private Engine engine;
+    // The rendered templates.
+    private Collection<Template> dependencies;
 
     private Context(Context parent, Map<String, Object> current) {
         this.thread = parent == null ? Thread.currentThread() : parent.thread;
         this.level = parent == null ? 0 : parent.getLevel() + 1;
         this.parent = parent;
+        this.dependencies = parent == null ? null : parent.dependencies;
         setCurrent(current);
     }
 
@@ -190,11 +193,49 @@ public final class Context implements Map<String, Object> {
         checkThread();
         if (template != null) {
             setEngine(template.getEngine());
+            // 宏与所属模板共用同一资源，不重复记录
+            if (dependencies != null && ! template.isMacro()) {
+                dependencies.add(template);
+            }
         }
         this.template = template;
         return this;
     }
 
+    /**
+     * Get the rendered templates collector.
+     *
+     * @return rendered templates, null if not collecting
+     * @see #setDependencies(Collection)
+     */
+    public Collection<Template> getDependencies() {
+        checkThread();
+        return dependencies;
+    }
+
+    /**
+     * Collect the templates rendered in this context and the child contexts,
+     * including the extended and included templates.
+     *
+     * <pre>
+     * Context context = Context.pushContext();
+     * try {
+     *     List&lt;Template&gt; dependencies = new ArrayList&lt;Template&gt;();
+     *     context.setDependencies(dependencies);
+     *     template.render(out);
+     * } finally {
+     *     Context.popContext();
+     * }
+     * </pre>
+     *
+     * @param dependencies - rendered templates collector
+     */
+    public Context setDependencies(Collection<Template> dependencies) {
+        checkThread();
+        this.dependencies = dependencies;
+        return this;
+    }
+
     /**
      * Get the current engine.
      *
@@ -85,6 +85,8 @@ public abstract class AstVisitor implements Visitor {
             return visit((ForDirective) node);
         } else if (node instanceof MacroDirective) {
             return visit((MacroDirective) node);
+        } else if (node instanceof CacheDirective) {
+            return visit((CacheDirective) node);
         }
         return true;
     }
@@ -99,6 +101,8 @@ public abstract class AstVisitor implements Visitor {
             end((ForDirective) start);
         } else if (start instanceof MacroDirective) {
             end((MacroDirective) start);
+        } else if (start instanceof CacheDirective) {
+            end((CacheDirective) start);
         }
     }
 
@@ -161,6 +165,10 @@ public abstract class AstVisitor implements Visitor {
         return true;
     }
 
+    public boolean visit(CacheDirective node) throws IOException, ParseException {
+        return true;
+    }
+
     public void end(IfDirective node) throws IOException, ParseException {
     }
 
@@ -173,6 +181,9 @@ public abstract class AstVisitor implements Visitor {
     public void end(MacroDirective node) throws IOException, ParseException {
     }
 
+    public void end(CacheDirective node) throws IOException, ParseException {
+    }
+
     public void visit(ImportDirective node) throws IOException, ParseException {
     }
 
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.ast;
+
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CacheDirective. (SPI, Prototype, ThreadSafe)
+ * <p>
+ * #cache(key) or #cache(key1, key2, ttl=seconds): render the block once and write the cached output on the next times.
+ * <p>
+ * The key and ttl expressions are not visited before this directive, the visitors accept them when visiting this directive.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.caches.FragmentCache
+ */
+public class CacheDirective extends BlockDirective {
+
+    private final List<Expression> keys;
+
+    private final Expression ttl;
+
+    public CacheDirective(List<Expression> keys, Expression ttl, int offset) throws ParseException {
+        super(offset);
+        if (keys == null || keys.isEmpty()) {
+            throw new ParseException("The cache key expression is required.", offset);
+        }
+        this.keys = Collections.unmodifiableList(keys);
+        this.ttl = ttl;
+    }
+
+    /**
+     * Get the key expressions, all of them are part of the fragment key.
+     *
+     * @return key expressions
+     */
+    public List<Expression> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Get the ttl expression of the #cache(key, ttl=seconds).
+     *
+     * @return ttl expression, null if not set.
+     */
+    public Expression getTtl() {
+        return ttl;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("#cache(");
+        for (int i = 0; i < keys.size(); i++) {
+            if (i > 0) {
+                buf.append(", ");
+            }
+            buf.append(keys.get(i));
+        }
+        if (ttl != null) {
+            buf.append(", ttl=").append(ttl);
+        }
+        return buf.append(")").toString();
+    }
+
+}
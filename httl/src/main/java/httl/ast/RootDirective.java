@@ -22,8 +22,23 @@ package httl.ast;
  */
 public class RootDirective extends BlockDirective {
 
+    private String digest;
+
     public RootDirective() {
         super(0);
     }
 
+    /**
+     * Get the digest of the parsed source, identical sources have the same digest.
+     *
+     * @return source digest, null if unknown.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.caches;
+
+import httl.Resource;
+import httl.util.ConcurrentLinkedHashMap;
+import httl.util.StringUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FragmentCache. (SPI, Singleton, ThreadSafe)
+ * <p>
+ * Cache the rendered output of the #cache(key, ttl=seconds) block, as byte[] for the stream output and char[] for the writer output.
+ * The concurrent misses of the same key are coalesced, only the first one renders the block.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.ast.CacheDirective
+ */
+public class FragmentCache {
+
+    private final ConcurrentMap<String, Loader> loaders = new ConcurrentHashMap<String, Loader>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final AtomicLong hitLength = new AtomicLong();
+
+    private final AtomicLong missLength = new AtomicLong();
+
+    private ConcurrentMap<String, Fragment> fragments;
+
+    /**
+     * httl.properties: fragment.cache.capacity=1000
+     */
+    public void setFragmentCacheCapacity(int capacity) {
+        if (capacity > 0) {
+            fragments = new ConcurrentLinkedHashMap<String, Fragment>(capacity);
+        } else {
+            fragments = new ConcurrentHashMap<String, Fragment>();
+        }
+    }
+
+    public void init() {
+        if (fragments == null) {
+            setFragmentCacheCapacity(0);
+        }
+    }
+
+    /**
+     * Get the cached fragment.
+     * <p>
+     * If another thread is rendering the same key, wait for it.
+     * Return null if missed, then the caller must render the block,
+     * call {@link #put(String, Object, long)} and call {@link #release(String)} in finally.
+     *
+     * @param key - fragment key
+     * @return byte[] or char[], null if missed
+     */
+    public Object get(String key) {
+        for (; ; ) {
+            Object value = getValue(key);
+            if (value != null) {
+                hitCount.incrementAndGet();
+                hitLength.addAndGet(getLength(value));
+                return value;
+            }
+            Loader loader = new Loader();
+            Loader old = loaders.putIfAbsent(key, loader);
+            if (old == null) {
+                // double check, the previous loader may have finished just now
+                value = getValue(key);
+                if (value != null) {
+                    release(key);
+                    hitCount.incrementAndGet();
+                    hitLength.addAndGet(getLength(value));
+                    return value;
+                }
+                missCount.incrementAndGet();
+                return null;
+            }
+            if (old.thread == Thread.currentThread()) {
+                // 同一线程内嵌套相同的key，不能等待自己，计数后由最外层释放
+                old.holds++;
+                missCount.incrementAndGet();
+                return null;
+            }
+            old.await();
+        }
+    }
+
+    /**
+     * Put the rendered fragment.
+     *
+     * @param key   - fragment key
+     * @param value - byte[] or char[]
+     * @param ttl   - time to live in seconds, never expired if less than or equal to zero.
+     */
+    public void put(String key, Object value, long ttl) {
+        if (value == null) {
+            return;
+        }
+        long expired = ttl > 0 ? System.currentTimeMillis() + ttl * 1000L : Long.MAX_VALUE;
+        fragments.put(key, new Fragment(value, expired));
+        missLength.addAndGet(getLength(value));
+    }
+
+    /**
+     * Release the key loading by the current thread, and wake up the waiting threads.
+     * Do nothing if the current thread is not the loader,
+     * and the nested loading of the same key is released by the outermost one.
+     *
+     * @param key - fragment key
+     */
+    public void release(String key) {
+        Loader loader = loaders.get(key);
+        if (loader != null && loader.thread == Thread.currentThread() && --loader.holds == 0) {
+            loaders.remove(key, loader);
+            loader.latch.countDown();
+        }
+    }
+
+    public void remove(String key) {
+        fragments.remove(key);
+    }
+
+    public void clear() {
+        fragments.clear();
+    }
+
+    public int size() {
+        return fragments.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Get the total length of the cached output written on hits, in bytes for stream output or chars for writer output.
+     */
+    public long getHitLength() {
+        return hitLength.get();
+    }
+
+    /**
+     * Get the total length of the output rendered and put on misses.
+     */
+    public long getMissLength() {
+        return missLength.get();
+    }
+
+    public void resetStatistics() {
+        hitCount.set(0);
+        missCount.set(0);
+        hitLength.set(0);
+        missLength.set(0);
+    }
+
+    /**
+     * Get the location of the #cache directive, changed when the template reloaded.
+     *
+     * @param resource - template resource
+     * @param offset   - directive offset
+     * @param stream   - byte[] or char[] output
+     * @return location
+     */
+    public static String getLocation(Resource resource, int offset, boolean stream) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(resource.getName());
+        if (resource.getLocale() != null) {
+            buf.append('_').append(resource.getLocale());
+        }
+        buf.append('@').append(resource.getLastModified());
+        buf.append('#').append(offset);
+        buf.append(stream ? 'b' : 'c');
+        return buf.toString();
+    }
+
+    /**
+     * Get the fragment key of the #cache(key) value, or the #cache(key1, key2) values.
+     *
+     * @param location - template name and directive offset
+     * @param value    - key value, Object[] for multiple keys
+     * @return fragment key
+     */
+    public static String getKey(String location, Object value) {
+        StringBuilder buf = new StringBuilder(location);
+        buf.append(':');
+        if (value instanceof Object[]) {
+            Object[] values = (Object[]) value;
+            buf.append('[');
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    buf.append(", ");
+                }
+                buf.append(StringUtils.toString(values[i]));
+            }
+            buf.append(']');
+        } else {
+            buf.append(StringUtils.toString(value));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Get the ttl seconds of the #cache(key, ttl=seconds) value.
+     *
+     * @param value - ttl expression value
+     * @return ttl seconds, zero if not set.
+     */
+    public static long getTtl(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString().trim());
+    }
+
+    private Object getValue(String key) {
+        Fragment fragment = fragments.get(key);
+        if (fragment == null) {
+            return null;
+        }
+        if (fragment.expired < System.currentTimeMillis()) {
+            fragments.remove(key, fragment);
+            return null;
+        }
+        return fragment.value;
+    }
+
+    private static int getLength(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        } else if (value instanceof char[]) {
+            return ((char[]) value).length;
+        }
+        return 0;
+    }
+
+    private static class Fragment {
+
+        private final Object value;
+
+        private final long expired;
+
+        Fragment(Object value, long expired) {
+            this.value = value;
+            this.expired = expired;
+        }
+
+    }
+
+    private static class Loader {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private final Thread thread = Thread.currentThread();
+
+        // 只由加载线程访问，无需同步
+        private int holds = 1;
+
+        void await() {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the fragment rendering.", e);
+            }
+        }
+
+    }
+
+}
@@ -51,6 +51,8 @@ public abstract class AbstractCompiler implements Compiler {
 
     protected Logger logger;
 
+    protected CompileProfiler compileProfiler;
+
     private volatile boolean first = true;
 
     /**
@@ -60,6 +62,13 @@ public abstract class AbstractCompiler implements Compiler {
         this.logger = logger;
     }
 
+    /**
+     * httl.properties: compile.profiler=httl.spi.compilers.CompileProfiler
+     */
+    public void setCompileProfiler(CompileProfiler compileProfiler) {
+        this.compileProfiler = compileProfiler;
+    }
+
     /**
      * httl.properties: code.directory=/tmp/javacode
      */
@@ -35,6 +35,8 @@ public class AdaptiveCompiler implements Compiler {
 
     private String codeDirectory;
 
+    private CompileProfiler compileProfiler;
+
     /**
      * httl.properties: loggers=httl.spi.loggers.Log4jLogger
      */
@@ -55,6 +57,16 @@ public class AdaptiveCompiler implements Compiler {
         }
     }
 
+    /**
+     * httl.properties: compile.profiler=httl.spi.compilers.CompileProfiler
+     */
+    public void setCompileProfiler(CompileProfiler compileProfiler) {
+        this.compileProfiler = compileProfiler;
+        if (compiler instanceof AbstractCompiler) {
+            ((AbstractCompiler) compiler).setCompileProfiler(compileProfiler);
+        }
+    }
+
     /**
      * httl.properties: lint.unchecked=true
      */
@@ -72,12 +84,14 @@ public class AdaptiveCompiler implements Compiler {
             JavassistCompiler javassistCompiler = new JavassistCompiler();
             javassistCompiler.setLogger(logger);
             javassistCompiler.setCodeDirectory(codeDirectory);
+            javassistCompiler.setCompileProfiler(compileProfiler);
             compiler = javassistCompiler;
         } else {
             JdkCompiler jdkCompiler = new JdkCompiler();
             jdkCompiler.setCompileVersion(version);
             jdkCompiler.setLogger(logger);
             jdkCompiler.setCodeDirectory(codeDirectory);
+            jdkCompiler.setCompileProfiler(compileProfiler);
             compiler = jdkCompiler;
         }
     }
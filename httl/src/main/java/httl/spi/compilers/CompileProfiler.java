@@ -0,0 +1,351 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.compilers;
+
+import httl.spi.Logger;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CompileProfiler. (SPI, Singleton, ThreadSafe)
+ * <p>
+ * Time each stage of the template compilation in nanoseconds, and count the chars of each stage,
+ * such as the loaded source, the filtered source and the generated java code.
+ * The stages are recorded to the template being compiled in the current thread,
+ * the nested templates, such as the imported macros, are recorded separately.
+ * The translate stage includes the generate, compile, define and instantiate stages.
+ * The report file is rewritten at most once per interval after an outermost template compiled,
+ * and at the shutdown, or on demand by {@link #writeReport()}.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.engines.DefaultEngine#setCompileProfiler(CompileProfiler)
+ */
+public class CompileProfiler {
+
+    public static final String LOAD = "load";
+
+    public static final String FILTER = "filter";
+
+    public static final String PARSE = "parse";
+
+    public static final String TRANSLATE = "translate";
+
+    public static final String GENERATE = "generate";
+
+    public static final String COMPILE = "compile";
+
+    public static final String DEFINE = "define";
+
+    public static final String INSTANTIATE = "instantiate";
+
+    private final ThreadLocal<Profile> current = new ThreadLocal<Profile>();
+
+    private final ConcurrentMap<String, Profile> profiles = new ConcurrentHashMap<String, Profile>();
+
+    private final ConcurrentMap<String, Stage> stages = new ConcurrentHashMap<String, Stage>();
+
+    private final AtomicLong nextReport = new AtomicLong();
+
+    private final AtomicBoolean reportHook = new AtomicBoolean();
+
+    private volatile File reportFile;
+
+    private int reportLimit = 20;
+
+    private long reportInterval = 10000;
+
+    private Logger logger;
+
+    /**
+     * httl.properties: compile.profiler.report=/tmp/httl-compile-report.txt
+     */
+    public void setCompileProfilerReport(String report) {
+        if (report != null && report.trim().length() > 0) {
+            this.reportFile = new File(report.trim());
+            // 退出时写入最终报告，间隔期内编译的模板不会遗漏
+            if (reportHook.compareAndSet(false, true)) {
+                Runtime.getRuntime().addShutdownHook(new Thread("HttlCompileProfilerReport") {
+                    @Override
+                    public void run() {
+                        writeReport();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * httl.properties: compile.profiler.report.interval=10000
+     */
+    public void setCompileProfilerReportInterval(long interval) {
+        this.reportInterval = interval;
+    }
+
+    /**
+     * httl.properties: compile.profiler.report.limit=20
+     */
+    public void setCompileProfilerReportLimit(int limit) {
+        this.reportLimit = limit;
+    }
+
+    /**
+     * httl.properties: loggers=httl.spi.loggers.Log4jLogger
+     */
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Begin to profile the template compilation in the current thread.
+     *
+     * @param name - template name
+     * @return the profile, to be passed to {@link #end(Profile)}
+     */
+    public Profile begin(String name) {
+        Profile profile = new Profile(name, current.get());
+        current.set(profile);
+        return profile;
+    }
+
+    /**
+     * End the template compilation, and write the report if configured and the interval passed.
+     */
+    public void end(Profile profile) {
+        profile.elapsed = System.nanoTime() - profile.start;
+        current.set(profile.outer);
+        profiles.put(profile.name, profile);
+        // 嵌套模板结束时不写报告，以免计入外层模板的耗时，且同一间隔内只由一个线程写入
+        if (reportFile != null && profile.outer == null) {
+            long now = System.currentTimeMillis();
+            long next = nextReport.get();
+            if (now >= next && nextReport.compareAndSet(next, now + reportInterval)) {
+                writeReport();
+            }
+        }
+    }
+
+    /**
+     * Record the stage to the template compiling in the current thread.
+     *
+     * @param stage - stage name
+     * @param start - stage start time, by System.nanoTime()
+     * @param chars - stage output chars, or 0 if none
+     */
+    public void record(String stage, long start, long chars) {
+        long elapsed = System.nanoTime() - start;
+        Profile profile = current.get();
+        if (profile != null) {
+            profile.add(stage, elapsed, chars);
+        }
+        Stage total = stages.get(stage);
+        if (total == null) {
+            total = new Stage(stage);
+            Stage old = stages.putIfAbsent(stage, total);
+            if (old != null) {
+                total = old;
+            }
+        }
+        total.add(elapsed, chars);
+    }
+
+    /**
+     * Get the template profiles, the slowest first.
+     */
+    public List<Profile> getProfiles() {
+        List<Profile> list = new ArrayList<Profile>(profiles.values());
+        Collections.sort(list, new Comparator<Profile>() {
+            public int compare(Profile o1, Profile o2) {
+                return o1.elapsed < o2.elapsed ? 1 : (o1.elapsed == o2.elapsed ? 0 : -1);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Get the stage totals of all templates, the slowest first.
+     */
+    public List<Stage> getStages() {
+        List<Stage> list = new ArrayList<Stage>(stages.values());
+        Collections.sort(list, new Comparator<Stage>() {
+            public int compare(Stage o1, Stage o2) {
+                long t1 = o1.getElapsed(), t2 = o2.getElapsed();
+                return t1 < t2 ? 1 : (t1 == t2 ? 0 : -1);
+            }
+        });
+        return list;
+    }
+
+    public void reset() {
+        profiles.clear();
+        stages.clear();
+    }
+
+    /**
+     * Get the report of the stage totals and the slowest templates.
+     */
+    public String getReport() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Stage totals:\n");
+        for (Stage stage : getStages()) {
+            buf.append(String.format("%-12s %10.3fms %8d times %12d chars\n", stage.name,
+                    stage.getElapsed() / 1000000.0, stage.getCount(), stage.getChars()));
+        }
+        buf.append("\nSlowest templates:\n");
+        int i = 0;
+        for (Profile profile : getProfiles()) {
+            if (reportLimit > 0 && i++ >= reportLimit) {
+                break;
+            }
+            buf.append(String.format("%10.3fms %s\n", profile.elapsed / 1000000.0, profile.name));
+            for (Map.Entry<String, long[]> entry : profile.getStages().entrySet()) {
+                long[] value = entry.getValue();
+                buf.append(String.format("    %-12s %10.3fms %12d chars\n", entry.getKey(), value[0] / 1000000.0, value[1]));
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Write the report to the configured file.
+     */
+    public synchronized void writeReport() {
+        File reportFile = this.reportFile;
+        if (reportFile == null) {
+            return;
+        }
+        try {
+            File dir = reportFile.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            FileWriter writer = new FileWriter(reportFile);
+            try {
+                writer.write(getReport());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            if (logger != null && logger.isWarnEnabled()) {
+                logger.warn("Failed to write compile profiler report " + reportFile + ", cause: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * The compilation profile of a template.
+     */
+    public static final class Profile {
+
+        private final String name;
+
+        private final Profile outer;
+
+        private final long start = System.nanoTime();
+
+        private final Map<String, long[]> stages = new LinkedHashMap<String, long[]>();
+
+        private volatile long elapsed;
+
+        Profile(String name, Profile outer) {
+            this.name = name;
+            this.outer = outer;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the total nanoseconds of the compilation.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Get the nanoseconds and chars of each stage.
+         *
+         * @return stage name to {nanoseconds, chars}
+         */
+        public synchronized Map<String, long[]> getStages() {
+            Map<String, long[]> copy = new LinkedHashMap<String, long[]>();
+            for (Map.Entry<String, long[]> entry : stages.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().clone());
+            }
+            return copy;
+        }
+
+        synchronized void add(String stage, long elapsed, long chars) {
+            long[] value = stages.get(stage);
+            if (value == null) {
+                value = new long[2];
+                stages.put(stage, value);
+            }
+            value[0] += elapsed;
+            value[1] += chars;
+        }
+
+    }
+
+    /**
+     * The stage totals of all templates.
+     */
+    public static final class Stage {
+
+        private final String name;
+
+        private final AtomicLong elapsed = new AtomicLong();
+
+        private final AtomicLong chars = new AtomicLong();
+
+        private final AtomicLong count = new AtomicLong();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getElapsed() {
+            return elapsed.get();
+        }
+
+        public long getChars() {
+            return chars.get();
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        void add(long elapsed, long chars) {
+            this.elapsed.addAndGet(elapsed);
+            this.chars.addAndGet(chars);
+            this.count.incrementAndGet();
+        }
+
+    }
+
+}
@@ -44,8 +44,6 @@ public class JavassistCompiler extends AbstractCompiler {
 
     private static final Pattern FIELD_PATTERN = Pattern.compile("[^\n]+=[^\n]+;");
 
-    private final byte[] locker = new byte[0];
-
     protected ClassPool pool;
 
     public JavassistCompiler() {
@@ -65,10 +63,14 @@ public class JavassistCompiler extends AbstractCompiler {
 
     @Override
     protected Class<?> doCompile(String name, String source) throws Exception {
-        synchronized (locker) {
+        // 每次编译使用独立的子ClassPool，导入的包及生成的类互不干扰，可并发编译
+        ClassPool pool = new ClassPool(this.pool);
+        CtClass cls = null;
+        try {
             try {
                 return pool.get(name).toClass();
             } catch (NotFoundException e) {
+                long start = compileProfiler == null ? 0 : System.nanoTime();
                 int i = name.lastIndexOf('.');
                 String className = i < 0 ? name : name.substring(i + 1);
                 Matcher matcher = IMPORT_PATTERN.matcher(source);
@@ -88,7 +90,6 @@ public class JavassistCompiler extends AbstractCompiler {
                 }
                 String[] packages = importPackages.toArray(new String[0]);
                 matcher = EXTENDS_PATTERN.matcher(source);
-                CtClass cls;
                 if (matcher.find()) {
                     String extend = matcher.group(1).trim();
                     String extendClass;
@@ -133,10 +134,23 @@ public class JavassistCompiler extends AbstractCompiler {
                         }
                     }
                 }
+                if (compileProfiler != null) {
+                    compileProfiler.record(CompileProfiler.COMPILE, start, source.length());
+                }
                 if (compileDirectory != null) {
                     saveBytecode(name, cls.toBytecode());
                 }
-                return cls.toClass();
+                start = compileProfiler == null ? 0 : System.nanoTime();
+                Class<?> type = cls.toClass();
+                if (compileProfiler != null) {
+                    compileProfiler.record(CompileProfiler.DEFINE, start, 0);
+                }
+                return type;
+            }
+        } finally {
+            // 生成类后即从ClassPool中移除，避免ClassPool持续占用内存
+            if (cls != null) {
+                cls.detach();
             }
         }
     }
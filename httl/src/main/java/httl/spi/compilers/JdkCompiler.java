@@ -33,6 +33,10 @@ import java.net.URLClassLoader;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * JdkCompiler. (SPI, Singleton, ThreadSafe)
@@ -44,13 +48,16 @@ public class JdkCompiler extends AbstractCompiler {
 
     private final JavaCompiler compiler;
 
-    private final DiagnosticCollector<JavaFileObject> diagnosticCollector;
-
     private final StandardJavaFileManager standardJavaFileManager;
 
     private final ClassLoaderImpl classLoader;
 
-    private final JavaFileManagerImpl javaFileManager;
+    // 文件管理器非线程安全，每个编译任务独占一个，池大小为CPU核数
+    private final BlockingQueue<JavaFileManagerImpl> javaFileManagers;
+
+    private final AtomicInteger javaFileManagerCount = new AtomicInteger();
+
+    private final int javaFileManagerCapacity = Runtime.getRuntime().availableProcessors();
 
     private final List<String> options = new ArrayList<String>();
 
@@ -63,8 +70,7 @@ public class JdkCompiler extends AbstractCompiler {
         if (compiler == null) {
             throw new IllegalStateException("Can not get system java compiler. Please run with JDK (NOT JVM), or configure the httl.properties: compiler=httl.spi.compilers.JavassistCompiler, and add javassist.jar.");
         }
-        diagnosticCollector = new DiagnosticCollector<JavaFileObject>();
-        standardJavaFileManager = compiler.getStandardFileManager(diagnosticCollector, null, null);
+        standardJavaFileManager = compiler.getStandardFileManager(null, null, null);
         ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
         try {
             contextLoader.loadClass(JdkCompiler.class.getName());
@@ -98,7 +104,9 @@ public class JdkCompiler extends AbstractCompiler {
                 return new ClassLoaderImpl(parentLoader);
             }
         });
-        javaFileManager = new JavaFileManagerImpl(standardJavaFileManager, classLoader);
+        javaFileManagers = new ArrayBlockingQueue<JavaFileManagerImpl>(javaFileManagerCapacity);
+        javaFileManagers.offer(new JavaFileManagerImpl(standardJavaFileManager, classLoader));
+        javaFileManagerCount.incrementAndGet();
         lintOptions.add("-Xlint:unchecked");
     }
 
@@ -161,20 +169,55 @@ public class JdkCompiler extends AbstractCompiler {
             String packageName = i < 0 ? "" : name.substring(0, i);
             String className = i < 0 ? name : name.substring(i + 1);
             JavaFileObjectImpl javaFileObject = new JavaFileObjectImpl(className, sourceCode);
-            javaFileManager.putFileForInput(StandardLocation.SOURCE_PATH, packageName,
-                    className + ClassUtils.JAVA_EXTENSION, javaFileObject);
-            Boolean result = compiler.getTask(null, javaFileManager, diagnosticCollector, options,
-                    null, Arrays.asList(javaFileObject)).call();
-            if (result == null || !result) {
-                throw new IllegalStateException("Compilation failed. class: " + name + ", diagnostics: " + diagnosticCollector.getDiagnostics());
+            DiagnosticCollector<JavaFileObject> diagnosticCollector = new DiagnosticCollector<JavaFileObject>();
+            JavaFileManagerImpl javaFileManager = borrowJavaFileManager();
+            try {
+                javaFileManager.putFileForInput(StandardLocation.SOURCE_PATH, packageName,
+                        className + ClassUtils.JAVA_EXTENSION, javaFileObject);
+                long start = compileProfiler == null ? 0 : System.nanoTime();
+                Boolean result = compiler.getTask(null, javaFileManager, diagnosticCollector, options,
+                        null, Arrays.asList(javaFileObject)).call();
+                if (result == null || !result) {
+                    throw new IllegalStateException("Compilation failed. class: " + name + ", diagnostics: " + diagnosticCollector.getDiagnostics());
+                }
+                if (compileProfiler != null) {
+                    compileProfiler.record(CompileProfiler.COMPILE, start, sourceCode.length());
+                }
+            } finally {
+                javaFileManager.removeFileForInput(StandardLocation.SOURCE_PATH, packageName,
+                        className + ClassUtils.JAVA_EXTENSION);
+                javaFileManagers.offer(javaFileManager);
             }
             if (compileDirectory != null) {
                 saveBytecode(name, javaFileObject.getByteCode());
             }
-            return classLoader.loadClass(name);
+            long start = compileProfiler == null ? 0 : System.nanoTime();
+            Class<?> cls = classLoader.loadClass(name);
+            if (compileProfiler != null) {
+                compileProfiler.record(CompileProfiler.DEFINE, start, 0);
+            }
+            return cls;
         }
     }
 
+    private JavaFileManagerImpl borrowJavaFileManager() throws InterruptedException {
+        JavaFileManagerImpl javaFileManager = javaFileManagers.poll();
+        if (javaFileManager == null) {
+            if (javaFileManagerCount.incrementAndGet() <= javaFileManagerCapacity) {
+                StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+                try {
+                    fileManager.setLocation(StandardLocation.CLASS_PATH, standardJavaFileManager.getLocation(StandardLocation.CLASS_PATH));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+                return new JavaFileManagerImpl(fileManager, classLoader);
+            }
+            javaFileManagerCount.decrementAndGet();
+            javaFileManager = javaFileManagers.take();
+        }
+        return javaFileManager;
+    }
+
     private static final class JavaFileObjectImpl extends SimpleJavaFileObject {
 
         private final CharSequence source;
@@ -241,6 +284,10 @@ public class JdkCompiler extends AbstractCompiler {
             fileObjects.put(uri(location, packageName, relativeName), file);
         }
 
+        public void removeFileForInput(StandardLocation location, String packageName, String relativeName) {
+            fileObjects.remove(uri(location, packageName, relativeName));
+        }
+
         private URI uri(Location location, String packageName, String relativeName) {
             return ClassUtils.toURI(location.getName() + '/' + packageName + '/' + relativeName);
         }
@@ -293,7 +340,7 @@ public class JdkCompiler extends AbstractCompiler {
 
     private final class ClassLoaderImpl extends ClassLoader {
 
-        private final Map<String, JavaFileObject> classes = new HashMap<String, JavaFileObject>();
+        private final Map<String, JavaFileObject> classes = new ConcurrentHashMap<String, JavaFileObject>();
 
         ClassLoaderImpl(final ClassLoader parentClassLoader) {
             super(parentClassLoader);
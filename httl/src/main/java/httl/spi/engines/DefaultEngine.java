@@ -20,6 +20,8 @@ import httl.Node;
 import httl.Resource;
 import httl.Template;
 import httl.spi.*;
+import httl.spi.compilers.CompileProfiler;
+import httl.spi.compilers.CompileProfiler.Profile;
 import httl.spi.loaders.StringLoader;
 import httl.spi.translators.templates.AbstractTemplate;
 import httl.util.*;
@@ -91,6 +93,9 @@ public class DefaultEngine extends Engine {
 
     private Converter<Object, Map<String, Object>> mapConverter;
 
+    // httl.properties: compile.profiler=httl.spi.compilers.CompileProfiler
+    private CompileProfiler compileProfiler;
+
     public DefaultEngine() {
         this.stringLoader = new StringLoader(this);
     }
@@ -233,22 +238,68 @@ public class DefaultEngine extends Engine {
 
     // Parse the template. (No cache)
     private Template parseTemplate(Resource resource, String name, Locale locale, String encoding, Object args) throws IOException, ParseException {
-        if (resource == null) {
-            resource = loadResource(name, locale, encoding);
+        CompileProfiler profiler = this.compileProfiler;
+        Profile profile = profiler == null ? null : profiler.begin(locale == null ? name : name + "_" + locale);
+        try {
+            long time = profiler == null ? 0 : System.nanoTime();
+            if (resource == null) {
+                resource = loadResource(name, locale, encoding);
+            }
+            long start = logger != null && logger.isDebugEnabled() ? System.currentTimeMillis() : 0;
+            String source = resource.getSource();
+            if (profiler != null) {
+                profiler.record(CompileProfiler.LOAD, time, source.length());
+            }
+            try {
+                if (templateFilter != null) {
+                    time = profiler == null ? 0 : System.nanoTime();
+                    source = templateFilter.filter(resource.getName(), source);
+                    if (profiler != null) {
+                        profiler.record(CompileProfiler.FILTER, time, source.length());
+                    }
+                }
+                time = profiler == null ? 0 : System.nanoTime();
+                Node root = templateParser.parse(source, 0);
+                if (profiler != null) {
+                    profiler.record(CompileProfiler.PARSE, time, 0);
+                }
+                Map<String, Class<?>> parameterTypes = useRenderVariableType && args != null ? new DelegateMap<String, Class<?>>(new TypeMap(convertMap(args))) : null;
+                time = profiler == null ? 0 : System.nanoTime();
+                Template template = translator.translate(resource, root, parameterTypes);
+                if (profiler != null) {
+                    profiler.record(CompileProfiler.TRANSLATE, time, 0);
+                }
+                if (logger != null && logger.isDebugEnabled()) {
+                    logger.debug("Parsed the template " + name + ", eslapsed: " + (System.currentTimeMillis() - start) + "ms.");
+                }
+                return template;
+            } catch (ParseException e) {
+                throw AbstractTemplate.toLocatedParseException(e, resource);
+            }
+        } finally {
+            if (profile != null) {
+                profiler.end(profile);
+            }
         }
-        long start = logger != null && logger.isDebugEnabled() ? System.currentTimeMillis() : 0;
+    }
+
+    /**
+     * Parse the root node of the resource.
+     * <p>
+     * Used by the compact templates to restore the released AST.
+     *
+     * @param resource - template resource
+     * @return root node
+     * @throws IOException    - If an I/O error occurs
+     * @throws ParseException - If the template cannot be parsed
+     */
+    public Node parseRoot(Resource resource) throws IOException, ParseException {
         String source = resource.getSource();
         try {
             if (templateFilter != null) {
                 source = templateFilter.filter(resource.getName(), source);
             }
-            Node root = templateParser.parse(source, 0);
-            Map<String, Class<?>> parameterTypes = useRenderVariableType && args != null ? new DelegateMap<String, Class<?>>(new TypeMap(convertMap(args))) : null;
-            Template template = translator.translate(resource, root, parameterTypes);
-            if (logger != null && logger.isDebugEnabled()) {
-                logger.debug("Parsed the template " + name + ", eslapsed: " + (System.currentTimeMillis() - start) + "ms.");
-            }
-            return template;
+            return templateParser.parse(source, 0);
         } catch (ParseException e) {
             throw AbstractTemplate.toLocatedParseException(e, resource);
         }
@@ -512,6 +563,22 @@ public class DefaultEngine extends Engine {
         this.templateFilter = templateFilter;
     }
 
+    /**
+     * httl.properties: compile.profiler=httl.spi.compilers.CompileProfiler
+     */
+    public void setCompileProfiler(CompileProfiler compileProfiler) {
+        this.compileProfiler = compileProfiler;
+    }
+
+    /**
+     * Get the compile profiler.
+     *
+     * @return compile profiler, null if not configured.
+     */
+    public CompileProfiler getCompileProfiler() {
+        return compileProfiler;
+    }
+
     /**
      * httl.properties: map.converter=httl.spi.converters.BeanMapConverter
      */
@@ -17,13 +17,20 @@ package httl.spi.filters;
 
 import httl.spi.Filter;
 import httl.util.StringUtils;
-import net.htmlparser.jericho.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * AttributeSyntaxFilter. (SPI, Singleton, ThreadSafe)
+ * <p>
+ * Rewrite the directive attributes to the directives in one pass over the characters,
+ * only the open elements are kept in a stack to insert the end directives.
  *
  * @author Liang Fei (liangfei0201 AT gmail DOT com)
  * @see httl.spi.translators.CompiledTranslator#setTemplateFilter(Filter)
@@ -31,6 +38,39 @@ import java.util.List;
  */
 public class AttributeSyntaxFilter extends AbstractFilter {
 
+    // 没有结束标签的元素
+    private static final Set<String> VOID_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "area", "base", "basefont", "br", "col", "command", "embed", "frame", "hr", "img", "input",
+            "isindex", "keygen", "link", "meta", "param", "source", "track", "wbr"));
+
+    // 内容不解析标签的元素
+    private static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<String>(Arrays.asList("script", "style"));
+
+    // 可省略结束标签的元素，以及隐式结束它的开始标签
+    private static final Map<String, Set<String>> OPTIONAL_END_ELEMENTS = new HashMap<String, Set<String>>();
+
+    static {
+        Set<String> li = new HashSet<String>(Arrays.asList("li"));
+        Set<String> dl = new HashSet<String>(Arrays.asList("dt", "dd"));
+        Set<String> cell = new HashSet<String>(Arrays.asList("td", "th", "tr", "thead", "tbody", "tfoot"));
+        Set<String> row = new HashSet<String>(Arrays.asList("tr", "thead", "tbody", "tfoot"));
+        Set<String> section = new HashSet<String>(Arrays.asList("thead", "tbody", "tfoot"));
+        Set<String> option = new HashSet<String>(Arrays.asList("option", "optgroup"));
+        Set<String> p = new HashSet<String>(Arrays.asList("address", "article", "aside", "blockquote", "div", "dl",
+                "fieldset", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hr", "menu", "nav",
+                "ol", "p", "pre", "section", "table", "ul"));
+        OPTIONAL_END_ELEMENTS.put("li", li);
+        OPTIONAL_END_ELEMENTS.put("dt", dl);
+        OPTIONAL_END_ELEMENTS.put("dd", dl);
+        OPTIONAL_END_ELEMENTS.put("td", cell);
+        OPTIONAL_END_ELEMENTS.put("th", cell);
+        OPTIONAL_END_ELEMENTS.put("tr", row);
+        OPTIONAL_END_ELEMENTS.put("thead", section);
+        OPTIONAL_END_ELEMENTS.put("tbody", section);
+        OPTIONAL_END_ELEMENTS.put("option", option);
+        OPTIONAL_END_ELEMENTS.put("p", p);
+    }
+
     private String ifattr = "ifattr";
 
     private String setattr = "setattr";
@@ -119,7 +159,7 @@ public class AttributeSyntaxFilter extends AbstractFilter {
         this.attributeNamespace = attributeNamespace;
     }
 
-    private boolean isDirective(String name) {
+    protected boolean isDirective(String name) {
         return StringUtils.inArray(name, setDirective)
                 || StringUtils.inArray(name, ifDirective) || StringUtils.inArray(name, elseifDirective)
                 || StringUtils.inArray(name, elseDirective) || StringUtils.inArray(name, forDirective)
@@ -127,135 +167,382 @@ public class AttributeSyntaxFilter extends AbstractFilter {
                 || StringUtils.inArray(name, endDirective);
     }
 
-    private boolean isBlockDirective(String name) {
+    protected boolean isBlockDirective(String name) {
         return StringUtils.inArray(name, ifDirective) || StringUtils.inArray(name, elseifDirective)
                 || StringUtils.inArray(name, elseDirective) || StringUtils.inArray(name, forDirective)
                 || StringUtils.inArray(name, macroDirective);
     }
 
+    /**
+     * Get the directive name of the attribute.
+     *
+     * @param name attribute name
+     * @return directive name, null if the attribute is not a directive.
+     */
+    protected String getDirectiveName(String name) {
+        if (name != null && (isDirective(name) || (attributeNamespace != null && name.startsWith(attributeNamespace)) && isDirective(name.substring(attributeNamespace.length())))) { // 识别名称空间
+            return attributeNamespace != null ? name.substring(attributeNamespace.length()) : name;
+        }
+        return null;
+    }
+
+    protected String getEndDirective() {
+        return endDirective[0];
+    }
+
+    protected String getIfattr() {
+        return ifattr;
+    }
+
+    protected String getSetattr() {
+        return setattr;
+    }
+
     public String filter(String key, String value) {
-        Source source = new Source(value);
-        OutputDocument document = new OutputDocument(source);
-        replaceChildren(source, source, document);
-        return document.toString();
+        int len = value.length();
+        StringBuilder buf = new StringBuilder(len + len / 8);
+        List<OpenElement> stack = new ArrayList<OpenElement>();
+        int i = 0;
+        int text = 0; // 未输出文本的起始位置
+        while (i < len) {
+            int lt = value.indexOf('<', i);
+            if (lt < 0 || lt + 1 >= len) {
+                break;
+            }
+            char ch = value.charAt(lt + 1);
+            int end;
+            if (value.startsWith("<!--", lt)) {
+                end = skip(value, lt + 4, "-->");
+            } else if (ch == '!' || ch == '?') {
+                end = skip(value, lt + 2, ">");
+            } else if (ch == '%') {
+                end = skip(value, lt + 2, "%>");
+            } else if (ch == '/' && lt + 2 < len && isNameStart(value.charAt(lt + 2))) {
+                int nameEnd = scanName(value, lt + 2);
+                end = skip(value, nameEnd, ">");
+                String name = value.substring(lt + 2, nameEnd).toLowerCase();
+                int index = stack.size() - 1;
+                while (index >= 0 && !stack.get(index).name.equals(name)) {
+                    index--;
+                }
+                if (index >= 0) { // 结束标签前，隐式结束未闭合的子元素
+                    buf.append(value, text, lt);
+                    popElements(stack, index + 1, buf);
+                    buf.append(value, lt, end);
+                    popElements(stack, index, buf);
+                    text = end;
+                }
+            } else if (isNameStart(ch)) {
+                end = filterStartTag(value, lt, text, stack, buf);
+                if (end > 0) {
+                    text = end;
+                } else {
+                    end = lt + 1;
+                }
+            } else {
+                end = lt + 1;
+            }
+            i = end;
+        }
+        buf.append(value, text, len);
+        popElements(stack, 0, buf);
+        return buf.toString();
     }
 
-    // 替换子元素中的指令属性
-    private void replaceChildren(Source source, Segment segment, OutputDocument document) {
-        // 迭代子元素，逐个查找
-        List<Element> elements = segment.getChildElements();
-        if (elements != null) {
-            for (Element element : elements) {
-                if (element != null) {
-                    // ---- 标签属性处理 ----
-                    List<String> directiveNames = new ArrayList<String>();
-                    List<String> directiveValues = new ArrayList<String>();
-                    List<Attribute> directiveAttributes = new ArrayList<Attribute>();
-                    // 迭代标签属性，查找指令属性
-                    Attributes attributes = element.getAttributes();
-                    if (attributes != null) {
-                        for (Attribute attribute : attributes) {
-                            if (attribute != null) {
-                                String name = attribute.getName();
-                                if (name != null && (isDirective(name) || (attributeNamespace != null && name.startsWith(attributeNamespace)) && isDirective(name.substring(attributeNamespace.length())))) { // 识别名称空间
-                                    String directiveName = attributeNamespace != null ? name.substring(attributeNamespace.length()) : name;
-                                    String value = attribute.getValue();
-                                    directiveNames.add(directiveName);
-                                    directiveValues.add(value);
-                                    directiveAttributes.add(attribute);
-                                }
-                            }
-                        }
+    // 处理开始标签，返回标签结束位置，不完整的标签返回-1
+    private int filterStartTag(String value, int lt, int text, List<OpenElement> stack, StringBuilder buf) {
+        int len = value.length();
+        int nameEnd = scanName(value, lt + 1);
+        String name = value.substring(lt + 1, nameEnd).toLowerCase();
+        List<TagAttribute> attributes = null;
+        boolean empty = false;
+        int i = nameEnd;
+        for (; ; ) {
+            while (i < len && Character.isWhitespace(value.charAt(i))) {
+                i++;
+            }
+            if (i >= len) {
+                return -1;
+            }
+            char ch = value.charAt(i);
+            if (ch == '>') {
+                i++;
+                break;
+            }
+            if (ch == '/' && i + 1 < len && value.charAt(i + 1) == '>') {
+                empty = true;
+                i += 2;
+                break;
+            }
+            int begin = i;
+            while (i < len && !Character.isWhitespace(ch = value.charAt(i)) && ch != '=' && ch != '>'
+                    && !(ch == '/' && i + 1 < len && value.charAt(i + 1) == '>')) {
+                i++;
+            }
+            if (i == begin) { // 孤立的等号
+                i++;
+                continue;
+            }
+            String attributeName = value.substring(begin, i);
+            int j = i;
+            while (j < len && Character.isWhitespace(value.charAt(j))) {
+                j++;
+            }
+            String attributeValue = null;
+            if (j < len && value.charAt(j) == '=') {
+                j++;
+                while (j < len && Character.isWhitespace(value.charAt(j))) {
+                    j++;
+                }
+                if (j >= len) {
+                    return -1;
+                }
+                char quote = value.charAt(j);
+                if (quote == '\"' || quote == '\'') {
+                    int close = value.indexOf(quote, j + 1);
+                    if (close < 0) {
+                        return -1;
                     }
-                    // ---- 指令处理 ----
-                    if (directiveNames.size() > 0) {
-                        StringBuffer buf = new StringBuffer();
-                        for (int i = 0; i < directiveNames.size(); i++) { // 按顺序添加块指令
-                            String directiveName = (String) directiveNames.get(i);
-                            String directiveValue = (String) directiveValues.get(i);
-                            buf.append("#");
-                            buf.append(directiveName);
-                            buf.append("(");
-                            buf.append(directiveValue);
-                            buf.append(")");
-                        }
-                        document.insert(element.getBegin(), buf.toString()); // 插入块指令
+                    attributeValue = value.substring(j + 1, close);
+                    i = close + 1;
+                } else {
+                    i = j;
+                    while (i < len && !Character.isWhitespace(ch = value.charAt(i)) && ch != '>') {
+                        i++;
                     }
-                    // ---- 指令属性处理 ----
-                    for (int i = 0; i < directiveAttributes.size(); i++) {
-                        Attribute attribute = (Attribute) directiveAttributes.get(i);
-                        document.remove(new Segment(source, attribute.getBegin() - 1, attribute.getEnd())); // 移除属性
+                    attributeValue = value.substring(j, i);
+                }
+                attributeValue = StringUtils.unescapeXml(attributeValue);
+            }
+            if (attributes == null) {
+                attributes = new ArrayList<TagAttribute>();
+            }
+            attributes.add(new TagAttribute(attributeName, attributeValue, begin, i));
+        }
+        int end = i;
+        // 开始标签前，隐式结束可省略结束标签的元素
+        while (!stack.isEmpty()) {
+            Set<String> closers = OPTIONAL_END_ELEMENTS.get(stack.get(stack.size() - 1).name);
+            if (closers == null || !closers.contains(name)) {
+                break;
+            }
+            buf.append(value, text, lt);
+            text = lt;
+            popElements(stack, stack.size() - 1, buf);
+        }
+        buf.append(value, text, lt);
+        List<String> directiveNames = null;
+        List<Edit> edits = null;
+        if (attributes != null) {
+            for (TagAttribute attribute : attributes) {
+                String directiveName = getDirectiveName(attribute.name);
+                if (directiveName != null) {
+                    if (directiveNames == null) {
+                        directiveNames = new ArrayList<String>();
                     }
-
-                    if (attributes != null) {
-                        //检查扩展的ifattr指令
-                        for (Attribute attribute : attributes) {
-                            if (attribute != null) {
-                                String name = attribute.getName();
-                                if (ifattr.equals(name)) {
-                                    String val = attribute.getValue();
-                                    String[] arr = val.split(",");
-                                    String attrName = arr[0].trim();
-                                    String expression = arr[1].trim();
-
-                                    //修改原attribute
-                                    Attribute oriattr = attributes.get(attrName);
-                                    if (oriattr != null) {
-                                        String buf = String.format("#if(%s)%s=\"%s\"#end()", expression, oriattr.getName(), oriattr.getValue());
-                                        document.replace(new Segment(source, oriattr.getBegin(), oriattr.getEnd()), buf);
-                                        document.remove(new Segment(source, attribute.getBegin(), attribute.getEnd())); // 移除ifattr控制属性
-                                    }
-                                }
-                            }
-                        }
-
-                        //检查扩展的setattr指令
-                        for (Attribute attribute : attributes) {
-                            if (attribute != null) {
-                                String name = attribute.getName();
-                                if (setattr.equals(name)) {
-                                    String val = attribute.getValue();
-                                    String[] arr = val.split(",");
-                                    String attrName = arr[0].trim();
-                                    String expression = arr[1].trim();
-
-                                    //将控制指令直接替换为动态属性赋值
-                                    Attribute oriattr = attributes.get(attrName);
-                                    String buf = String.format("%s=\"%s\"", attrName, expression);
-                                    document.replace(new Segment(source, attribute.getBegin(), attribute.getEnd()), buf);
-
-                                    //如果有已经存在的静态属性，直接删去即可
-                                    if (oriattr != null) {
-                                        document.remove(new Segment(source, attribute.getBegin(), attribute.getEnd())); // 移除setattr控制属性
-                                    }
-                                }
-                            }
+                    directiveNames.add(directiveName);
+                    buf.append("#");
+                    buf.append(directiveName);
+                    buf.append("(");
+                    buf.append(attribute.value);
+                    buf.append(")"); // 插入块指令
+                    edits = addEdit(edits, attribute.begin - 1, attribute.end, null); // 移除属性
+                }
+            }
+            for (TagAttribute attribute : attributes) {
+                if (ifattr.equals(attribute.name) && attribute.value != null) { // 检查扩展的ifattr指令
+                    String[] arr = attribute.value.split(",");
+                    if (arr.length > 1) {
+                        TagAttribute oriattr = getAttribute(attributes, arr[0].trim());
+                        if (oriattr != null) {
+                            edits = addEdit(edits, oriattr.begin, oriattr.end, "#if(" + arr[1].trim() + ")" + oriattr.name + "=\"" + oriattr.value + "\"#end()");
+                            edits = addEdit(edits, attribute.begin, attribute.end, null); // 移除ifattr控制属性
                         }
                     }
-
-                    replaceChildren(source, element, document); // 递归处理子标签
-                    // ---- 结束指令处理 ----
-                    if (directiveNames.size() > 0) {
-                        StringBuffer buf = new StringBuffer();
-                        for (int i = directiveNames.size() - 1; i >= 0; i--) { // 倒序添加结束指令
-                            String directiveName = (String) directiveNames.get(i);
-                            if (isBlockDirective(directiveName)) {
-                                buf.append("#");
-                                buf.append(endDirective[0]);
-                                buf.append("(");
-                                buf.append(directiveName);
-                                buf.append(")");
-                            }
+                }
+            }
+            for (TagAttribute attribute : attributes) {
+                if (setattr.equals(attribute.name) && attribute.value != null) { // 检查扩展的setattr指令
+                    String[] arr = attribute.value.split(",");
+                    if (arr.length > 1) {
+                        String attrName = arr[0].trim();
+                        // 将控制指令直接替换为动态属性赋值，并删去已经存在的静态属性
+                        TagAttribute oriattr = getAttribute(attributes, attrName);
+                        edits = addEdit(edits, attribute.begin, attribute.end, attrName + "=\"" + arr[1].trim() + "\"");
+                        if (oriattr != null) {
+                            edits = addEdit(edits, oriattr.begin - 1, oriattr.end, null);
                         }
-                        document.insert(element.getEnd(), buf.toString()); // 插入结束指令
                     }
-                    // 清理临时容器
-                    directiveNames.clear();
-                    directiveValues.clear();
-                    directiveAttributes.clear();
                 }
             }
         }
+        // 输出标签，并应用属性的修改
+        int pos = lt;
+        if (edits != null) {
+            for (Edit edit : edits) {
+                buf.append(value, pos, edit.begin);
+                if (edit.replacement != null) {
+                    buf.append(edit.replacement);
+                }
+                pos = edit.end;
+            }
+        }
+        buf.append(value, pos, end);
+        String endDirectives = getEndDirectives(directiveNames);
+        if (empty || VOID_ELEMENTS.contains(name)) {
+            if (endDirectives != null) {
+                buf.append(endDirectives); // 插入结束指令
+            }
+        } else {
+            stack.add(new OpenElement(name, endDirectives));
+            if (RAW_TEXT_ELEMENTS.contains(name)) { // 原样输出脚本内容，由结束标签出栈
+                int close = indexOfIgnoreCase(value, "</" + name, end);
+                if (close < 0) {
+                    close = len;
+                }
+                buf.append(value, end, close);
+                end = close;
+            }
+        }
+        return end;
+    }
+
+    private String getEndDirectives(List<String> directiveNames) {
+        if (directiveNames == null) {
+            return null;
+        }
+        StringBuilder buf = null;
+        for (int i = directiveNames.size() - 1; i >= 0; i--) { // 倒序添加结束指令
+            String directiveName = directiveNames.get(i);
+            if (isBlockDirective(directiveName)) {
+                if (buf == null) {
+                    buf = new StringBuilder();
+                }
+                buf.append("#");
+                buf.append(endDirective[0]);
+                buf.append("(");
+                buf.append(directiveName);
+                buf.append(")");
+            }
+        }
+        return buf == null ? null : buf.toString();
+    }
+
+    // 弹出元素直到栈大小为size，并插入其结束指令
+    private static void popElements(List<OpenElement> stack, int size, StringBuilder buf) {
+        while (stack.size() > size) {
+            OpenElement element = stack.remove(stack.size() - 1);
+            if (element.endDirectives != null) {
+                buf.append(element.endDirectives);
+            }
+        }
+    }
+
+    // 按位置插入修改，与已有修改重叠的忽略
+    private static List<Edit> addEdit(List<Edit> edits, int begin, int end, String replacement) {
+        if (edits == null) {
+            edits = new ArrayList<Edit>();
+        }
+        int index = edits.size();
+        while (index > 0 && edits.get(index - 1).begin >= end) {
+            index--;
+        }
+        if (index > 0 && edits.get(index - 1).end > begin) {
+            return edits;
+        }
+        if (index < edits.size() && edits.get(index).begin < end) {
+            return edits;
+        }
+        edits.add(index, new Edit(begin, end, replacement));
+        return edits;
+    }
+
+    private static TagAttribute getAttribute(List<TagAttribute> attributes, String name) {
+        for (TagAttribute attribute : attributes) {
+            if (attribute.name.equalsIgnoreCase(name)) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isNameStart(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+    }
+
+    private static int scanName(String value, int i) {
+        int len = value.length();
+        while (i < len) {
+            char ch = value.charAt(i);
+            if (!(isNameStart(ch) || (ch >= '0' && ch <= '9') || ch == '_' || ch == ':' || ch == '.' || ch == '-')) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static int skip(String value, int i, String end) {
+        int index = value.indexOf(end, i);
+        return index < 0 ? value.length() : index + end.length();
+    }
+
+    private static int indexOfIgnoreCase(String value, String str, int i) {
+        int last = value.length() - str.length();
+        for (; i <= last; i++) {
+            if (value.regionMatches(true, i, str, 0, str.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class OpenElement {
+
+        private final String name;
+
+        private final String endDirectives;
+
+        OpenElement(String name, String endDirectives) {
+            this.name = name;
+            this.endDirectives = endDirectives;
+        }
+
+    }
+
+    private static final class TagAttribute {
+
+        private final String name;
+
+        private final String value;
+
+        private final int begin;
+
+        private final int end;
+
+        TagAttribute(String name, String value, int begin, int end) {
+            this.name = name;
+            this.value = value;
+            this.begin = begin;
+            this.end = end;
+        }
+
+    }
+
+    private static final class Edit {
+
+        private final int begin;
+
+        private final int end;
+
+        private final String replacement;
+
+        Edit(int begin, int end, String replacement) {
+            this.begin = begin;
+            this.end = end;
+            this.replacement = replacement;
+        }
+
     }
 
-}
\ No newline at end of file
+}
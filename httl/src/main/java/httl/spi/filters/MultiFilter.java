@@ -47,6 +47,10 @@ public abstract class MultiFilter implements Filter {
         }
     }
 
+    public Filter[] getFilters() {
+        return filters;
+    }
+
     public String filter(String key, String value) {
         if (filters == null || filters.length == 0) {
             return value;
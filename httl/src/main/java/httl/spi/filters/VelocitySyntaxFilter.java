@@ -108,10 +108,10 @@ public class VelocitySyntaxFilter extends AbstractFilter {
 		/* 30.指间空白 */ {30, S, S, S, S, S, P, S, S, S, S, S, S, S, S, S, S, S, S,}, // 指令名和括号间的空白
     };
     private static final Pattern REFERENCE_PATTERN = Pattern.compile("\\$\\{?(\\w+)\\}?");
-    private static DfaScanner scanner = new DfaScanner() {
+    private static DfaScanner scanner = new DfaScanner(states) {
         @Override
-        public int next(int state, char ch) {
-            return states[state][getCharType(ch)];
+        protected int getCharType(char ch) {
+            return VelocitySyntaxFilter.getCharType(ch);
         }
     };
     private final AtomicInteger seq = new AtomicInteger();
@@ -22,6 +22,7 @@ import httl.spi.Formatter;
 import httl.util.*;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
 import java.util.Collections;
@@ -85,6 +86,8 @@ public class MultiFormatter implements Formatter<Object> {
 
     private String outputEncoding;
 
+    private StreamEncoder encoder;
+
     public MultiFormatter() {
     }
 
@@ -113,6 +116,17 @@ public class MultiFormatter implements Formatter<Object> {
         this.floatFormatter = getFormatter(Float.class, numberFormatter);
         this.doubleFormatter = getFormatter(Double.class, numberFormatter);
         this.dateFormatter = get(Date.class);
+        if (encoder == null) {
+            this.encoder = getEncoder(outputEncoding);
+        }
+    }
+
+    private static StreamEncoder getEncoder(String outputEncoding) {
+        try {
+            return StreamEncoder.getEncoder(outputEncoding);
+        } catch (IllegalArgumentException e) { // 不支持的编码，按原方式输出
+            return null;
+        }
     }
 
     /**
@@ -120,6 +134,7 @@ public class MultiFormatter implements Formatter<Object> {
      */
     public void setOutputEncoding(String outputEncoding) {
         this.outputEncoding = outputEncoding;
+        this.encoder = getEncoder(outputEncoding);
     }
 
     /**
@@ -403,6 +418,12 @@ public class MultiFormatter implements Formatter<Object> {
         }
     }
 
+    public String toString(String key, SafeMarkup value) {
+        if (value == null)
+            return nullValue;
+        return value.toString();
+    }
+
     @SuppressWarnings("unchecked")
     public String toString(String key, Object value) {
         if (value == null)
@@ -423,6 +444,8 @@ public class MultiFormatter implements Formatter<Object> {
             return toString(key, (Template) value);
         if (value instanceof Resource)
             return toString(key, (Resource) value);
+        if (value instanceof SafeMarkup)
+            return toString(key, (SafeMarkup) value);
         if (formatter != null)
             return formatter.toString(key, value);
         Class<?> cls = value.getClass();
@@ -623,6 +646,12 @@ public class MultiFormatter implements Formatter<Object> {
         }
     }
 
+    public char[] toChars(String key, SafeMarkup value) {
+        if (value == null)
+            return nullValueChars;
+        return value.toChars();
+    }
+
     @SuppressWarnings("unchecked")
     public char[] toChars(String key, Object value) {
         if (value == null)
@@ -645,6 +674,8 @@ public class MultiFormatter implements Formatter<Object> {
             return toChars(key, (Expression) value);
         if (value instanceof Resource)
             return toChars(key, (Resource) value);
+        if (value instanceof SafeMarkup)
+            return toChars(key, (SafeMarkup) value);
         if (formatter != null)
             return formatter.toChars(key, value);
         Class<?> cls = value.getClass();
@@ -829,6 +860,34 @@ public class MultiFormatter implements Formatter<Object> {
         }
     }
 
+    /**
+     * Write the string to the stream in the output encoding, without the intermediate byte[].
+     *
+     * @param escapeXml - escape the xml characters in the same pass
+     */
+    public void write(OutputStream output, String key, String value, boolean escapeXml) throws IOException {
+        if (encoder == null) {
+            byte[] bytes = toBytes(key, value);
+            output.write(escapeXml ? StringUtils.escapeXml(bytes) : bytes);
+        } else {
+            encoder.write(output, value == null ? nullValue : value, escapeXml);
+        }
+    }
+
+    /**
+     * Write the number to the stream digit by digit, unless a long formatter is configured.
+     *
+     * @param escapeXml - escape the xml characters of the formatted number
+     */
+    public void write(OutputStream output, String key, long value, boolean escapeXml) throws IOException {
+        if (encoder == null || longFormatter != null) {
+            byte[] bytes = toBytes(key, value);
+            output.write(escapeXml ? StringUtils.escapeXml(bytes) : bytes);
+        } else {
+            encoder.write(output, value);
+        }
+    }
+
     public byte[] toBytes(String key, Template value) {
         try {
             return toBytes(key, value.evaluate());
@@ -845,6 +904,12 @@ public class MultiFormatter implements Formatter<Object> {
         }
     }
 
+    public byte[] toBytes(String key, SafeMarkup value) {
+        if (value == null)
+            return nullValueBytes;
+        return value.toBytes(outputEncoding);
+    }
+
     @SuppressWarnings("unchecked")
     public byte[] toBytes(String key, Object value) {
         if (value == null)
@@ -867,6 +932,8 @@ public class MultiFormatter implements Formatter<Object> {
             return toBytes(key, (Expression) value);
         if (value instanceof Resource)
             return toBytes(key, (Resource) value);
+        if (value instanceof SafeMarkup)
+            return toBytes(key, (SafeMarkup) value);
         if (formatter != null)
             return formatter.toBytes(key, value);
         Class<?> cls = value.getClass();
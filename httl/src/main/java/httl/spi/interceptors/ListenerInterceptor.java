@@ -19,6 +19,7 @@ import httl.Context;
 import httl.spi.Interceptor;
 import httl.spi.Listener;
 import httl.spi.Logger;
+import httl.spi.listeners.MultiListener;
 import httl.util.Optional;
 
 import java.io.IOException;
@@ -44,7 +45,7 @@ public class ListenerInterceptor implements Interceptor {
      */
     @Optional
     public void setBeforeListener(Listener listener) {
-        this.beforeListener = listener;
+        this.beforeListener = MultiListener.isEmpty(listener) ? null : listener;
     }
 
     /**
@@ -52,7 +53,7 @@ public class ListenerInterceptor implements Interceptor {
      */
     @Optional
     public void setAfterListener(Listener listener) {
-        this.afterListener = listener;
+        this.afterListener = MultiListener.isEmpty(listener) ? null : listener;
     }
 
     /**
@@ -62,6 +63,13 @@ public class ListenerInterceptor implements Interceptor {
         this.logger = logger;
     }
 
+    /**
+     * Whether no before or after listener is configured.
+     */
+    public boolean isEmpty() {
+        return beforeListener == null && afterListener == null;
+    }
+
     public void render(Context context, Listener listener) throws IOException, ParseException {
         if (beforeListener != null) {
             try {
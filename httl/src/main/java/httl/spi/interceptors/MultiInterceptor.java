@@ -18,10 +18,14 @@ package httl.spi.interceptors;
 import httl.Context;
 import httl.spi.Interceptor;
 import httl.spi.Listener;
+import httl.util.ConcurrentLinkedHashMap;
 import httl.util.Reqiured;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * MultiInterceptor. (SPI, Singleton, ThreadSafe)
@@ -32,51 +36,113 @@ import java.text.ParseException;
  */
 public class MultiInterceptor implements Interceptor {
 
-    private static final String LISTENER_KEY = "__listener__";
+    private static final Interceptor[] EMPTY = new Interceptor[0];
 
-    private Listener chain;
+    private static final int MAX_CHAINS = 1000;
+
+    // 按作用范围预先拆分的拦截器链，空操作的拦截器已被剔除
+    private Interceptor[] firstInterceptors = EMPTY;
+
+    private Interceptor[] nestedInterceptors = EMPTY;
+
+    private Interceptor[] macroInterceptors = EMPTY;
+
+    // 未预先绑定的调用者的拦截器链，按监听器缓存
+    private final ConcurrentMap<Listener, Listener> templateChains = new ConcurrentLinkedHashMap<Listener, Listener>(MAX_CHAINS);
+
+    private final ConcurrentMap<Listener, Listener> macroChains = new ConcurrentLinkedHashMap<Listener, Listener>(MAX_CHAINS);
 
     /**
      * httl.properties: interceptors=httl.spi.interceptors.ExtendsInterceptor
      */
     @Reqiured
     public void setInterceptors(Interceptor[] interceptors) {
-        Listener last = null;
-        for (int i = interceptors.length - 1; i >= 0; i--) {
-            final Interceptor current = interceptors[i];
-            final Listener next = last;
-            last = new Listener() {
-                public void render(Context context) throws IOException, ParseException {
-                    if (next == null) {
-                        Listener listener = (Listener) context.get(LISTENER_KEY);
-                        if (listener != null) {
-                            current.render(context, listener);
-                        }
-                    } else {
-                        current.render(context, next);
-                    }
-                }
-            };
+        List<Interceptor> first = new ArrayList<Interceptor>();
+        List<Interceptor> nested = new ArrayList<Interceptor>();
+        List<Interceptor> macro = new ArrayList<Interceptor>();
+        for (Interceptor interceptor : interceptors) {
+            if (interceptor == null || (interceptor instanceof ListenerInterceptor
+                    && ((ListenerInterceptor) interceptor).isEmpty())) {
+                continue;
+            }
+            if (interceptor instanceof MacroInterceptor) {
+                macro.add(interceptor);
+            } else if (interceptor instanceof FirstInterceptor) {
+                first.add(interceptor);
+            } else if (interceptor instanceof TemplateInterceptor) {
+                first.add(interceptor);
+                nested.add(interceptor);
+            } else {
+                first.add(interceptor);
+                nested.add(interceptor);
+                macro.add(interceptor);
+            }
         }
-        this.chain = last;
+        this.firstInterceptors = first.toArray(EMPTY);
+        this.nestedInterceptors = nested.toArray(EMPTY);
+        this.macroInterceptors = macro.toArray(EMPTY);
+        this.templateChains.clear();
+        this.macroChains.clear();
     }
 
-    public void render(Context context, Listener listener)
-            throws IOException, ParseException {
-        if (chain != null) {
-            Object old = context.put(LISTENER_KEY, listener);
-            try {
-                chain.render(context);
-            } finally {
-                if (old != null) {
-                    context.put(LISTENER_KEY, old);
+    /**
+     * Bind the interceptor chain to the template listener once,
+     * the returned listener is the listener itself if no interceptor applies.
+     *
+     * @param listener - template listener
+     * @param macro    - whether the template is a macro
+     * @return fused listener
+     */
+    public Listener bind(Listener listener, boolean macro) {
+        if (macro) {
+            return chain(macroInterceptors, listener);
+        }
+        final Listener first = chain(firstInterceptors, listener);
+        final Listener nested = chain(nestedInterceptors, listener);
+        if (first == nested) {
+            return first;
+        }
+        return new Listener() {
+            public void render(Context context) throws IOException, ParseException {
+                if (context.getLevel() > 1) {
+                    nested.render(context);
                 } else {
-                    context.remove(LISTENER_KEY);
+                    first.render(context);
                 }
             }
-        } else {
-            listener.render(context);
+        };
+    }
+
+    /**
+     * Render through the chain bound to the listener, templates call the result of bind() directly,
+     * the chains of the other callers are bound on the first call and reused.
+     */
+    public void render(Context context, Listener listener)
+            throws IOException, ParseException {
+        boolean macro = context.getTemplate() != null && context.getTemplate().isMacro();
+        ConcurrentMap<Listener, Listener> chains = macro ? macroChains : templateChains;
+        Listener chain = chains.get(listener);
+        if (chain == null) {
+            chain = bind(listener, macro);
+            Listener old = chains.putIfAbsent(listener, chain);
+            if (old != null) {
+                chain = old;
+            }
+        }
+        chain.render(context);
+    }
+
+    private static Listener chain(Interceptor[] interceptors, Listener listener) {
+        for (int i = interceptors.length - 1; i >= 0; i--) {
+            final Interceptor current = interceptors[i];
+            final Listener next = listener;
+            listener = new Listener() {
+                public void render(Context context) throws IOException, ParseException {
+                    current.render(context, next);
+                }
+            };
         }
+        return listener;
     }
 
-}
\ No newline at end of file
+}
@@ -81,8 +81,15 @@ public class DumpListener implements Listener {
         this.dumpOverride = dumpOverride;
     }
 
+    /**
+     * Whether the dump directory and codec are configured.
+     */
+    public boolean isEnabled() {
+        return dumpDirectory != null && dumpCodec != null;
+    }
+
     public void render(Context context) throws IOException, ParseException {
-        if (dumpDirectory == null || dumpCodec == null) {
+        if (!isEnabled()) {
             return;
         }
         File file;
@@ -21,6 +21,8 @@ import httl.spi.Logger;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * MultiListener. (SPI, Singleton, ThreadSafe)
@@ -39,6 +41,12 @@ public class MultiListener implements Listener {
      * httl.properties: listeners=httl.spi.listeners.ExtendsListener
      */
     public void setListeners(Listener[] listeners) {
+        if (listeners != null && listeners.length > 0) {
+            listeners = filterEmpty(listeners);
+            if (listeners.length == 0) {
+                return;
+            }
+        }
         if (listeners != null && listeners.length > 0
                 && this.listeners != null && this.listeners.length > 0) {
             Listener[] oldListeners = this.listeners;
@@ -50,6 +58,36 @@ public class MultiListener implements Listener {
         }
     }
 
+    /**
+     * Whether the listener never does anything, e.g. null, no listeners, or dump without directory.
+     *
+     * @param listener - listener
+     * @return empty
+     */
+    public static boolean isEmpty(Listener listener) {
+        if (listener == null) {
+            return true;
+        }
+        if (listener instanceof MultiListener) {
+            Listener[] listeners = ((MultiListener) listener).listeners;
+            return listeners == null || listeners.length == 0;
+        }
+        if (listener instanceof DumpListener) {
+            return !((DumpListener) listener).isEnabled();
+        }
+        return false;
+    }
+
+    private static Listener[] filterEmpty(Listener[] listeners) {
+        List<Listener> list = new ArrayList<Listener>(listeners.length);
+        for (Listener listener : listeners) {
+            if (!isEmpty(listener)) {
+                list.add(listener);
+            }
+        }
+        return list.toArray(new Listener[list.size()]);
+    }
+
     /**
      * httl.properties: loggers=httl.spi.loggers.Log4jListener
      */
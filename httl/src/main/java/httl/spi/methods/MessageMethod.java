@@ -26,8 +26,14 @@ import httl.util.LocaleUtils;
 import httl.util.StringUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -38,7 +44,11 @@ import java.util.concurrent.ConcurrentMap;
  */
 public class MessageMethod {
 
-    private final ConcurrentMap<String, EncodingProperties> messageCache = new ConcurrentHashMap<String, EncodingProperties>();
+    private static final long RELOAD_INTERVAL = 1000;
+
+    // 按区域缓存的已合并父区域消息表
+    private final ConcurrentMap<String, MessageTable> messageCache = new ConcurrentHashMap<String, MessageTable>();
+
     private Engine engine;
     private Resolver resolver;
     private Logger logger;
@@ -174,13 +184,17 @@ public class MessageMethod {
         if (locale == null) {
             locale = getLocale();
         }
-        String value = findMessageByLocale(key, locale);
-        if (StringUtils.isNotEmpty(value)) {
+        MessageTable table = getMessageTable(locale);
+        String value = table.messages.get(key);
+        if (value != null) {
             if (args != null && args.length > 0) {
                 if ("string".equals(messageFormat)) {
                     return String.format(value, args);
                 } else {
-                    return MessageFormat.format(value, args);
+                    MessageFormat format = table.getFormat(key, value);
+                    synchronized (format) { // MessageFormat is not thread safe.
+                        return format.format(args);
+                    }
                 }
             } else {
                 return value;
@@ -189,22 +203,79 @@ public class MessageMethod {
         return key;
     }
 
-    private String findMessageByLocale(String key, Locale locale) {
-        String file = messageBasename + (locale == null ? "" : "_" + locale) + messageSuffix;
-        EncodingProperties properties = messageCache.get(file);
-        if ((properties == null || reloadable) && engine.hasResource(file)) {
-            if (properties == null) {
-                properties = new EncodingProperties();
-                EncodingProperties old = messageCache.putIfAbsent(file, properties);
-                if (old != null) {
-                    properties = old;
+    /**
+     * Get the message which can be inlined in the compiled template, the reloadable message cannot be inlined.
+     *
+     * @param key    - message key
+     * @param locale - template locale
+     * @return message, or null if cannot be inlined
+     */
+    public String getInlineMessage(String key, Locale locale) {
+        if (reloadable || locale == null || StringUtils.isEmpty(key) || messageBasename == null) {
+            return null;
+        }
+        String value = getMessageTable(locale).messages.get(key);
+        return value == null ? key : value;
+    }
+
+    private MessageTable getMessageTable(Locale locale) {
+        String name = locale == null ? "" : locale.toString();
+        MessageTable table = messageCache.get(name);
+        if (table == null) {
+            table = loadMessageTable(locale);
+            MessageTable old = messageCache.putIfAbsent(name, table);
+            if (old != null) {
+                table = old;
+            }
+        } else if (reloadable && table.checked + RELOAD_INTERVAL < System.currentTimeMillis()) {
+            // 热加载检查不在每次取消息时进行，且只由一个线程执行
+            synchronized (table) {
+                if (table.checked + RELOAD_INTERVAL < System.currentTimeMillis()) {
+                    table.checked = System.currentTimeMillis();
+                    if (table.isModified()) {
+                        table = loadMessageTable(locale);
+                        messageCache.put(name, table);
+                    }
                 }
             }
+        }
+        return table;
+    }
+
+    // 按区域从父到子合并，子区域的非空消息覆盖父区域的消息
+    private MessageTable loadMessageTable(Locale locale) {
+        List<Locale> locales = new ArrayList<Locale>();
+        for (Locale l = locale; l != null; l = LocaleUtils.getParentLocale(l)) {
+            locales.add(l);
+        }
+        locales.add(null);
+        Map<String, String> messages = new HashMap<String, String>();
+        String[] files = new String[locales.size()];
+        long[] lastModifieds = new long[locales.size()];
+        for (int i = locales.size() - 1; i >= 0; i--) {
+            Locale l = locales.get(i);
+            String file = messageBasename + (l == null ? "" : "_" + l) + messageSuffix;
+            files[i] = file;
+            lastModifieds[i] = Long.MIN_VALUE;
+            if (!engine.hasResource(file)) {
+                continue;
+            }
             try {
                 Resource resource = engine.getResource(file);
-                if (properties.getLastModified() < resource.getLastModified()) {
-                    String encoding = (StringUtils.isEmpty(messageEncoding) ? "UTF-8" : messageEncoding);
-                    properties.load(resource.openStream(), encoding, resource.getLastModified());
+                String encoding = (StringUtils.isEmpty(messageEncoding) ? "UTF-8" : messageEncoding);
+                EncodingProperties properties = new EncodingProperties();
+                InputStream in = resource.openStream();
+                try {
+                    properties.load(in, encoding, resource.getLastModified());
+                } finally {
+                    in.close();
+                }
+                lastModifieds[i] = properties.getLastModified();
+                for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+                    String value = (String) entry.getValue();
+                    if (StringUtils.isNotEmpty(value)) {
+                        messages.put((String) entry.getKey(), value);
+                    }
                 }
             } catch (IOException e) {
                 if (logger != null && logger.isErrorEnabled()) {
@@ -212,16 +283,55 @@ public class MessageMethod {
                 }
             }
         }
-        if (properties != null) {
-            String value = properties.getProperty(key);
-            if (StringUtils.isNotEmpty(value)) {
-                return value;
+        return new MessageTable(Collections.unmodifiableMap(messages), files, lastModifieds);
+    }
+
+    private final class MessageTable {
+
+        private final Map<String, String> messages;
+
+        private final ConcurrentMap<String, MessageFormat> formats = new ConcurrentHashMap<String, MessageFormat>();
+
+        private final String[] files;
+
+        private final long[] lastModifieds;
+
+        private volatile long checked = System.currentTimeMillis();
+
+        MessageTable(Map<String, String> messages, String[] files, long[] lastModifieds) {
+            this.messages = messages;
+            this.files = files;
+            this.lastModifieds = lastModifieds;
+        }
+
+        MessageFormat getFormat(String key, String value) {
+            MessageFormat format = formats.get(key);
+            if (format == null) {
+                format = new MessageFormat(value);
+                MessageFormat old = formats.putIfAbsent(key, format);
+                if (old != null) {
+                    format = old;
+                }
             }
+            return format;
         }
-        if (locale != null) {
-            return findMessageByLocale(key, LocaleUtils.getParentLocale(locale));
+
+        boolean isModified() {
+            for (int i = 0; i < files.length; i++) {
+                long lastModified = Long.MIN_VALUE;
+                try {
+                    if (engine.hasResource(files[i])) {
+                        lastModified = engine.getResource(files[i]).getLastModified();
+                    }
+                } catch (IOException e) {
+                }
+                if (lastModified != lastModifieds[i]) {
+                    return true;
+                }
+            }
+            return false;
         }
-        return null;
+
     }
 
 }
\ No newline at end of file
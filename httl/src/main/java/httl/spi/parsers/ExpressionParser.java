@@ -23,6 +23,7 @@ import httl.util.*;
 
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -74,10 +75,10 @@ public class ExpressionParser implements Parser {
     private static final Pattern BLANK_PATTERN = Pattern.compile("^(\\s+)");
     private static final Map<String, String> UNARY_OPERATOR_NAMES;
     private static final Map<String, String> BINARY_OPERATOR_NAMES;
-    private static DfaScanner scanner = new DfaScanner() {
+    private static DfaScanner scanner = new DfaScanner(states) {
         @Override
-        public int next(int state, char ch) {
-            return states[state][getCharType(ch)];
+        protected int getCharType(char ch) {
+            return ExpressionParser.getCharType(ch);
         }
 
     };
@@ -124,6 +125,7 @@ public class ExpressionParser implements Parser {
     }
 
     private Filter expressionFilter;
+    private ConcurrentMap<String, Expression> expressionCache;
     private List<String> forbidEqualsMethods;
     private List<String> forbidStartsMethods;
     private List<String> forbidEndsMethods;
@@ -234,6 +236,19 @@ public class ExpressionParser implements Parser {
         this.expressionFilter = expressionFilter;
     }
 
+    /**
+     * httl.properties: expression.cache.capacity=10000
+     * <p>
+     * The cache is disabled when the capacity is zero or negative.
+     */
+    public void setExpressionCacheCapacity(int capacity) {
+        if (capacity > 0) {
+            expressionCache = new ConcurrentLinkedHashMap<String, Expression>(capacity);
+        } else {
+            expressionCache = null;
+        }
+    }
+
     /**
      * httl.properties: import.getters=forbid.methods=add,put,save,insert,modify,update,delete,remove,clear
      */
@@ -387,6 +402,57 @@ public class ExpressionParser implements Parser {
         if (expressionFilter != null) {
             source = expressionFilter.filter(source, source);
         }
+        if (expressionCache == null) {
+            return doParse(source, offset);
+        }
+        // 缓存的表达式树偏移量从0开始且不外泄，每次使用时复制并平移偏移量
+        Expression expression = expressionCache.get(source);
+        if (expression != null) {
+            return copyExpression(expression, offset);
+        }
+        expression = doParse(source, offset);
+        if (expression != null) {
+            Expression cached = copyExpression(expression, -offset);
+            if (cached != null) {
+                expressionCache.putIfAbsent(source, cached);
+            }
+        }
+        return expression;
+    }
+
+    // 复制表达式树，不支持的节点返回null
+    private static Expression copyExpression(Expression expression, int delta) throws ParseException {
+        int offset = expression.getOffset() + delta;
+        if (expression instanceof Constant) {
+            Constant constant = (Constant) expression;
+            return new Constant(constant.getValue(), constant.isBoxed(), offset);
+        } else if (expression instanceof Variable) {
+            return new Variable(((Variable) expression).getName(), offset);
+        } else if (expression.getClass() == BinaryOperator.class) {
+            BinaryOperator operator = (BinaryOperator) expression;
+            Expression left = copyExpression(operator.getLeftParameter(), delta);
+            Expression right = copyExpression(operator.getRightParameter(), delta);
+            if (left == null || right == null) {
+                return null;
+            }
+            BinaryOperator copy = new BinaryOperator(operator.getName(), operator.getPriority(), offset);
+            copy.setLeftParameter(left);
+            copy.setRightParameter(right);
+            return copy;
+        } else if (expression.getClass() == UnaryOperator.class) {
+            UnaryOperator operator = (UnaryOperator) expression;
+            Expression parameter = copyExpression(operator.getParameter(), delta);
+            if (parameter == null) {
+                return null;
+            }
+            UnaryOperator copy = new UnaryOperator(operator.getName(), operator.getPriority(), offset);
+            copy.setParameter(parameter);
+            return copy;
+        }
+        return null;
+    }
+
+    private Expression doParse(String source, int offset) throws ParseException {
         LinkedStack<Expression> parameterStack = new LinkedStack<Expression>();
         LinkedStack<Operator> operatorStack = new LinkedStack<Operator>();
         Map<Operator, Token> operatorTokens = new HashMap<Operator, Token>();
@@ -104,10 +104,11 @@ public class TemplateParser implements Parser {
     private static final Pattern ESCAPE_PATTERN = Pattern.compile("\\\\+[#$]");
     private static final Pattern DEFINE_PATTERN = Pattern.compile("([\\w>\\]]\\s+\\w+)\\s*[,]?");
     private static final Pattern IMPORT_PATTERN = Pattern.compile("[,;]+");
-    private static DfaScanner scanner = new DfaScanner() {
+    private static final Pattern TTL_PATTERN = Pattern.compile("\\s*ttl\\s*=(?!=)\\s*");
+    private static DfaScanner scanner = new DfaScanner(states) {
         @Override
-        public int next(int state, char ch) {
-            return states[state][getCharType(ch)];
+        protected int getCharType(char ch) {
+            return TemplateParser.getCharType(ch);
         }
     };
     private final Map<String, Template> importMacroTemplates = new ConcurrentHashMap<String, Template>();
@@ -118,6 +119,7 @@ public class TemplateParser implements Parser {
     private String[] forDirective = new String[]{"for"};
     private String[] breakDirective = new String[]{"break"};
     private String[] macroDirective = new String[]{"macro"};
+    private String[] cacheDirective = new String[]{"cache"};
     private String[] endDirective = new String[]{"end"};
     private String[] importDirective = new String[]{"import"};
     private Engine engine;
@@ -295,6 +297,35 @@ public class TemplateParser implements Parser {
         return list;
     }
 
+    // 按顶层的逗号分隔参数，忽略括号及字符串内的逗号
+    static List<String> splitParameters(String value) {
+        List<String> list = new ArrayList<String>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (quote != 0) {
+                if (ch == '\\') {
+                    i++;
+                } else if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '"' || ch == '\'') {
+                quote = ch;
+            } else if (ch == '(' || ch == '[' || ch == '{') {
+                depth++;
+            } else if (ch == ')' || ch == ']' || ch == '}') {
+                depth--;
+            } else if (ch == ',' && depth == 0) {
+                list.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        list.add(value.substring(start));
+        return list;
+    }
+
     static List<String> splitDefine(String value) {
         List<String> vs = new ArrayList<String>();
         Matcher matcher = DEFINE_PATTERN.matcher(value);
@@ -343,7 +374,8 @@ public class TemplateParser implements Parser {
         return StringUtils.inArray(name, setDirective)
                 || StringUtils.inArray(name, ifDirective) || StringUtils.inArray(name, elseDirective)
                 || StringUtils.inArray(name, forDirective) || StringUtils.inArray(name, breakDirective)
-                || StringUtils.inArray(name, macroDirective) || StringUtils.inArray(name, endDirective)
+                || StringUtils.inArray(name, macroDirective) || StringUtils.inArray(name, cacheDirective)
+                || StringUtils.inArray(name, endDirective)
                 || StringUtils.inArray(name, importDirective);
     }
 
@@ -504,6 +536,24 @@ public class TemplateParser implements Parser {
                 } else if (StringUtils.inArray(name, elseDirective)) {
                     directives.add(new ElseDirective(StringUtils.isEmpty(value)
                             ? null : (Expression) expressionParser.parse(value, exprOffset), offset));
+                } else if (StringUtils.inArray(name, cacheDirective)) {
+                    // 每个参数都是key的一部分，ttl只由命名参数指定，不按值的类型推断
+                    List<Expression> keys = new ArrayList<Expression>();
+                    Expression ttl = null;
+                    int o = 0;
+                    for (String v : splitParameters(value)) {
+                        Matcher matcher = TTL_PATTERN.matcher(v);
+                        if (matcher.lookingAt()) {
+                            if (ttl != null) {
+                                throw new ParseException("Duplicate ttl parameter in the #" + name + " directive.", exprOffset + o);
+                            }
+                            ttl = (Expression) expressionParser.parse(v.substring(matcher.end()), exprOffset + o + matcher.end());
+                        } else {
+                            keys.add((Expression) expressionParser.parse(v, exprOffset + o));
+                        }
+                        o += v.length() + 1;
+                    }
+                    directives.add(new CacheDirective(keys, ttl, offset));
                 } else if (StringUtils.inArray(name, breakDirective)) {
                     directives.add(new BreakDirective(StringUtils.isBlank(value) ? null : (Expression) expressionParser.parse(value, exprOffset), offset));
                 } else if (StringUtils.inArray(name, macroDirective)) {
@@ -684,6 +734,13 @@ public class TemplateParser implements Parser {
         this.macroDirective = macroDirective;
     }
 
+    /**
+     * httl.properties: cache.directive=cache
+     */
+    public void setCacheDirective(String[] cacheDirective) {
+        this.cacheDirective = cacheDirective;
+    }
+
     /**
      * httl.properties: end.directive=end
      */
@@ -783,7 +840,11 @@ public class TemplateParser implements Parser {
     }
 
     public Node parse(String source, int offset) throws ParseException {
-        return reduce(trim(clean(scan(source, offset))));
+        BlockDirective root = reduce(trim(clean(scan(source, offset))));
+        if (root instanceof RootDirective) {
+            ((RootDirective) root).setDigest(Digest.getMD5(source) + "@" + offset);
+        }
+        return root;
     }
 
     /**
@@ -15,7 +15,6 @@
  */
 package httl.spi.resolvers;
 
-import httl.Context;
 import httl.spi.Resolver;
 import httl.spi.loaders.ServletLoader;
 import httl.util.ClassUtils;
@@ -28,6 +27,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.lang.reflect.Method;
 
 /**
  * ServletResolver. (SPI, Singleton, ThreadSafe)
@@ -60,8 +60,19 @@ public class ServletResolver implements Resolver, Filter {
 
     private static final ThreadLocal<HttpServletResponse> RESPONSE_LOCAL = new ThreadLocal<HttpServletResponse>();
 
+    // Servlet 3.0: ServletRequest.getServletContext()
+    private static final Method GET_SERVLET_CONTEXT_METHOD = getServletContextMethod();
+
     private static String RESPONSE_ENCODING;
 
+    private static Method getServletContextMethod() {
+        try {
+            return ServletRequest.class.getMethod("getServletContext");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
     private static void _setResponseEncoding(String responseEncoding) {
         RESPONSE_ENCODING = responseEncoding;
     }
@@ -88,18 +99,48 @@ public class ServletResolver implements Resolver, Filter {
         return REQUEST_LOCAL.get();
     }
 
+    // 注意：request和response由get()按需从线程变量中取出，不再放入上下文
     public static void setRequest(HttpServletRequest request) {
         if (request != null) {
-            if (ServletLoader.getServletContext() == null
-                    && request.getSession() != null
-                    && request.getSession().getServletContext() != null) {
-                ServletLoader.setServletContext(request.getSession().getServletContext());
+            if (ServletLoader.getServletContext() == null) {
+                ServletContext servletContext = getServletContext(request);
+                if (servletContext != null) {
+                    ServletLoader.setServletContext(servletContext);
+                }
             }
             REQUEST_LOCAL.set(request);
         } else {
             REQUEST_LOCAL.remove();
         }
-        Context.getContext().put("request", request);
+    }
+
+    /**
+     * Get the servlet context without creating the session.
+     * <p>
+     * Lookup order: the context registered by the ServletLoader listener, the ServletResolver filter
+     * or the WebEngine setup, then request.getServletContext() on Servlet 3.0, then the existing session.
+     *
+     * @param request - servlet request
+     * @return servlet context
+     */
+    public static ServletContext getServletContext(HttpServletRequest request) {
+        ServletContext servletContext = ServletLoader.getServletContext();
+        if (servletContext == null && request != null) {
+            if (GET_SERVLET_CONTEXT_METHOD != null) {
+                try {
+                    servletContext = (ServletContext) GET_SERVLET_CONTEXT_METHOD.invoke(request);
+                } catch (Throwable e) {
+                    // 容器实现的是Servlet 2.5接口时，忽略
+                }
+            }
+            if (servletContext == null) {
+                HttpSession session = request.getSession(false);
+                if (session != null) {
+                    servletContext = session.getServletContext();
+                }
+            }
+        }
+        return servletContext;
     }
 
     public static HttpServletResponse getResponse() {
@@ -113,7 +154,6 @@ public class ServletResolver implements Resolver, Filter {
         } else {
             RESPONSE_LOCAL.remove();
         }
-        Context.getContext().put("response", response);
     }
 
     public static HttpServletRequest getAndCheckRequest() {
@@ -201,10 +241,11 @@ public class ServletResolver implements Resolver, Filter {
             return getResponse();
         }
         if (SESSION_KEY.equals(key)) {
+            // 只有模板显式引用session变量时才创建会话
             return request.getSession();
         }
         if (APPLICATION_KEY.equals(key)) {
-            return request.getSession() == null ? null : request.getSession().getServletContext();
+            return getServletContext(request);
         }
         if (COOKIE_KEY.equals(key)) {
             return new MapSupport<String, Object>() {
@@ -227,6 +268,23 @@ public class ServletResolver implements Resolver, Filter {
                 }
             };
         }
+        // 按作用域依次查找，只有前面的作用域未找到时，才取出后面的作用域
+        Object value = getRequestValue(request, key);
+        if (value != null) {
+            return value;
+        }
+        value = getSessionValue(request, key);
+        if (value != null) {
+            return value;
+        }
+        value = getCookieValue(request, key);
+        if (value != null) {
+            return value;
+        }
+        return getApplicationValue(request, key);
+    }
+
+    private Object getRequestValue(HttpServletRequest request, String key) {
         Object value = ClassUtils.getProperty(request, key);
         if (value != null) {
             if ("contextPath".equals(key) && "/".equals(value)) {
@@ -242,42 +300,38 @@ public class ServletResolver implements Resolver, Filter {
         if (value != null) {
             return value;
         }
-        value = getHeaderValue(request, key);
+        return getHeaderValue(request, key);
+    }
+
+    private Object getSessionValue(HttpServletRequest request, String key) {
+        HttpSession session = request.getSession(false);
+        if (session == null) {
+            return null;
+        }
+        Object value = ClassUtils.getProperty(session, key);
         if (value != null) {
             return value;
         }
-        HttpSession session = request.getSession();
-        if (session != null) {
-            value = ClassUtils.getProperty(session, key);
-            if (value != null) {
-                return value;
-            }
-            value = session.getAttribute(key);
-            if (value != null) {
-                return value;
-            }
+        return session.getAttribute(key);
+    }
+
+    private Object getApplicationValue(HttpServletRequest request, String key) {
+        ServletContext servletContext = getServletContext(request);
+        if (servletContext == null) {
+            return null;
         }
-        value = getCookieValue(request, key);
+        Object value = ClassUtils.getProperty(servletContext, key);
         if (value != null) {
             return value;
         }
-        if (session != null) {
-            ServletContext servletContext = session.getServletContext();
-            if (servletContext != null) {
-                value = ClassUtils.getProperty(servletContext, key);
-                if (value != null) {
-                    return value;
-                }
-                value = servletContext.getAttribute(key);
-                if (value != null) {
-                    return value;
-                }
-            }
-        }
-        return value;
+        return servletContext.getAttribute(key);
     }
 
     public void init(FilterConfig filterConfig) throws ServletException {
+        // 未配置ServletLoader监听器时，application作用域仍可找到
+        if (ServletLoader.getServletContext() == null) {
+            ServletLoader.setServletContext(filterConfig.getServletContext());
+        }
     }
 
     public void destroy() {
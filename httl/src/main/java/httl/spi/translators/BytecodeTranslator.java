@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.translators;
+
+import httl.Engine;
+import httl.Node;
+import httl.Resource;
+import httl.Template;
+import httl.spi.*;
+import httl.spi.caches.FragmentCache;
+import httl.spi.compilers.CompileProfiler;
+import httl.spi.translators.templates.AdaptiveTemplate;
+import httl.spi.translators.templates.BytecodeGenerator;
+import httl.spi.translators.templates.CompiledTemplate;
+import httl.util.ClassUtils;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * BytecodeTranslator. (SPI, Singleton, ThreadSafe)
+ * <p>
+ * Generate the template class directly in bytecode, without the java source and compiler,
+ * the class extends the WriterTemplate or OutputStreamTemplate as the compiled template.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.engines.DefaultEngine#setTranslator(Translator)
+ */
+public class BytecodeTranslator implements Translator {
+
+    private final Map<Class<?>, Object> functions = new ConcurrentHashMap<Class<?>, Object>();
+    private final Map<String, Template> importMacroTemplates = new ConcurrentHashMap<String, Template>();
+    private Formatter<Object> formatter;
+    private Filter textFilter;
+    private Filter valueFilter;
+    private Switcher<Filter> textFilterSwitcher;
+    private Switcher<Filter> valueFilterSwitcher;
+    private Switcher<Formatter<Object>> formatterSwitcher;
+    private String filterVariable;
+    private String formatterVariable;
+    private String[] forVariable;
+    private String outputEncoding;
+    private Engine engine;
+    private Class<?> defaultVariableType;
+    private String[] importPackages;
+    private String[] importMacros;
+    private Interceptor interceptor;
+    private boolean isOutputStream;
+    private boolean isOutputWriter;
+
+    private FragmentCache fragmentCache;
+
+    private CompileProfiler compileProfiler;
+
+    private Converter<Object, Object> mapConverter;
+
+    private Converter<Object, Object> outConverter;
+
+    private Logger logger;
+
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    public void setMapConverter(Converter<Object, Object> mapConverter) {
+        this.mapConverter = mapConverter;
+    }
+
+    public void setOutConverter(Converter<Object, Object> outConverter) {
+        this.outConverter = outConverter;
+    }
+
+    public void setInterceptor(Interceptor interceptor) {
+        this.interceptor = interceptor;
+    }
+
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
+    public void setCompileProfiler(CompileProfiler compileProfiler) {
+        this.compileProfiler = compileProfiler;
+    }
+
+    /**
+     * inited.
+     */
+    public void inited() {
+        if (importMacros != null && importMacros.length > 0) {
+            for (String importMacro : importMacros) {
+                try {
+                    Template importMacroTemplate = engine.getTemplate(importMacro);
+                    importMacroTemplates.putAll(importMacroTemplate.getMacros());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public void setTextFilterSwitcher(Switcher<Filter> textFilterSwitcher) {
+        this.textFilterSwitcher = textFilterSwitcher;
+    }
+
+    public void setValueFilterSwitcher(Switcher<Filter> valueFilterSwitcher) {
+        this.valueFilterSwitcher = valueFilterSwitcher;
+    }
+
+    public void setFormatterSwitcher(Switcher<Formatter<Object>> formatterSwitcher) {
+        this.formatterSwitcher = formatterSwitcher;
+    }
+
+    public void setFilterVariable(String filterVariable) {
+        this.filterVariable = filterVariable;
+    }
+
+    public void setFormatterVariable(String formatterVariable) {
+        this.formatterVariable = formatterVariable;
+    }
+
+    /**
+     * httl.properties: import.macros=common.httl
+     */
+    public void setImportMacros(String[] importMacros) {
+        this.importMacros = importMacros;
+    }
+
+    /**
+     * httl.properties: import.packages=java.util
+     */
+    public void setImportPackages(String[] importPackages) {
+        this.importPackages = importPackages;
+    }
+
+    /**
+     * httl.properties: import.methods=java.lang.Math
+     */
+    public void setImportMethods(Object[] importMethods) {
+        for (Object function : importMethods) {
+            if (function instanceof Class) {
+                this.functions.put((Class<?>) function, function);
+            } else {
+                this.functions.put(function.getClass(), function);
+            }
+        }
+    }
+
+    public void setFormatter(Formatter<Object> formatter) {
+        this.formatter = formatter;
+    }
+
+    public void setTextFilter(Filter textFilter) {
+        this.textFilter = textFilter;
+    }
+
+    public void setValueFilter(Filter valueFilter) {
+        this.valueFilter = valueFilter;
+    }
+
+    public void setForVariable(String[] forVariable) {
+        this.forVariable = forVariable;
+    }
+
+    public void setOutputEncoding(String outputEncoding) {
+        this.outputEncoding = outputEncoding;
+    }
+
+    public void setDefaultVariableType(Class<?> defaultVariableType) {
+        this.defaultVariableType = defaultVariableType;
+    }
+
+    /**
+     * httl.properties: output.stream=true
+     */
+    public void setOutputStream(boolean outputStream) {
+        this.isOutputStream = outputStream;
+    }
+
+    /**
+     * httl.properties: output.writer=true
+     */
+    public void setOutputWriter(boolean outputWriter) {
+        this.isOutputWriter = outputWriter;
+    }
+
+    public Template translate(Resource resource,
+                              Node root, Map<String, Class<?>> parameterTypes) throws ParseException,
+            IOException {
+        if (logger != null && logger.isDebugEnabled()) {
+            logger.debug("Generate template " + resource.getName() + " bytecode");
+        }
+        try {
+            long start = compileProfiler == null ? 0 : System.nanoTime();
+            BytecodeGenerator generator = new BytecodeGenerator();
+            generator.setFormatter(formatter);
+            generator.setValueFilter(valueFilter);
+            generator.setTextFilter(textFilter);
+            generator.setForVariable(forVariable);
+            generator.setOutputEncoding(outputEncoding);
+            generator.setImportMethods(functions);
+            generator.setImportMacros(importMacroTemplates);
+            generator.setImportPackages(importPackages);
+            generator.setTextFilterSwitcher(textFilterSwitcher);
+            generator.setValueFilterSwitcher(valueFilterSwitcher);
+            generator.setFormatterSwitcher(formatterSwitcher);
+            generator.setFilterVariable(filterVariable);
+            generator.setFormatterVariable(formatterVariable);
+            generator.setDefaultVariableType(defaultVariableType);
+            generator.init(resource, root);
+            Class<?> writerClass = isOutputWriter || !isOutputStream ? generator.generate(false) : null;
+            Class<?> streamClass = isOutputStream ? generator.generate(true) : null;
+            if (compileProfiler != null) {
+                compileProfiler.record(CompileProfiler.GENERATE, start, 0);
+            }
+            Template writerTemplate = writerClass == null ? null : newTemplate(writerClass, resource, root);
+            Template streamTemplate = streamClass == null ? null : newTemplate(streamClass, resource, root);
+            if (writerTemplate != null && streamTemplate != null) {
+                return new AdaptiveTemplate(writerTemplate, streamTemplate, outConverter);
+            } else if (streamTemplate != null) {
+                return streamTemplate;
+            } else {
+                return writerTemplate;
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (ParseException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ParseException("Failed to translate template: " + resource.getName() + ", cause: " + ClassUtils.toString(e), 0);
+        }
+    }
+
+    private Template newTemplate(Class<?> clazz, Resource resource, Node root) throws Exception {
+        long start = compileProfiler == null ? 0 : System.nanoTime();
+        CompiledTemplate template = (CompiledTemplate) clazz.getConstructor(BytecodeGenerator.getConstructorTypes())
+                .newInstance(engine, interceptor, null, valueFilterSwitcher, formatterSwitcher, valueFilter, formatter,
+                        mapConverter, outConverter, functions, importMacroTemplates, resource, null, root);
+        template.setFragmentCache(fragmentCache);
+        if (compileProfiler != null) {
+            compileProfiler.record(CompileProfiler.INSTANTIATE, start, 0);
+        }
+        return template;
+    }
+
+}
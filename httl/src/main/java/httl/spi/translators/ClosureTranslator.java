@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.translators;
+
+import httl.Engine;
+import httl.Node;
+import httl.Resource;
+import httl.Template;
+import httl.spi.*;
+import httl.spi.caches.FragmentCache;
+import httl.spi.compilers.CompileProfiler;
+import httl.spi.translators.templates.ClosureTemplate;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ClosureTranslator. (SPI, Singleton, ThreadSafe)
+ * <p>
+ * Convert the template to the executable closures, near the compiled speed without the java compiler.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.engines.DefaultEngine#setTranslator(Translator)
+ */
+public class ClosureTranslator implements Translator {
+
+    private final Map<Class<?>, Object> functions = new ConcurrentHashMap<Class<?>, Object>();
+    private final Map<String, Template> importMacroTemplates = new ConcurrentHashMap<String, Template>();
+    private Formatter<Object> formatter;
+    private Filter textFilter;
+    private Filter valueFilter;
+    private Switcher<Filter> textFilterSwitcher;
+    private Switcher<Filter> valueFilterSwitcher;
+    private Switcher<Formatter<Object>> formatterSwitcher;
+    private String filterVariable;
+    private String formatterVariable;
+    private String[] forVariable;
+    private String outputEncoding;
+    private Engine engine;
+    private Class<?> defaultVariableType;
+    private String[] importPackages;
+    private String[] importMacros;
+    private Interceptor interceptor;
+
+    private FragmentCache fragmentCache;
+
+    private CompileProfiler compileProfiler;
+
+    private Converter<Object, Object> mapConverter;
+
+    private Converter<Object, Object> outConverter;
+
+    private Logger logger;
+
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    public void setMapConverter(Converter<Object, Object> mapConverter) {
+        this.mapConverter = mapConverter;
+    }
+
+    public void setOutConverter(Converter<Object, Object> outConverter) {
+        this.outConverter = outConverter;
+    }
+
+    public void setInterceptor(Interceptor interceptor) {
+        this.interceptor = interceptor;
+    }
+
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
+    public void setCompileProfiler(CompileProfiler compileProfiler) {
+        this.compileProfiler = compileProfiler;
+    }
+
+    /**
+     * inited.
+     */
+    public void inited() {
+        if (importMacros != null && importMacros.length > 0) {
+            for (String importMacro : importMacros) {
+                try {
+                    Template importMacroTemplate = engine.getTemplate(importMacro);
+                    importMacroTemplates.putAll(importMacroTemplate.getMacros());
+                } catch (Exception e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public void setTextFilterSwitcher(Switcher<Filter> textFilterSwitcher) {
+        this.textFilterSwitcher = textFilterSwitcher;
+    }
+
+    public void setValueFilterSwitcher(Switcher<Filter> valueFilterSwitcher) {
+        this.valueFilterSwitcher = valueFilterSwitcher;
+    }
+
+    public void setFormatterSwitcher(Switcher<Formatter<Object>> formatterSwitcher) {
+        this.formatterSwitcher = formatterSwitcher;
+    }
+
+    public void setFilterVariable(String filterVariable) {
+        this.filterVariable = filterVariable;
+    }
+
+    public void setFormatterVariable(String formatterVariable) {
+        this.formatterVariable = formatterVariable;
+    }
+
+    /**
+     * httl.properties: import.macros=common.httl
+     */
+    public void setImportMacros(String[] importMacros) {
+        this.importMacros = importMacros;
+    }
+
+    /**
+     * httl.properties: import.packages=java.util
+     */
+    public void setImportPackages(String[] importPackages) {
+        this.importPackages = importPackages;
+    }
+
+    /**
+     * httl.properties: import.methods=java.lang.Math
+     */
+    public void setImportMethods(Object[] importMethods) {
+        for (Object function : importMethods) {
+            if (function instanceof Class) {
+                this.functions.put((Class<?>) function, function);
+            } else {
+                this.functions.put(function.getClass(), function);
+            }
+        }
+    }
+
+    public void setFormatter(Formatter<Object> formatter) {
+        this.formatter = formatter;
+    }
+
+    public void setTextFilter(Filter textFilter) {
+        this.textFilter = textFilter;
+    }
+
+    public void setValueFilter(Filter valueFilter) {
+        this.valueFilter = valueFilter;
+    }
+
+    public void setForVariable(String[] forVariable) {
+        this.forVariable = forVariable;
+    }
+
+    public void setOutputEncoding(String outputEncoding) {
+        this.outputEncoding = outputEncoding;
+    }
+
+    public void setDefaultVariableType(Class<?> defaultVariableType) {
+        this.defaultVariableType = defaultVariableType;
+    }
+
+    public Template translate(Resource resource,
+                              Node root, Map<String, Class<?>> parameterTypes) throws ParseException,
+            IOException {
+        if (logger != null && logger.isDebugEnabled()) {
+            logger.debug("Convert template " + resource.getName() + " to closures");
+        }
+        ClosureTemplate template = new ClosureTemplate(resource, root, null);
+        template.setInterceptor(interceptor);
+        template.setFragmentCache(fragmentCache);
+        template.setMapConverter(mapConverter);
+        template.setOutConverter(outConverter);
+        template.setFormatter(formatter);
+        template.setValueFilter(valueFilter);
+        template.setTextFilter(textFilter);
+        template.setForVariable(forVariable);
+        template.setOutputEncoding(outputEncoding);
+        template.setImportMethods(functions);
+        template.setImportMacros(importMacroTemplates);
+        template.setImportPackages(importPackages);
+        template.setTextFilterSwitcher(textFilterSwitcher);
+        template.setValueFilterSwitcher(valueFilterSwitcher);
+        template.setFormatterSwitcher(formatterSwitcher);
+        template.setFilterVariable(filterVariable);
+        template.setFormatterVariable(formatterVariable);
+        template.setDefaultVariableType(defaultVariableType);
+        long start = compileProfiler == null ? 0 : System.nanoTime();
+        template.init();
+        if (compileProfiler != null) {
+            compileProfiler.record(CompileProfiler.GENERATE, start, 0);
+        }
+        return template;
+    }
+
+}
\ No newline at end of file
@@ -19,20 +19,30 @@ import httl.Engine;
 import httl.Node;
 import httl.Resource;
 import httl.Template;
+import httl.ast.RootDirective;
+import httl.ast.Text;
 import httl.spi.Compiler;
 import httl.spi.*;
 import httl.spi.Formatter;
+import httl.spi.caches.FragmentCache;
+import httl.spi.compilers.CompileProfiler;
 import httl.spi.translators.templates.AdaptiveTemplate;
 import httl.spi.translators.templates.CompiledTemplate;
 import httl.spi.translators.templates.CompiledVisitor;
 import httl.util.ClassUtils;
+import httl.util.MethodIndex;
 import httl.util.StringSequence;
 import httl.util.StringUtils;
+import httl.util.TextPool;
 
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.text.ParseException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -49,7 +59,12 @@ public class CompiledTranslator implements Translator {
     private static final String PROPERTIES_SUFFIX = ".properties";
     private final Map<String, Template> importMacroTemplates = new ConcurrentHashMap<String, Template>();
     private final Map<Class<?>, Object> functions = new ConcurrentHashMap<Class<?>, Object>();
+
+    private final MethodIndex methodIndex = new MethodIndex();
     private final List<StringSequence> sequences = new CopyOnWriteArrayList<StringSequence>();
+    // 按源码摘要共享已编译的模板类，内联了区域消息的类再按区域区分，弱引用以便热加载后旧类可被回收
+    private final ConcurrentMap<String, SharedClass> sharedClasses = new ConcurrentHashMap<String, SharedClass>();
+    private final ReferenceQueue<Class<?>> sharedQueue = new ReferenceQueue<Class<?>>();
     private String[] forVariable;
     private String filterVariable;
     private String formatterVariable;
@@ -58,6 +73,10 @@ public class CompiledTranslator implements Translator {
     private Engine engine;
     private Compiler compiler;
     private Interceptor interceptor;
+    private FragmentCache fragmentCache;
+    private CompileProfiler compileProfiler;
+    private String[] memoizedMacros;
+    private int memoizedMacroCapacity;
     private Logger logger;
     private Switcher<Filter> textFilterSwitcher;
     private Switcher<Filter> valueFilterSwitcher;
@@ -76,6 +95,9 @@ public class CompiledTranslator implements Translator {
     private boolean isOutputWriter;
     private boolean sourceInClass;
     private boolean textInClass;
+    private boolean compactTemplate;
+    private boolean shareTemplateClass;
+    private TextPool textPool;
     private String outputEncoding;
     private Class<?> defaultVariableType;
     private String engineName;
@@ -159,6 +181,55 @@ public class CompiledTranslator implements Translator {
         this.interceptor = interceptor;
     }
 
+    /**
+     * httl.properties: fragment.cache=httl.spi.caches.FragmentCache
+     */
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
+    /**
+     * httl.properties: compile.profiler=httl.spi.compilers.CompileProfiler
+     */
+    public void setCompileProfiler(CompileProfiler compileProfiler) {
+        this.compileProfiler = compileProfiler;
+    }
+
+    /**
+     * httl.properties: memoized.macros=price,icon
+     */
+    public void setMemoizedMacros(String[] memoizedMacros) {
+        this.memoizedMacros = memoizedMacros;
+    }
+
+    /**
+     * httl.properties: text.pool=true
+     */
+    public void setTextPool(boolean textPool) {
+        this.textPool = textPool ? new TextPool() : null;
+    }
+
+    /**
+     * httl.properties: compact.template=true
+     */
+    public void setCompactTemplate(boolean compactTemplate) {
+        this.compactTemplate = compactTemplate;
+    }
+
+    /**
+     * httl.properties: share.template.class=true
+     */
+    public void setShareTemplateClass(boolean shareTemplateClass) {
+        this.shareTemplateClass = shareTemplateClass;
+    }
+
+    /**
+     * httl.properties: memoized.macro.capacity=1000
+     */
+    public void setMemoizedMacroCapacity(int memoizedMacroCapacity) {
+        this.memoizedMacroCapacity = memoizedMacroCapacity;
+    }
+
     /**
      * httl.properties: text.filter.switchers=httl.spi.switchers.JavaScriptFilterSwitcher
      */
@@ -286,8 +357,10 @@ public class CompiledTranslator implements Translator {
         for (Object function : importMethods) {
             if (function instanceof Class) {
                 this.functions.put((Class<?>) function, function);
+                this.methodIndex.addClass((Class<?>) function);
             } else {
                 this.functions.put(function.getClass(), function);
+                this.methodIndex.addClass(function.getClass());
             }
         }
     }
@@ -355,13 +428,28 @@ public class CompiledTranslator implements Translator {
             Template streamTemplate = null;
             if (isOutputWriter || !isOutputStream) {
                 Class<?> clazz = parseClass(resource, root, defVariableTypes, false, 0);
+                long start = compileProfiler == null ? 0 : System.nanoTime();
                 writerTemplate = (Template) clazz.getConstructor(Engine.class, Interceptor.class, Compiler.class, Switcher.class, Switcher.class, Filter.class, Formatter.class, Converter.class, Converter.class, Map.class, Map.class, Resource.class, Template.class, Node.class)
                         .newInstance(engine, interceptor, compiler, valueFilterSwitcher, formatterSwitcher, valueFilter, formatter, mapConverter, outConverter, functions, importMacroTemplates, resource, null, root);
+                ((CompiledTemplate) writerTemplate).setFragmentCache(fragmentCache);
+                ((CompiledTemplate) writerTemplate).setMacroCacheCapacity(memoizedMacroCapacity);
+                if (compileProfiler != null) {
+                    compileProfiler.record(CompileProfiler.INSTANTIATE, start, 0);
+                }
             }
             if (isOutputStream) {
                 Class<?> clazz = parseClass(resource, root, defVariableTypes, true, 0);
+                long start = compileProfiler == null ? 0 : System.nanoTime();
                 streamTemplate = (Template) clazz.getConstructor(Engine.class, Interceptor.class, Compiler.class, Switcher.class, Switcher.class, Filter.class, Formatter.class, Converter.class, Converter.class, Map.class, Map.class, Resource.class, Template.class, Node.class)
                         .newInstance(engine, interceptor, compiler, valueFilterSwitcher, formatterSwitcher, valueFilter, formatter, mapConverter, outConverter, functions, importMacroTemplates, resource, null, root);
+                ((CompiledTemplate) streamTemplate).setFragmentCache(fragmentCache);
+                ((CompiledTemplate) streamTemplate).setMacroCacheCapacity(memoizedMacroCapacity);
+                if (compileProfiler != null) {
+                    compileProfiler.record(CompileProfiler.INSTANTIATE, start, 0);
+                }
+            }
+            if (compactTemplate) {
+                compact(resource, root, writerTemplate, streamTemplate);
             }
             if (writerTemplate != null && streamTemplate != null) {
                 return new AdaptiveTemplate(writerTemplate, streamTemplate, outConverter);
@@ -379,6 +467,36 @@ public class CompiledTranslator implements Translator {
         }
     }
 
+    // 释放已生成类的模板语法树，需要时由引擎重新解析
+    private void compact(Resource resource, Node root, Template writerTemplate, Template streamTemplate) {
+        if (writerTemplate != null) {
+            ((CompiledTemplate) writerTemplate).compact();
+        }
+        if (streamTemplate != null) {
+            ((CompiledTemplate) streamTemplate).compact();
+        }
+        if (logger != null && logger.isDebugEnabled()) {
+            int[] size = new int[2];
+            countNodes(root, size);
+            logger.debug("Compacted template " + resource.getName() + ", released " + size[0] + " nodes and " + size[1] + " text chars.");
+        }
+    }
+
+    private static void countNodes(Node node, int[] size) {
+        size[0]++;
+        if (node instanceof Text) {
+            size[1] += ((Text) node).getContent().length();
+        }
+        List<Node> children = node.getChildren();
+        if (children != null) {
+            for (Node child : children) {
+                if (child != null) {
+                    countNodes(child, size);
+                }
+            }
+        }
+    }
+
     private String getTemplateClassName(Resource resource, boolean stream) {
         String name = resource.getName();
         String encoding = resource.getEncoding();
@@ -406,11 +524,68 @@ public class CompiledTranslator implements Translator {
         return TEMPLATE_CLASS_PREFIX + StringUtils.getVaildName(buf.toString());
     }
 
+    // 生成的代码只与源码、变量类型和输出类型有关，模板名称等取自运行时的资源
+    private static String getSourceKey(Node root, Map<String, Class<?>> types, boolean stream, int offset) {
+        if (!(root instanceof RootDirective)) {
+            return null;
+        }
+        String digest = ((RootDirective) root).getDigest();
+        if (digest == null) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder(digest);
+        buf.append(stream ? "_stream" : "_writer");
+        buf.append('@').append(offset);
+        if (types != null && !types.isEmpty()) {
+            for (Map.Entry<String, Class<?>> entry : new TreeMap<String, Class<?>>(types).entrySet()) {
+                buf.append(',').append(entry.getKey()).append(':');
+                buf.append(entry.getValue() == null ? null : entry.getValue().getName());
+            }
+        }
+        return buf.toString();
+    }
+
+    private Class<?> getSharedClass(String sourceKey, Resource resource) {
+        SharedClass shared = sharedClasses.get(sourceKey);
+        if (shared != null && shared.localized) {
+            shared = sharedClasses.get(sourceKey + "_" + resource.getLocale());
+        }
+        return shared == null ? null : shared.get();
+    }
+
+    private void putSharedClass(String sourceKey, Resource resource, Class<?> clazz, boolean localized) {
+        expungeSharedClasses();
+        if (localized) {
+            // 源码键只标记需按区域区分，随任一区域的类一起回收
+            sharedClasses.put(sourceKey, new SharedClass(sourceKey, clazz, true, sharedQueue));
+            sourceKey = sourceKey + "_" + resource.getLocale();
+        }
+        sharedClasses.put(sourceKey, new SharedClass(sourceKey, clazz, false, sharedQueue));
+    }
+
+    private void expungeSharedClasses() {
+        Reference<? extends Class<?>> reference;
+        while ((reference = sharedQueue.poll()) != null) {
+            SharedClass shared = (SharedClass) reference;
+            sharedClasses.remove(shared.key, shared);
+        }
+    }
+
     private Class<?> parseClass(Resource resource, Node root, Map<String, Class<?>> types, boolean stream, int offset) throws IOException, ParseException {
         String name = getTemplateClassName(resource, stream);
         try {
             return Class.forName(name, true, Thread.currentThread().getContextClassLoader());
         } catch (ClassNotFoundException e) {
+            String sourceKey = shareTemplateClass ? getSourceKey(root, types, stream, offset) : null;
+            if (sourceKey != null) {
+                Class<?> clazz = getSharedClass(sourceKey, resource);
+                if (clazz != null) {
+                    if (logger != null && logger.isDebugEnabled()) {
+                        logger.debug("Share the compiled class " + clazz.getName() + " with template " + resource.getName());
+                    }
+                    return clazz;
+                }
+            }
             if (types == null) {
                 types = new HashMap<String, Class<?>>();
             }
@@ -435,17 +610,45 @@ public class CompiledTranslator implements Translator {
             visitor.setImportGetters(importGetters);
             visitor.setImportTypes(importTypes);
             visitor.setImportMethods(functions);
+            visitor.setMethodIndex(methodIndex);
             visitor.setOutputEncoding(outputEncoding);
             visitor.setSourceInClass(sourceInClass);
             visitor.setTextFilter(textFilter);
             visitor.setTextFilterSwitcher(textFilterSwitcher);
             visitor.setTextInClass(textInClass);
+            visitor.setTextPool(textPool);
             visitor.setValueFilterSwitcher(valueFilterSwitcher);
+            visitor.setValueFilter(valueFilter);
+            visitor.setFormatter(formatter);
             visitor.setCompiler(compiler);
+            visitor.setMemoizedMacros(memoizedMacros);
+            long start = compileProfiler == null ? 0 : System.nanoTime();
             visitor.init();
             root.accept(visitor);
-            return visitor.compile();
+            String code = visitor.getCode();
+            if (compileProfiler != null) {
+                compileProfiler.record(CompileProfiler.GENERATE, start, code.length());
+            }
+            Class<?> clazz = compiler.compile(code);
+            if (sourceKey != null) {
+                putSharedClass(sourceKey, resource, clazz, visitor.isLocalized());
+            }
+            return clazz;
         }
     }
 
-}
\ No newline at end of file
+    private static final class SharedClass extends WeakReference<Class<?>> {
+
+        private final String key;
+
+        private final boolean localized;
+
+        SharedClass(String key, Class<?> clazz, boolean localized, ReferenceQueue<Class<?>> queue) {
+            super(clazz, queue);
+            this.key = key;
+            this.localized = localized;
+        }
+
+    }
+
+}
@@ -20,7 +20,9 @@ import httl.Node;
 import httl.Resource;
 import httl.Template;
 import httl.spi.*;
+import httl.spi.caches.FragmentCache;
 import httl.spi.translators.templates.InterpretedTemplate;
+import httl.util.MethodIndex;
 import httl.util.StringSequence;
 
 import java.io.IOException;
@@ -41,6 +43,8 @@ public class InterpretedTranslator implements Translator {
 
     private final List<StringSequence> importSequences = new CopyOnWriteArrayList<StringSequence>();
     private final Map<Class<?>, Object> functions = new ConcurrentHashMap<Class<?>, Object>();
+
+    private final MethodIndex methodIndex = new MethodIndex();
     private final Map<String, Template> importMacroTemplates = new ConcurrentHashMap<String, Template>();
     private Formatter<Object> formatter;
     private Filter textFilter;
@@ -59,6 +63,8 @@ public class InterpretedTranslator implements Translator {
     private String[] importMacros;
     private Interceptor interceptor;
 
+    private FragmentCache fragmentCache;
+
     private Converter<Object, Object> mapConverter;
 
     private Converter<Object, Object> outConverter;
@@ -81,6 +87,10 @@ public class InterpretedTranslator implements Translator {
         this.interceptor = interceptor;
     }
 
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
     /**
      * inited.
      */
@@ -142,8 +152,10 @@ public class InterpretedTranslator implements Translator {
         for (Object function : importMethods) {
             if (function instanceof Class) {
                 this.functions.put((Class<?>) function, function);
+                this.methodIndex.addClass((Class<?>) function);
             } else {
                 this.functions.put(function.getClass(), function);
+                this.methodIndex.addClass(function.getClass());
             }
         }
     }
@@ -204,6 +216,7 @@ public class InterpretedTranslator implements Translator {
         }
         InterpretedTemplate template = new InterpretedTemplate(resource, root, null);
         template.setInterceptor(interceptor);
+        template.setFragmentCache(fragmentCache);
         template.setMapConverter(mapConverter);
         template.setOutConverter(outConverter);
         template.setFormatter(formatter);
@@ -214,6 +227,7 @@ public class InterpretedTranslator implements Translator {
         template.setOutputEncoding(outputEncoding);
         template.setImportSequences(importSequences);
         template.setImportMethods(functions);
+        template.setMethodIndex(methodIndex);
         template.setImportMacros(importMacroTemplates);
         template.setImportPackages(importPackages);
         template.setTextFilterSwitcher(textFilterSwitcher);
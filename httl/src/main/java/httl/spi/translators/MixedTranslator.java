@@ -47,11 +47,15 @@ public class MixedTranslator implements Translator {
 
     private boolean interpreted;
 
+    private boolean compactTemplate;
+
     public Template translate(Resource resource, Node root, Map<String, Class<?>> types)
             throws ParseException, IOException {
         if (interpreted && compiled) {
-            return new MixedTemplate(interpretedTranslator.translate(resource, root, types),
+            MixedTemplate template = new MixedTemplate(interpretedTranslator.translate(resource, root, types),
                     resource, root, types, compiledTranslator, mapConverter, logger);
+            template.setCompactTemplate(compactTemplate);
+            return template;
         } else if (interpreted) {
             return interpretedTranslator.translate(resource, root, types);
         } else {
@@ -67,6 +71,13 @@ public class MixedTranslator implements Translator {
         this.interpreted = interpreted;
     }
 
+    /**
+     * httl.properties: compact.template=true
+     */
+    public void setCompactTemplate(boolean compactTemplate) {
+        this.compactTemplate = compactTemplate;
+    }
+
     public void setCompiledTranslator(Translator compiledTranslator) {
         this.compiledTranslator = compiledTranslator;
     }
@@ -21,6 +21,9 @@ import httl.ast.MacroDirective;
 import httl.spi.Converter;
 import httl.spi.Interceptor;
 import httl.spi.Listener;
+import httl.spi.caches.FragmentCache;
+import httl.spi.engines.DefaultEngine;
+import httl.spi.interceptors.MultiInterceptor;
 import httl.util.ClassUtils;
 import httl.util.StringUtils;
 import httl.util.UnsafeStringWriter;
@@ -41,7 +44,12 @@ public abstract class AbstractTemplate implements Template {
 
     private final Resource resource;
 
-    private final Node root;
+    // 紧凑模式下编译后释放，需要时重新解析
+    private volatile Node root;
+
+    private final int offset;
+
+    private final boolean macro;
 
     private final Template parent;
 
@@ -57,10 +65,22 @@ public abstract class AbstractTemplate implements Template {
     private Converter<Object, Object> mapConverter;
     private Converter<Object, Object> outConverter;
     private Interceptor interceptor;
+    private FragmentCache fragmentCache;
+
+    private final Listener listener = new Listener() {
+        public void render(Context context) throws IOException, ParseException {
+            _render(context);
+        }
+    };
+
+    // 绑定拦截器链后的监听器，无拦截器时即为listener本身
+    private Listener pipeline = listener;
 
     public AbstractTemplate(Resource resource, Node root, Template parent) {
         this.resource = resource;
         this.root = root;
+        this.offset = root.getOffset();
+        this.macro = root instanceof MacroDirective;
         this.parent = parent;
         this.name = buildName(resource, root);
         this.encoding = resource.getEncoding();
@@ -143,15 +163,7 @@ public abstract class AbstractTemplate implements Template {
             } else {
                 throw new IllegalArgumentException("No such Converter to convert the " + out.getClass().getName() + " to OutputStream or Writer.");
             }
-            if (interceptor != null) {
-                interceptor.render(context, new Listener() {
-                    public void render(Context context) throws IOException, ParseException {
-                        _render(context);
-                    }
-                });
-            } else {
-                _render(context);
-            }
+            pipeline.render(context);
         } catch (ParseException e) {
             throw toLocatedParseException(e, this);
         } finally {
@@ -180,9 +192,31 @@ public abstract class AbstractTemplate implements Template {
     }
 
     protected Node getRoot() {
+        Node root = this.root;
+        if (root == null) {
+            Engine engine = resource.getEngine();
+            if (!(engine instanceof DefaultEngine)) {
+                throw new IllegalStateException("Can not reparse the released template " + name + " without the DefaultEngine.");
+            }
+            try {
+                root = ((DefaultEngine) engine).parseRoot(resource);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            } catch (ParseException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            this.root = root;
+        }
         return root;
     }
 
+    /**
+     * Release the AST, it will be reparsed from the resource if getChildren() or accept() is called.
+     */
+    protected void releaseRoot() {
+        this.root = null;
+    }
+
     protected Converter<Object, Object> getMapConverter() {
         return mapConverter;
     }
@@ -203,8 +237,51 @@ public abstract class AbstractTemplate implements Template {
         return interceptor;
     }
 
-    public void setInterceptor(Interceptor interceptor) {
+    public void setInterceptor(final Interceptor interceptor) {
         this.interceptor = interceptor;
+        if (interceptor == null) {
+            this.pipeline = listener;
+        } else if (interceptor instanceof MultiInterceptor) {
+            this.pipeline = ((MultiInterceptor) interceptor).bind(listener, isMacro());
+        } else {
+            this.pipeline = new Listener() {
+                public void render(Context context) throws IOException, ParseException {
+                    interceptor.render(context, listener);
+                }
+            };
+        }
+    }
+
+    protected FragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
+
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
+    protected Object getFragment(String key) {
+        return fragmentCache == null ? null : fragmentCache.get(key);
+    }
+
+    protected void putFragment(String key, Object value, long ttl) {
+        if (fragmentCache != null) {
+            fragmentCache.put(key, value, ttl);
+        }
+    }
+
+    protected void releaseFragment(String key) {
+        if (fragmentCache != null) {
+            fragmentCache.release(key);
+        }
+    }
+
+    Listener getPipeline() {
+        return pipeline;
+    }
+
+    boolean isIntercepted() {
+        return pipeline != listener;
     }
 
     public String getName() {
@@ -244,7 +321,7 @@ public abstract class AbstractTemplate implements Template {
     }
 
     public int getOffset() {
-        return root.getOffset();
+        return offset;
     }
 
     public Template getParent() {
@@ -253,11 +330,11 @@ public abstract class AbstractTemplate implements Template {
 
     @SuppressWarnings({"unchecked", "rawtypes"})
     public List<Node> getChildren() {
-        return (List) ((BlockDirective) root).getChildren();
+        return (List) ((BlockDirective) getRoot()).getChildren();
     }
 
     public boolean isMacro() {
-        return root instanceof MacroDirective;
+        return macro;
     }
 
     public void accept(Visitor visitor) throws IOException, ParseException {
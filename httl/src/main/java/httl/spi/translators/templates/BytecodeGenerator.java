@@ -0,0 +1,817 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.translators.templates;
+
+import httl.Context;
+import httl.Engine;
+import httl.Node;
+import httl.Resource;
+import httl.Template;
+import httl.ast.BlockDirective;
+import httl.ast.MacroDirective;
+import httl.spi.Compiler;
+import httl.spi.Converter;
+import httl.spi.Filter;
+import httl.spi.Formatter;
+import httl.spi.Interceptor;
+import httl.spi.Switcher;
+import httl.spi.formatters.MultiFormatter;
+import httl.spi.translators.templates.Closure.Block;
+import httl.spi.translators.templates.Closure.Branch;
+import httl.spi.translators.templates.Closure.ChainClosure;
+import httl.spi.translators.templates.Closure.Evaluator;
+import httl.spi.translators.templates.Closure.ForBranch;
+import httl.spi.translators.templates.Closure.Frame;
+import httl.spi.translators.templates.Closure.IfBranch;
+import httl.spi.translators.templates.Closure.SetClosure;
+import httl.spi.translators.templates.Closure.SwitchClosure;
+import httl.spi.translators.templates.Closure.TextClosure;
+import httl.spi.translators.templates.Closure.ValueClosure;
+import httl.util.ByteArrayClassLoader;
+import httl.util.ClassUtils;
+import httl.util.ClassWriter;
+import httl.util.CollectionUtils;
+import httl.util.SafeMarkup;
+import httl.util.Status;
+import httl.util.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BytecodeGenerator. (SPI, Prototype, NonThreadSafe)
+ * <p>
+ * Generate the template class extends the WriterTemplate or OutputStreamTemplate directly in bytecode,
+ * without the java source and compiler. The text, value, #if and #for are generated to the instructions
+ * of the render methods, the expressions and the other directives call their closures.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.translators.BytecodeTranslator
+ */
+public class BytecodeGenerator {
+
+    private static final String TEMPLATE_CLASS_PREFIX = CompiledTemplate.class.getPackage().getName() + ".Template_";
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    // ldc字符串常量的UTF-8编码最长65535字节，每个字符最多3字节，更长的文本放入静态字段
+    private static final int MAX_CONSTANT_TEXT = 65535 / 3;
+
+    private static final int MAX_STACK = 12;
+
+    // 局部变量：0 this, 1 context, 2 output, 3 frame, 4 value, 5 text, 每层循环另占4个
+    private static final int CONTEXT = 1;
+
+    private static final int OUTPUT = 2;
+
+    private static final int FRAME = 3;
+
+    private static final int VALUE = 4;
+
+    private static final int TEXT = 5;
+
+    private static final int LOOP = 6;
+
+    private static final String TEMPLATE = ClassWriter.getInternalName(Template.class);
+
+    private static final String COMPILED_TEMPLATE = ClassWriter.getInternalName(CompiledTemplate.class);
+
+    private static final String MACRO_TEMPLATE = ClassWriter.getInternalName(MacroTemplate.class);
+
+    private static final String CLOSURE = ClassWriter.getInternalName(Closure.class);
+
+    private static final String EVALUATOR = ClassWriter.getInternalName(Evaluator.class);
+
+    private static final String FRAME_TYPE = ClassWriter.getInternalName(Frame.class);
+
+    private static final String CONTEXT_TYPE = ClassWriter.getInternalName(Context.class);
+
+    private static final String STATUS = ClassWriter.getInternalName(Status.class);
+
+    private static final String ITERATOR = ClassWriter.getInternalName(Iterator.class);
+
+    private static final String CONTEXT_PUT = ClassWriter.getMethodDescriptor(Object.class, String.class, Object.class);
+
+    private static final String EVALUATE = ClassWriter.getMethodDescriptor(Object.class, Frame.class);
+
+    private static final Class<?>[] CONSTRUCTOR_TYPES = new Class<?>[]{Engine.class, Interceptor.class, Compiler.class,
+            Switcher.class, Switcher.class, Filter.class, Formatter.class, Converter.class, Converter.class,
+            Map.class, Map.class, Resource.class, Template.class, Node.class};
+
+    private Formatter<Object> formatter;
+
+    private Filter textFilter;
+
+    private Filter valueFilter;
+
+    private Switcher<Filter> textFilterSwitcher;
+
+    private Switcher<Filter> valueFilterSwitcher;
+
+    private Switcher<Formatter<Object>> formatterSwitcher;
+
+    private String filterVariable;
+
+    private String formatterVariable;
+
+    private String[] forVariable;
+
+    private String outputEncoding;
+
+    private Map<Class<?>, Object> importMethods;
+
+    private Map<String, Template> importMacros;
+
+    private String[] importPackages;
+
+    private Class<?> defaultVariableType;
+
+    private Resource resource;
+
+    private Closure closure;
+
+    private Map<String, Class<?>> variables;
+
+    private List<Macro> macros;
+
+    private List<Macro> macroArray;
+
+    /**
+     * Get the constructor types of the generated class, the same as the compiled template.
+     */
+    public static Class<?>[] getConstructorTypes() {
+        return CONSTRUCTOR_TYPES.clone();
+    }
+
+    public void setFormatter(Formatter<Object> formatter) {
+        this.formatter = formatter;
+    }
+
+    public void setTextFilter(Filter textFilter) {
+        this.textFilter = textFilter;
+    }
+
+    public void setValueFilter(Filter valueFilter) {
+        this.valueFilter = valueFilter;
+    }
+
+    public void setTextFilterSwitcher(Switcher<Filter> textFilterSwitcher) {
+        this.textFilterSwitcher = textFilterSwitcher;
+    }
+
+    public void setValueFilterSwitcher(Switcher<Filter> valueFilterSwitcher) {
+        this.valueFilterSwitcher = valueFilterSwitcher;
+    }
+
+    public void setFormatterSwitcher(Switcher<Formatter<Object>> formatterSwitcher) {
+        this.formatterSwitcher = formatterSwitcher;
+    }
+
+    public void setFilterVariable(String filterVariable) {
+        this.filterVariable = filterVariable;
+    }
+
+    public void setFormatterVariable(String formatterVariable) {
+        this.formatterVariable = formatterVariable;
+    }
+
+    public void setForVariable(String[] forVariable) {
+        this.forVariable = forVariable;
+    }
+
+    public void setOutputEncoding(String outputEncoding) {
+        this.outputEncoding = outputEncoding;
+    }
+
+    public void setImportMethods(Map<Class<?>, Object> importMethods) {
+        this.importMethods = importMethods;
+    }
+
+    public void setImportMacros(Map<String, Template> importMacros) {
+        this.importMacros = importMacros;
+    }
+
+    public void setImportPackages(String[] importPackages) {
+        this.importPackages = importPackages;
+    }
+
+    public void setDefaultVariableType(Class<?> defaultVariableType) {
+        this.defaultVariableType = defaultVariableType;
+    }
+
+    /**
+     * Convert the template and its macros to the closures, shared by the writer and stream classes.
+     */
+    public void init(Resource resource, Node root) throws IOException, ParseException {
+        this.resource = resource;
+        this.closure = toClosure(root);
+        this.variables = getVariables(root);
+        this.macroArray = new ArrayList<Macro>();
+        this.macros = toMacros(root, "");
+    }
+
+    /**
+     * Generate the template class.
+     *
+     * @param stream - extends the OutputStreamTemplate, otherwise the WriterTemplate
+     * @return template class, constructed by the {@link #getConstructorTypes()}
+     */
+    public Class<?> generate(boolean stream) {
+        String className = TEMPLATE_CLASS_PREFIX + StringUtils.getVaildName(resource.getName())
+                + "_" + SEQUENCE.incrementAndGet() + (stream ? "_stream" : "_writer");
+        ClassBuilder builder;
+        try {
+            builder = new ClassBuilder(className, stream, true);
+        } catch (IllegalStateException e) {
+            // 超出方法长度等限制时，顶层的指令只调用闭包
+            builder = new ClassBuilder(className, stream, false);
+        }
+        // 每个类使用独立的ClassLoader，模板重新加载后旧类可被回收
+        Class<?> type = new ByteArrayClassLoader().getClass(className, builder.bytes);
+        try {
+            for (int i = 0; i < builder.constants.size(); i++) {
+                Field field = type.getDeclaredField("c" + i);
+                field.setAccessible(true);
+                field.set(null, builder.constants.get(i));
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to init template class " + className + ", cause: " + ClassUtils.toString(e), e);
+        }
+        return type;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<Node> getChildren(Node node) {
+        return (List) ((BlockDirective) node).getChildren();
+    }
+
+    private Closure toClosure(Node node) throws IOException, ParseException {
+        ClosureVisitor visitor = new ClosureVisitor();
+        visitor.setFormatter(formatter);
+        visitor.setValueFilter(valueFilter);
+        visitor.setTextFilter(textFilter);
+        visitor.setForVariable(forVariable);
+        visitor.setOutputEncoding(outputEncoding);
+        visitor.setImportMethods(importMethods);
+        visitor.setImportMacros(importMacros);
+        visitor.setImportPackages(importPackages);
+        visitor.setTextFilterSwitcher(textFilterSwitcher);
+        visitor.setValueFilterSwitcher(valueFilterSwitcher);
+        visitor.setFormatterSwitcher(formatterSwitcher);
+        for (Node child : getChildren(node)) {
+            child.accept(visitor);
+        }
+        return visitor.getClosure();
+    }
+
+    private Map<String, Class<?>> getVariables(Node node) throws IOException, ParseException {
+        VariableVisitor visitor = new VariableVisitor(defaultVariableType, true);
+        for (Node child : getChildren(node)) {
+            child.accept(visitor);
+        }
+        return Collections.unmodifiableMap(visitor.getVariables());
+    }
+
+    // 宏按深度优先编号，与编译模式一样由模板按编号分派
+    private List<Macro> toMacros(Node node, String path) throws IOException, ParseException {
+        List<Macro> macros = new ArrayList<Macro>();
+        for (Node child : getChildren(node)) {
+            if (child instanceof MacroDirective) {
+                MacroDirective directive = (MacroDirective) child;
+                Macro macro = new Macro();
+                macro.index = macroArray.size();
+                macro.name = directive.getName();
+                macro.path = "#" + directive.getName() + path;
+                macro.offset = directive.getOffset();
+                macro.variables = getVariables(directive);
+                macro.closure = toClosure(directive);
+                macroArray.add(macro);
+                macro.macros = toMacros(directive, macro.path);
+                macros.add(macro);
+            }
+        }
+        return macros;
+    }
+
+    private static final class Macro {
+
+        int index;
+
+        String name;
+
+        String path;
+
+        int offset;
+
+        Map<String, Class<?>> variables;
+
+        Closure closure;
+
+        List<Macro> macros;
+
+    }
+
+    /**
+     * The loop generated in the render method.
+     */
+    private static final class Loop {
+
+        final int local;
+
+        // 闭包结束循环或模板时的跳转位置
+        final List<Integer> breaks = new ArrayList<Integer>();
+
+        Loop(int local) {
+            this.local = local;
+        }
+
+    }
+
+    /**
+     * Write the class, the closures and the other objects are kept in the static fields.
+     */
+    private final class ClassBuilder {
+
+        final ClassWriter writer;
+
+        final byte[] bytes;
+
+        final List<Object> constants = new ArrayList<Object>();
+
+        private final Map<Object, Integer> indexes = new IdentityHashMap<Object, Integer>();
+
+        private final String className;
+
+        private final boolean stream;
+
+        private final boolean inline;
+
+        private final String outputType;
+
+        ClassBuilder(String className, boolean stream, boolean inline) {
+            this.className = className.replace('.', '/');
+            this.stream = stream;
+            this.inline = inline;
+            this.outputType = ClassWriter.getInternalName(stream ? OutputStream.class : Writer.class);
+            String superClass = ClassWriter.getInternalName(stream ? OutputStreamTemplate.class : WriterTemplate.class);
+            this.writer = new ClassWriter(className, superClass);
+            String outputDescriptor = ClassWriter.getMethodDescriptor(void.class, Context.class, stream ? OutputStream.class : Writer.class);
+            String type = stream ? "Stream" : "Writer";
+
+            // 构造函数与编译的模板相同
+            String constructorDescriptor = ClassWriter.getMethodDescriptor(void.class, CONSTRUCTOR_TYPES);
+            ClassWriter.Code constructor = writer.addMethod(ClassWriter.ACC_PUBLIC, "<init>", constructorDescriptor, CONSTRUCTOR_TYPES.length + 1);
+            for (int i = 0; i <= CONSTRUCTOR_TYPES.length; i++) {
+                constructor.load(i);
+            }
+            constructor.method(ClassWriter.INVOKESPECIAL, superClass, "<init>", constructorDescriptor);
+            constructor.op(ClassWriter.RETURN);
+
+            ClassWriter.Code render = writer.addMethod(ClassWriter.ACC_PROTECTED, "doRender" + type, outputDescriptor, MAX_STACK);
+            body(render, closure, -1);
+
+            for (Macro macro : macroArray) {
+                ClassWriter.Code code = writer.addMethod(ClassWriter.ACC_PRIVATE, "$macro" + macro.index, outputDescriptor, MAX_STACK);
+                body(code, macro.closure, macro.index);
+            }
+
+            ClassWriter.Code dispatch = writer.addMethod(ClassWriter.ACC_PROTECTED, "doRenderMacro" + type,
+                    ClassWriter.getMethodDescriptor(void.class, int.class, Context.class, stream ? OutputStream.class : Writer.class), 4);
+            for (Macro macro : macroArray) {
+                dispatch.var(ClassWriter.ILOAD, 1);
+                dispatch.push(macro.index);
+                int next = dispatch.jump(ClassWriter.IF_ICMPNE);
+                dispatch.load(0);
+                dispatch.load(2);
+                dispatch.load(3);
+                dispatch.method(ClassWriter.INVOKESPECIAL, this.className, "$macro" + macro.index, outputDescriptor);
+                dispatch.op(ClassWriter.RETURN);
+                dispatch.mark(next);
+            }
+            String exception = ClassWriter.getInternalName(IllegalStateException.class);
+            dispatch.type(ClassWriter.NEW, exception);
+            dispatch.op(ClassWriter.DUP);
+            dispatch.push("No such macro index in template " + resource.getName() + ", index: ");
+            dispatch.var(ClassWriter.ILOAD, 1);
+            dispatch.method(ClassWriter.INVOKESTATIC, "java/lang/String", "valueOf", ClassWriter.getMethodDescriptor(String.class, int.class));
+            dispatch.method(ClassWriter.INVOKEVIRTUAL, "java/lang/String", "concat", ClassWriter.getMethodDescriptor(String.class, String.class));
+            dispatch.method(ClassWriter.INVOKESPECIAL, exception, "<init>", ClassWriter.getMethodDescriptor(void.class, String.class));
+            dispatch.op(ClassWriter.ATHROW);
+
+            ClassWriter.Code getVariables = writer.addMethod(ClassWriter.ACC_PUBLIC, "getVariables",
+                    ClassWriter.getMethodDescriptor(Map.class), 1);
+            constant(getVariables, variables, Map.class);
+            getVariables.op(ClassWriter.ARETURN);
+
+            // 在父类的构造函数中调用，只能使用静态字段
+            ClassWriter.Code getMacroTemplates = writer.addMethod(ClassWriter.ACC_PROTECTED, "getMacroTemplates",
+                    ClassWriter.getMethodDescriptor(Template[].class), 12 * (getDepth(macros) + 1));
+            macroTemplates(getMacroTemplates, macros);
+            getMacroTemplates.op(ClassWriter.ARETURN);
+
+            for (int i = 0; i < constants.size(); i++) {
+                writer.addField(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC, "c" + i,
+                        ClassWriter.getDescriptor(getFieldType(constants.get(i))));
+            }
+            // 超出限制时抛出异常，由调用者改为只调用闭包
+            this.bytes = writer.toByteArray();
+        }
+
+        private int getDepth(List<Macro> macros) {
+            int depth = 0;
+            for (Macro macro : macros) {
+                depth = Math.max(depth, getDepth(macro.macros) + 1);
+            }
+            return depth;
+        }
+
+        private void macroTemplates(ClassWriter.Code code, List<Macro> macros) {
+            code.push(macros.size());
+            code.type(ClassWriter.ANEWARRAY, TEMPLATE);
+            for (int i = 0; i < macros.size(); i++) {
+                Macro macro = macros.get(i);
+                code.op(ClassWriter.DUP);
+                code.push(i);
+                code.type(ClassWriter.NEW, MACRO_TEMPLATE);
+                code.op(ClassWriter.DUP);
+                code.load(0);
+                code.push(macro.index);
+                code.push(macro.name);
+                code.push(resource.getName() + macro.path);
+                constant(code, macro.variables, Map.class);
+                code.push(macro.offset);
+                macroTemplates(code, macro.macros);
+                code.push(0);
+                code.method(ClassWriter.INVOKESPECIAL, MACRO_TEMPLATE, "<init>", ClassWriter.getMethodDescriptor(void.class,
+                        CompiledTemplate.class, int.class, String.class, String.class, Map.class, int.class, Template[].class, boolean.class));
+                code.op(ClassWriter.AASTORE);
+            }
+        }
+
+        private void body(ClassWriter.Code code, Closure closure, int macroIndex) {
+            // Frame frame = new Frame(template, context, output, filter, formatter);
+            code.type(ClassWriter.NEW, FRAME_TYPE);
+            code.op(ClassWriter.DUP);
+            code.load(0);
+            if (macroIndex >= 0) {
+                // 宏使用宏模板，嵌套的宏及片段缓存按宏查找
+                code.push(macroIndex);
+                code.method(ClassWriter.INVOKEVIRTUAL, COMPILED_TEMPLATE, "getMacroTemplate",
+                        ClassWriter.getMethodDescriptor(Template.class, int.class));
+                code.type(ClassWriter.CHECKCAST, ClassWriter.getInternalName(AbstractTemplate.class));
+            }
+            code.load(CONTEXT);
+            code.load(OUTPUT);
+            if (filterVariable != null) {
+                code.load(0);
+                code.load(CONTEXT);
+                code.push(filterVariable);
+                code.method(ClassWriter.INVOKEVIRTUAL, COMPILED_TEMPLATE, "getFilter",
+                        ClassWriter.getMethodDescriptor(Filter.class, Context.class, String.class));
+            } else {
+                constant(code, valueFilter, Filter.class);
+            }
+            if (formatterVariable != null) {
+                code.load(0);
+                code.load(CONTEXT);
+                code.push(formatterVariable);
+                code.method(ClassWriter.INVOKEVIRTUAL, COMPILED_TEMPLATE, "getFormatter",
+                        ClassWriter.getMethodDescriptor(MultiFormatter.class, Context.class, String.class));
+            } else {
+                constant(code, formatter, Formatter.class);
+            }
+            code.method(ClassWriter.INVOKESPECIAL, FRAME_TYPE, "<init>", ClassWriter.getMethodDescriptor(void.class,
+                    AbstractTemplate.class, Context.class, Object.class, Filter.class, Formatter.class));
+            code.store(FRAME);
+            if (inline) {
+                statement(code, closure, null);
+            } else if (closure instanceof Block) {
+                for (Closure child : ((Block) closure).getChildren()) {
+                    call(code, child, null);
+                }
+            } else {
+                call(code, closure, null);
+            }
+            code.op(ClassWriter.RETURN);
+        }
+
+        private void statement(ClassWriter.Code code, Closure closure, Loop loop) {
+            if (closure instanceof Block) {
+                for (Closure child : ((Block) closure).getChildren()) {
+                    statement(code, child, loop);
+                }
+            } else if (closure instanceof TextClosure) {
+                text(code, (TextClosure) closure);
+            } else if (closure instanceof ValueClosure) {
+                value(code, (ValueClosure) closure);
+            } else if (closure instanceof ChainClosure) {
+                chain(code, (ChainClosure) closure, loop);
+            } else {
+                call(code, closure, loop);
+            }
+        }
+
+        private void text(ClassWriter.Code code, TextClosure closure) {
+            code.load(OUTPUT);
+            if (stream) {
+                constant(code, closure.getBytes(), byte[].class);
+                code.method(ClassWriter.INVOKEVIRTUAL, outputType, "write", ClassWriter.getMethodDescriptor(void.class, byte[].class));
+            } else {
+                string(code, closure.getText());
+                code.method(ClassWriter.INVOKEVIRTUAL, outputType, "write", ClassWriter.getMethodDescriptor(void.class, String.class));
+            }
+        }
+
+        private void value(ClassWriter.Code code, ValueClosure closure) {
+            List<Integer> ends = new ArrayList<Integer>();
+            evaluate(code, closure.getExpression());
+            code.store(VALUE);
+            // if (value instanceof Template) ((Template) value).render(output);
+            code.load(VALUE);
+            code.type(ClassWriter.INSTANCEOF, TEMPLATE);
+            int markup = code.jump(ClassWriter.IFEQ);
+            code.load(VALUE);
+            code.type(ClassWriter.CHECKCAST, TEMPLATE);
+            code.load(OUTPUT);
+            code.method(ClassWriter.INVOKEINTERFACE, TEMPLATE, "render", ClassWriter.getMethodDescriptor(void.class, Object.class));
+            ends.add(code.jump(ClassWriter.GOTO));
+            code.mark(markup);
+            // else if (value instanceof SafeMarkup) output.write(...);
+            String safeMarkup = ClassWriter.getInternalName(SafeMarkup.class);
+            code.load(VALUE);
+            code.type(ClassWriter.INSTANCEOF, safeMarkup);
+            int format = code.jump(ClassWriter.IFEQ);
+            code.load(OUTPUT);
+            code.load(VALUE);
+            if (stream) {
+                code.type(ClassWriter.CHECKCAST, safeMarkup);
+                encoding(code);
+                code.method(ClassWriter.INVOKEVIRTUAL, safeMarkup, "toBytes", ClassWriter.getMethodDescriptor(byte[].class, String.class));
+                code.method(ClassWriter.INVOKEVIRTUAL, outputType, "write", ClassWriter.getMethodDescriptor(void.class, byte[].class));
+            } else {
+                code.method(ClassWriter.INVOKEVIRTUAL, "java/lang/Object", "toString", ClassWriter.getMethodDescriptor(String.class));
+                code.method(ClassWriter.INVOKEVIRTUAL, outputType, "write", ClassWriter.getMethodDescriptor(void.class, String.class));
+            }
+            ends.add(code.jump(ClassWriter.GOTO));
+            code.mark(format);
+            // String text = formatter == null ? StringUtils.toString(value) : formatter.toString(key, value);
+            code.load(FRAME);
+            code.method(ClassWriter.INVOKEVIRTUAL, FRAME_TYPE, "getFormatter", ClassWriter.getMethodDescriptor(Formatter.class));
+            int formatted = code.jump(ClassWriter.IFNONNULL);
+            code.load(VALUE);
+            code.method(ClassWriter.INVOKESTATIC, ClassWriter.getInternalName(StringUtils.class), "toString",
+                    ClassWriter.getMethodDescriptor(String.class, Object.class));
+            code.store(TEXT);
+            int filter = code.jump(ClassWriter.GOTO);
+            code.mark(formatted);
+            code.load(FRAME);
+            code.method(ClassWriter.INVOKEVIRTUAL, FRAME_TYPE, "getFormatter", ClassWriter.getMethodDescriptor(Formatter.class));
+            string(code, closure.getKey());
+            code.load(VALUE);
+            code.method(ClassWriter.INVOKEINTERFACE, ClassWriter.getInternalName(Formatter.class), "toString",
+                    ClassWriter.getMethodDescriptor(String.class, String.class, Object.class));
+            code.store(TEXT);
+            code.mark(filter);
+            if (!closure.isNoFilter()) {
+                // if (filter != null) text = filter.filter(key, text);
+                code.load(FRAME);
+                code.method(ClassWriter.INVOKEVIRTUAL, FRAME_TYPE, "getFilter", ClassWriter.getMethodDescriptor(Filter.class));
+                int write = code.jump(ClassWriter.IFNULL);
+                code.load(FRAME);
+                code.method(ClassWriter.INVOKEVIRTUAL, FRAME_TYPE, "getFilter", ClassWriter.getMethodDescriptor(Filter.class));
+                string(code, closure.getKey());
+                code.load(TEXT);
+                code.method(ClassWriter.INVOKEINTERFACE, ClassWriter.getInternalName(Filter.class), "filter",
+                        ClassWriter.getMethodDescriptor(String.class, String.class, String.class));
+                code.store(TEXT);
+                code.mark(write);
+            }
+            code.load(TEXT);
+            ends.add(code.jump(ClassWriter.IFNULL));
+            code.load(OUTPUT);
+            code.load(TEXT);
+            if (stream) {
+                encoding(code);
+                code.method(ClassWriter.INVOKESTATIC, ClassWriter.getInternalName(StringUtils.class), "toBytes",
+                        ClassWriter.getMethodDescriptor(byte[].class, String.class, String.class));
+                code.method(ClassWriter.INVOKEVIRTUAL, outputType, "write", ClassWriter.getMethodDescriptor(void.class, byte[].class));
+            } else {
+                code.method(ClassWriter.INVOKEVIRTUAL, outputType, "write", ClassWriter.getMethodDescriptor(void.class, String.class));
+            }
+            for (int end : ends) {
+                code.mark(end);
+            }
+        }
+
+        private void chain(ClassWriter.Code code, ChainClosure closure, Loop loop) {
+            List<Integer> ends = new ArrayList<Integer>();
+            for (Branch branch : closure.getBranches()) {
+                List<Integer> nexts = new ArrayList<Integer>();
+                if (branch instanceof ForBranch) {
+                    loop(code, (ForBranch) branch, loop, nexts);
+                } else {
+                    IfBranch ifBranch = (IfBranch) branch;
+                    if (ifBranch.getCondition() != null) {
+                        // if (ClassUtils.isTrue(condition))
+                        evaluate(code, ifBranch.getCondition());
+                        code.method(ClassWriter.INVOKESTATIC, ClassWriter.getInternalName(ClassUtils.class), "isTrue",
+                                ClassWriter.getMethodDescriptor(boolean.class, Object.class));
+                        nexts.add(code.jump(ClassWriter.IFEQ));
+                    }
+                    statement(code, ifBranch.getBody(), loop);
+                }
+                ends.add(code.jump(ClassWriter.GOTO));
+                for (int next : nexts) {
+                    code.mark(next);
+                }
+            }
+            for (int end : ends) {
+                code.mark(end);
+            }
+        }
+
+        private void loop(ClassWriter.Code code, ForBranch branch, Loop outer, List<Integer> nexts) {
+            Loop loop = new Loop(outer == null ? LOOP : outer.local + 4);
+            int data = loop.local;
+            int size = loop.local + 1;
+            int status = loop.local + 2;
+            int iterator = loop.local + 3;
+            String statusDescriptor = ClassWriter.getDescriptor(Status.class);
+            // Object data = expression; int size = ClassUtils.getSize(data); if (data == null || size == 0) next;
+            evaluate(code, branch.getExpression());
+            code.store(data);
+            code.load(data);
+            code.method(ClassWriter.INVOKESTATIC, ClassWriter.getInternalName(ClassUtils.class), "getSize",
+                    ClassWriter.getMethodDescriptor(int.class, Object.class));
+            code.var(ClassWriter.ISTORE, size);
+            code.load(data);
+            nexts.add(code.jump(ClassWriter.IFNULL));
+            code.var(ClassWriter.ILOAD, size);
+            nexts.add(code.jump(ClassWriter.IFEQ));
+            // Status status = new Status((Status) context.get(for), data, size);
+            code.type(ClassWriter.NEW, STATUS);
+            code.op(ClassWriter.DUP);
+            code.load(CONTEXT);
+            code.push(forVariable[0]);
+            code.method(ClassWriter.INVOKEVIRTUAL, CONTEXT_TYPE, "get", ClassWriter.getMethodDescriptor(Object.class, Object.class));
+            code.type(ClassWriter.CHECKCAST, STATUS);
+            code.load(data);
+            code.var(ClassWriter.ILOAD, size);
+            code.method(ClassWriter.INVOKESPECIAL, STATUS, "<init>", "(" + statusDescriptor + "Ljava/lang/Object;I)V");
+            code.store(status);
+            for (String var : forVariable) {
+                code.load(CONTEXT);
+                code.push(var);
+                code.load(status);
+                code.method(ClassWriter.INVOKEVIRTUAL, CONTEXT_TYPE, "put", CONTEXT_PUT);
+                code.op(ClassWriter.POP);
+            }
+            // for (Iterator<?> iterator = CollectionUtils.toIterator(data); iterator.hasNext(); status.increment())
+            code.load(data);
+            code.method(ClassWriter.INVOKESTATIC, ClassWriter.getInternalName(CollectionUtils.class), "toIterator",
+                    ClassWriter.getMethodDescriptor(Iterator.class, Object.class));
+            code.store(iterator);
+            int begin = code.size();
+            code.load(iterator);
+            code.method(ClassWriter.INVOKEINTERFACE, ITERATOR, "hasNext", ClassWriter.getMethodDescriptor(boolean.class));
+            int done = code.jump(ClassWriter.IFEQ);
+            code.load(CONTEXT);
+            code.push(branch.getName());
+            code.load(iterator);
+            code.method(ClassWriter.INVOKEINTERFACE, ITERATOR, "next", ClassWriter.getMethodDescriptor(Object.class));
+            code.method(ClassWriter.INVOKEVIRTUAL, CONTEXT_TYPE, "put", CONTEXT_PUT);
+            code.op(ClassWriter.POP);
+            statement(code, branch.getBody(), loop);
+            code.load(status);
+            code.method(ClassWriter.INVOKEVIRTUAL, STATUS, "increment", "()V");
+            code.jump(ClassWriter.GOTO, begin);
+            if (!loop.breaks.isEmpty()) {
+                for (int jump : loop.breaks) {
+                    code.mark(jump);
+                }
+                code.load(FRAME);
+                code.method(ClassWriter.INVOKEVIRTUAL, FRAME_TYPE, "breakLoop", "()V");
+            }
+            code.mark(done);
+            for (String var : forVariable) {
+                code.load(CONTEXT);
+                code.push(var);
+                code.load(status);
+                code.method(ClassWriter.INVOKEVIRTUAL, STATUS, "getParent", "()" + statusDescriptor);
+                code.method(ClassWriter.INVOKEVIRTUAL, CONTEXT_TYPE, "put", CONTEXT_PUT);
+                code.op(ClassWriter.POP);
+            }
+            if (!loop.breaks.isEmpty()) {
+                // 模板内的#break在循环结束后继续返回
+                exit(code, outer);
+            }
+        }
+
+        // closure.execute(frame);
+        private void call(ClassWriter.Code code, Closure closure, Loop loop) {
+            constant(code, closure, Closure.class);
+            code.load(FRAME);
+            code.method(ClassWriter.INVOKEVIRTUAL, CLOSURE, "execute", ClassWriter.getMethodDescriptor(void.class, Frame.class));
+            if (!(closure instanceof TextClosure || closure instanceof ValueClosure
+                    || closure instanceof SetClosure || closure instanceof SwitchClosure)) {
+                exit(code, loop);
+            }
+        }
+
+        // if (! frame.isNormal()) break or return;
+        private void exit(ClassWriter.Code code, Loop loop) {
+            code.load(FRAME);
+            code.method(ClassWriter.INVOKEVIRTUAL, FRAME_TYPE, "isNormal", ClassWriter.getMethodDescriptor(boolean.class));
+            if (loop == null) {
+                int normal = code.jump(ClassWriter.IFNE);
+                code.op(ClassWriter.RETURN);
+                code.mark(normal);
+            } else {
+                loop.breaks.add(code.jump(ClassWriter.IFEQ));
+            }
+        }
+
+        private void evaluate(ClassWriter.Code code, Evaluator evaluator) {
+            constant(code, evaluator, Evaluator.class);
+            code.load(FRAME);
+            code.method(ClassWriter.INVOKEVIRTUAL, EVALUATOR, "evaluate", EVALUATE);
+        }
+
+        private void encoding(ClassWriter.Code code) {
+            if (outputEncoding == null) {
+                code.op(ClassWriter.ACONST_NULL);
+            } else {
+                code.push(outputEncoding);
+            }
+        }
+
+        private void string(ClassWriter.Code code, String value) {
+            if (value.length() <= MAX_CONSTANT_TEXT) {
+                code.push(value);
+            } else {
+                constant(code, value, String.class);
+            }
+        }
+
+        private void constant(ClassWriter.Code code, Object value, Class<?> type) {
+            if (value == null) {
+                code.op(ClassWriter.ACONST_NULL);
+                return;
+            }
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = constants.size();
+                constants.add(value);
+                indexes.put(value, index);
+            }
+            code.field(ClassWriter.GETSTATIC, className, "c" + index, ClassWriter.getDescriptor(getFieldType(value)));
+            if (!type.isAssignableFrom(getFieldType(value))) {
+                code.type(ClassWriter.CHECKCAST, ClassWriter.getInternalName(type));
+            }
+        }
+
+        private Class<?> getFieldType(Object value) {
+            if (value instanceof Evaluator) {
+                return Evaluator.class;
+            } else if (value instanceof Closure) {
+                return Closure.class;
+            } else if (value instanceof byte[]) {
+                return byte[].class;
+            } else if (value instanceof String) {
+                return String.class;
+            } else if (value instanceof Map) {
+                return Map.class;
+            } else if (value instanceof Filter) {
+                return Filter.class;
+            } else if (value instanceof Formatter) {
+                return Formatter.class;
+            }
+            return Object.class;
+        }
+
+    }
+
+}
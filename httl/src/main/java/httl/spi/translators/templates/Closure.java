@@ -0,0 +1,1058 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.translators.templates;
+
+import httl.Context;
+import httl.Template;
+import httl.spi.Filter;
+import httl.spi.Formatter;
+import httl.spi.caches.FragmentCache;
+import httl.util.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Closure. (SPI, Prototype, ThreadSafe)
+ * <p>
+ * The executable node converted from the AST once by the closure visitor,
+ * the text is pre-filtered and pre-encoded, and the methods are resolved at the first call
+ * and cached by the argument types, so the render is only a walk of these nodes.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.translators.templates.ClosureVisitor
+ */
+public abstract class Closure {
+
+    static final int NORMAL = 0;
+
+    static final int BREAK = 1;
+
+    static final int RETURN = 2;
+
+    private static final Object[] EMPTY_ARGS = new Object[0];
+
+    public abstract void execute(Frame frame) throws Exception;
+
+    /**
+     * The render state, created for each render.
+     */
+    public static final class Frame {
+
+        final AbstractTemplate template;
+
+        final Context context;
+
+        Object out;
+
+        Filter filter;
+
+        Formatter<Object> formatter;
+
+        int state = NORMAL;
+
+        // #set(var .= value)的隐藏变量，与编译模式的局部变量一样，不放入上下文
+        private Map<String, Object> locals;
+
+        public Frame(AbstractTemplate template, Context context, Object out, Filter filter, Formatter<Object> formatter) {
+            this.template = template;
+            this.context = context;
+            this.out = out;
+            this.filter = filter;
+            this.formatter = formatter;
+        }
+
+        public Filter getFilter() {
+            return filter;
+        }
+
+        public Formatter<Object> getFormatter() {
+            return formatter;
+        }
+
+        boolean isStream() {
+            return out instanceof OutputStream;
+        }
+
+        Object get(String name) {
+            if (locals != null && locals.containsKey(name)) {
+                return locals.get(name);
+            }
+            return context.get(name);
+        }
+
+        void put(String name, Object value, boolean hide) {
+            if (hide) {
+                if (locals == null) {
+                    locals = new HashMap<String, Object>();
+                }
+                locals.put(name, value);
+            } else {
+                if (locals != null) {
+                    locals.remove(name);
+                }
+                context.put(name, value);
+            }
+        }
+
+        public boolean isNormal() {
+            return state == NORMAL;
+        }
+
+        /**
+         * End the loop, the #break state is cleared, but the return state is kept.
+         */
+        public void breakLoop() {
+            if (state == BREAK) {
+                state = NORMAL;
+            }
+        }
+
+        public void write(String text, byte[] bytes) throws IOException {
+            if (out instanceof OutputStream) {
+                ((OutputStream) out).write(bytes);
+            } else {
+                ((Writer) out).write(text);
+            }
+        }
+
+        void write(Object fragment) throws IOException {
+            if (out instanceof OutputStream) {
+                ((OutputStream) out).write((byte[]) fragment);
+            } else if (fragment instanceof char[]) {
+                ((Writer) out).write((char[]) fragment);
+            } else {
+                ((Writer) out).write((String) fragment);
+            }
+        }
+
+    }
+
+    static final class Block extends Closure {
+
+        private final Closure[] children;
+
+        Block(Closure[] children) {
+            this.children = children;
+        }
+
+        Closure[] getChildren() {
+            return children;
+        }
+
+        public void execute(Frame frame) throws Exception {
+            for (Closure child : children) {
+                child.execute(frame);
+                if (frame.state != NORMAL) {
+                    return;
+                }
+            }
+        }
+
+    }
+
+    static final class TextClosure extends Closure {
+
+        private final String text;
+
+        private final byte[] bytes;
+
+        TextClosure(String text, byte[] bytes) {
+            this.text = text;
+            this.bytes = bytes;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        public void execute(Frame frame) throws Exception {
+            frame.write(text, bytes);
+        }
+
+    }
+
+    static final class SwitchClosure extends Closure {
+
+        private final boolean filterSwitched;
+
+        private final Filter filter;
+
+        private final boolean formatterSwitched;
+
+        private final Formatter<Object> formatter;
+
+        SwitchClosure(boolean filterSwitched, Filter filter, boolean formatterSwitched, Formatter<Object> formatter) {
+            this.filterSwitched = filterSwitched;
+            this.filter = filter;
+            this.formatterSwitched = formatterSwitched;
+            this.formatter = formatter;
+        }
+
+        public void execute(Frame frame) throws Exception {
+            if (filterSwitched) {
+                frame.filter = filter;
+            }
+            if (formatterSwitched) {
+                frame.formatter = formatter;
+            }
+        }
+
+    }
+
+    static final class ValueClosure extends Closure {
+
+        private final Evaluator expression;
+
+        private final String key;
+
+        private final boolean nofilter;
+
+        private final String outputEncoding;
+
+        ValueClosure(Evaluator expression, String key, boolean nofilter, String outputEncoding) {
+            this.expression = expression;
+            this.key = key;
+            this.nofilter = nofilter;
+            this.outputEncoding = outputEncoding;
+        }
+
+        Evaluator getExpression() {
+            return expression;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        boolean isNoFilter() {
+            return nofilter;
+        }
+
+        public void execute(Frame frame) throws Exception {
+            Object result = expression.evaluate(frame);
+            if (result instanceof Template) {
+                ((Template) result).render(frame.out);
+                return;
+            }
+            if (result instanceof SafeMarkup) {
+                SafeMarkup markup = (SafeMarkup) result;
+                frame.write(markup.toString(), frame.isStream() ? markup.toBytes(outputEncoding) : null);
+                return;
+            }
+            String text = frame.formatter == null ? StringUtils.toString(result) : frame.formatter.toString(key, result);
+            if (!nofilter && frame.filter != null) {
+                text = frame.filter.filter(key, text);
+            }
+            if (text != null) {
+                frame.write(text, frame.isStream() ? StringUtils.toBytes(text, outputEncoding) : null);
+            }
+        }
+
+    }
+
+    static final class SetClosure extends Closure {
+
+        private final String name;
+
+        private final Evaluator expression;
+
+        private final boolean export;
+
+        private final boolean hide;
+
+        SetClosure(String name, Evaluator expression, boolean export, boolean hide) {
+            this.name = name;
+            this.expression = expression;
+            this.export = export;
+            this.hide = hide;
+        }
+
+        public void execute(Frame frame) throws Exception {
+            Object result = expression.evaluate(frame);
+            if (export && frame.context.getParent() != null) {
+                frame.context.getParent().put(name, result);
+            } else {
+                frame.put(name, result, hide);
+            }
+        }
+
+    }
+
+    static final class BreakClosure extends Closure {
+
+        private final Evaluator condition;
+
+        private final int state;
+
+        BreakClosure(Evaluator condition, boolean loop) {
+            this.condition = condition;
+            // 与编译模式一致：#for内直接跳出循环，其它位置结束当前模板
+            this.state = loop ? BREAK : RETURN;
+        }
+
+        public void execute(Frame frame) throws Exception {
+            if (condition == null || ClassUtils.isTrue(condition.evaluate(frame))) {
+                frame.state = state;
+            }
+        }
+
+    }
+
+    /**
+     * The #if, #for and the following #else directives, the first taken branch is executed.
+     */
+    static final class ChainClosure extends Closure {
+
+        private final Branch[] branches;
+
+        ChainClosure(Branch[] branches) {
+            this.branches = branches;
+        }
+
+        Branch[] getBranches() {
+            return branches;
+        }
+
+        ChainClosure append(Branch branch) {
+            Branch[] appended = new Branch[branches.length + 1];
+            System.arraycopy(branches, 0, appended, 0, branches.length);
+            appended[branches.length] = branch;
+            return new ChainClosure(appended);
+        }
+
+        public void execute(Frame frame) throws Exception {
+            for (Branch branch : branches) {
+                if (branch.take(frame)) {
+                    return;
+                }
+            }
+        }
+
+    }
+
+    abstract static class Branch {
+
+        abstract boolean take(Frame frame) throws Exception;
+
+    }
+
+    static final class IfBranch extends Branch {
+
+        private final Evaluator condition;
+
+        private final Closure body;
+
+        IfBranch(Evaluator condition, Closure body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        Evaluator getCondition() {
+            return condition;
+        }
+
+        Closure getBody() {
+            return body;
+        }
+
+        boolean take(Frame frame) throws Exception {
+            if (condition != null && !ClassUtils.isTrue(condition.evaluate(frame))) {
+                return false;
+            }
+            body.execute(frame);
+            return true;
+        }
+
+    }
+
+    static final class ForBranch extends Branch {
+
+        private final String name;
+
+        private final Evaluator expression;
+
+        private final Closure body;
+
+        private final String[] forVariable;
+
+        ForBranch(String name, Evaluator expression, Closure body, String[] forVariable) {
+            this.name = name;
+            this.expression = expression;
+            this.body = body;
+            this.forVariable = forVariable;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Evaluator getExpression() {
+            return expression;
+        }
+
+        Closure getBody() {
+            return body;
+        }
+
+        boolean take(Frame frame) throws Exception {
+            Object data = expression.evaluate(frame);
+            int size = ClassUtils.getSize(data);
+            if (data == null || size == 0) {
+                return false;
+            }
+            Context context = frame.context;
+            Status status = new Status((Status) context.get(forVariable[0]), data, size);
+            for (String var : forVariable) {
+                context.put(var, status);
+            }
+            for (Iterator<?> iterator = CollectionUtils.toIterator(data); iterator.hasNext(); ) {
+                context.put(name, iterator.next());
+                body.execute(frame);
+                if (frame.state != NORMAL) {
+                    frame.breakLoop();
+                    break;
+                }
+                status.increment();
+            }
+            for (String var : forVariable) {
+                context.put(var, status.getParent());
+            }
+            return true;
+        }
+
+    }
+
+    static final class CacheClosure extends Closure {
+
+        private final Evaluator[] keys;
+
+        private final Evaluator ttl;
+
+        private final int offset;
+
+        private final Closure body;
+
+        CacheClosure(Evaluator[] keys, Evaluator ttl, int offset, Closure body) {
+            this.keys = keys;
+            this.ttl = ttl;
+            this.offset = offset;
+            this.body = body;
+        }
+
+        public void execute(Frame frame) throws Exception {
+            Object value;
+            if (keys.length == 1) {
+                value = keys[0].evaluate(frame);
+            } else {
+                Object[] values = new Object[keys.length];
+                for (int i = 0; i < keys.length; i++) {
+                    values[i] = keys[i].evaluate(frame);
+                }
+                value = values;
+            }
+            boolean stream = frame.isStream();
+            AbstractTemplate owner = frame.template;
+            String key = FragmentCache.getKey(FragmentCache.getLocation(owner, offset, stream), value);
+            Object fragment = owner.getFragment(key);
+            if (fragment != null) {
+                frame.write(fragment);
+                return;
+            }
+            Object origin = frame.out;
+            Object buffer = stream ? new UnsafeByteArrayOutputStream() : new UnsafeStringWriter();
+            frame.out = buffer;
+            try {
+                long seconds = ttl == null ? 0 : FragmentCache.getTtl(ttl.evaluate(frame));
+                body.execute(frame);
+                if (frame.state == NORMAL) {
+                    fragment = stream ? ((UnsafeByteArrayOutputStream) buffer).toByteArray()
+                            : ((UnsafeStringWriter) buffer).toString().toCharArray();
+                    owner.putFragment(key, fragment, seconds);
+                }
+            } finally {
+                // 异常时不缓存，也不输出已渲染的部分
+                frame.out = origin;
+                owner.releaseFragment(key);
+            }
+            if (frame.state == NORMAL) {
+                frame.write(fragment);
+            } else {
+                // #break跳出时，仍输出已渲染的部分，但不缓存
+                frame.write(stream ? ((UnsafeByteArrayOutputStream) buffer).toByteArray() : ((UnsafeStringWriter) buffer).toString());
+            }
+        }
+
+    }
+
+    /**
+     * The expression, also called by the bytecode template.
+     */
+    public abstract static class Evaluator {
+
+        public abstract Object evaluate(Frame frame) throws Exception;
+
+        /**
+         * Get the declared type, the overloaded methods are selected by it like the compiled template.
+         *
+         * @return declared type, null if only known at runtime.
+         */
+        Class<?> getType() {
+            return null;
+        }
+
+    }
+
+    static final class ConstantEvaluator extends Evaluator {
+
+        private final Object value;
+
+        ConstantEvaluator(Object value) {
+            this.value = value;
+        }
+
+        public Object evaluate(Frame frame) {
+            return value;
+        }
+
+    }
+
+    static final class VariableEvaluator extends Evaluator {
+
+        private final String name;
+
+        private final Class<?> type;
+
+        VariableEvaluator(String name, Class<?> type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public Object evaluate(Frame frame) {
+            return frame.get(name);
+        }
+
+        Class<?> getType() {
+            return type;
+        }
+
+    }
+
+    /**
+     * The cast expression, only changes the declared type.
+     */
+    static final class CastEvaluator extends Evaluator {
+
+        private final Evaluator expression;
+
+        private final Class<?> type;
+
+        CastEvaluator(Evaluator expression, Class<?> type) {
+            this.expression = expression;
+            this.type = type;
+        }
+
+        public Object evaluate(Frame frame) throws Exception {
+            return expression.evaluate(frame);
+        }
+
+        Class<?> getType() {
+            return type;
+        }
+
+    }
+
+    /**
+     * The resolved call target, cached by the left class and argument types. (Immutable)
+     */
+    private static final class Invoker {
+
+        static final int NONE = 0;
+
+        static final int FUNCTION = 1;
+
+        static final int METHOD = 2;
+
+        static final int ARRAY_LENGTH = 3;
+
+        static final int MAP = 4;
+
+        static final int GETTER = 5;
+
+        static final int FIELD = 6;
+
+        static final int MACRO = 7;
+
+        static final int STATIC_METHOD = 8;
+
+        static final int STATIC_FIELD = 9;
+
+        static final int ARRAY_FUNCTION = 10;
+
+        final Class<?> leftClass;
+
+        final Object leftValue;
+
+        final Class<?>[] types;
+
+        final int kind;
+
+        final Method method;
+
+        final Field field;
+
+        final Object target;
+
+        Invoker(Class<?> leftClass, Object leftValue, Class<?>[] types, int kind, Method method, Field field, Object target) {
+            this.leftClass = leftClass;
+            this.leftValue = leftValue;
+            this.types = types;
+            this.kind = kind;
+            this.method = method;
+            this.field = field;
+            this.target = target;
+        }
+
+        boolean matches(Object left, Class<?> leftClass, Class<?>[] types) {
+            if (this.leftClass != leftClass || (leftValue != null && leftValue != left)
+                    || this.types.length != types.length) {
+                return false;
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (this.types[i] != types[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    // 与编译器一样选择最具体的重载方法，空值参数不匹配基本类型
+    private static Method searchMethod(Class<?> type, String name, Class<?>[] types, boolean boxed) throws NoSuchMethodException {
+        Method found = null;
+        for (Method method : type.getMethods()) {
+            if (method.getName().equals(name) && method.getParameterTypes().length == types.length
+                    && isAssignable(method.getParameterTypes(), types)
+                    && (found == null || isAssignable(found.getParameterTypes(), method.getParameterTypes()))) {
+                found = method;
+            }
+        }
+        if (found == null) {
+            return ClassUtils.searchMethod(type, name, types, boxed);
+        }
+        return found;
+    }
+
+    private static boolean isAssignable(Class<?>[] parameterTypes, Class<?>[] types) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == null ? parameterTypes[i].isPrimitive()
+                    : !ClassUtils.getBoxedClass(parameterTypes[i]).isAssignableFrom(ClassUtils.getBoxedClass(types[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Class<?>[] getTypes(Object[] args) {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            types[i] = args[i] == null ? null : args[i].getClass();
+        }
+        return types;
+    }
+
+    // 优先使用声明类型，未声明时使用运行时类型
+    private static Class<?>[] getTypes(Evaluator[] arguments, Object[] args) {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            types[i] = getDeclaredType(arguments[i], args[i]);
+        }
+        return types;
+    }
+
+    private static Class<?> getDeclaredType(Evaluator evaluator, Object value) {
+        Class<?> type = evaluator.getType();
+        if (type != null) {
+            return type;
+        }
+        return value == null ? null : value.getClass();
+    }
+
+    private static Object[] evaluate(Evaluator[] arguments, Frame frame) throws Exception {
+        if (arguments.length == 0) {
+            return EMPTY_ARGS;
+        }
+        Object[] args = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            args[i] = arguments[i].evaluate(frame);
+        }
+        return args;
+    }
+
+    static final class UnaryEvaluator extends Evaluator {
+
+        private final String name;
+
+        private final String filteredName;
+
+        private final Evaluator[] arguments;
+
+        private final Map<Class<?>, Object> functions;
+
+        private final Map<String, Template> importMacros;
+
+        private final int offset;
+
+        private volatile Invoker invoker;
+
+        UnaryEvaluator(String name, Evaluator[] arguments,
+                       Map<Class<?>, Object> functions, Map<String, Template> importMacros, int offset) {
+            this.name = name;
+            this.filteredName = ClassUtils.filterJavaKeyword(name);
+            this.arguments = arguments;
+            this.functions = functions;
+            this.importMacros = importMacros;
+            this.offset = offset;
+        }
+
+        public Object evaluate(Frame frame) throws Exception {
+            Object[] args = Closure.evaluate(arguments, frame);
+            Class<?>[] types = getTypes(arguments, args);
+            Invoker invoker = this.invoker;
+            if (invoker == null || !invoker.matches(null, null, types)) {
+                invoker = resolve(types);
+                this.invoker = invoker;
+            }
+            if (invoker.kind != Invoker.NONE) {
+                try {
+                    // list及map等方法以数组接收全部参数
+                    return invoker.method.invoke(invoker.target, invoker.kind == Invoker.FUNCTION ? args : new Object[]{args});
+                } catch (Exception e) {
+                    throw new ParseException("Failed to invoke method " + ClassUtils.getMethodFullName(filteredName, types) + " in class " + invoker.method.getDeclaringClass().getCanonicalName() + ", cause: " + ClassUtils.dumpException(e), offset);
+                }
+            }
+            Template macro;
+            Object variable = frame.context.get(name);
+            if (variable instanceof Template) {
+                macro = (Template) variable;
+            } else {
+                macro = frame.template.getMacros().get(name);
+                if (macro == null && importMacros != null) {
+                    macro = importMacros.get(name);
+                }
+            }
+            if (macro == null) {
+                throw new ParseException("No such macro \"" + filteredName + "\" or import method " + ClassUtils.getMethodFullName(filteredName, types) + ".", offset);
+            }
+            return macro.evaluate(args);
+        }
+
+        private Invoker resolve(Class<?>[] types) throws ParseException {
+            Invoker invoker = resolve(types, types, Invoker.FUNCTION);
+            if (invoker == null && types.length != 1) {
+                invoker = resolve(types, new Class<?>[]{Object[].class}, Invoker.ARRAY_FUNCTION);
+            }
+            return invoker == null ? new Invoker(null, null, types, Invoker.NONE, null, null, null) : invoker;
+        }
+
+        private Invoker resolve(Class<?>[] types, Class<?>[] parameterTypes, int kind) throws ParseException {
+            if (functions != null) {
+                for (Map.Entry<Class<?>, Object> entry : functions.entrySet()) {
+                    Class<?> function = entry.getKey();
+                    try {
+                        Method method = searchMethod(function, filteredName, parameterTypes, true);
+                        if (!Object.class.equals(method.getDeclaringClass())) {
+                            if (method.getReturnType() == void.class) {
+                                throw new ParseException("Can not call void method " + method.getName() + " in class " + function.getName(), offset);
+                            }
+                            Object target = Modifier.isStatic(method.getModifiers()) ? null : entry.getValue();
+                            return new Invoker(null, null, types, kind, method, null, target);
+                        }
+                    } catch (NoSuchMethodException e) {
+                    }
+                }
+            }
+            return null;
+        }
+
+    }
+
+    static final class NewEvaluator extends Evaluator {
+
+        private final Class<?> type;
+
+        private final Evaluator[] arguments;
+
+        private final int offset;
+
+        private volatile Constructor<?> constructor;
+
+        NewEvaluator(Class<?> type, Evaluator[] arguments, int offset) {
+            this.type = type;
+            this.arguments = arguments;
+            this.offset = offset;
+        }
+
+        public Object evaluate(Frame frame) throws Exception {
+            Object[] args = Closure.evaluate(arguments, frame);
+            Class<?>[] types = getTypes(args);
+            Constructor<?> constructor = this.constructor;
+            if (constructor == null || !isMatch(constructor.getParameterTypes(), types)) {
+                constructor = searchConstructor(types);
+                this.constructor = constructor;
+            }
+            return constructor.newInstance(args);
+        }
+
+        private Constructor<?> searchConstructor(Class<?>[] types) throws ParseException {
+            for (Constructor<?> constructor : type.getConstructors()) {
+                if (isMatch(constructor.getParameterTypes(), types)) {
+                    return constructor;
+                }
+            }
+            throw new ParseException("No such constructor " + ClassUtils.getMethodFullName(type.getName(), types) + ".", offset);
+        }
+
+        private static boolean isMatch(Class<?>[] parameterTypes, Class<?>[] types) {
+            if (parameterTypes.length != types.length) {
+                return false;
+            }
+            for (int i = 0; i < types.length; i++) {
+                if (types[i] == null) {
+                    if (parameterTypes[i].isPrimitive()) {
+                        return false;
+                    }
+                } else if (!ClassUtils.getBoxedClass(parameterTypes[i]).isAssignableFrom(types[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    static final class BinaryEvaluator extends Evaluator {
+
+        private final String name;
+
+        private final Evaluator left;
+
+        private final Evaluator right;
+
+        private final Evaluator[] arguments;
+
+        private final boolean unboxed;
+
+        private final Map<Class<?>, Object> functions;
+
+        private final int offset;
+
+        private volatile Invoker invoker;
+
+        BinaryEvaluator(String name, Evaluator left, Evaluator right, Evaluator[] arguments, boolean unboxed,
+                        Map<Class<?>, Object> functions, int offset) {
+            this.name = "to".equals(name) || "class".equals(name) ? name : ClassUtils.filterJavaKeyword(name);
+            this.left = left;
+            this.right = right;
+            this.arguments = arguments;
+            this.unboxed = unboxed;
+            this.functions = functions;
+            this.offset = offset;
+        }
+
+        Evaluator getLeft() {
+            return left;
+        }
+
+        Evaluator getRight() {
+            return right;
+        }
+
+        public Object evaluate(Frame frame) throws Exception {
+            Object leftValue = left.evaluate(frame);
+            Object[] args = Closure.evaluate(arguments, frame);
+            Class<?> leftClass = leftValue == null ? null : leftValue.getClass();
+            if ("to".equals(name) && args.length == 1 && args[0] instanceof String) {
+                return leftValue;
+            }
+            if ("class".equals(name)) {
+                return leftClass == null || !unboxed ? leftClass : ClassUtils.getUnboxedClass(leftClass);
+            }
+            Class<?>[] types = getTypes(arguments, args);
+            Invoker invoker = this.invoker;
+            if (invoker == null || !invoker.matches(leftValue, leftClass, types)) {
+                invoker = resolve(leftValue, leftClass, getDeclaredType(left, leftValue), types);
+                this.invoker = invoker;
+            }
+            if (leftValue == null && invoker.kind != Invoker.FUNCTION) {
+                return null;
+            }
+            try {
+                return invoke(invoker, leftValue, args);
+            } catch (ParseException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ParseException(ClassUtils.toString(e), offset);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object invoke(Invoker invoker, Object leftValue, Object[] args) throws Exception {
+            switch (invoker.kind) {
+                case Invoker.FUNCTION:
+                    Object[] staticArgs = new Object[args.length + 1];
+                    staticArgs[0] = leftValue;
+                    System.arraycopy(args, 0, staticArgs, 1, args.length);
+                    try {
+                        return invoker.method.invoke(invoker.target, staticArgs);
+                    } catch (Exception e) {
+                        throw new ParseException("Failed to invoke method " + ClassUtils.getMethodFullName(name, getTypes(staticArgs)) + " in class " + invoker.method.getDeclaringClass().getCanonicalName() + ", cause: " + ClassUtils.dumpException(e), offset);
+                    }
+                case Invoker.METHOD:
+                    return invoker.method.invoke(leftValue, args);
+                case Invoker.ARRAY_LENGTH:
+                    return Array.getLength(leftValue);
+                case Invoker.MAP:
+                    return ((Map<Object, Object>) leftValue).get(name);
+                case Invoker.GETTER:
+                    return invoker.method.invoke(leftValue);
+                case Invoker.FIELD:
+                    return invoker.field.get(leftValue);
+                case Invoker.MACRO:
+                    Template macro = ((Template) leftValue).getMacros().get(name);
+                    if (macro == null) {
+                        throw new ParseException("No such macro or method " + name + " in " + leftValue.getClass().getCanonicalName(), offset);
+                    }
+                    return macro.evaluate(args);
+                case Invoker.STATIC_METHOD:
+                    return invoker.method.invoke(null, args);
+                case Invoker.STATIC_FIELD:
+                    return invoker.field.get(null);
+                default:
+                    throw new ParseException("No such method " + ClassUtils.getMethodFullName(name, getTypes(args)) + " in " + leftValue.getClass().getCanonicalName(), offset);
+            }
+        }
+
+        private Invoker resolve(Object leftValue, Class<?> leftClass, Class<?> leftType, Class<?>[] types) throws ParseException {
+            if (functions != null) {
+                Class<?>[] staticTypes = new Class<?>[types.length + 1];
+                staticTypes[0] = leftType;
+                System.arraycopy(types, 0, staticTypes, 1, types.length);
+                for (Map.Entry<Class<?>, Object> entry : functions.entrySet()) {
+                    Class<?> function = entry.getKey();
+                    try {
+                        Method method = searchMethod(function, name, staticTypes, true);
+                        if (Object.class.equals(method.getDeclaringClass())) {
+                            break;
+                        }
+                        if (method.getReturnType() == void.class) {
+                            throw new ParseException("Can not call void method " + method.getName() + " in class " + function.getName(), offset);
+                        }
+                        Object target = Modifier.isStatic(method.getModifiers()) ? null : entry.getValue();
+                        return new Invoker(leftClass, null, types, Invoker.FUNCTION, method, null, target);
+                    } catch (NoSuchMethodException e) {
+                    }
+                }
+            }
+            if (leftValue == null) {
+                return new Invoker(leftClass, null, types, Invoker.NONE, null, null, null);
+            }
+            try {
+                Method method = searchMethod(leftClass, name, types, true);
+                if (!method.isAccessible()) {
+                    method.setAccessible(true);
+                }
+                return new Invoker(leftClass, null, types, Invoker.METHOD, method, null, null);
+            } catch (NoSuchMethodException e) {
+            }
+            if (types.length == 0) {
+                Invoker invoker = resolveProperty(leftClass, types);
+                if (invoker != null) {
+                    return invoker;
+                }
+            }
+            if (leftValue instanceof Template) {
+                return new Invoker(leftClass, null, types, Invoker.MACRO, null, null, null);
+            }
+            if (leftValue instanceof Class) {
+                Class<?> function = (Class<?>) leftValue;
+                try {
+                    Method method = searchMethod(function, name, types, true);
+                    if (method.getReturnType() == void.class) {
+                        throw new ParseException("Can not call void method " + method.getName() + " in class " + function.getName(), offset);
+                    }
+                    if (!Modifier.isStatic(method.getModifiers())) {
+                        throw new ParseException("Can not call non-static method " + method.getName() + " in class " + function.getName(), offset);
+                    }
+                    return new Invoker(leftClass, leftValue, types, Invoker.STATIC_METHOD, method, null, null);
+                } catch (NoSuchMethodException e) {
+                }
+                if (types.length == 0) {
+                    try {
+                        Field field = function.getField(name);
+                        if (Modifier.isStatic(field.getModifiers())) {
+                            return new Invoker(leftClass, leftValue, types, Invoker.STATIC_FIELD, null, field, null);
+                        }
+                    } catch (NoSuchFieldException e) {
+                    }
+                }
+            }
+            return new Invoker(leftClass, null, types, Invoker.NONE, null, null, null);
+        }
+
+        private Invoker resolveProperty(Class<?> leftClass, Class<?>[] types) {
+            if (leftClass.isArray() && "length".equals(name)) {
+                return new Invoker(leftClass, null, types, Invoker.ARRAY_LENGTH, null, null, null);
+            }
+            if (Map.class.isAssignableFrom(leftClass)) {
+                return new Invoker(leftClass, null, types, Invoker.MAP, null, null, null);
+            }
+            String suffix = name.substring(0, 1).toUpperCase() + name.substring(1);
+            for (String prefix : new String[]{"get", "is"}) {
+                try {
+                    Method method = leftClass.getMethod(prefix + suffix, new Class<?>[0]);
+                    if (!method.isAccessible()) {
+                        method.setAccessible(true);
+                    }
+                    return new Invoker(leftClass, null, types, Invoker.GETTER, method, null, null);
+                } catch (NoSuchMethodException e) {
+                }
+            }
+            try {
+                return new Invoker(leftClass, null, types, Invoker.FIELD, null, leftClass.getField(name), null);
+            } catch (NoSuchFieldException e) {
+                return null;
+            }
+        }
+
+    }
+
+}
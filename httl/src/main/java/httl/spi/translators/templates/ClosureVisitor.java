@@ -0,0 +1,390 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.translators.templates;
+
+import httl.Template;
+import httl.ast.*;
+import httl.spi.Filter;
+import httl.spi.Formatter;
+import httl.spi.Switcher;
+import httl.spi.translators.templates.Closure.*;
+import httl.util.ClassUtils;
+import httl.util.LinkedStack;
+import httl.util.StringUtils;
+
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ClosureVisitor. (SPI, Prototype, NonThreadSafe)
+ * <p>
+ * Convert the AST to the executable closures once, the text filters and switchers
+ * are applied at the conversion, and the #else directives are chained to the preceding branch.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.translators.templates.ClosureTemplate
+ */
+public class ClosureVisitor extends AstVisitor {
+
+    private final LinkedStack<Evaluator> expressionStack = new LinkedStack<Evaluator>();
+    private final LinkedStack<List<Closure>> blockStack = new LinkedStack<List<Closure>>();
+    private final LinkedStack<Evaluator> directiveStack = new LinkedStack<Evaluator>();
+    private final LinkedStack<Evaluator[]> cacheKeys = new LinkedStack<Evaluator[]>();
+    private final Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+    private List<Closure> closures = new ArrayList<Closure>();
+    private Filter currentTextFilter;
+    private Filter textFilter;
+    private Filter valueFilter;
+    private Formatter<Object> formatter;
+    private Switcher<Filter> textFilterSwitcher;
+    private Switcher<Filter> valueFilterSwitcher;
+    private Switcher<Formatter<Object>> formatterSwitcher;
+    private String[] forVariable;
+    private String[] importPackages;
+    private String outputEncoding;
+    private Map<Class<?>, Object> importMethods;
+    private Map<String, Template> importMacros;
+    private String preText;
+
+    public void setTextFilterSwitcher(Switcher<Filter> textFilterSwitcher) {
+        this.textFilterSwitcher = textFilterSwitcher;
+    }
+
+    public void setValueFilterSwitcher(Switcher<Filter> valueFilterSwitcher) {
+        this.valueFilterSwitcher = valueFilterSwitcher;
+    }
+
+    public void setFormatterSwitcher(Switcher<Formatter<Object>> formatterSwitcher) {
+        this.formatterSwitcher = formatterSwitcher;
+    }
+
+    public void setImportMacros(Map<String, Template> importMacros) {
+        this.importMacros = importMacros;
+    }
+
+    public void setImportMethods(Map<Class<?>, Object> importMethods) {
+        this.importMethods = importMethods;
+    }
+
+    public void setOutputEncoding(String outputEncoding) {
+        this.outputEncoding = outputEncoding;
+    }
+
+    public void setFormatter(Formatter<Object> formatter) {
+        this.formatter = formatter;
+    }
+
+    public void setTextFilter(Filter textFilter) {
+        this.textFilter = textFilter;
+        this.currentTextFilter = textFilter;
+    }
+
+    public void setValueFilter(Filter valueFilter) {
+        this.valueFilter = valueFilter;
+    }
+
+    public void setImportPackages(String[] importPackages) {
+        this.importPackages = importPackages;
+    }
+
+    public void setForVariable(String[] forVariable) {
+        this.forVariable = forVariable;
+    }
+
+    Closure getClosure() {
+        return toBlock(closures);
+    }
+
+    private static Closure toBlock(List<Closure> closures) {
+        if (closures.size() == 1) {
+            return closures.get(0);
+        }
+        return new Block(closures.toArray(new Closure[closures.size()]));
+    }
+
+    private Evaluator popExpression(int offset) throws ParseException {
+        Evaluator expression = expressionStack.pop();
+        if (!expressionStack.isEmpty()) {
+            throw new ParseException("The directive expression error.", offset);
+        }
+        return expression;
+    }
+
+    private void pushBlock(Evaluator expression) {
+        directiveStack.push(expression);
+        blockStack.push(closures);
+        closures = new ArrayList<Closure>();
+    }
+
+    private Closure popBlock() {
+        Closure body = toBlock(closures);
+        closures = blockStack.pop();
+        return body;
+    }
+
+    // 记录声明类型，与编译模式一样按声明类型选择重载方法
+    private void declare(Type type, String name) {
+        Class<?> clazz = (Class<?>) (type instanceof ParameterizedType ? ((ParameterizedType) type).getRawType() : type);
+        if (clazz != null && clazz != Object.class) {
+            types.put(name, clazz);
+        }
+    }
+
+    private void addText(String text) {
+        if (StringUtils.isNotEmpty(text)) {
+            text = currentTextFilter == null ? text : currentTextFilter.filter(preText, text);
+            preText = text;
+            if (StringUtils.isNotEmpty(text)) {
+                byte[] bytes = outputEncoding == null ? text.getBytes() : StringUtils.toBytes(text, outputEncoding);
+                closures.add(new TextClosure(text, bytes));
+            }
+        }
+    }
+
+    @Override
+    public void visit(Text node) throws IOException, ParseException {
+        String text = node.getContent();
+        Set<String> locations = new HashSet<String>();
+        List<String> textLocations = textFilterSwitcher == null ? null : textFilterSwitcher.locations();
+        if (textLocations != null) {
+            locations.addAll(textLocations);
+        }
+        List<String> valueLocations = valueFilterSwitcher == null ? null : valueFilterSwitcher.locations();
+        if (valueLocations != null) {
+            locations.addAll(valueLocations);
+        }
+        List<String> formatterLocations = formatterSwitcher == null ? null : formatterSwitcher.locations();
+        if (formatterLocations != null) {
+            locations.addAll(formatterLocations);
+        }
+        if (locations.size() > 0) {
+            Map<Integer, Set<String>> switches = new TreeMap<Integer, Set<String>>();
+            for (String location : locations) {
+                int i = -1;
+                while ((i = text.indexOf(location, i + 1)) >= 0) {
+                    Integer key = Integer.valueOf(i);
+                    Set<String> values = switches.get(key);
+                    if (values == null) {
+                        values = new HashSet<String>();
+                        switches.put(key, values);
+                    }
+                    values.add(location);
+                }
+            }
+            int begin = 0;
+            for (Map.Entry<Integer, Set<String>> entry : switches.entrySet()) {
+                int end = entry.getKey();
+                addText(text.substring(begin, end));
+                begin = end;
+                boolean filterSwitched = false;
+                Filter filter = null;
+                boolean formatterSwitched = false;
+                Formatter<Object> switchedFormatter = null;
+                for (String location : entry.getValue()) {
+                    // 文本过滤器在转换时切换，值过滤器及格式化器在执行到此处时切换
+                    if (textLocations != null && textLocations.contains(location)) {
+                        currentTextFilter = textFilterSwitcher.switchover(location, textFilter);
+                    }
+                    if (valueLocations != null && valueLocations.contains(location)) {
+                        filterSwitched = true;
+                        filter = valueFilterSwitcher.switchover(location, valueFilter);
+                    }
+                    if (formatterLocations != null && formatterLocations.contains(location)) {
+                        formatterSwitched = true;
+                        switchedFormatter = formatterSwitcher.switchover(location, formatter);
+                    }
+                }
+                if (filterSwitched || formatterSwitched) {
+                    closures.add(new SwitchClosure(filterSwitched, filter, formatterSwitched, switchedFormatter));
+                }
+            }
+            if (begin > 0) {
+                text = text.substring(begin);
+            }
+        }
+        addText(text);
+    }
+
+    @Override
+    public void visit(ValueDirective node) throws IOException, ParseException {
+        Evaluator expression = popExpression(node.getOffset());
+        closures.add(new ValueClosure(expression, node.getExpression().toString(), node.isNoFilter(), outputEncoding));
+    }
+
+    @Override
+    public void visit(SetDirective node) throws IOException, ParseException {
+        declare(node.getType(), node.getName());
+        if (node.getExpression() != null) {
+            Evaluator expression = popExpression(node.getOffset());
+            closures.add(new SetClosure(node.getName(), expression, node.isExport(), node.isHide()));
+        }
+    }
+
+    @Override
+    public void visit(BreakDirective node) throws IOException, ParseException {
+        Evaluator condition = node.getExpression() == null ? null : popExpression(node.getOffset());
+        closures.add(new BreakClosure(condition, node.getParent() instanceof ForDirective));
+    }
+
+    @Override
+    public boolean visit(IfDirective node) throws IOException, ParseException {
+        pushBlock(popExpression(node.getOffset()));
+        return true;
+    }
+
+    @Override
+    public void end(IfDirective node) throws IOException, ParseException {
+        Closure body = popBlock();
+        closures.add(new ChainClosure(new Branch[]{new IfBranch(directiveStack.pop(), body)}));
+    }
+
+    @Override
+    public boolean visit(ElseDirective node) throws IOException, ParseException {
+        pushBlock(node.getExpression() == null ? null : popExpression(node.getOffset()));
+        return true;
+    }
+
+    @Override
+    public void end(ElseDirective node) throws IOException, ParseException {
+        Closure body = popBlock();
+        Evaluator condition = directiveStack.pop();
+        int last = closures.size() - 1;
+        if (last < 0 || !(closures.get(last) instanceof ChainClosure)) {
+            throw new ParseException("Can not found the #if or #for directive before the " + node + " directive.", node.getOffset());
+        }
+        closures.set(last, ((ChainClosure) closures.get(last)).append(new IfBranch(condition, body)));
+    }
+
+    @Override
+    public boolean visit(ForDirective node) throws IOException, ParseException {
+        declare(node.getType(), node.getName());
+        pushBlock(popExpression(node.getOffset()));
+        return true;
+    }
+
+    @Override
+    public void end(ForDirective node) throws IOException, ParseException {
+        Closure body = popBlock();
+        closures.add(new ChainClosure(new Branch[]{new ForBranch(node.getName(), directiveStack.pop(), body, forVariable)}));
+    }
+
+    @Override
+    public boolean visit(CacheDirective node) throws IOException, ParseException {
+        List<Expression> keys = node.getKeys();
+        Evaluator[] expressions = new Evaluator[keys.size()];
+        for (int i = 0; i < expressions.length; i++) {
+            keys.get(i).accept(this);
+            expressions[i] = popExpression(node.getOffset());
+        }
+        Evaluator ttl = null;
+        if (node.getTtl() != null) {
+            node.getTtl().accept(this);
+            ttl = popExpression(node.getOffset());
+        }
+        cacheKeys.push(expressions);
+        pushBlock(ttl);
+        return true;
+    }
+
+    @Override
+    public void end(CacheDirective node) throws IOException, ParseException {
+        Closure body = popBlock();
+        closures.add(new CacheClosure(cacheKeys.pop(), directiveStack.pop(), node.getOffset(), body));
+    }
+
+    @Override
+    public boolean visit(MacroDirective node) throws IOException, ParseException {
+        return false;
+    }
+
+    @Override
+    public void visit(Constant node) throws IOException, ParseException {
+        expressionStack.push(new ConstantEvaluator(node.getValue()));
+    }
+
+    @Override
+    public void visit(Variable node) throws IOException, ParseException {
+        expressionStack.push(new VariableEvaluator(node.getName(), types.get(node.getName())));
+    }
+
+    @Override
+    public void visit(UnaryOperator node) throws IOException, ParseException {
+        Evaluator parameter = expressionStack.pop();
+        Evaluator[] arguments = getArguments(node.getParameter(), parameter, node.getPriority());
+        String name = node.getName();
+        if (name.startsWith("new ")) {
+            Class<?> type = ClassUtils.forName(importPackages, name.substring(4));
+            expressionStack.push(new NewEvaluator(type, arguments, node.getOffset()));
+        } else if (name.startsWith("(") && name.endsWith(")")) {
+            Class<?> type = ClassUtils.forName(importPackages, name.substring(1, name.length() - 1));
+            expressionStack.push(new CastEvaluator(parameter, type)); // 强制转换只改变声明类型
+        } else {
+            expressionStack.push(new UnaryEvaluator(name, arguments, importMethods, importMacros, node.getOffset()));
+        }
+    }
+
+    @Override
+    public void visit(BinaryOperator node) throws IOException, ParseException {
+        Evaluator right = expressionStack.pop();
+        Evaluator left = expressionStack.pop();
+        String name = node.getName();
+        Expression rightParameter = node.getRightParameter();
+        if (("is".equals(name) || "to".equals(name))
+                && rightParameter instanceof Constant
+                && ((Constant) rightParameter).getValue() instanceof String) {
+            // 类型名在转换时解析，to强制转换无需执行
+            Class<?> type = ClassUtils.forName(importPackages, (String) ((Constant) rightParameter).getValue());
+            if ("to".equals(name)) {
+                expressionStack.push(new CastEvaluator(left, type));
+                return;
+            }
+            right = new ConstantEvaluator(type);
+        }
+        Evaluator[] arguments = getArguments(rightParameter, right, node.getPriority());
+        boolean unboxed = node.getLeftParameter() instanceof Constant
+                && !((Constant) node.getLeftParameter()).isBoxed();
+        expressionStack.push(new BinaryEvaluator(name, left, right, arguments, unboxed, importMethods, node.getOffset()));
+    }
+
+    // 逗号分隔的参数在转换时展开，运行时不再区分数组参数与参数列表
+    private static Evaluator[] getArguments(Expression parameter, Evaluator evaluator, int priority) {
+        if (parameter instanceof Constant
+                && ((Constant) parameter).isBoxed()
+                && ((Constant) parameter).getValue() == null) {
+            return new Evaluator[0];
+        }
+        List<Evaluator> arguments = new ArrayList<Evaluator>();
+        splitArguments(parameter, evaluator, priority, arguments);
+        return arguments.toArray(new Evaluator[arguments.size()]);
+    }
+
+    private static void splitArguments(Expression expression, Evaluator evaluator, int priority, List<Evaluator> arguments) {
+        if (expression instanceof BinaryOperator
+                && "array".equals(((BinaryOperator) expression).getName())
+                && ((BinaryOperator) expression).getPriority() < priority
+                && evaluator instanceof BinaryEvaluator) {
+            BinaryEvaluator array = (BinaryEvaluator) evaluator;
+            splitArguments(((BinaryOperator) expression).getLeftParameter(), array.getLeft(), priority, arguments);
+            arguments.add(array.getRight());
+        } else {
+            arguments.add(evaluator);
+        }
+    }
+
+}
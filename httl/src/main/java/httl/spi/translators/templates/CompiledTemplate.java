@@ -18,12 +18,16 @@ package httl.spi.translators.templates;
 import httl.*;
 import httl.spi.Compiler;
 import httl.spi.*;
+import httl.spi.filters.EscapeXmlFilter;
+import httl.spi.filters.MultiValueFilter;
 import httl.spi.formatters.MultiFormatter;
 
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
-import java.util.Collections;
-import java.util.HashMap;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -48,6 +52,14 @@ public abstract class CompiledTemplate extends AbstractTemplate {
 
     private final Map<String, Template> macros;
 
+    private final Template[] macroArray;
+
+    private final boolean encodable;
+
+    private final boolean escapeXml;
+
+    private int macroCacheCapacity;
+
     public CompiledTemplate(Engine engine, Interceptor interceptor, Compiler compiler,
                             Switcher<Filter> filterSwitcher, Switcher<Formatter<Object>> formatterSwitcher,
                             Filter filter, Formatter<Object> formatter,
@@ -63,10 +75,14 @@ public abstract class CompiledTemplate extends AbstractTemplate {
         this.formatterSwitcher = formatterSwitcher;
         this.filter = filter;
         this.formatter = toMultiFormatter(formatter);
+        Filter[] filters = getEncodableFilters(filter);
+        this.encodable = filters != null && (filters.length == 0
+                || (filters.length == 1 && filters[0] != null && filters[0].getClass() == EscapeXmlFilter.class));
+        this.escapeXml = encodable && filters.length == 1;
         this.importMacros = importMacros;
-        this.macros = initMacros(engine, interceptor, filterSwitcher, formatterSwitcher,
-                filter, formatter, mapConverter, outConverter, functions, importMacros,
-                resource, parent, root);
+        Template[] macros = getMacroTemplates();
+        this.macroArray = initMacroArray(macros);
+        this.macros = MacroTemplate.toMacroMap(macros);
     }
 
     protected MultiFormatter getFormatter(Context context, String key) {
@@ -106,6 +122,38 @@ public abstract class CompiledTemplate extends AbstractTemplate {
         return defaultFilter;
     }
 
+    protected boolean isDefaultFormatter(MultiFormatter formatter) {
+        return formatter == this.formatter;
+    }
+
+    protected boolean isDefaultFilter(Filter filter) {
+        return filter == this.filter;
+    }
+
+    // 值过滤器为空或只有XML转义时，可在编码时同时转义
+    private static Filter[] getEncodableFilters(Filter filter) {
+        if (filter == null) {
+            return new Filter[0];
+        }
+        if (filter.getClass() == MultiValueFilter.class) {
+            Filter[] filters = ((MultiValueFilter) filter).getFilters();
+            return filters == null ? new Filter[0] : filters;
+        }
+        return new Filter[]{filter};
+    }
+
+    protected boolean isEncodable(Filter filter) {
+        return encodable && filter == this.filter;
+    }
+
+    protected void encode(OutputStream output, String key, String value, boolean filtered) throws IOException {
+        formatter.write(output, key, value, filtered && escapeXml);
+    }
+
+    protected void encode(OutputStream output, String key, long value, boolean filtered) throws IOException {
+        formatter.write(output, key, value, filtered && escapeXml);
+    }
+
     protected String doFilter(Filter filter, String key, String value) {
         if (filter != null)
             return filter.filter(key, value);
@@ -149,36 +197,117 @@ public abstract class CompiledTemplate extends AbstractTemplate {
         return importMacros;
     }
 
-    private Map<String, Template> initMacros(Engine engine, Interceptor interceptor,
-                                             Switcher<Filter> filterSwitcher, Switcher<Formatter<Object>> formatterSwitcher,
-                                             Filter filter, Formatter<Object> formatter,
-                                             Converter<Object, Object> mapConverter, Converter<Object, Object> outConverter,
-                                             Map<Class<?>, Object> functions, Map<String, Template> importMacros,
-                                             Resource resource, Template parent, Node root) {
-        Map<String, Template> macros = new HashMap<String, Template>();
-        Map<String, Class<?>> macroTypes = getMacroTypes();
-        if (macroTypes == null || macroTypes.size() == 0) {
-            return Collections.unmodifiableMap(macros);
-        }
-        for (Map.Entry<String, Class<?>> entry : macroTypes.entrySet()) {
-            try {
-                Template macro = (Template) entry.getValue()
-                        .getConstructor(Engine.class, Interceptor.class, Compiler.class, Switcher.class, Switcher.class, Filter.class,
-                                Formatter.class, Converter.class, Converter.class, Map.class, Map.class, Resource.class, Template.class, Node.class)
-                        .newInstance(engine, interceptor, compiler, filterSwitcher, formatterSwitcher, filter, formatter,
-                                mapConverter, outConverter, functions, importMacros, resource, parent, root);
-                macros.put(entry.getKey(), macro);
-            } catch (Exception e) {
-                throw new IllegalStateException(e.getMessage(), e);
+    private Template[] initMacroArray(Template[] macros) {
+        List<MacroTemplate> list = new ArrayList<MacroTemplate>();
+        collectMacros(macros, list);
+        Template[] macroArray = new Template[list.size()];
+        for (MacroTemplate macro : list) {
+            macroArray[macro.getIndex()] = macro;
+        }
+        return macroArray;
+    }
+
+    private void collectMacros(Template[] macros, List<MacroTemplate> list) {
+        if (macros != null) {
+            for (Template macro : macros) {
+                list.add((MacroTemplate) macro);
+                collectMacros(((MacroTemplate) macro).getMacroArray(), list);
             }
         }
-        return Collections.unmodifiableMap(macros);
     }
 
     public Map<String, Template> getMacros() {
         return macros;
     }
 
-    protected abstract Map<String, Class<?>> getMacroTypes();
+    /**
+     * Release the AST of the template and its macros, the generated class does not use it.
+     */
+    public void compact() {
+        releaseRoot();
+        for (Template macro : macroArray) {
+            if (macro != null) {
+                ((MacroTemplate) macro).releaseRoot();
+            }
+        }
+    }
+
+    protected Template getMacroTemplate(int index) {
+        return macroArray[index];
+    }
+
+    protected Context pushMacroContext(int index, Writer writer) {
+        Context context = Context.pushContext();
+        context.setTemplate(macroArray[index]);
+        context.setOut(writer);
+        return context;
+    }
+
+    protected Context pushMacroContext(int index, OutputStream stream) {
+        Context context = Context.pushContext();
+        context.setTemplate(macroArray[index]);
+        context.setOut(stream);
+        return context;
+    }
+
+    protected boolean isMacroIntercepted(int index) {
+        return ((MacroTemplate) macroArray[index]).isIntercepted();
+    }
+
+    protected void renderMacro(int index, Context context) throws IOException, ParseException {
+        ((MacroTemplate) macroArray[index]).getPipeline().render(context);
+    }
+
+    int getMacroCacheCapacity() {
+        return macroCacheCapacity;
+    }
+
+    public void setMacroCacheCapacity(int macroCacheCapacity) {
+        this.macroCacheCapacity = macroCacheCapacity;
+    }
+
+    protected Object getMacroOutput(int index, Object[] arguments) {
+        return ((MacroTemplate) macroArray[index]).getMacroCache().get(arguments);
+    }
+
+    protected void putMacroOutput(int index, Object[] arguments, Object output) {
+        ((MacroTemplate) macroArray[index]).getMacroCache().put(arguments, output);
+    }
+
+    protected void doRenderMacro(int index, Context context) throws Exception {
+        if (context.getOut() instanceof OutputStream) {
+            doRenderMacroStream(index, context, (OutputStream) context.getOut());
+        } else {
+            doRenderMacroWriter(index, context, (Writer) context.getOut());
+        }
+    }
+
+    protected abstract void doRenderMacroStream(int index, Context context, OutputStream stream) throws Exception;
+
+    protected abstract void doRenderMacroWriter(int index, Context context, Writer writer) throws Exception;
+
+    protected String evaluateString(Template macro, Object[] parameters) throws ParseException {
+        if (macro == null) {
+            return null;
+        }
+        Object value = macro.evaluate(parameters);
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        return formatter.toString(null, value);
+    }
+
+    protected byte[] evaluateBytes(Template macro, Object[] parameters) throws ParseException {
+        if (macro == null) {
+            return null;
+        }
+        Object value = macro.evaluate(parameters);
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        return formatter.toBytes(null, value);
+    }
+
+    protected abstract Template[] getMacroTemplates();
 
 }
\ No newline at end of file
@@ -20,7 +20,10 @@ import httl.ast.*;
 import httl.spi.Compiler;
 import httl.spi.*;
 import httl.spi.Formatter;
+import httl.spi.caches.FragmentCache;
 import httl.spi.formatters.MultiFormatter;
+import httl.spi.methods.LangMethod;
+import httl.spi.methods.MessageMethod;
 import httl.util.*;
 
 import java.io.IOException;
@@ -40,6 +43,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class CompiledVisitor extends AstVisitor {
 
     private static final String TEMPLATE_CLASS_PREFIX = CompiledTemplate.class.getPackage().getName() + ".Template_";
+    // 无副作用的运算，参数均为常量时可在编译期求值
+    private static final Set<String> FOLDABLE_METHODS = new HashSet<String>(Arrays.asList(
+            "add", "sub", "mul", "div", "mod", "eq", "ne", "gt", "ge", "lt", "le", "and", "or", "not",
+            "neg", "bitand", "bitor", "xor", "bitnot", "ls", "rs", "us"));
+    private static final int BRANCH_NORMAL = 0;
+    private static final int BRANCH_PENDING = 1; // 前面的分支均为常量false，下一分支需用if开始
+    private static final int BRANCH_TAKEN = 2; // 已有常量true的分支，后续分支均不可达
     private final VolatileReference<Filter> filterReference = new VolatileReference<Filter>();
     private final Set<String> setVariables = new HashSet<String>();
     private final Set<String> getVariables = new HashSet<String>();
@@ -47,10 +57,23 @@ public class CompiledVisitor extends AstVisitor {
     private final List<Class<?>> defVariableTypes = new ArrayList<Class<?>>();
     private final Map<String, Type> types = new HashMap<String, Type>();
     private final Map<String, Class<?>> returnTypes = new HashMap<String, Class<?>>();
-    private final Map<String, Class<?>> macros = new HashMap<String, Class<?>>();
-    private final AtomicInteger seq = new AtomicInteger();
+    private final Map<String, CompiledVisitor> macros = new HashMap<String, CompiledVisitor>();
+    private final List<String> macroTemplates = new ArrayList<String>();
+    private final LinkedStack<Integer> cacheSeqs = new LinkedStack<Integer>();
+    private AtomicInteger seq = new AtomicInteger();
+    private AtomicInteger macroSeq = new AtomicInteger();
+    private int macroIndex = -1;
+    private StringBuilder macroMethods = new StringBuilder();
+    private StringBuilder macroDispatches = new StringBuilder();
+    private StringBuilder macroFields = new StringBuilder();
+    private StringBuilder macroInits = new StringBuilder();
+    private Set<String> macroMembers = new HashSet<String>();
     private LinkedStack<Type> typeStack = new LinkedStack<Type>();
     private LinkedStack<String> codeStack = new LinkedStack<String>();
+    // 与codeStack同步，记录编译期可确定的常量值，非常量为null
+    private LinkedStack<Object> constantStack = new LinkedStack<Object>();
+    private Object expressionConstant;
+    private Map<Node, Integer> branchStates = new HashMap<Node, Integer>();
     private Map<String, Class<?>> variableTypes = new HashMap<String, Class<?>>();
     private StringBuilder builder = new StringBuilder();
     private StringBuilder textFields = new StringBuilder();
@@ -73,21 +96,32 @@ public class CompiledVisitor extends AstVisitor {
     private Switcher<Formatter<Object>> formatterSwitcher;
     private Filter templateFilter;
     private Filter textFilter;
+    private Filter valueFilter;
+    private boolean switched; // 模板中已切换过值过滤器或格式化器，其后的常量值不能预先格式化
+    private Formatter<Object> formatter;
     private Map<String, Template> importMacroTemplates = new ConcurrentHashMap<String, Template>();
     private String[] importPackages;
     private Set<String> importPackageSet;
     private Map<String, Class<?>> importTypes;
     private Map<Class<?>, Object> functions = new ConcurrentHashMap<Class<?>, Object>();
+
+    private MethodIndex methodIndex = new MethodIndex();
     private boolean sourceInClass;
 
     private boolean textInClass;
 
+    private TextPool textPool;
+
+    private boolean localized;
+
     private String outputEncoding;
 
     private Class<?> defaultVariableType;
 
     private Compiler compiler;
 
+    private String[] memoizedMacros;
+
     public CompiledVisitor() {
     }
 
@@ -123,6 +157,10 @@ public class CompiledVisitor extends AstVisitor {
         this.compiler = compiler;
     }
 
+    public void setMemoizedMacros(String[] memoizedMacros) {
+        this.memoizedMacros = memoizedMacros;
+    }
+
     public void setForVariable(String[] forVariable) {
         this.forVariable = forVariable;
     }
@@ -187,6 +225,14 @@ public class CompiledVisitor extends AstVisitor {
         this.templateFilter = templateFilter;
     }
 
+    public void setValueFilter(Filter valueFilter) {
+        this.valueFilter = valueFilter;
+    }
+
+    public void setFormatter(Formatter<Object> formatter) {
+        this.formatter = formatter;
+    }
+
     public void setTextFilter(Filter textFilter) {
         this.textFilter = textFilter;
         filterReference.set(textFilter);
@@ -212,6 +258,10 @@ public class CompiledVisitor extends AstVisitor {
         this.functions = functions;
     }
 
+    public void setMethodIndex(MethodIndex methodIndex) {
+        this.methodIndex = methodIndex;
+    }
+
     public void setImportGetters(String[] importGetters) {
         this.importGetters = importGetters;
     }
@@ -224,6 +274,10 @@ public class CompiledVisitor extends AstVisitor {
         this.textInClass = textInClass;
     }
 
+    public void setTextPool(TextPool textPool) {
+        this.textPool = textPool;
+    }
+
     public void setOutputEncoding(String outputEncoding) {
         this.outputEncoding = outputEncoding;
     }
@@ -287,9 +341,11 @@ public class CompiledVisitor extends AstVisitor {
                                 filterReference.set(filter);
                             }
                             if (valueLocations != null && valueLocations.contains(location)) {
+                                switched = true;
                                 builder.append("	" + filterVariable + " = switchFilter(\"" + StringUtils.escapeString(location) + "\", " + defaultFilterVariable + ");\n");
                             }
                             if (formatterLocations != null && formatterLocations.contains(location)) {
+                                switched = true;
                                 builder.append("	" + formatterVariable + " = switchFormatter(\"" + StringUtils.escapeString(location) + "\", " + defaultFormatterVariable + ");\n");
                             }
                         }
@@ -310,9 +366,13 @@ public class CompiledVisitor extends AstVisitor {
     public void visit(ValueDirective node) throws IOException, ParseException {
         boolean nofilter = node.isNoFilter();
         String code = popExpressionCode();
+        Object constant = expressionConstant;
         Class<?> returnType = popExpressionReturnClass();
         Map<String, Class<?>> variableTypes = popExpressionVariableTypes();
         getVariables.addAll(variableTypes.keySet());
+        if (SafeMarkup.class.equals(returnType)) {
+            nofilter = true; // 可信标记原样输出，不再过滤
+        }
         if (Template.class.isAssignableFrom(returnType)) {
             if (!StringUtils.isNamed(code)) {
                 code = "(" + code + ")";
@@ -337,6 +397,9 @@ public class CompiledVisitor extends AstVisitor {
             }
             builder.append(", $output);\n");
         } else {
+            getVariables.add(formatterVariable);
+            String expression = node.getExpression().toString();
+            String key = getTextPart(expression, null, true);
             if (Object.class.equals(returnType)) {
                 if (!StringUtils.isNamed(code)) {
                     code = "(" + code + ")";
@@ -368,6 +431,12 @@ public class CompiledVisitor extends AstVisitor {
                     }
                     builder.append(", $output);\n	}");
                 } else {
+                    builder.append(" else if (");
+                    builder.append(code);
+                    builder.append(" instanceof ");
+                    builder.append(SafeMarkup.class.getName());
+                    builder.append(") {\n	$output.write(" + formatterVariable + (stream ? ".toBytes(" : ".toString("));
+                    builder.append(key + ", (" + SafeMarkup.class.getName() + ")" + code + "));\n	}");
                     code = "(" + code + " instanceof " + Resource.class.getName() + " ? "
                             + IOUtils.class.getName() + ".readToString(((" + Resource.class.getName() + ")"
                             + code + ").openReader()) : " + code + ")";
@@ -379,8 +448,20 @@ public class CompiledVisitor extends AstVisitor {
                 }
                 code = "(" + code + " == null ? null : " + IOUtils.class.getName() + ".readToString(" + code + ".openReader()))";
             }
-            getVariables.add(formatterVariable);
-            String key = getTextPart(node.getExpression().toString(), null, true);
+            // 常量值在编译期格式化及过滤，运行时格式化器及过滤器未被替换时直接输出
+            String preformatted = getPreformattedPart(constant, returnType, expression, nofilter);
+            if (preformatted != null) {
+                builder.append("	if (isDefaultFormatter(" + formatterVariable + ")");
+                if (!nofilter) {
+                    getVariables.add(filterVariable);
+                    builder.append(" && isDefaultFilter(" + filterVariable + ")");
+                }
+                builder.append(") {\n");
+                if (preformatted.length() > 0) {
+                    builder.append("	$output.write(" + preformatted + ");\n");
+                }
+                builder.append("	} else {\n");
+            }
             if (!stream && Object.class.equals(returnType)) {
                 String pre = "";
                 String var = "$obj" + seq.getAndIncrement();
@@ -399,6 +480,33 @@ public class CompiledVisitor extends AstVisitor {
                 builder.append(code);
                 builder.append(");\n");
             } else {
+                boolean tabled = preformatted == null && OutputTable.isSupported(returnType);
+                // 字符串及长整数直接编码写入输出流，并同时转义
+                boolean encoded = preformatted == null && !tabled && stream
+                        && (String.class.equals(returnType) || long.class.equals(returnType));
+                if (tabled || encoded) {
+                    int i = seq.incrementAndGet();
+                    String var = "$val" + i;
+                    builder.append("	" + (returnType.isEnum() ? Enum.class.getName() : returnType.getName()) + " " + var + " = " + code + ";\n");
+                    code = var;
+                    builder.append("	if (" + (returnType.isEnum() ? var + " != null && " : "") + "isDefaultFormatter(" + formatterVariable + ")");
+                    if (!nofilter) {
+                        getVariables.add(filterVariable);
+                        builder.append(tabled ? " && isDefaultFilter(" : " && isEncodable(");
+                        builder.append(filterVariable + ")");
+                    }
+                    builder.append(") {\n");
+                    if (tabled) {
+                        // 枚举、布尔及小整数的输出按值缓存，不再重复格式化、过滤及编码
+                        String table = "$TAB" + i;
+                        textFields.append("private final " + OutputTable.class.getName() + " " + table + " = new " + OutputTable.class.getName() + "(" + OutputTable.getSize(returnType) + ");\n");
+                        builder.append("	$output.write(" + table + (stream ? ".toBytes(" : ".toChars(") + formatterVariable + ", "
+                                + (nofilter ? "null" : filterVariable) + ", " + key + ", " + var + "));\n");
+                    } else {
+                        builder.append("	encode($output, " + key + ", " + var + ", " + !nofilter + ");\n");
+                    }
+                    builder.append("	} else {\n");
+                }
                 if (stream) {
                     code = "formatter.toBytes(" + key + ", " + code + ")";
                 } else if (char[].class.equals(returnType)) {
@@ -413,6 +521,12 @@ public class CompiledVisitor extends AstVisitor {
                 builder.append("	$output.write(");
                 builder.append(code);
                 builder.append(");\n");
+                if (tabled || encoded) {
+                    builder.append("	}\n");
+                }
+            }
+            if (preformatted != null) {
+                builder.append("	}\n");
             }
             if (Object.class.equals(returnType)) {
                 builder.append("	}\n");
@@ -484,8 +598,20 @@ public class CompiledVisitor extends AstVisitor {
     @Override
     public boolean visit(IfDirective node) throws IOException, ParseException {
         String code = popExpressionCode();
+        Object constant = expressionConstant;
         Class<?> returnType = popExpressionReturnClass();
         Map<String, Class<?>> variableTypes = popExpressionVariableTypes();
+        if (constant instanceof Boolean) {
+            // 常量条件，不生成不可达的分支
+            if ((Boolean) constant) {
+                branchStates.put(node.getParent(), BRANCH_TAKEN);
+                builder.append("	if (true) {\n");
+                return true;
+            }
+            branchStates.put(node.getParent(), BRANCH_PENDING);
+            return false;
+        }
+        branchStates.put(node.getParent(), BRANCH_NORMAL);
         builder.append("	if(");
         builder.append(StringUtils.getConditionCode(returnType, code, importSizers));
         builder.append(") {\n");
@@ -500,13 +626,32 @@ public class CompiledVisitor extends AstVisitor {
 
     @Override
     public boolean visit(ElseDirective node) throws IOException, ParseException {
+        Integer state = branchStates.get(node.getParent());
+        boolean pending = state != null && state == BRANCH_PENDING;
         if (node.getExpression() == null) {
-            builder.append("	else {\n");
+            if (state != null && state == BRANCH_TAKEN) {
+                return false;
+            }
+            branchStates.put(node.getParent(), BRANCH_TAKEN);
+            builder.append(pending ? "	if (true) {\n" : "	else {\n");
         } else {
             String code = popExpressionCode();
+            Object constant = expressionConstant;
             Class<?> returnType = popExpressionReturnClass();
             Map<String, Class<?>> variableTypes = popExpressionVariableTypes();
-            builder.append("	else if (");
+            if (state != null && state == BRANCH_TAKEN) {
+                return false;
+            }
+            if (constant instanceof Boolean) {
+                if (!(Boolean) constant) {
+                    return false;
+                }
+                branchStates.put(node.getParent(), BRANCH_TAKEN);
+                builder.append(pending ? "	if (true) {\n" : "	else {\n");
+                return true;
+            }
+            branchStates.put(node.getParent(), BRANCH_NORMAL);
+            builder.append(pending ? "	if (" : "	else if (");
             builder.append(StringUtils.getConditionCode(returnType, code, importSizers));
             builder.append(") {\n");
             getVariables.addAll(variableTypes.keySet());
@@ -519,6 +664,70 @@ public class CompiledVisitor extends AstVisitor {
         builder.append("	}\n");
     }
 
+    @Override
+    public boolean visit(CacheDirective node) throws IOException, ParseException {
+        StringBuilder keyCode = new StringBuilder();
+        for (Expression key : node.getKeys()) {
+            key.accept(this);
+            if (keyCode.length() > 0) {
+                keyCode.append(", ");
+            }
+            keyCode.append(ClassUtils.class.getName() + ".boxed(" + popExpressionCode() + ")");
+            popExpressionReturnClass();
+            getVariables.addAll(popExpressionVariableTypes().keySet());
+        }
+        String code = node.getKeys().size() == 1 ? keyCode.toString() : "new Object[] {" + keyCode + "}";
+        String ttlCode = "0";
+        if (node.getTtl() != null) {
+            node.getTtl().accept(this);
+            ttlCode = FragmentCache.class.getName() + ".getTtl(" + ClassUtils.class.getName() + ".boxed(" + popExpressionCode() + "))";
+            popExpressionReturnClass();
+            getVariables.addAll(popExpressionVariableTypes().keySet());
+        }
+        int i = seq.incrementAndGet();
+        cacheSeqs.push(i);
+        String outputType = stream ? OutputStream.class.getName() : Writer.class.getName();
+        String bufferType = stream ? UnsafeByteArrayOutputStream.class.getName() : UnsafeStringWriter.class.getName();
+        String valueType = stream ? "byte[]" : "char[]";
+        // 位置取自运行时的模板资源，以便相同源码的模板共享生成的类
+        textFields.append("private final String _cl_" + i + " = " + FragmentCache.class.getName() + ".getLocation(getResource(), " + node.getOffset() + ", " + stream + ");\n");
+        builder.append("	String _ck_" + i + " = " + FragmentCache.class.getName() + ".getKey(_cl_" + i + ", " + code + ");\n");
+        builder.append("	Object _cf_" + i + " = getFragment(_ck_" + i + ");\n");
+        builder.append("	if (_cf_" + i + " != null) {\n");
+        builder.append("	$output.write((" + valueType + ") _cf_" + i + ");\n");
+        builder.append("	} else {\n");
+        builder.append("	" + outputType + " _co_" + i + " = $output;\n");
+        builder.append("	" + bufferType + " _cb_" + i + " = new " + bufferType + "();\n");
+        builder.append("	boolean _cd_" + i + " = false;\n");
+        builder.append("	long _ct_" + i + " = " + ttlCode + ";\n");
+        builder.append("	$output = _cb_" + i + ";\n");
+        builder.append("	try {\n");
+        return true;
+    }
+
+    @Override
+    public void end(CacheDirective node) throws IOException, ParseException {
+        int i = cacheSeqs.pop();
+        builder.append("	_cf_" + i + " = _cb_" + i + "." + (stream ? "toByteArray()" : "toString().toCharArray()") + ";\n");
+        builder.append("	_cd_" + i + " = true;\n");
+        builder.append("	putFragment(_ck_" + i + ", _cf_" + i + ", _ct_" + i + ");\n");
+        builder.append("	_co_" + i + ".write((" + (stream ? "byte[]" : "char[]") + ") _cf_" + i + ");\n");
+        // 异常时不缓存，也不输出已渲染的部分
+        builder.append("	} catch (" + Exception.class.getName() + " _ce_" + i + ") {\n");
+        builder.append("	_cd_" + i + " = true;\n");
+        builder.append("	throw _ce_" + i + ";\n");
+        builder.append("	} catch (" + Error.class.getName() + " _ce_" + i + ") {\n");
+        builder.append("	_cd_" + i + " = true;\n");
+        builder.append("	throw _ce_" + i + ";\n");
+        builder.append("	} finally {\n");
+        builder.append("	$output = _co_" + i + ";\n");
+        builder.append("	releaseFragment(_ck_" + i + ");\n");
+        // #break跳出时，仍输出已渲染的部分，但不缓存
+        builder.append("	if (! _cd_" + i + ") " + (stream ? "_cb_" + i + ".writeTo($output)" : "$output.write(_cb_" + i + ".toString())") + ";\n");
+        builder.append("	}\n");
+        builder.append("	}\n");
+    }
+
     private Class<?> findGenericTypeByName(String name, int index) {
         return findGenericType(types.get(name), index);
     }
@@ -544,6 +753,7 @@ public class CompiledVisitor extends AstVisitor {
         Type returnType = popExpressionReturnType();
         Class<?> returnClass = (Class<?>) (returnType instanceof ParameterizedType ? ((ParameterizedType) returnType).getRawType() : returnType);
         Map<String, Class<?>> variableTypes = popExpressionVariableTypes();
+        branchStates.put(node.getParent(), BRANCH_NORMAL);
         if (type == null) {
             if (returnClass != null) {
                 if (returnClass.isArray()) {
@@ -650,20 +860,36 @@ public class CompiledVisitor extends AstVisitor {
         visitor.setImportGetters(importGetters);
         visitor.setImportTypes(importTypes);
         visitor.setImportMethods(functions);
+        visitor.setMethodIndex(methodIndex);
         visitor.setOutputEncoding(outputEncoding);
         visitor.setSourceInClass(sourceInClass);
         visitor.setTemplateFilter(templateFilter);
         visitor.setTextFilter(textFilter);
         visitor.setTextFilterSwitcher(textFilterSwitcher);
         visitor.setTextInClass(textInClass);
+        visitor.setTextPool(textPool);
         visitor.setValueFilterSwitcher(valueFilterSwitcher);
         visitor.setCompiler(compiler);
+        visitor.setMemoizedMacros(memoizedMacros);
+        visitor.setValueFilter(valueFilter);
+        visitor.setFormatter(formatter);
+        // the macro is compiled as a method of the owner class, so share the class members.
+        visitor.seq = seq;
+        visitor.textFields = textFields;
+        visitor.macroSeq = macroSeq;
+        visitor.macroMethods = macroMethods;
+        visitor.macroDispatches = macroDispatches;
+        visitor.macroFields = macroFields;
+        visitor.macroInits = macroInits;
+        visitor.macroMembers = macroMembers;
+        visitor.macroIndex = macroSeq.getAndIncrement();
         visitor.init();
         for (Node n : node.getChildren()) {
             n.accept(visitor);
         }
-        Class<?> macroType = visitor.compile();
-        macros.put(node.getName(), macroType);
+        macroTemplates.add(visitor.compileMacro());
+        macros.put(node.getName(), visitor);
+        localized |= visitor.localized;
         return false;
     }
 
@@ -693,29 +919,138 @@ public class CompiledVisitor extends AstVisitor {
         return compiler.compile(code);
     }
 
-    private String getCode() throws IOException, ParseException {
-        String name = getTemplateClassName(resource, node, stream);
-        String code = builder.toString();
-        int i = name.lastIndexOf('.');
-        String packageName = i < 0 ? "" : name.substring(0, i);
-        String className = i < 0 ? name : name.substring(i + 1);
-        StringBuilder imports = new StringBuilder();
-        String[] packages = importPackages;
-        if (packages != null && packages.length > 0) {
-            for (String pkg : packages) {
-                imports.append("import ");
-                imports.append(pkg);
-                imports.append(".*;\n");
+    private String compileMacro() throws IOException, ParseException {
+        String methodCode = getMethodCode("$VARS" + macroIndex);
+        StringBuilder parameters = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < defVariables.size(); i++) {
+            String var = defVariables.get(i);
+            Class<?> type = defVariableTypes.get(i);
+            parameters.append(", " + getTypeName(type) + " " + ClassUtils.filterJavaKeyword(var));
+            values.append(", " + getValueCode(type, var));
+        }
+        macroMethods.append("private void $macro" + macroIndex + "("
+                + Context.class.getName() + " $context, "
+                + (stream ? OutputStream.class.getName() : Writer.class.getName())
+                + " $output" + parameters + ") throws " + Exception.class.getName() + " {\n"
+                + methodCode
+                + "}\n"
+                + "\n");
+        macroDispatches.append("	if ($index == " + macroIndex + ") {\n"
+                + "	$macro" + macroIndex + "($context, $output" + values + ");\n"
+                + "	return;\n"
+                + "	}\n");
+        return "new " + MacroTemplate.class.getName() + "(this, " + macroIndex
+                + ", \"" + ((MacroDirective) node).getName() + "\", getName() + \"" + StringUtils.escapeString(getMacroPath())
+                + "\", $VARS" + macroIndex + ", " + offset + ", " + getMacroTemplatesCode() + ", " + isMemoized() + ")";
+    }
+
+    private boolean isMemoized() {
+        return node instanceof MacroDirective && memoizedMacros != null
+                && StringUtils.inArray(((MacroDirective) node).getName(), memoizedMacros);
+    }
+
+    private String getMacroEvaluateMethod(int size) {
+        String method = "$evaluate" + macroIndex + "_" + size;
+        if (macroMembers.add(method)) {
+            String outputType = stream ? UnsafeByteArrayOutputStream.class.getName() : UnsafeStringWriter.class.getName();
+            StringBuilder parameters = new StringBuilder();
+            StringBuilder puts = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            StringBuilder arguments = new StringBuilder();
+            for (int i = 0; i < defVariables.size(); i++) {
+                String var = defVariables.get(i);
+                Class<?> type = defVariableTypes.get(i);
+                if (i < size) {
+                    if (i > 0) {
+                        parameters.append(", ");
+                        arguments.append(", ");
+                    }
+                    arguments.append(ClassUtils.class.getName() + ".boxed(" + ClassUtils.filterJavaKeyword(var) + ")");
+                    parameters.append(getTypeName(type) + " " + ClassUtils.filterJavaKeyword(var));
+                    puts.append("	$context.put(\"" + var + "\", " + ClassUtils.class.getName() + ".boxed(" + ClassUtils.filterJavaKeyword(var) + "));\n");
+                    values.append(", " + ClassUtils.filterJavaKeyword(var));
+                } else {
+                    values.append(", " + getValueCode(type, var));
+                }
+            }
+            String resultType = stream ? "byte[]" : String.class.getSimpleName();
+            // 参数全部显式传入时，按参数值缓存宏的输出
+            boolean memoized = isMemoized() && size == defVariables.size();
+            String result = "$output." + (stream ? "toByteArray()" : "toString()");
+            String memoizedGet = "";
+            String returnCode = "	return " + result + ";\n";
+            if (memoized) {
+                memoizedGet = "	Object[] $arguments = new Object[] {" + arguments + "};\n"
+                        + "	Object $memoized = getMacroOutput(" + macroIndex + ", $arguments);\n"
+                        + "	if ($memoized != null) return (" + resultType + ") $memoized;\n";
+                returnCode = "	" + resultType + " $result = " + result + ";\n"
+                        + "	putMacroOutput(" + macroIndex + ", $arguments, $result);\n"
+                        + "	return $result;\n";
             }
+            macroMethods.append("private " + resultType + " " + method + "(" + parameters + ") throws " + Exception.class.getName() + " {\n"
+                    + memoizedGet
+                    + "	" + outputType + " $output = new " + outputType + "();\n"
+                    + "	" + Context.class.getName() + " $context = pushMacroContext(" + macroIndex + ", $output);\n"
+                    + "	try {\n"
+                    + puts
+                    + "	if (isMacroIntercepted(" + macroIndex + ")) {\n"
+                    + "	renderMacro(" + macroIndex + ", $context);\n"
+                    + "	} else {\n"
+                    + "	$macro" + macroIndex + "($context, $output" + values + ");\n"
+                    + "	}\n"
+                    + "	} finally {\n"
+                    + "	" + Context.class.getName() + ".popContext();\n"
+                    + "	}\n"
+                    + returnCode
+                    + "}\n"
+                    + "\n");
         }
+        return method;
+    }
+
+    private String getMacroTemplatesCode() {
+        if (macroTemplates.size() == 0) {
+            return "new " + Template.class.getName() + "[0]";
+        }
+        StringBuilder buf = new StringBuilder();
+        buf.append("new " + Template.class.getName() + "[] {");
+        boolean first = true;
+        for (String macroTemplate : macroTemplates) {
+            if (first) {
+                first = false;
+            } else {
+                buf.append(", ");
+            }
+            buf.append(macroTemplate);
+        }
+        buf.append("}");
+        return buf.toString();
+    }
+
+    private String getMacroPath() {
+        StringBuilder buf = new StringBuilder();
+        Node macro = node;
+        while (macro instanceof MacroDirective) {
+            buf.append("#");
+            buf.append(((MacroDirective) macro).getName());
+            macro = ((MacroDirective) macro).getParent();
+        }
+        return buf.toString();
+    }
+
+    private String getMethodCode(String varsName) throws IOException, ParseException {
+        boolean inMacro = macroIndex >= 0;
         Set<String> defined = new HashSet<String>();
         StringBuilder statusInit = new StringBuilder();
-        StringBuilder macroFields = new StringBuilder();
-        StringBuilder macroInits = new StringBuilder();
         StringBuilder declare = new StringBuilder();
+        if (inMacro) {
+            // the macro variables are the method parameters
+            defined.addAll(defVariables);
+        }
         if (getVariables.contains("this")) {
             defined.add("this");
-            declare.append("	" + Template.class.getName() + " " + ClassUtils.filterJavaKeyword("this") + " = this;\n");
+            declare.append("	" + Template.class.getName() + " " + ClassUtils.filterJavaKeyword("this") + " = " + (inMacro ? "getMacroTemplate(" + macroIndex + ")" : "this") + ";\n");
         }
         if (getVariables.contains("super")) {
             defined.add("super");
@@ -744,14 +1079,12 @@ public class CompiledVisitor extends AstVisitor {
                 declare.append(getTypeCode(clazz, var));
             }
         }
-        Set<String> macroKeySet = macros.keySet();
-        for (String macro : macroKeySet) {
-            types.put(macro, Template.class);
-            if (getVariables.contains(macro) && !defined.contains(macro)) {
-                defined.add(macro);
-                macroFields.append("private final " + Template.class.getName() + " " + macro + ";\n");
-                macroInits.append("	" + macro + " = getMacros().get(\"" + macro + "\");\n");
-                declare.append("	" + Template.class.getName() + " " + macro + " = getMacro($context, \"" + macro + "\", this." + macro + ");\n");
+        for (Map.Entry<String, CompiledVisitor> entry : macros.entrySet()) {
+            String name = entry.getKey();
+            types.put(name, Template.class);
+            if (getVariables.contains(name) && !defined.contains(name)) {
+                defined.add(name);
+                declare.append("	" + Template.class.getName() + " " + name + " = getMacro($context, \"" + name + "\", getMacroTemplate(" + entry.getValue().macroIndex + "));\n");
             }
         }
         if (importTypes != null && importTypes.size() > 0) {
@@ -766,8 +1099,10 @@ public class CompiledVisitor extends AstVisitor {
         for (String macro : importMacroTemplates.keySet()) {
             if (getVariables.contains(macro) && !defined.contains(macro)) {
                 defined.add(macro);
-                macroFields.append("private final " + Template.class.getName() + " " + macro + ";\n");
-                macroInits.append("	" + macro + " = getImportMacros().get(\"" + macro + "\");\n");
+                if (macroMembers.add(macro)) {
+                    macroFields.append("private final " + Template.class.getName() + " " + macro + ";\n");
+                    macroInits.append("	" + macro + " = getImportMacros().get(\"" + macro + "\");\n");
+                }
                 declare.append("	" + Template.class.getName() + " " + macro + " = getMacro($context, \"" + macro + "\", this." + macro + ");\n");
             }
         }
@@ -788,11 +1123,39 @@ public class CompiledVisitor extends AstVisitor {
                 }
                 Class<?> clazz = (Class<?>) (type instanceof ParameterizedType ? ((ParameterizedType) type).getRawType() : type);
                 defined.add(var);
-                declare.append(getTypeCode(clazz, var));
+                if (!inMacro) {
+                    declare.append(getTypeCode(clazz, var));
+                }
                 defVariables.add(var);
                 defVariableTypes.add(clazz);
             }
         }
+        textFields.append("private static final " + Map.class.getName() + " " + varsName + " = " + toTypeCode(defVariables, defVariableTypes) + ";\n");
+        return statusInit.toString() + declare + builder;
+    }
+
+    /**
+     * Whether the generated code inlined the messages of the resource locale.
+     */
+    public boolean isLocalized() {
+        return localized;
+    }
+
+    public String getCode() throws IOException, ParseException {
+        String name = getTemplateClassName(resource, node, stream);
+        int i = name.lastIndexOf('.');
+        String packageName = i < 0 ? "" : name.substring(0, i);
+        String className = i < 0 ? name : name.substring(i + 1);
+        StringBuilder imports = new StringBuilder();
+        String[] packages = importPackages;
+        if (packages != null && packages.length > 0) {
+            for (String pkg : packages) {
+                imports.append("import ");
+                imports.append(pkg);
+                imports.append(".*;\n");
+            }
+        }
+        String methodCode = getMethodCode("$VARS");
         StringBuilder funtionFileds = new StringBuilder();
         StringBuilder functionInits = new StringBuilder();
         for (Map.Entry<Class<?>, Object> function : functions.entrySet()) {
@@ -823,16 +1186,6 @@ public class CompiledVisitor extends AstVisitor {
             functionInits.append(".class);\n");
         }
 
-        String methodCode = statusInit.toString() + declare + code;
-        textFields.append("private static final " + Map.class.getName() + " $VARS = " + toTypeCode(defVariables, defVariableTypes) + ";\n");
-
-        String templateName = resource.getName();
-        Node macro = node;
-        while (macro instanceof MacroDirective) {
-            templateName += "#" + ((MacroDirective) macro).getName();
-            macro = ((MacroDirective) macro).getParent();
-        }
-
         String sorceCode = "package " + packageName + ";\n"
                 + "\n"
                 + imports.toString()
@@ -873,16 +1226,22 @@ public class CompiledVisitor extends AstVisitor {
                 + methodCode
                 + "}\n"
                 + "\n"
-                + "public " + String.class.getSimpleName() + " getName() {\n"
-                + "	return \"" + templateName + "\";\n"
+                + macroMethods
+                + "protected void doRenderMacro"
+                + (stream ? "Stream" : "Writer")
+                + "(int $index, " + Context.class.getName() + " $context, "
+                + (stream ? OutputStream.class.getName() : Writer.class.getName())
+                + " $output) throws " + Exception.class.getName() + " {\n"
+                + macroDispatches
+                + "	throw new " + IllegalStateException.class.getName() + "(\"No such macro index \" + $index + \" in template \" + getName());\n"
                 + "}\n"
                 + "\n"
                 + "public " + Map.class.getName() + " getVariables() {\n"
                 + "	return $VARS;\n"
                 + "}\n"
                 + "\n"
-                + "protected " + Map.class.getName() + " getMacroTypes() {\n"
-                + "	return " + toTypeCode(macros) + ";\n"
+                + "protected " + Template.class.getName() + "[] getMacroTemplates() {\n"
+                + "	return " + getMacroTemplatesCode() + ";\n"
                 + "}\n"
                 + "\n"
                 + "public boolean isMacro() {\n"
@@ -902,51 +1261,15 @@ public class CompiledVisitor extends AstVisitor {
     }
 
     private String getTypeCode(Class<?> type, String var) {
-        String typeName = getTypeName(type);
-        if (type.isPrimitive()) {
-            return "	" + typeName + " " + ClassUtils.filterJavaKeyword(var) + " = " + ClassUtils.class.getName() + ".unboxed((" + ClassUtils.getBoxedClass(type).getSimpleName() + ") $context.get(\"" + var + "\"));\n";
-        } else {
-            return "	" + typeName + " " + ClassUtils.filterJavaKeyword(var) + " = (" + typeName + ") $context.get(\"" + var + "\");\n";
-        }
+        return "	" + getTypeName(type) + " " + ClassUtils.filterJavaKeyword(var) + " = " + getValueCode(type, var) + ";\n";
     }
 
-    private String toTypeCode(Map<String, Class<?>> types) {
-        StringBuilder keyBuf = new StringBuilder();
-        StringBuilder valueBuf = new StringBuilder();
-        if (types == null || types.size() == 0) {
-            keyBuf.append("new String[0]");
-            valueBuf.append("new Class[0]");
+    private String getValueCode(Class<?> type, String var) {
+        if (type.isPrimitive()) {
+            return ClassUtils.class.getName() + ".unboxed((" + ClassUtils.getBoxedClass(type).getSimpleName() + ") $context.get(\"" + var + "\"))";
         } else {
-            keyBuf.append("new String[] {");
-            valueBuf.append("new Class[] {");
-            boolean first = true;
-            for (Map.Entry<String, Class<?>> entry : types.entrySet()) {
-                if (first) {
-                    first = false;
-                } else {
-                    keyBuf.append(", ");
-                    valueBuf.append(", ");
-                }
-                keyBuf.append("\"");
-                keyBuf.append(StringUtils.escapeString(entry.getKey()));
-                keyBuf.append("\"");
-
-                valueBuf.append(entry.getValue().getCanonicalName());
-                valueBuf.append(".class");
-                ;
-            }
-            keyBuf.append("}");
-            valueBuf.append("}");
+            return "(" + getTypeName(type) + ") $context.get(\"" + var + "\")";
         }
-        StringBuilder buf = new StringBuilder();
-        buf.append("new ");
-        buf.append(OrderedMap.class.getName());
-        buf.append("(");
-        buf.append(keyBuf);
-        buf.append(", ");
-        buf.append(valueBuf);
-        buf.append(")");
-        return buf.toString();
     }
 
     private String toTypeCode(List<String> names, List<Class<?>> types) {
@@ -1030,26 +1353,23 @@ public class CompiledVisitor extends AstVisitor {
             if (filter != null) {
                 txt = filter.filter(filterKey, txt);
             }
+            if (!string && stream) {
+                return getBytesPart(StringUtils.toBytes(txt, outputEncoding));
+            }
             String var = "$TXT" + seq.incrementAndGet();
             if (string) {
                 if (textInClass) {
                     textFields.append("private static final String " + var + " = \"" + StringUtils.escapeString(txt) + "\";\n");
                 } else {
-                    String txtId = StringCache.put(txt);
+                    String txtId = StringCache.put(textPool == null ? txt : textPool.intern(txt));
                     textFields.append("private static final String " + var + " = " + StringCache.class.getName() + ".getAndRemove(\"" + txtId + "\");\n");
                 }
-            } else if (stream) {
-                if (textInClass) {
-                    textFields.append("private static final byte[] " + var + " = new byte[] {" + StringUtils.toByteString(StringUtils.toBytes(txt, outputEncoding)) + "};\n");
-                } else {
-                    String txtId = ByteCache.put(StringUtils.toBytes(txt, outputEncoding));
-                    textFields.append("private static final byte[] " + var + " = " + ByteCache.class.getName() + ".getAndRemove(\"" + txtId + "\");\n");
-                }
             } else {
                 if (textInClass) {
                     textFields.append("private static final char[] " + var + " = new char[] {" + StringUtils.toCharString(txt.toCharArray()) + "};\n");
                 } else {
-                    String txtId = CharCache.put(txt.toCharArray());
+                    char[] chars = txt.toCharArray();
+                    String txtId = CharCache.put(textPool == null ? chars : textPool.intern(chars));
                     textFields.append("private static final char[] " + var + " = " + CharCache.class.getName() + ".getAndRemove(\"" + txtId + "\");\n");
                 }
             }
@@ -1058,11 +1378,69 @@ public class CompiledVisitor extends AstVisitor {
         return "";
     }
 
+    private String getBytesPart(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return "";
+        }
+        String var = "$TXT" + seq.incrementAndGet();
+        if (textInClass) {
+            textFields.append("private static final byte[] " + var + " = new byte[] {" + StringUtils.toByteString(bytes) + "};\n");
+        } else {
+            String txtId = ByteCache.put(textPool == null ? bytes : textPool.intern(bytes));
+            textFields.append("private static final byte[] " + var + " = " + ByteCache.class.getName() + ".getAndRemove(\"" + txtId + "\");\n");
+        }
+        return var;
+    }
+
+    private Object getFieldConstant(Node leftParameter, Field field) {
+        int modifiers = field.getModifiers();
+        Class<?> type = field.getType();
+        // 只取类上的静态常量，如: @Integer.MAX_VALUE, @TimeUnit.SECONDS
+        if (!(leftParameter instanceof Constant) || !Modifier.isStatic(modifiers) || !Modifier.isFinal(modifiers)
+                || !(type.isPrimitive() || type == String.class || field.isEnumConstant())) {
+            return null;
+        }
+        try {
+            return field.get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private String getPreformattedPart(Object constant, Class<?> type, String key, boolean nofilter) {
+        if (constant == null || !(formatter instanceof MultiFormatter) || switched
+                || !(String.class.equals(type) || (type.isPrimitive() && type != void.class)
+                || (type.isEnum() && constant instanceof Enum))) {
+            return null;
+        }
+        try {
+            // 与运行时调用相同的重载，保证数值等格式一致，枚举按Object输出
+            Method method = MultiFormatter.class.getMethod(stream ? "toBytes" : "toString", String.class, type.isEnum() ? Object.class : type);
+            Object value = method.invoke(formatter, key, constant);
+            if (stream) {
+                byte[] bytes = (byte[]) value;
+                if (!nofilter && valueFilter != null) {
+                    bytes = valueFilter.filter(key, bytes);
+                }
+                return getBytesPart(bytes);
+            }
+            String text = (String) value;
+            if (!nofilter && valueFilter != null) {
+                text = valueFilter.filter(key, text);
+            }
+            return text == null ? "" : getTextPart(text, null, false);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     private String popExpressionCode() {
         String code = codeStack.pop();
         if (!codeStack.isEmpty()) {
             throw new IllegalStateException("Illegal expression.");
         }
+        expressionConstant = constantStack.isEmpty() ? null : constantStack.pop();
+        constantStack.clear();
         return code;
     }
 
@@ -1131,6 +1509,7 @@ public class CompiledVisitor extends AstVisitor {
         }
         typeStack.push(type);
         codeStack.push(code);
+        constantStack.push(value instanceof Class ? null : value);
     }
 
     public void visit(Variable node) throws IOException, ParseException {
@@ -1146,6 +1525,7 @@ public class CompiledVisitor extends AstVisitor {
         String code = ClassUtils.filterJavaKeyword(name);
         typeStack.push(type);
         codeStack.push(code);
+        constantStack.push(null);
         variableTypes.put(name, clazz);
     }
 
@@ -1153,6 +1533,8 @@ public class CompiledVisitor extends AstVisitor {
     public void visit(UnaryOperator node) throws IOException, ParseException {
         Type parameterType = typeStack.pop();
         String parameterCode = codeStack.pop();
+        Object parameterConstant = constantStack.pop();
+        Object constant = null;
         Class<?> parameterClass = (Class<?>) (parameterType instanceof ParameterizedType ? ((ParameterizedType) parameterType).getRawType() : parameterType);
         String name = node.getName();
 
@@ -1186,8 +1568,14 @@ public class CompiledVisitor extends AstVisitor {
             Class<?> t = (Class<?>) (macroType instanceof ParameterizedType ? ((ParameterizedType) macroType).getRawType() : macroType);
             if (t != null && Template.class.isAssignableFrom(t)) {
                 variableTypes.put(name, Template.class);
-                type = Object.class;
-                code = "(" + name + " == null ? null : " + name + ".evaluate(new Object" + (parameterCode.length() == 0 ? "[0]" : "[] { " + parameterCode + " }") + "))";
+                CompiledVisitor macro = macros.get(name);
+                if (macro != null) {
+                    type = stream ? byte[].class : String.class;
+                    code = getMacroCallCode(node, name, macro, parameterTypes.length > 0);
+                } else {
+                    type = Object.class;
+                    code = "(" + name + " == null ? null : " + name + ".evaluate(new Object" + (parameterCode.length() == 0 ? "[0]" : "[] { " + parameterCode + " }") + "))";
+                }
             } else {
                 name = ClassUtils.filterJavaKeyword(name);
                 type = null;
@@ -1195,7 +1583,7 @@ public class CompiledVisitor extends AstVisitor {
                 if (functions != null && functions.size() > 0) {
                     for (Class<?> function : functions.keySet()) {
                         try {
-                            Method method = ClassUtils.searchMethod(function, name, parameterTypes, parameterTypes.length == 1);
+                            Method method = methodIndex.searchMethod(function, name, parameterTypes, parameterTypes.length == 1);
                             if (Object.class.equals(method.getDeclaringClass())) {
                                 break;
                             }
@@ -1203,6 +1591,12 @@ public class CompiledVisitor extends AstVisitor {
                             if (type == void.class) {
                                 throw new ParseException("Can not call void method " + method.getName() + " in class " + function.getName(), node.getOffset());
                             }
+                            String inline = getInlineMessageCode(function, method, node.getParameter());
+                            if (inline != null) {
+                                type = String.class;
+                                code = inline;
+                                break;
+                            }
                             Class<?>[] pts = method.getParameterTypes();
                             if (parameterTypes.length == 1 && parameterTypes[0].isPrimitive()
                                     && pts[0].isAssignableFrom(ClassUtils.getBoxedClass(parameterTypes[0]))) {
@@ -1210,6 +1604,15 @@ public class CompiledVisitor extends AstVisitor {
                             }
                             if (Modifier.isStatic(method.getModifiers())) {
                                 code = function.getName() + "." + method.getName() + "(" + parameterCode + ")";
+                                if (parameterTypes.length == 1) {
+                                    constant = foldConstant(function, method, new Object[]{parameterConstant});
+                                    String literal = getLiteralCode(constant, (Class<?>) type);
+                                    if (literal != null) {
+                                        code = literal;
+                                    } else {
+                                        constant = null;
+                                    }
+                                }
                             } else {
                                 code = "$" + function.getName().replace('.', '_') + "." + method.getName() + "(" + parameterCode + ")";
                             }
@@ -1226,15 +1629,112 @@ public class CompiledVisitor extends AstVisitor {
 
         typeStack.push(type);
         codeStack.push(code);
+        constantStack.push(constant);
+    }
+
+    // ${message("literal.key")} 在模板区域确定且不热加载时，直接内联消息
+    private String getInlineMessageCode(Class<?> function, Method method, Expression key) {
+        if (MessageMethod.class.isAssignableFrom(function)
+                && "message".equals(method.getName())
+                && method.getParameterTypes().length == 1
+                && method.getParameterTypes()[0] == String.class
+                && key instanceof Constant
+                && ((Constant) key).getValue() instanceof String) {
+            Object instance = functions.get(function);
+            if (instance instanceof MessageMethod) {
+                String message = ((MessageMethod) instance).getInlineMessage((String) ((Constant) key).getValue(), resource.getLocale());
+                if (message != null) {
+                    localized = true;
+                    return "\"" + StringUtils.escapeString(message) + "\"";
+                }
+            }
+        }
+        return null;
+    }
+
+    private String getMacroCallCode(UnaryOperator node, String name, CompiledVisitor macro, boolean hasParameters) throws IOException, ParseException {
+        List<Expression> arguments = new ArrayList<Expression>();
+        if (hasParameters) {
+            splitArguments(node.getParameter(), node.getPriority(), arguments);
+        }
+        StringBuilder values = new StringBuilder();
+        StringBuilder objects = new StringBuilder();
+        boolean direct = arguments.size() <= macro.defVariables.size();
+        for (int i = 0; i < arguments.size(); i++) {
+            arguments.get(i).accept(this);
+            Type argumentType = typeStack.pop();
+            String argumentCode = codeStack.pop();
+            constantStack.pop();
+            Class<?> argumentClass = (Class<?>) (argumentType instanceof ParameterizedType ? ((ParameterizedType) argumentType).getRawType() : argumentType);
+            if (i > 0) {
+                values.append(", ");
+                objects.append(", ");
+            }
+            if (argumentClass != null && argumentClass.isPrimitive()) {
+                objects.append(ClassUtils.class.getName() + ".boxed(" + argumentCode + ")");
+            } else {
+                objects.append(argumentCode);
+            }
+            if (direct) {
+                String value = getArgumentCode(macro.defVariableTypes.get(i), argumentClass, argumentCode);
+                if (value == null) {
+                    direct = false;
+                } else {
+                    values.append(value);
+                }
+            }
+        }
+        String evaluate = (stream ? "evaluateBytes(" : "evaluateString(") + name + ", new Object"
+                + (arguments.size() == 0 ? "[0]" : "[] { " + objects + " }") + ")";
+        if (!direct) {
+            return evaluate;
+        }
+        // call the macro method directly, unless the macro is overridden by the context.
+        return "(" + name + " == getMacroTemplate(" + macro.macroIndex + ") ? "
+                + macro.getMacroEvaluateMethod(arguments.size()) + "(" + values + ") : " + evaluate + ")";
+    }
+
+    private void splitArguments(Expression expression, int priority, List<Expression> arguments) {
+        if (expression instanceof BinaryOperator
+                && "array".equals(((BinaryOperator) expression).getName())
+                && ((BinaryOperator) expression).getPriority() < priority) {
+            splitArguments(((BinaryOperator) expression).getLeftParameter(), priority, arguments);
+            arguments.add(((BinaryOperator) expression).getRightParameter());
+        } else {
+            arguments.add(expression);
+        }
+    }
+
+    private String getArgumentCode(Class<?> parameterClass, Class<?> argumentClass, String argumentCode) {
+        if (argumentClass == null) {
+            return parameterClass.isPrimitive() ? null : "((" + getTypeName(parameterClass) + ") " + argumentCode + ")";
+        }
+        if (parameterClass.isPrimitive()) {
+            return parameterClass == argumentClass ? argumentCode : null;
+        }
+        if (argumentClass.isPrimitive()) {
+            return parameterClass.isAssignableFrom(ClassUtils.getBoxedClass(argumentClass))
+                    ? ClassUtils.class.getName() + ".boxed(" + argumentCode + ")" : null;
+        }
+        if (parameterClass.isAssignableFrom(argumentClass)) {
+            return argumentCode;
+        }
+        if (argumentClass.isAssignableFrom(parameterClass)) {
+            return "((" + getTypeName(parameterClass) + ") " + argumentCode + ")";
+        }
+        return null;
     }
 
     @Override
     public void visit(BinaryOperator node) throws IOException, ParseException {
         Type rightType = typeStack.pop();
         String rightCode = codeStack.pop();
+        Object rightConstant = constantStack.pop();
 
         Type leftType = typeStack.pop();
         String leftCode = codeStack.pop();
+        Object leftConstant = constantStack.pop();
+        Object constant = null;
 
         Class<?> rightClass = (Class<?>) (rightType instanceof ParameterizedType ? ((ParameterizedType) rightType).getRawType() : rightType);
         Class<?> leftClass = (Class<?>) (leftType instanceof ParameterizedType ? ((ParameterizedType) leftType).getRawType() : leftType);
@@ -1373,7 +1873,7 @@ public class CompiledVisitor extends AstVisitor {
                 }
                 for (Class<?> function : functions.keySet()) {
                     try {
-                        Method method = ClassUtils.searchMethod(function, name, allTypes, allTypes.length == 2);
+                        Method method = methodIndex.searchMethod(function, name, allTypes, allTypes.length == 2);
                         if (!Object.class.equals(method.getDeclaringClass())) {
                             type = method.getReturnType();
                             if (type == void.class) {
@@ -1398,6 +1898,12 @@ public class CompiledVisitor extends AstVisitor {
                                     }
                                 }
                             }
+                            String inline = getInlineMessageCode(function, method, node.getLeftParameter());
+                            if (inline != null) {
+                                type = String.class;
+                                code = inline;
+                                break;
+                            }
                             Class<?>[] pts = method.getParameterTypes();
                             if (allTypes.length == 2) {
                                 if (allTypes[1] == null) {
@@ -1409,6 +1915,16 @@ public class CompiledVisitor extends AstVisitor {
 
                             if (Modifier.isStatic(method.getModifiers())) {
                                 code = function.getName() + "." + method.getName() + "(" + allCode + ")";
+                                if (allTypes.length <= 2) {
+                                    constant = foldConstant(function, method, allTypes.length == 1
+                                            ? new Object[]{leftConstant} : new Object[]{leftConstant, rightConstant});
+                                    String literal = getLiteralCode(constant, (Class<?>) (type instanceof ParameterizedType ? ((ParameterizedType) type).getRawType() : type));
+                                    if (literal != null) {
+                                        code = literal;
+                                    } else {
+                                        constant = null;
+                                    }
+                                }
                             } else {
                                 code = "$" + function.getName().replace('.', '_') + "." + method.getName() + "(" + allCode + ")";
                             }
@@ -1466,6 +1982,7 @@ public class CompiledVisitor extends AstVisitor {
                                         Field field = leftClass.getField(name);
                                         type = field.getType();
                                         code = getNotNullCode(node.getLeftParameter(), leftClass, leftCode, type, leftCode + "." + field.getName());
+                                        constant = getFieldConstant(node.getLeftParameter(), field);
                                     } catch (NoSuchFieldException e4) {
                                         throw new ParseException(
                                                 def + " No such property "
@@ -1493,6 +2010,61 @@ public class CompiledVisitor extends AstVisitor {
 
         typeStack.push(type);
         codeStack.push(code);
+        constantStack.push(constant);
+    }
+
+    private Object foldConstant(Class<?> function, Method method, Object[] arguments) {
+        if (function != LangMethod.class || !FOLDABLE_METHODS.contains(method.getName())
+                || method.getParameterTypes().length != arguments.length) {
+            return null;
+        }
+        for (Object argument : arguments) {
+            if (argument == null) {
+                return null;
+            }
+        }
+        try {
+            return method.invoke(null, arguments);
+        } catch (Exception e) { // 如除零，留到运行时按原样报错
+            return null;
+        }
+    }
+
+    private String getLiteralCode(Object value, Class<?> type) {
+        if (value == null || type == null
+                || !(type.isPrimitive() ? ClassUtils.getBoxedClass(type) : type).isInstance(value)) {
+            return null;
+        }
+        String literal;
+        if (value instanceof String) {
+            return "\"" + StringUtils.escapeString((String) value) + "\"";
+        } else if (value instanceof Boolean || value instanceof Integer) {
+            literal = String.valueOf(value);
+        } else if (value instanceof Character) {
+            literal = "'" + StringUtils.escapeString(String.valueOf(value)) + "'";
+        } else if (value instanceof Long) {
+            literal = value + "l";
+        } else if (value instanceof Double) {
+            if (((Double) value).isNaN() || ((Double) value).isInfinite()) {
+                return null;
+            }
+            literal = value + "d";
+        } else if (value instanceof Float) {
+            if (((Float) value).isNaN() || ((Float) value).isInfinite()) {
+                return null;
+            }
+            literal = value + "f";
+        } else if (value instanceof Short) {
+            literal = "((short)" + value + ")";
+        } else if (value instanceof Byte) {
+            literal = "((byte)" + value + ")";
+        } else {
+            return null;
+        }
+        if (type.isPrimitive()) {
+            return literal;
+        }
+        return value.getClass().getSimpleName() + ".valueOf(" + literal + ")";
     }
 
     private String getNotNullCode(Node leftParameter, Class<?> leftClass, String leftCode, Type type, String code) throws IOException, ParseException {
@@ -23,6 +23,7 @@ import httl.ast.MacroDirective;
 import httl.spi.Filter;
 import httl.spi.Formatter;
 import httl.spi.Switcher;
+import httl.util.MethodIndex;
 import httl.util.StringSequence;
 
 import java.io.IOException;
@@ -70,6 +71,8 @@ public class InterpretedTemplate extends AbstractTemplate {
 
     private Map<Class<?>, Object> importMethods;
 
+    private MethodIndex methodIndex;
+
     private Map<String, Template> importMacros;
 
     private String[] importPackages;
@@ -95,6 +98,7 @@ public class InterpretedTemplate extends AbstractTemplate {
         for (Template m : macros.values()) {
             InterpretedTemplate macro = (InterpretedTemplate) m;
             macro.setInterceptor(getInterceptor());
+            macro.setFragmentCache(getFragmentCache());
             macro.setMapConverter(getMapConverter());
             macro.setOutConverter(getOutConverter());
             macro.setFormatter(formatter);
@@ -105,6 +109,7 @@ public class InterpretedTemplate extends AbstractTemplate {
             macro.setOutputEncoding(outputEncoding);
             macro.setImportSequences(importSequences);
             macro.setImportMethods(importMethods);
+            macro.setMethodIndex(methodIndex);
             macro.setImportMacros(importMacros);
             macro.setImportPackages(importPackages);
             macro.setTextFilterSwitcher(textFilterSwitcher);
@@ -128,6 +133,9 @@ public class InterpretedTemplate extends AbstractTemplate {
         visitor.setIfVariable(ifVariable);
         visitor.setOutputEncoding(outputEncoding);
         visitor.setImportMethods(importMethods);
+        if (methodIndex != null) {
+            visitor.setMethodIndex(methodIndex);
+        }
         visitor.setImportMacros(importMacros);
         visitor.setTextFilterSwitcher(textFilterSwitcher);
         visitor.setValueFilterSwitcher(valueFilterSwitcher);
@@ -161,6 +169,10 @@ public class InterpretedTemplate extends AbstractTemplate {
         this.importMethods = importMethods;
     }
 
+    public void setMethodIndex(MethodIndex methodIndex) {
+        this.methodIndex = methodIndex;
+    }
+
     public void setImportSequences(List<StringSequence> importSequences) {
         this.importSequences = importSequences;
     }
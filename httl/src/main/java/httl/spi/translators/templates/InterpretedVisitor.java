@@ -22,6 +22,7 @@ import httl.ast.*;
 import httl.spi.Filter;
 import httl.spi.Formatter;
 import httl.spi.Switcher;
+import httl.spi.caches.FragmentCache;
 import httl.util.*;
 
 import java.io.IOException;
@@ -49,6 +50,8 @@ public class InterpretedVisitor extends AstVisitor {
     private String breakVariable;
     private String outputEncoding;
     private Map<Class<?>, Object> importMethods;
+
+    private MethodIndex methodIndex = new MethodIndex();
     private Map<String, Template> importMacros;
     private Template template;
     private Object out;
@@ -82,6 +85,10 @@ public class InterpretedVisitor extends AstVisitor {
         this.importMethods = importMethods;
     }
 
+    public void setMethodIndex(MethodIndex methodIndex) {
+        this.methodIndex = methodIndex;
+    }
+
     public void setTemplate(Template template) {
         this.template = template;
     }
@@ -208,6 +215,16 @@ public class InterpretedVisitor extends AstVisitor {
         Object result = popExpressionResult(node.getOffset());
         if (result instanceof Template) {
             ((Template) result).render(out);
+        } else if (result instanceof SafeMarkup) {
+            try {
+                if (out instanceof Writer) {
+                    ((Writer) out).write(result.toString());
+                } else if (out instanceof OutputStream) {
+                    ((OutputStream) out).write(((SafeMarkup) result).toBytes(outputEncoding));
+                }
+            } catch (IOException e) {
+                throw new ParseException(e.getMessage(), node.getOffset());
+            }
         } else {
             Formatter<Object> format = (Formatter<Object>) Context.getContext().get(formatterVariable, formatter);
             String text = format == null ? StringUtils.toString(result) : format.toString(null, result);
@@ -301,6 +318,69 @@ public class InterpretedVisitor extends AstVisitor {
         return false;
     }
 
+    @Override
+    public boolean visit(CacheDirective node) throws IOException, ParseException {
+        List<Expression> keys = node.getKeys();
+        Object[] values = new Object[keys.size()];
+        for (int i = 0; i < values.length; i++) {
+            keys.get(i).accept(this);
+            values[i] = popExpressionResult(node.getOffset());
+        }
+        Object value = values.length == 1 ? values[0] : values;
+        long ttl = 0;
+        if (node.getTtl() != null) {
+            node.getTtl().accept(this);
+            ttl = FragmentCache.getTtl(popExpressionResult(node.getOffset()));
+        }
+        AbstractTemplate owner = (AbstractTemplate) template;
+        boolean stream = out instanceof OutputStream;
+        String key = FragmentCache.getKey(FragmentCache.getLocation(template, node.getOffset(), stream), value);
+        Object fragment = owner.getFragment(key);
+        if (fragment != null) {
+            writeFragment(fragment);
+            return false;
+        }
+        Object origin = out;
+        Object buffer = stream ? new UnsafeByteArrayOutputStream() : new UnsafeStringWriter();
+        boolean broken = false;
+        out = buffer;
+        try {
+            for (Node child : node.getChildren()) {
+                child.accept(this);
+                if (ClassUtils.isTrue(Context.getContext().get(breakVariable))) {
+                    broken = true;
+                    break;
+                }
+            }
+            if (!broken) {
+                fragment = stream ? ((UnsafeByteArrayOutputStream) buffer).toByteArray()
+                        : ((UnsafeStringWriter) buffer).toString().toCharArray();
+                owner.putFragment(key, fragment, ttl);
+            }
+        } finally {
+            // 异常时不缓存，也不输出已渲染的部分
+            out = origin;
+            owner.releaseFragment(key);
+        }
+        if (broken) {
+            // #break跳出时，仍输出已渲染的部分，但不缓存
+            writeFragment(stream ? ((UnsafeByteArrayOutputStream) buffer).toByteArray() : ((UnsafeStringWriter) buffer).toString());
+        } else {
+            writeFragment(fragment);
+        }
+        return false;
+    }
+
+    private void writeFragment(Object fragment) throws IOException {
+        if (out instanceof OutputStream) {
+            ((OutputStream) out).write((byte[]) fragment);
+        } else if (fragment instanceof char[]) {
+            ((Writer) out).write((char[]) fragment);
+        } else {
+            ((Writer) out).write((String) fragment);
+        }
+    }
+
     @Override
     public boolean visit(MacroDirective node) throws IOException, ParseException {
         return false;
@@ -353,7 +433,7 @@ public class InterpretedVisitor extends AstVisitor {
             for (Map.Entry<Class<?>, Object> entry : importMethods.entrySet()) {
                 Class<?> function = entry.getKey();
                 try {
-                    Method method = ClassUtils.searchMethod(function, filteredName, types, true);
+                    Method method = methodIndex.searchMethod(function, filteredName, types, true);
                     if (!Object.class.equals(method.getDeclaringClass())) {
                         Class<?> type = method.getReturnType();
                         if (type == void.class) {
@@ -433,7 +513,7 @@ public class InterpretedVisitor extends AstVisitor {
                     for (Map.Entry<Class<?>, Object> entry : importMethods.entrySet()) {
                         Class<?> function = entry.getKey();
                         try {
-                            Method method = ClassUtils.searchMethod(function, name, types, true);
+                            Method method = methodIndex.searchMethod(function, name, types, true);
                             if (Object.class.equals(method.getDeclaringClass())) {
                                 break;
                             }
@@ -485,7 +565,7 @@ public class InterpretedVisitor extends AstVisitor {
                                     }
                                 } else if (leftParameter instanceof Class) {
                                     Class<?> function = (Class<?>) leftParameter;
-                                    Method method = ClassUtils.searchMethod(function, name, types, true);
+                                    Method method = methodIndex.searchMethod(function, name, types, true);
                                     Class<?> type = method.getReturnType();
                                     if (type == void.class) {
                                         throw new ParseException("Can not call void method " + method.getName() + " in class " + function.getName(), node.getOffset());
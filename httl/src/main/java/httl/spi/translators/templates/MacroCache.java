@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.translators.templates;
+
+import httl.util.ConcurrentLinkedHashMap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MacroCache. (SPI, Prototype, ThreadSafe)
+ * <p>
+ * Cache the output of a memoized macro by the argument values,
+ * the arguments must implement equals() and hashCode().
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.translators.CompiledTranslator#setMemoizedMacros(String[])
+ */
+public class MacroCache {
+
+    private final ConcurrentMap<List<Object>, Object> outputs;
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    public MacroCache(int capacity) {
+        if (capacity > 0) {
+            outputs = new ConcurrentLinkedHashMap<List<Object>, Object>(capacity);
+        } else {
+            outputs = new ConcurrentHashMap<List<Object>, Object>();
+        }
+    }
+
+    /**
+     * Get the cached output.
+     *
+     * @param arguments - macro arguments
+     * @return byte[] or String, null if missed
+     */
+    public Object get(Object[] arguments) {
+        Object output = outputs.get(Arrays.asList(arguments));
+        if (output == null) {
+            missCount.incrementAndGet();
+        } else {
+            hitCount.incrementAndGet();
+        }
+        return output;
+    }
+
+    public void put(Object[] arguments, Object output) {
+        if (output != null) {
+            outputs.put(Arrays.asList(arguments), output);
+        }
+    }
+
+    public void clear() {
+        outputs.clear();
+    }
+
+    public int size() {
+        return outputs.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public double getHitRatio() {
+        long hit = hitCount.get();
+        long total = hit + missCount.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+}
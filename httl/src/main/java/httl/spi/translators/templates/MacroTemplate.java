@@ -0,0 +1,181 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.translators.templates;
+
+import httl.Context;
+import httl.Template;
+import httl.util.UnsafeByteArrayOutputStream;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MacroTemplate. (SPI, Prototype, ThreadSafe)
+ * <p>
+ * The macro is compiled as a method of the owner template class,
+ * this template only dispatches the render to the owner by the macro index.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.translators.templates.CompiledTemplate#doRenderMacro(int, Context)
+ */
+public class MacroTemplate extends AbstractTemplate {
+
+    private final CompiledTemplate template;
+
+    private final int index;
+
+    private final String macroName;
+
+    private final String name;
+
+    private final Map<String, Class<?>> variables;
+
+    private final int offset;
+
+    private final Template[] macroArray;
+
+    private final Map<String, Template> macros;
+
+    private final boolean memoized;
+
+    private volatile MacroCache cache;
+
+    public MacroTemplate(CompiledTemplate template, int index, String macroName, String name,
+                         Map<String, Class<?>> variables, int offset, Template[] macros, boolean memoized) {
+        super(template.getResource(), template.getRoot(), template.getParent());
+        super.setMapConverter(template.getMapConverter());
+        super.setOutConverter(template.getOutConverter());
+        super.setInterceptor(template.getInterceptor());
+        this.template = template;
+        this.index = index;
+        this.macroName = macroName;
+        this.name = name;
+        this.variables = variables;
+        this.offset = offset;
+        this.macroArray = macros;
+        this.macros = toMacroMap(macros);
+        this.memoized = memoized;
+    }
+
+    static Map<String, Template> toMacroMap(Template[] macros) {
+        Map<String, Template> map = new HashMap<String, Template>();
+        if (macros != null) {
+            for (Template macro : macros) {
+                map.put(((MacroTemplate) macro).getMacroName(), macro);
+            }
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    Template[] getMacroArray() {
+        return macroArray;
+    }
+
+    public String getMacroName() {
+        return macroName;
+    }
+
+    public boolean isMemoized() {
+        return memoized;
+    }
+
+    /**
+     * Get the output cache of the memoized macro.
+     *
+     * @return macro cache, null if the macro is not memoized.
+     */
+    public MacroCache getMacroCache() {
+        if (!memoized) {
+            return null;
+        }
+        MacroCache cache = this.cache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = this.cache;
+                if (cache == null) {
+                    cache = new MacroCache(template.getMacroCacheCapacity());
+                    this.cache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    @Override
+    protected void doRender(Context context) throws Exception {
+        template.doRenderMacro(index, context);
+    }
+
+    @Override
+    public Object evaluate(Object parameters) throws ParseException {
+        // 只有参数全部显式传入时才缓存，缺省参数取自上下文
+        if (memoized && parameters instanceof Object[]
+                && ((Object[]) parameters).length == variables.size()) {
+            MacroCache cache = getMacroCache();
+            Object output = cache.get((Object[]) parameters);
+            if (output == null) {
+                output = doEvaluate(parameters);
+                cache.put((Object[]) parameters, output);
+            }
+            return output;
+        }
+        return doEvaluate(parameters);
+    }
+
+    private Object doEvaluate(Object parameters) throws ParseException {
+        if (template instanceof OutputStreamTemplate) {
+            UnsafeByteArrayOutputStream output = new UnsafeByteArrayOutputStream();
+            try {
+                render(parameters, output);
+            } catch (IOException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            return output.toByteArray();
+        }
+        return super.evaluate(parameters);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public Map<String, Class<?>> getVariables() {
+        return variables;
+    }
+
+    public Map<String, Template> getMacros() {
+        return macros;
+    }
+
+    @Override
+    public boolean isMacro() {
+        return true;
+    }
+
+    @Override
+    public int getOffset() {
+        return offset;
+    }
+
+}
@@ -42,7 +42,7 @@ public class MixedTemplate extends ProxyTemplate {
 
     private final Resource resource;
 
-    private final Node root;
+    private volatile Node root;
 
     private final Translator compiledTranslator;
 
@@ -54,6 +54,8 @@ public class MixedTemplate extends ProxyTemplate {
 
     private volatile boolean firstWarn = true;
 
+    private boolean compactTemplate;
+
     public MixedTemplate(Template template, Resource resource, Node root, Map<String, Class<?>> types,
                          Translator translator, Converter<Object, Object> mapConverter, Logger logger) {
         super(template);
@@ -73,6 +75,13 @@ public class MixedTemplate extends ProxyTemplate {
         this.types.putAll(visitor.getVariables());
     }
 
+    /**
+     * httl.properties: compact.template=true
+     */
+    public void setCompactTemplate(boolean compactTemplate) {
+        this.compactTemplate = compactTemplate;
+    }
+
     @SuppressWarnings("unchecked")
     private Map<String, Object> convertMap(Object parameters) throws IOException, ParseException {
         if (mapConverter != null && parameters != null && !(parameters instanceof Map)) {
@@ -111,6 +120,11 @@ public class MixedTemplate extends ProxyTemplate {
                         if (compiledTemplate == null) {
                             try {
                                 compiledTemplate = compiledTranslator.translate(resource, root, types);
+                                if (compactTemplate) {
+                                    // 编译后不再使用解释模板，释放其语法树
+                                    setTemplate(compiledTemplate);
+                                    root = null;
+                                }
                             } catch (ParseException e) {
                                 if (firstWarn && logger != null && logger.isWarnEnabled()) {
                                     firstWarn = false;
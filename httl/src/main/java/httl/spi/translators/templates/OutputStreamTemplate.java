@@ -61,4 +61,10 @@ public abstract class OutputStreamTemplate extends CompiledTemplate {
                 + " in compiled " + Writer.class.getName() + " template. Please config output.writer=true");
     }
 
+    @Override
+    protected void doRenderMacroWriter(int index, Context context, Writer writer) throws Exception {
+        throw new UnsupportedOperationException("Unsupported out type " + OutputStream.class.getName()
+                + " in compiled " + Writer.class.getName() + " template. Please config output.writer=true");
+    }
+
 }
\ No newline at end of file
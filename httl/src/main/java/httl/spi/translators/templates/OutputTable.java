@@ -0,0 +1,219 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.spi.translators.templates;
+
+import httl.spi.Filter;
+import httl.spi.formatters.MultiFormatter;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * OutputTable. (SPI, Prototype, ThreadSafe)
+ * <p>
+ * The formatted, filtered and encoded output of one value directive,
+ * indexed by the enum ordinal, the boolean or the small integer value.
+ * The outputs are built lazily with the default formatter and filter of the template,
+ * so the compiled template only uses the table when they are not overridden.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.translators.templates.CompiledTemplate#isDefaultFormatter(MultiFormatter)
+ */
+public class OutputTable {
+
+    private static final int MIN_INT = -128;
+
+    private static final int MAX_INT = 1024;
+
+    private final int size;
+
+    private volatile AtomicReferenceArray<Object> outputs;
+
+    /**
+     * Create the table with the size of the static type.
+     *
+     * @see #getSize(Class)
+     */
+    public OutputTable(int size) {
+        this.size = size;
+    }
+
+    public byte[] toBytes(MultiFormatter formatter, Filter filter, String key, Enum<?> value) {
+        int index = value.ordinal();
+        byte[] output = (byte[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toBytes(key, (Object) value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    public byte[] toBytes(MultiFormatter formatter, Filter filter, String key, boolean value) {
+        int index = value ? 1 : 0;
+        byte[] output = (byte[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toBytes(key, value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    public byte[] toBytes(MultiFormatter formatter, Filter filter, String key, byte value) {
+        int index = value - MIN_INT;
+        byte[] output = (byte[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toBytes(key, value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    public byte[] toBytes(MultiFormatter formatter, Filter filter, String key, short value) {
+        if (value < MIN_INT || value >= MAX_INT) {
+            return filter(filter, key, formatter.toBytes(key, value));
+        }
+        int index = value - MIN_INT;
+        byte[] output = (byte[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toBytes(key, value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    public byte[] toBytes(MultiFormatter formatter, Filter filter, String key, int value) {
+        if (value < MIN_INT || value >= MAX_INT) {
+            return filter(filter, key, formatter.toBytes(key, value));
+        }
+        int index = value - MIN_INT;
+        byte[] output = (byte[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toBytes(key, value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    public char[] toChars(MultiFormatter formatter, Filter filter, String key, Enum<?> value) {
+        int index = value.ordinal();
+        char[] output = (char[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toString(key, (Object) value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    public char[] toChars(MultiFormatter formatter, Filter filter, String key, boolean value) {
+        int index = value ? 1 : 0;
+        char[] output = (char[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toString(key, value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    public char[] toChars(MultiFormatter formatter, Filter filter, String key, byte value) {
+        int index = value - MIN_INT;
+        char[] output = (char[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toString(key, value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    public char[] toChars(MultiFormatter formatter, Filter filter, String key, short value) {
+        if (value < MIN_INT || value >= MAX_INT) {
+            return filter(filter, key, formatter.toString(key, value));
+        }
+        int index = value - MIN_INT;
+        char[] output = (char[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toString(key, value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    public char[] toChars(MultiFormatter formatter, Filter filter, String key, int value) {
+        if (value < MIN_INT || value >= MAX_INT) {
+            return filter(filter, key, formatter.toString(key, value));
+        }
+        int index = value - MIN_INT;
+        char[] output = (char[]) get(index);
+        if (output == null) {
+            output = filter(filter, key, formatter.toString(key, value));
+            set(index, output);
+        }
+        return output;
+    }
+
+    /**
+     * Check the static type can be output by the table.
+     */
+    public static boolean isSupported(Class<?> type) {
+        return type != null && (type.isEnum() || type == boolean.class
+                || type == byte.class || type == short.class || type == int.class);
+    }
+
+    /**
+     * Get the table size of the static type, computed once when the template is compiled.
+     */
+    public static int getSize(Class<?> type) {
+        if (type.isEnum()) {
+            return type.getEnumConstants().length;
+        }
+        if (type == boolean.class) {
+            return 2;
+        }
+        return MAX_INT - MIN_INT;
+    }
+
+    private Object get(int index) {
+        AtomicReferenceArray<Object> outputs = this.outputs;
+        if (outputs == null) {
+            synchronized (this) {
+                outputs = this.outputs;
+                if (outputs == null) {
+                    outputs = new AtomicReferenceArray<Object>(size);
+                    this.outputs = outputs;
+                }
+            }
+        }
+        return outputs.get(index);
+    }
+
+    // 重复生成时结果相同，无需加锁
+    private void set(int index, Object output) {
+        outputs.set(index, output);
+    }
+
+    private static byte[] filter(Filter filter, String key, byte[] value) {
+        if (filter != null) {
+            return filter.filter(key, value);
+        }
+        return value;
+    }
+
+    private static char[] filter(Filter filter, String key, String value) {
+        if (filter != null) {
+            value = filter.filter(key, value);
+        }
+        return value == null ? null : value.toCharArray();
+    }
+
+}
@@ -36,12 +36,16 @@ import java.util.Map;
  */
 public class ProxyTemplate implements Template {
 
-    private final Template template;
+    private volatile Template template;
 
     public ProxyTemplate(Template template) {
         this.template = template;
     }
 
+    protected void setTemplate(Template template) {
+        this.template = template;
+    }
+
     public Object evaluate() throws ParseException {
         return evaluate(null);
     }
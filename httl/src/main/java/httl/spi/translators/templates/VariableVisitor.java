@@ -16,10 +16,13 @@
 package httl.spi.translators.templates;
 
 import httl.ast.AstVisitor;
+import httl.ast.CacheDirective;
+import httl.ast.Expression;
 import httl.ast.SetDirective;
 import httl.ast.Variable;
 import httl.util.OrderedMap;
 
+import java.io.IOException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.text.ParseException;
@@ -77,6 +80,17 @@ public class VariableVisitor extends AstVisitor {
         }
     }
 
+    @Override
+    public boolean visit(CacheDirective node) throws IOException, ParseException {
+        for (Expression key : node.getKeys()) {
+            key.accept(this);
+        }
+        if (node.getTtl() != null) {
+            node.getTtl().accept(this);
+        }
+        return true;
+    }
+
     @Override
     public void visit(Variable node) throws ParseException {
         if (addDefault && !variableNames.contains(node.getName())) {
@@ -47,4 +47,10 @@ public abstract class WriterTemplate extends CompiledTemplate {
                 + " in compiled " + OutputStream.class.getName() + " template. Please config output.stream=true");
     }
 
+    @Override
+    protected void doRenderMacroStream(int index, Context context, OutputStream stream) throws Exception {
+        throw new UnsupportedOperationException("Unsupported out type " + Writer.class.getName()
+                + " in compiled " + OutputStream.class.getName() + " template. Please config output.stream=true");
+    }
+
 }
\ No newline at end of file
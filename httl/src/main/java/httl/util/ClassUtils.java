@@ -601,48 +601,58 @@ public class ClassUtils {
         try {
             return currentClass.getMethod(name, parameterTypes);
         } catch (NoSuchMethodException e) {
-            Method likeMethod = null;
-            for (Method method : currentClass.getMethods()) {
-                if (method.getName().equals(name)
-                        && parameterTypes.length == method.getParameterTypes().length
-                        && Modifier.isPublic(method.getModifiers())) {
-                    if (parameterTypes.length > 0) {
-                        Class<?>[] types = method.getParameterTypes();
-                        boolean eq = true;
-                        boolean like = true;
-                        for (int i = 0; i < parameterTypes.length; i++) {
-                            Class<?> type = types[i];
-                            Class<?> parameterType = parameterTypes[i];
-                            if (type != null && parameterType != null
-                                    && !type.equals(parameterType)) {
+            Method method = matchMethod(currentClass.getMethods(), name, parameterTypes, boxed);
+            if (method != null) {
+                return method;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Match the method in the candidates, the first equal method wins, otherwise the most specific assignable one.
+     *
+     * @return matched method, null if no candidate matches.
+     */
+    public static Method matchMethod(Method[] methods, String name, Class<?>[] parameterTypes, boolean boxed) {
+        Method likeMethod = null;
+        for (Method method : methods) {
+            if (method.getName().equals(name)
+                    && parameterTypes.length == method.getParameterTypes().length
+                    && Modifier.isPublic(method.getModifiers())) {
+                if (parameterTypes.length > 0) {
+                    Class<?>[] types = method.getParameterTypes();
+                    boolean eq = true;
+                    boolean like = true;
+                    for (int i = 0; i < parameterTypes.length; i++) {
+                        Class<?> type = types[i];
+                        Class<?> parameterType = parameterTypes[i];
+                        if (type != null && parameterType != null
+                                && !type.equals(parameterType)) {
+                            eq = false;
+                            if (boxed) {
+                                type = ClassUtils.getBoxedClass(type);
+                                parameterType = ClassUtils.getBoxedClass(parameterType);
+                            }
+                            if (!type.isAssignableFrom(parameterType)) {
                                 eq = false;
-                                if (boxed) {
-                                    type = ClassUtils.getBoxedClass(type);
-                                    parameterType = ClassUtils.getBoxedClass(parameterType);
-                                }
-                                if (!type.isAssignableFrom(parameterType)) {
-                                    eq = false;
-                                    like = false;
-                                    break;
-                                }
+                                like = false;
+                                break;
                             }
                         }
-                        if (!eq) {
-                            if (like && (likeMethod == null || likeMethod.getParameterTypes()[0]
-                                    .isAssignableFrom(method.getParameterTypes()[0]))) {
-                                likeMethod = method;
-                            }
-                            continue;
+                    }
+                    if (!eq) {
+                        if (like && (likeMethod == null || likeMethod.getParameterTypes()[0]
+                                .isAssignableFrom(method.getParameterTypes()[0]))) {
+                            likeMethod = method;
                         }
+                        continue;
                     }
-                    return method;
                 }
+                return method;
             }
-            if (likeMethod != null) {
-                return likeMethod;
-            }
-            throw e;
         }
+        return likeMethod;
     }
 
     public static String getInitCode(Class<?> type) {
@@ -0,0 +1,553 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ClassWriter. (Tool, Prototype, NonThreadSafe)
+ * <p>
+ * Write the java class file directly, only the instructions without the stack map frames,
+ * so the class version is 49 (java 5), and the verifier infers the types itself.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.util.ByteArrayClassLoader
+ */
+public class ClassWriter {
+
+    public static final int ACC_PUBLIC = 0x0001;
+
+    public static final int ACC_PRIVATE = 0x0002;
+
+    public static final int ACC_PROTECTED = 0x0004;
+
+    public static final int ACC_STATIC = 0x0008;
+
+    public static final int ACC_FINAL = 0x0010;
+
+    public static final int ACC_SUPER = 0x0020;
+
+    public static final int ACONST_NULL = 0x01;
+
+    public static final int ILOAD = 0x15;
+
+    public static final int ALOAD = 0x19;
+
+    public static final int AALOAD = 0x32;
+
+    public static final int ISTORE = 0x36;
+
+    public static final int ASTORE = 0x3a;
+
+    public static final int AASTORE = 0x53;
+
+    public static final int POP = 0x57;
+
+    public static final int DUP = 0x59;
+
+    public static final int IFEQ = 0x99;
+
+    public static final int IFNE = 0x9a;
+
+    public static final int IF_ICMPNE = 0xa0;
+
+    public static final int GOTO = 0xa7;
+
+    public static final int IRETURN = 0xac;
+
+    public static final int ARETURN = 0xb0;
+
+    public static final int RETURN = 0xb1;
+
+    public static final int GETSTATIC = 0xb2;
+
+    public static final int PUTSTATIC = 0xb3;
+
+    public static final int GETFIELD = 0xb4;
+
+    public static final int PUTFIELD = 0xb5;
+
+    public static final int INVOKEVIRTUAL = 0xb6;
+
+    public static final int INVOKESPECIAL = 0xb7;
+
+    public static final int INVOKESTATIC = 0xb8;
+
+    public static final int INVOKEINTERFACE = 0xb9;
+
+    public static final int NEW = 0xbb;
+
+    public static final int ANEWARRAY = 0xbd;
+
+    public static final int ATHROW = 0xbf;
+
+    public static final int CHECKCAST = 0xc0;
+
+    public static final int INSTANCEOF = 0xc1;
+
+    public static final int IFNULL = 0xc6;
+
+    public static final int IFNONNULL = 0xc7;
+
+    private static final int VERSION = 49;
+
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static final int CONSTANT_INTEGER = 3;
+
+    private static final int CONSTANT_STRING = 8;
+
+    private static final int CONSTANT_CLASS = 7;
+
+    private static final int CONSTANT_FIELD = 9;
+
+    private static final int CONSTANT_METHOD = 10;
+
+    private static final int CONSTANT_INTERFACE_METHOD = 11;
+
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final Map<String, Integer> constants = new HashMap<String, Integer>();
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+
+    private final DataOutputStream poolOutput = new DataOutputStream(pool);
+
+    private final List<byte[]> fields = new ArrayList<byte[]>();
+
+    private final List<Code> methods = new ArrayList<Code>();
+
+    private final int thisClass;
+
+    private final int superClass;
+
+    private int constantCount = 1;
+
+    public ClassWriter(String className, String superClassName) {
+        this.thisClass = classConstant(className);
+        this.superClass = classConstant(superClassName);
+    }
+
+    public static String getInternalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    public static String getDescriptor(Class<?> type) {
+        if (type.isArray()) {
+            return type.getName().replace('.', '/');
+        }
+        if (type.isPrimitive()) {
+            if (type == void.class) return "V";
+            if (type == boolean.class) return "Z";
+            if (type == byte.class) return "B";
+            if (type == char.class) return "C";
+            if (type == short.class) return "S";
+            if (type == int.class) return "I";
+            if (type == long.class) return "J";
+            if (type == float.class) return "F";
+            return "D";
+        }
+        return "L" + getInternalName(type) + ";";
+    }
+
+    public static String getMethodDescriptor(Class<?> returnType, Class<?>... parameterTypes) {
+        StringBuilder buf = new StringBuilder("(");
+        for (Class<?> parameterType : parameterTypes) {
+            buf.append(getDescriptor(parameterType));
+        }
+        buf.append(")");
+        buf.append(getDescriptor(returnType));
+        return buf.toString();
+    }
+
+    public void addField(int access, String name, String descriptor) {
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(field);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8Constant(name));
+            out.writeShort(utf8Constant(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        fields.add(field.toByteArray());
+    }
+
+    /**
+     * Add the method, the max locals are counted from the descriptor and the used locals.
+     *
+     * @param maxStack - the max operand stack depth of the method code
+     */
+    public Code addMethod(int access, String name, String descriptor, int maxStack) {
+        Code code = new Code(access, utf8Constant(name), utf8Constant(descriptor), maxStack,
+                getArgumentSize(descriptor) + ((access & ACC_STATIC) == 0 ? 1 : 0));
+        methods.add(code);
+        return code;
+    }
+
+    // 参数所占的局部变量槽数，long及double占两个
+    private static int getArgumentSize(String descriptor) {
+        int size = 0;
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                size += 2;
+                continue;
+            }
+            size++;
+            while (c == '[') {
+                c = descriptor.charAt(++i);
+            }
+            if (c == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+        }
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        int codeName = utf8Constant("Code");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(pool.size() + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(constantCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(fields.size());
+            for (byte[] field : fields) {
+                out.write(field);
+            }
+            out.writeShort(methods.size());
+            for (Code method : methods) {
+                byte[] code = method.toByteArray();
+                if (code.length > MAX_CODE_LENGTH) {
+                    throw new IllegalStateException("Too large method code, length: " + code.length + ", max: " + MAX_CODE_LENGTH);
+                }
+                out.writeShort(method.access);
+                out.writeShort(method.name);
+                out.writeShort(method.descriptor);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + code.length);
+                out.writeShort(method.maxStack);
+                out.writeShort(method.maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+            }
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int utf8Constant(String value) {
+        String key = "U" + value;
+        Integer index = constants.get(key);
+        if (index == null) {
+            try {
+                poolOutput.writeByte(CONSTANT_UTF8);
+                poolOutput.writeUTF(value);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int classConstant(String className) {
+        String internalName = className.replace('.', '/');
+        String key = "C" + internalName;
+        Integer index = constants.get(key);
+        if (index == null) {
+            int name = utf8Constant(internalName);
+            try {
+                poolOutput.writeByte(CONSTANT_CLASS);
+                poolOutput.writeShort(name);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int stringConstant(String value) {
+        String key = "S" + value;
+        Integer index = constants.get(key);
+        if (index == null) {
+            int utf8 = utf8Constant(value);
+            try {
+                poolOutput.writeByte(CONSTANT_STRING);
+                poolOutput.writeShort(utf8);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int intConstant(int value) {
+        String key = "I" + value;
+        Integer index = constants.get(key);
+        if (index == null) {
+            try {
+                poolOutput.writeByte(CONSTANT_INTEGER);
+                poolOutput.writeInt(value);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int memberConstant(int tag, String owner, String name, String descriptor) {
+        String key = tag + owner + "." + name + descriptor;
+        Integer index = constants.get(key);
+        if (index == null) {
+            int ownerClass = classConstant(owner);
+            int nameUtf8 = utf8Constant(name);
+            int descriptorUtf8 = utf8Constant(descriptor);
+            String nameAndTypeKey = "N" + name + descriptor;
+            Integer nameAndType = constants.get(nameAndTypeKey);
+            try {
+                if (nameAndType == null) {
+                    poolOutput.writeByte(CONSTANT_NAME_AND_TYPE);
+                    poolOutput.writeShort(nameUtf8);
+                    poolOutput.writeShort(descriptorUtf8);
+                    nameAndType = addConstant(nameAndTypeKey, 1);
+                }
+                poolOutput.writeByte(tag);
+                poolOutput.writeShort(ownerClass);
+                poolOutput.writeShort(nameAndType);
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            index = addConstant(key, 1);
+        }
+        return index;
+    }
+
+    private int addConstant(String key, int size) {
+        int index = constantCount;
+        if (index + size > 0xFFFF) {
+            throw new IllegalStateException("Too many constants in class, max: 65535");
+        }
+        constantCount += size;
+        constants.put(key, index);
+        return index;
+    }
+
+    /**
+     * The method code, the max stack and locals are given by the caller.
+     */
+    public final class Code {
+
+        private final int access;
+
+        private final int name;
+
+        private final int descriptor;
+
+        private final int maxStack;
+
+        private int maxLocals;
+
+        private byte[] code = new byte[256];
+
+        private int length;
+
+        private Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        public Code op(int opcode) {
+            write(opcode);
+            return this;
+        }
+
+        public Code load(int local) {
+            return var(ALOAD, local);
+        }
+
+        public Code store(int local) {
+            return var(ASTORE, local);
+        }
+
+        /**
+         * Write the local variable instruction, the short form is used for the first four locals.
+         *
+         * @param opcode - ILOAD, ALOAD, ISTORE or ASTORE
+         */
+        public Code var(int opcode, int local) {
+            if (local > 0xFF) {
+                throw new IllegalStateException("Too many locals in method, max: 255");
+            }
+            if (local <= 3) {
+                int base = opcode == ILOAD ? 0x1a : opcode == ALOAD ? 0x2a : opcode == ISTORE ? 0x3b : 0x4b;
+                write(base + local); // xload_n, xstore_n
+            } else {
+                write(opcode);
+                write(local);
+            }
+            maxLocals = Math.max(maxLocals, local + 1);
+            return this;
+        }
+
+        public Code push(int value) {
+            if (value >= -1 && value <= 5) {
+                write(0x03 + value); // iconst_n
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                write(0x10); // bipush
+                write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                write(0x11); // sipush
+                writeShort(value);
+            } else {
+                ldc(intConstant(value));
+            }
+            return this;
+        }
+
+        public Code push(String value) {
+            ldc(stringConstant(value));
+            return this;
+        }
+
+        public Code type(int opcode, String type) {
+            write(opcode);
+            writeShort(classConstant(type));
+            return this;
+        }
+
+        public Code field(int opcode, String owner, String name, String descriptor) {
+            write(opcode);
+            writeShort(memberConstant(CONSTANT_FIELD, owner, name, descriptor));
+            return this;
+        }
+
+        public Code method(int opcode, String owner, String name, String descriptor) {
+            write(opcode);
+            if (opcode == INVOKEINTERFACE) {
+                writeShort(memberConstant(CONSTANT_INTERFACE_METHOD, owner, name, descriptor));
+                write(getArgumentSize(descriptor) + 1);
+                write(0);
+            } else {
+                writeShort(memberConstant(CONSTANT_METHOD, owner, name, descriptor));
+            }
+            return this;
+        }
+
+        /**
+         * Write the jump instruction with an empty offset.
+         *
+         * @return the jump position to be passed to {@link #mark(int)}
+         */
+        public int jump(int opcode) {
+            int position = length;
+            write(opcode);
+            writeShort(0);
+            return position;
+        }
+
+        /**
+         * Write the jump instruction to the given target, such as the loop begin.
+         *
+         * @param target - the target position got by {@link #size()}
+         */
+        public void jump(int opcode, int target) {
+            int position = length;
+            write(opcode);
+            writeShort(checkOffset(target - position));
+        }
+
+        /**
+         * Set the jump target of the given jump position to the current position.
+         */
+        public void mark(int jump) {
+            int offset = checkOffset(length - jump);
+            code[jump + 1] = (byte) (offset >>> 8);
+            code[jump + 2] = (byte) offset;
+        }
+
+        private int checkOffset(int offset) {
+            if (offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) {
+                throw new IllegalStateException("Too large method code, jump offset: " + offset);
+            }
+            return offset;
+        }
+
+        public int size() {
+            return length;
+        }
+
+        private void ldc(int index) {
+            if (index <= 0xFF) {
+                write(0x12); // ldc
+                write(index);
+            } else {
+                write(0x13); // ldc_w
+                writeShort(index);
+            }
+        }
+
+        private void writeShort(int value) {
+            write(value >>> 8);
+            write(value);
+        }
+
+        private void write(int value) {
+            if (length == code.length) {
+                byte[] bytes = new byte[code.length << 1];
+                System.arraycopy(code, 0, bytes, 0, length);
+                code = bytes;
+            }
+            code[length++] = (byte) value;
+        }
+
+        private byte[] toByteArray() {
+            byte[] bytes = new byte[length];
+            System.arraycopy(code, 0, bytes, 0, length);
+            return bytes;
+        }
+
+    }
+
+}
@@ -52,6 +52,48 @@ public abstract class DfaScanner {
     // state = ERROR - 1 // 出错，并返回错误码为1的异常信息。
     public static final int ERROR = -100000000;
 
+    // ASCII字符类型预先查表，其它字符仍调用getCharType()
+    private static final int ASCII_SIZE = 128;
+
+    // 展开为一维的状态转换表，下标为：状态 * 字符类型数 + 字符类型
+    private final int[] transitions;
+
+    private final int width;
+
+    // 首次扫描时由getCharType()生成，不在构造时调用子类方法
+    private volatile int[] charTypes;
+
+    /**
+     * Create the scanner with the state table, the columns are the types from getCharType().
+     *
+     * @param states state table
+     */
+    protected DfaScanner(int[][] states) {
+        int width = 0;
+        for (int[] row : states) {
+            width = Math.max(width, row.length);
+        }
+        int[] transitions = new int[states.length * width];
+        for (int i = 0; i < states.length; i++) {
+            System.arraycopy(states[i], 0, transitions, i * width, states[i].length);
+        }
+        this.transitions = transitions;
+        this.width = width;
+    }
+
+    // getCharType()只应依赖字符本身，并发时重复生成的表相同
+    private int[] getCharTypes() {
+        int[] charTypes = this.charTypes;
+        if (charTypes == null) {
+            charTypes = new int[ASCII_SIZE];
+            for (int i = 0; i < ASCII_SIZE; i++) {
+                charTypes[i] = getCharType((char) i);
+            }
+            this.charTypes = charTypes;
+        }
+        return charTypes;
+    }
+
     public List<Token> scan(String charStream, int offset) throws ParseException {
         return scan(charStream, offset, false);
     }
@@ -59,8 +101,11 @@ public abstract class DfaScanner {
     public List<Token> scan(String charStream, int offset, boolean errorWithSource) throws ParseException {
         List<Token> tokens = new ArrayList<Token>();
         // 解析时状态 ----
-        StringBuilder buffer = new StringBuilder(); // 缓存字符
-        StringBuilder remain = new StringBuilder(); // 残存字符
+        int[] transitions = this.transitions;
+        int[] charTypes = getCharTypes();
+        int width = this.width;
+        int length = charStream.length();
+        int start = 0; // 片段起始位置，[start, i)为缓存字符
         int pre = 0; // 上一状态
         int state = 0; // 当前状态
         char ch; // 当前字符
@@ -68,28 +113,18 @@ public abstract class DfaScanner {
         // 逐字解析 ----
         int i = 0;
         int p = 0;
-        for (; ; ) {
-            if (remain.length() > 0) { // 先处理残存字符
-                ch = remain.charAt(0);
-                remain.deleteCharAt(0);
-            } else { // 没有残存字符则读取字符流
-                if (i >= charStream.length()) {
-                    break;
-                }
-                ch = charStream.charAt(i++);
-                offset++;
-            }
-
-            buffer.append(ch); // 将字符加入缓存
-            state = next(state, ch); // 从状态机图中取下一状态
+        while (i < length) {
+            ch = charStream.charAt(i++);
+            // 从状态转换表中取下一状态
+            state = transitions[state * width + (ch < ASCII_SIZE ? charTypes[ch] : getCharType(ch))];
             if (state <= ERROR) {
-                throw new ParseException("DFAScanner.state.error, error code: " + (ERROR - state) + (errorWithSource ? ", source: " + charStream : ""), offset - buffer.length());
+                throw new ParseException("DFAScanner.state.error, error code: " + (ERROR - state) + (errorWithSource ? ", source: " + charStream : ""), offset + start);
             }
             if (state <= POP) {
                 int n = -(state % POP);
                 int e = (state - n) / POP - 1;
                 if (p <= 0) {
-                    throw new ParseException("DFAScanner.mismatch.stack" + (errorWithSource ? ", source: " + charStream : ""), offset - buffer.length());
+                    throw new ParseException("DFAScanner.mismatch.stack" + (errorWithSource ? ", source: " + charStream : ""), offset + start);
                 }
                 p--;
                 if (p == 0) {
@@ -107,13 +142,14 @@ public abstract class DfaScanner {
                 continue;
             }
             if (state <= BREAK) { // 负数表示接收状态
+                int bufferLength = i - start;
                 int acceptLength;
                 if (state <= BACKSPACE) {
-                    acceptLength = buffer.length() + state - BACKSPACE;
+                    acceptLength = bufferLength + state - BACKSPACE;
                     if (acceptLength > 0) {
                         int space = 0;
-                        for (int s = acceptLength - 1; s >= 0; s--) {
-                            if (Character.isSpaceChar(buffer.charAt(s))) {
+                        for (int s = start + acceptLength - 1; s >= start; s--) {
+                            if (Character.isSpaceChar(charStream.charAt(s))) {
                                 space++;
                             } else {
                                 break;
@@ -122,30 +158,44 @@ public abstract class DfaScanner {
                         acceptLength = acceptLength - space;
                     }
                 } else {
-                    acceptLength = buffer.length() + state - BREAK;
+                    acceptLength = bufferLength + state - BREAK;
                 }
-                if (acceptLength < 0 || acceptLength > buffer.length())
-                    throw new ParseException("DFAScanner.accepter.error" + (errorWithSource ? ", source: " + charStream : ""), offset - buffer.length());
+                if (acceptLength < 0 || acceptLength > bufferLength)
+                    throw new ParseException("DFAScanner.accepter.error" + (errorWithSource ? ", source: " + charStream : ""), offset + start);
                 if (acceptLength != 0) {
-                    String message = buffer.substring(0, acceptLength);
-                    Token token = new Token(message, offset - buffer.length(), pre);
+                    Token token = new Token(charStream.substring(start, start + acceptLength), offset + start, pre);
                     tokens.add(token);// 完成接收
                 }
-                if (acceptLength != buffer.length())
-                    remain.insert(0, buffer.substring(acceptLength)); // 将未接收的缓存记入残存
-                buffer.setLength(0); // 清空缓存
+                i = start + acceptLength; // 未接收的字符退回重新读取
+                start = i;
                 state = 0; // 回归到初始状态
             }
             pre = state;
         }
         // 接收最后缓存中的内容
-        if (buffer.length() > 0) {
-            String message = buffer.toString();
-            tokens.add(new Token(message, offset - message.length(), pre));
+        if (start < length) {
+            tokens.add(new Token(charStream.substring(start), offset + start, pre));
         }
         return tokens;
     }
 
-    public abstract int next(int state, char ch);
+    /**
+     * Get the next state from the state table.
+     *
+     * @param state current state
+     * @param ch    current char
+     * @return next state
+     */
+    public final int next(int state, char ch) {
+        return transitions[state * width + (ch < ASCII_SIZE ? getCharTypes()[ch] : getCharType(ch))];
+    }
+
+    /**
+     * Get the char type, the column of the state table.
+     *
+     * @param ch char
+     * @return char type
+     */
+    protected abstract int getCharType(char ch);
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * MethodIndex. (Tool, Prototype, ThreadSafe)
+ * <p>
+ * Index the public methods of the classes by name and arity, and memoize the resolution
+ * of the argument types, so the functions in import.methods are not searched linearly on every call.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.util.ClassUtils#searchMethod(Class, String, Class[], boolean)
+ */
+public class MethodIndex {
+
+    private static final Method[] EMPTY_METHODS = new Method[0];
+
+    // 未找到方法的占位，ConcurrentHashMap不能存放null
+    private static final Object NOT_FOUND = new Object();
+
+    private final ConcurrentMap<Class<?>, Map<String, Method[]>> indexes = new ConcurrentHashMap<Class<?>, Map<String, Method[]>>();
+
+    private final ConcurrentMap<MethodKey, Object> methods = new ConcurrentHashMap<MethodKey, Object>();
+
+    /**
+     * Index the public methods of the class in advance.
+     *
+     * @param type indexed class
+     */
+    public void addClass(Class<?> type) {
+        getIndex(type);
+    }
+
+    /**
+     * Search the method like ClassUtils.searchMethod, but only in the candidates with the same name and arity.
+     *
+     * @param type           searched class
+     * @param name           method name
+     * @param parameterTypes argument types, null element for the null argument
+     * @param boxed          match the primitive and boxed types
+     * @return matched method
+     * @throws NoSuchMethodException no method matches
+     */
+    public Method searchMethod(Class<?> type, String name, Class<?>[] parameterTypes, boolean boxed) throws NoSuchMethodException {
+        if (type == null) {
+            throw new NoSuchMethodException("class == null");
+        }
+        MethodKey key = new MethodKey(type, name, parameterTypes, boxed);
+        Object method = methods.get(key);
+        if (method == null) {
+            method = resolveMethod(type, name, parameterTypes, boxed);
+            if (method == null) {
+                method = NOT_FOUND;
+            }
+            methods.putIfAbsent(key, method);
+        }
+        if (method == NOT_FOUND) {
+            throw new NoSuchMethodException(type.getName() + "." + ClassUtils.getMethodFullName(name, parameterTypes));
+        }
+        return (Method) method;
+    }
+
+    private Method resolveMethod(Class<?> type, String name, Class<?>[] parameterTypes, boolean boxed) {
+        Method[] candidates = getIndex(type).get(getIndexKey(name, parameterTypes.length));
+        if (candidates == null) {
+            return null;
+        }
+        // 与Class.getMethod()一致，优先完全匹配
+        for (Method candidate : candidates) {
+            if (Arrays.equals(candidate.getParameterTypes(), parameterTypes)) {
+                return candidate;
+            }
+        }
+        return ClassUtils.matchMethod(candidates, name, parameterTypes, boxed);
+    }
+
+    private Map<String, Method[]> getIndex(Class<?> type) {
+        Map<String, Method[]> index = indexes.get(type);
+        if (index == null) {
+            Map<String, List<Method>> lists = new HashMap<String, List<Method>>();
+            for (Method method : type.getMethods()) {
+                String key = getIndexKey(method.getName(), method.getParameterTypes().length);
+                List<Method> list = lists.get(key);
+                if (list == null) {
+                    list = new ArrayList<Method>();
+                    lists.put(key, list);
+                }
+                list.add(method);
+            }
+            index = new HashMap<String, Method[]>();
+            for (Map.Entry<String, List<Method>> entry : lists.entrySet()) {
+                index.put(entry.getKey(), entry.getValue().toArray(EMPTY_METHODS));
+            }
+            Map<String, Method[]> old = indexes.putIfAbsent(type, index);
+            if (old != null) {
+                index = old;
+            }
+        }
+        return index;
+    }
+
+    private static String getIndexKey(String name, int arity) {
+        return name + "/" + arity;
+    }
+
+    private static final class MethodKey {
+
+        private final Class<?> type;
+
+        private final String name;
+
+        private final Class<?>[] parameterTypes;
+
+        private final boolean boxed;
+
+        private final int hash;
+
+        MethodKey(Class<?> type, String name, Class<?>[] parameterTypes, boolean boxed) {
+            this.type = type;
+            this.name = name;
+            this.parameterTypes = parameterTypes.clone();
+            this.boxed = boxed;
+            this.hash = (31 * (31 * type.hashCode() + name.hashCode()) + Arrays.hashCode(parameterTypes)) * 2 + (boxed ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof MethodKey)) {
+                return false;
+            }
+            MethodKey other = (MethodKey) obj;
+            return type == other.type && boxed == other.boxed
+                    && name.equals(other.name) && Arrays.equals(parameterTypes, other.parameterTypes);
+        }
+
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.util;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+
+/**
+ * SafeMarkup. (API, Prototype, Immutable, ThreadSafe)
+ * <p>
+ * Trusted markup, such as a rendered fragment or sanitized rich text,
+ * which is written as-is, without formatting, filtering or escaping.
+ * <p>
+ * The pre-encoded bytes are written without copying when the output encoding matches,
+ * so the bytes must not be modified after construction.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ */
+public final class SafeMarkup implements Serializable {
+
+    private static final long serialVersionUID = 2868475628493736462L;
+
+    private final byte[] bytes;
+
+    private final String encoding;
+
+    private volatile String markup;
+
+    public SafeMarkup(String markup) {
+        if (markup == null) {
+            throw new IllegalArgumentException("markup == null");
+        }
+        this.markup = markup;
+        this.bytes = null;
+        this.encoding = null;
+    }
+
+    public SafeMarkup(byte[] bytes, String encoding) {
+        if (bytes == null) {
+            throw new IllegalArgumentException("bytes == null");
+        }
+        this.bytes = bytes;
+        this.encoding = StringUtils.isEmpty(encoding) ? null : encoding;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public boolean isEncoded() {
+        return bytes != null;
+    }
+
+    public char[] toChars() {
+        return toString().toCharArray();
+    }
+
+    /**
+     * Get the markup bytes in the encoding.
+     *
+     * @param encoding - output encoding, null for the platform default.
+     * @return the pre-encoded bytes without copying if the encoding matches, otherwise re-encoded bytes.
+     */
+    public byte[] toBytes(String encoding) {
+        if (bytes != null && isSameEncoding(this.encoding, StringUtils.isEmpty(encoding) ? null : encoding)) {
+            return bytes;
+        }
+        String value = toString();
+        if (encoding == null) {
+            return value.getBytes();
+        }
+        return StringUtils.toBytes(value, encoding);
+    }
+
+    private static boolean isSameEncoding(String left, String right) {
+        if (left == null || right == null) {
+            return left == right;
+        }
+        if (left.equalsIgnoreCase(right)) {
+            return true;
+        }
+        try {
+            return Charset.forName(left).equals(Charset.forName(right));
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        String value = markup;
+        if (value == null) {
+            // 仅在按字符输出或编码不同时解码
+            if (encoding == null) {
+                value = new String(bytes);
+            } else {
+                try {
+                    value = new String(bytes, encoding);
+                } catch (UnsupportedEncodingException e) {
+                    value = new String(bytes);
+                }
+            }
+            markup = value;
+        }
+        return value;
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SafeMarkup)) {
+            return false;
+        }
+        return toString().equals(obj.toString());
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * StreamEncoder. (Tool, Static, ThreadSafe)
+ * <p>
+ * Encode the characters and numbers straight into the output stream through a reused buffer,
+ * the XML escaping is done in the same pass. UTF-8, ISO-8859-1 and US-ASCII are encoded
+ * by hand with a pure ASCII fast path, other charsets use a reused CharsetEncoder with reused buffers.
+ * The replacement of unmappable characters is '?', the same as String.getBytes(charset).
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.formatters.MultiFormatter#write(OutputStream, String, String, boolean)
+ */
+public abstract class StreamEncoder {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    // 单个字符最多输出6个字节，如: &quot;
+    private static final int BUFFER_LIMIT = BUFFER_SIZE - 8;
+
+    private static final byte REPLACEMENT = '?';
+
+    private static final byte[][] XML_ENTITIES = new byte[128][];
+
+    private static final char[][] XML_ENTITY_CHARS = new char[128][];
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static final StreamEncoder UTF_8 = new AsciiStreamEncoder() {
+        @Override
+        protected int encode(int codePoint, byte[] buffer, int position) {
+            if (codePoint < 0x800) {
+                buffer[position++] = (byte) (0xc0 | (codePoint >> 6));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (codePoint < 0x10000) {
+                if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+                    buffer[position++] = REPLACEMENT; // 不成对的代理字符
+                } else {
+                    buffer[position++] = (byte) (0xe0 | (codePoint >> 12));
+                    buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+                }
+            } else {
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            return position;
+        }
+    };
+
+    private static final StreamEncoder ISO_8859_1 = new AsciiStreamEncoder() {
+        @Override
+        protected int encode(int codePoint, byte[] buffer, int position) {
+            buffer[position++] = codePoint <= 0xff ? (byte) codePoint : REPLACEMENT;
+            return position;
+        }
+    };
+
+    private static final StreamEncoder US_ASCII = new AsciiStreamEncoder() {
+        @Override
+        protected int encode(int codePoint, byte[] buffer, int position) {
+            buffer[position++] = REPLACEMENT;
+            return position;
+        }
+    };
+
+    static {
+        XML_ENTITIES['<'] = new byte[]{'&', 'l', 't', ';'};
+        XML_ENTITIES['>'] = new byte[]{'&', 'g', 't', ';'};
+        XML_ENTITIES['\"'] = new byte[]{'&', 'q', 'u', 'o', 't', ';'};
+        XML_ENTITIES['\''] = new byte[]{'&', 'a', 'p', 'o', 's', ';'};
+        XML_ENTITIES['&'] = new byte[]{'&', 'a', 'm', 'p', ';'};
+        for (int i = 0; i < XML_ENTITIES.length; i++) {
+            if (XML_ENTITIES[i] != null) {
+                XML_ENTITY_CHARS[i] = new String(XML_ENTITIES[i]).toCharArray();
+            }
+        }
+    }
+
+    public static StreamEncoder getEncoder(String encoding) {
+        Charset charset = StringUtils.isEmpty(encoding) ? Charset.defaultCharset() : Charset.forName(encoding);
+        String name = charset.name();
+        if ("UTF-8".equals(name)) {
+            return UTF_8;
+        }
+        if ("ISO-8859-1".equals(name)) {
+            return ISO_8859_1;
+        }
+        if ("US-ASCII".equals(name)) {
+            return US_ASCII;
+        }
+        return new CharsetStreamEncoder(charset);
+    }
+
+    public abstract void write(OutputStream output, CharSequence value, boolean escapeXml) throws IOException;
+
+    public abstract void write(OutputStream output, long value) throws IOException;
+
+    // 将long按十进制写入buffer的[position, 20)，返回position，Long.MIN_VALUE最长20个字符
+    private static int toDigits(long value, byte[] buffer) {
+        int position = 20;
+        boolean negative = value < 0;
+        if (!negative) {
+            value = -value;
+        }
+        // 按负数计算，避免Long.MIN_VALUE溢出
+        do {
+            buffer[--position] = (byte) ('0' - (value % 10));
+            value /= 10;
+        } while (value != 0);
+        if (negative) {
+            buffer[--position] = '-';
+        }
+        return position;
+    }
+
+    /**
+     * The charsets compatible with ASCII, encoded by hand with a pure ASCII fast path.
+     */
+    private abstract static class AsciiStreamEncoder extends StreamEncoder {
+
+        /**
+         * Encode the non-ASCII code point, lone surrogates are written as the replacement '?'.
+         *
+         * @return the new position of the buffer
+         */
+        protected abstract int encode(int codePoint, byte[] buffer, int position);
+
+        @Override
+        public void write(OutputStream output, CharSequence value, boolean escapeXml) throws IOException {
+            byte[] buffer = BUFFERS.get();
+            int position = 0;
+            int len = value.length();
+            for (int i = 0; i < len; i++) {
+                if (position > BUFFER_LIMIT) {
+                    output.write(buffer, 0, position);
+                    position = 0;
+                }
+                char ch = value.charAt(i);
+                if (ch < 0x80) {
+                    byte[] entity;
+                    if (escapeXml && (entity = XML_ENTITIES[ch]) != null) {
+                        System.arraycopy(entity, 0, buffer, position, entity.length);
+                        position += entity.length;
+                    } else {
+                        buffer[position++] = (byte) ch;
+                    }
+                } else if (Character.isHighSurrogate(ch) && i + 1 < len
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    position = encode(Character.toCodePoint(ch, value.charAt(++i)), buffer, position);
+                } else {
+                    position = encode(ch, buffer, position);
+                }
+            }
+            if (position > 0) {
+                output.write(buffer, 0, position);
+            }
+        }
+
+        @Override
+        public void write(OutputStream output, long value) throws IOException {
+            byte[] buffer = BUFFERS.get();
+            int position = toDigits(value, buffer);
+            output.write(buffer, position, 20 - position);
+        }
+
+    }
+
+    /**
+     * The other charsets, encoded by a reused CharsetEncoder through the reused char and byte buffers.
+     */
+    private static final class CharsetStreamEncoder extends StreamEncoder {
+
+        private final ThreadLocal<CharsetState> states;
+
+        CharsetStreamEncoder(final Charset charset) {
+            this.states = new ThreadLocal<CharsetState>() {
+                @Override
+                protected CharsetState initialValue() {
+                    return new CharsetState(charset);
+                }
+            };
+        }
+
+        @Override
+        public void write(OutputStream output, CharSequence value, boolean escapeXml) throws IOException {
+            CharsetState state = states.get();
+            char[] chars = state.chars;
+            state.encoder.reset();
+            int position = 0;
+            int len = value.length();
+            for (int i = 0; i < len; i++) {
+                if (position > BUFFER_LIMIT) {
+                    position = state.encode(output, position, false);
+                }
+                char ch = value.charAt(i);
+                char[] entity;
+                if (escapeXml && ch < 0x80 && (entity = XML_ENTITY_CHARS[ch]) != null) {
+                    System.arraycopy(entity, 0, chars, position, entity.length);
+                    position += entity.length;
+                } else {
+                    chars[position++] = ch;
+                }
+            }
+            state.encode(output, position, true);
+        }
+
+        @Override
+        public void write(OutputStream output, long value) throws IOException {
+            byte[] buffer = BUFFERS.get();
+            int position = toDigits(value, buffer);
+            CharsetState state = states.get();
+            char[] chars = state.chars;
+            for (int i = position; i < 20; i++) {
+                chars[i - position] = (char) buffer[i];
+            }
+            state.encoder.reset();
+            state.encode(output, 20 - position, true);
+        }
+
+    }
+
+    private static final class CharsetState {
+
+        private final CharsetEncoder encoder;
+
+        private final char[] chars = new char[BUFFER_SIZE];
+
+        private final CharBuffer in = CharBuffer.wrap(chars);
+
+        private final ByteBuffer out = ByteBuffer.wrap(new byte[BUFFER_SIZE * 4]);
+
+        CharsetState(Charset charset) {
+            this.encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        // 编码[0, length)的字符，未结束时保留被截断的代理字符，返回保留的字符数
+        int encode(OutputStream output, int length, boolean endOfInput) throws IOException {
+            in.limit(length);
+            in.position(0);
+            while (encoder.encode(in, out, endOfInput).isOverflow()) {
+                flush(output);
+            }
+            if (endOfInput) {
+                while (encoder.flush(out).isOverflow()) {
+                    flush(output);
+                }
+                flush(output);
+                return 0;
+            }
+            int remaining = in.remaining();
+            System.arraycopy(chars, in.position(), chars, 0, remaining);
+            in.clear();
+            return remaining;
+        }
+
+        private void flush(OutputStream output) throws IOException {
+            if (out.position() > 0) {
+                output.write(out.array(), 0, out.position());
+                out.clear();
+            }
+        }
+
+    }
+
+}
@@ -40,6 +40,28 @@ public class StringUtils {
     private static final Pattern FUNCTION_PATTERN = Pattern.compile("^\\.[_A-Za-z][_0-9A-Za-z]*$");
     private static final Pattern COMMA_SPLIT_PATTERN = Pattern.compile("\\s*\\,\\s*");
 
+    // 需要转义的XML字符，按字符值索引
+    private static final char[][] XML_ENTITY_CHARS = new char['>' + 1][];
+
+    private static final byte[][] XML_ENTITY_BYTES = new byte['>' + 1][];
+
+    static {
+        XML_ENTITY_CHARS['<'] = "&lt;".toCharArray();
+        XML_ENTITY_CHARS['>'] = "&gt;".toCharArray();
+        XML_ENTITY_CHARS['\"'] = "&quot;".toCharArray();
+        XML_ENTITY_CHARS['\''] = "&apos;".toCharArray();
+        XML_ENTITY_CHARS['&'] = "&amp;".toCharArray();
+        for (int i = 0; i < XML_ENTITY_CHARS.length; i++) {
+            char[] entity = XML_ENTITY_CHARS[i];
+            if (entity != null) {
+                XML_ENTITY_BYTES[i] = new byte[entity.length];
+                for (int j = 0; j < entity.length; j++) {
+                    XML_ENTITY_BYTES[i][j] = (byte) entity[j];
+                }
+            }
+        }
+    }
+
     public static String getVaildName(String name) {
         return SYMBOL_PATTERN.matcher(name).replaceAll("_");
     }
@@ -466,66 +488,36 @@ public class StringUtils {
             return value;
         }
         int len = value.length();
-        StringBuilder buf = null;
-        for (int i = 0; i < len; i++) {
-            char ch = value.charAt(i);
-            switch (ch) {
-                case '<':
-                    if (buf == null) {
-                        buf = new StringBuilder(len * 2);
-                        if (i > 0) {
-                            buf.append(value.substring(0, i));
-                        }
-                    }
-                    buf.append("&lt;");
-                    break;
-                case '>':
-                    if (buf == null) {
-                        buf = new StringBuilder(len * 2);
-                        if (i > 0) {
-                            buf.append(value.substring(0, i));
-                        }
-                    }
-                    buf.append("&gt;");
-                    break;
-                case '\"':
-                    if (buf == null) {
-                        buf = new StringBuilder(len * 2);
-                        if (i > 0) {
-                            buf.append(value.substring(0, i));
-                        }
-                    }
-                    buf.append("&quot;");
-                    break;
-                case '\'':
-                    if (buf == null) {
-                        buf = new StringBuilder(len * 2);
-                        if (i > 0) {
-                            buf.append(value.substring(0, i));
-                        }
-                    }
-                    buf.append("&apos;");
-                    break;
-                case '&':
-                    if (buf == null) {
-                        buf = new StringBuilder(len * 2);
-                        if (i > 0) {
-                            buf.append(value.substring(0, i));
-                        }
-                    }
-                    buf.append("&amp;");
-                    break;
-                default:
-                    if (buf != null) {
-                        buf.append(ch);
-                    }
-                    break;
+        int i = indexOfXml(value, 0, len);
+        if (i < 0) {
+            return value;
+        }
+        // 安全字符整段复制，实体从预先生成的数组复制
+        char[] buf = new char[len + (len >> 1) + 16];
+        int off = 0;
+        int start = 0;
+        while (i >= 0) {
+            char[] entity = XML_ENTITY_CHARS[value.charAt(i)];
+            int run = i - start;
+            if (off + run + entity.length > buf.length) {
+                buf = expand(buf, off, run + entity.length + len - i);
+            }
+            if (run > 0) {
+                value.getChars(start, i, buf, off);
+                off += run;
+            }
+            for (char ch : entity) {
+                buf[off++] = ch;
             }
+            start = i + 1;
+            i = indexOfXml(value, start, len);
         }
-        if (buf != null) {
-            return buf.toString();
+        int run = len - start;
+        if (off + run > buf.length) {
+            buf = expand(buf, off, run);
         }
-        return value;
+        value.getChars(start, len, buf, off);
+        return new String(buf, 0, off + run);
     }
 
     public static char[] escapeXml(char[] src) {
@@ -533,90 +525,34 @@ public class StringUtils {
             return src;
         }
         int len = src.length;
+        int i = indexOfXml(src, 0, len);
+        if (i < 0) {
+            return src;
+        }
+        char[] buf = new char[len + (len >> 1) + 16];
         int off = 0;
-        char[] buf = null;
-        for (int i = 0; i < len; i++) {
-            char ch = src[i];
-            switch (ch) {
-                case '<':
-                    if (buf == null) {
-                        buf = expand(src, off = i, 4);
-                    } else if (buf.length < off + 4) {
-                        buf = expand(buf, off, 4);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'l';
-                    buf[off++] = 't';
-                    buf[off++] = ';';
-                    break;
-                case '>':
-                    if (buf == null) {
-                        buf = expand(src, off = i, 4);
-                    } else if (buf.length < off + 4) {
-                        buf = expand(buf, off, 4);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'g';
-                    buf[off++] = 't';
-                    buf[off++] = ';';
-                    break;
-                case '\"':
-                    if (buf == null) {
-                        buf = expand(src, off = i, 6);
-                    } else if (buf.length < off + 6) {
-                        buf = expand(buf, off, 6);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'q';
-                    buf[off++] = 'u';
-                    buf[off++] = 'o';
-                    buf[off++] = 't';
-                    buf[off++] = ';';
-                    break;
-                case '\'':
-                    if (buf == null) {
-                        buf = expand(src, off = i, 6);
-                    } else if (buf.length < off + 6) {
-                        buf = expand(buf, off, 6);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'a';
-                    buf[off++] = 'p';
-                    buf[off++] = 'o';
-                    buf[off++] = 's';
-                    buf[off++] = ';';
-                    break;
-                case '&':
-                    if (buf == null) {
-                        buf = expand(src, off = i, 5);
-                    } else if (buf.length < off + 5) {
-                        buf = expand(buf, off, 5);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'a';
-                    buf[off++] = 'm';
-                    buf[off++] = 'p';
-                    buf[off++] = ';';
-                    break;
-                default:
-                    if (buf != null) {
-                        if (buf.length < off + 1) {
-                            buf = expand(buf, off, 1);
-                        }
-                        buf[off++] = ch;
-                    }
-                    break;
+        int start = 0;
+        while (i >= 0) {
+            char[] entity = XML_ENTITY_CHARS[src[i]];
+            int run = i - start;
+            if (off + run + entity.length > buf.length) {
+                buf = expand(buf, off, run + entity.length + len - i);
             }
-        }
-        if (buf != null) {
-            if (buf.length > off) {
-                char[] newBuf = new char[off];
-                System.arraycopy(buf, 0, newBuf, 0, off);
-                return newBuf;
+            if (run > 0) {
+                System.arraycopy(src, start, buf, off, run);
+                off += run;
             }
-            return buf;
+            for (char ch : entity) {
+                buf[off++] = ch;
+            }
+            start = i + 1;
+            i = indexOfXml(src, start, len);
         }
-        return src;
+        int run = len - start;
+        char[] dest = new char[off + run];
+        System.arraycopy(buf, 0, dest, 0, off);
+        System.arraycopy(src, start, dest, off, run);
+        return dest;
     }
 
     public static byte[] escapeXml(byte[] src) {
@@ -624,90 +560,65 @@ public class StringUtils {
             return src;
         }
         int len = src.length;
+        int i = indexOfXml(src, 0, len);
+        if (i < 0) {
+            return src;
+        }
+        byte[] buf = new byte[len + (len >> 1) + 16];
         int off = 0;
-        byte[] buf = null;
-        for (int i = 0; i < len; i++) {
-            byte ch = src[i];
-            switch (ch) {
-                case 60:
-                    if (buf == null) {
-                        buf = expand(src, off = i, 4);
-                    } else if (buf.length < off + 4) {
-                        buf = expand(buf, off, 4);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'l';
-                    buf[off++] = 't';
-                    buf[off++] = ';';
-                    break;
-                case 62:
-                    if (buf == null) {
-                        buf = expand(src, off = i, 4);
-                    } else if (buf.length < off + 4) {
-                        buf = expand(buf, off, 4);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'g';
-                    buf[off++] = 't';
-                    buf[off++] = ';';
-                    break;
-                case 34:
-                    if (buf == null) {
-                        buf = expand(src, off = i, 6);
-                    } else if (buf.length < off + 6) {
-                        buf = expand(buf, off, 6);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'q';
-                    buf[off++] = 'u';
-                    buf[off++] = 'o';
-                    buf[off++] = 't';
-                    buf[off++] = ';';
-                    break;
-                case 39:
-                    if (buf == null) {
-                        buf = expand(src, off = i, 6);
-                    } else if (buf.length < off + 6) {
-                        buf = expand(buf, off, 6);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'a';
-                    buf[off++] = 'p';
-                    buf[off++] = 'o';
-                    buf[off++] = 's';
-                    buf[off++] = ';';
-                    break;
-                case 38:
-                    if (buf == null) {
-                        buf = expand(src, off = i, 5);
-                    } else if (buf.length < off + 5) {
-                        buf = expand(buf, off, 5);
-                    }
-                    buf[off++] = '&';
-                    buf[off++] = 'a';
-                    buf[off++] = 'm';
-                    buf[off++] = 'p';
-                    buf[off++] = ';';
-                    break;
-                default:
-                    if (buf != null) {
-                        if (buf.length < off + 1) {
-                            buf = expand(buf, off, 1);
-                        }
-                        buf[off++] = ch;
-                    }
-                    break;
+        int start = 0;
+        while (i >= 0) {
+            byte[] entity = XML_ENTITY_BYTES[src[i]];
+            int run = i - start;
+            if (off + run + entity.length > buf.length) {
+                buf = expand(buf, off, run + entity.length + len - i);
+            }
+            if (run > 0) {
+                System.arraycopy(src, start, buf, off, run);
+                off += run;
             }
+            for (byte ch : entity) {
+                buf[off++] = ch;
+            }
+            start = i + 1;
+            i = indexOfXml(src, start, len);
         }
-        if (buf != null) {
-            if (buf.length > off) {
-                byte[] newBuf = new byte[off];
-                System.arraycopy(buf, 0, newBuf, 0, off);
-                return newBuf;
+        int run = len - start;
+        byte[] dest = new byte[off + run];
+        System.arraycopy(buf, 0, dest, 0, off);
+        System.arraycopy(src, start, dest, off, run);
+        return dest;
+    }
+
+    // 需转义的字符均不大于'>'，其余字符只需一次比较
+    private static int indexOfXml(String value, int from, int len) {
+        for (int i = from; i < len; i++) {
+            char ch = value.charAt(i);
+            if (ch <= '>' && XML_ENTITY_CHARS[ch] != null) {
+                return i;
             }
-            return buf;
         }
-        return src;
+        return -1;
+    }
+
+    private static int indexOfXml(char[] src, int from, int len) {
+        for (int i = from; i < len; i++) {
+            char ch = src[i];
+            if (ch <= '>' && XML_ENTITY_CHARS[ch] != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfXml(byte[] src, int from, int len) {
+        for (int i = from; i < len; i++) {
+            byte ch = src[i];
+            if (ch <= '>' && ch >= 0 && XML_ENTITY_BYTES[ch] != null) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     private static char[] expand(char[] src, int off, int inc) {
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * TextPool. (Tool, Prototype, ThreadSafe)
+ * <p>
+ * Intern the static texts of the templates by content, so the same header, footer or script
+ * in many templates is kept once in the heap. The bytes are encoded with the output encoding
+ * of the engine, so the equal bytes are always the same text.
+ * <p>
+ * The pooled texts are weakly referenced, and released with the unloaded template classes.
+ *
+ * @author Liang Fei (liangfei0201 AT gmail DOT com)
+ * @see httl.spi.translators.CompiledTranslator#setTextPool(boolean)
+ */
+public class TextPool {
+
+    private final ConcurrentMap<TextKey, TextKey> pool = new ConcurrentHashMap<TextKey, TextKey>();
+
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    public String intern(String text) {
+        return text == null ? null : (String) doIntern(text, text.hashCode());
+    }
+
+    public char[] intern(char[] text) {
+        return text == null ? null : (char[]) doIntern(text, Arrays.hashCode(text));
+    }
+
+    public byte[] intern(byte[] text) {
+        return text == null ? null : (byte[]) doIntern(text, Arrays.hashCode(text));
+    }
+
+    /**
+     * Get the pooled text count.
+     *
+     * @return text count
+     */
+    public int size() {
+        expunge();
+        return pool.size();
+    }
+
+    private Object doIntern(Object text, int hash) {
+        expunge();
+        TextKey key = new TextKey(text, hash, queue);
+        for (; ; ) {
+            TextKey old = pool.putIfAbsent(key, key);
+            if (old == null) {
+                return text;
+            }
+            Object value = old.get();
+            if (value != null) {
+                key.clear();
+                return value;
+            }
+            pool.remove(old); // 已被回收，替换为当前文本
+        }
+    }
+
+    // 清理已回收的文本
+    private void expunge() {
+        Object key;
+        while ((key = queue.poll()) != null) {
+            pool.remove(key);
+        }
+    }
+
+    private static final class TextKey extends WeakReference<Object> {
+
+        private final int hash;
+
+        TextKey(Object text, int hash, ReferenceQueue<Object> queue) {
+            super(text, queue);
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof TextKey) || ((TextKey) obj).hash != hash) {
+                return false;
+            }
+            Object text = get();
+            Object other = ((TextKey) obj).get();
+            if (text == null || other == null || text.getClass() != other.getClass()) {
+                return false;
+            }
+            if (text instanceof byte[]) {
+                return Arrays.equals((byte[]) text, (byte[]) other);
+            }
+            if (text instanceof char[]) {
+                return Arrays.equals((char[]) text, (char[]) other);
+            }
+            return text.equals(other);
+        }
+
+    }
+
+}
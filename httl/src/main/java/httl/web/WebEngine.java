@@ -15,7 +15,6 @@
  */
 package httl.web;
 
-import httl.Context;
 import httl.Engine;
 import httl.spi.Logger;
 import httl.spi.loaders.ServletLoader;
@@ -81,9 +80,7 @@ public class WebEngine {
     }
 
     public static void setRequest(HttpServletRequest request) {
-        if (request != null && request.getSession() != null) {
-            setServletContext(request.getSession().getServletContext());
-        }
+        setServletContext(ServletResolver.getServletContext(request));
         ServletResolver.setRequest(request);
     }
 
@@ -198,9 +195,9 @@ public class WebEngine {
 
     public static Engine getEngine() {
         if (ENGINE == null) {
-            Object request = Context.getContext().get("request");
-            if (request instanceof HttpServletRequest && ((HttpServletRequest) request).getSession() != null) {
-                setServletContext(((HttpServletRequest) request).getSession().getServletContext());
+            ServletContext servletContext = ServletResolver.getServletContext(ServletResolver.getRequest());
+            if (servletContext != null) {
+                setServletContext(servletContext);
             } else {
                 setServletContext(ServletLoader.getAndCheckServletContext());
             }
@@ -0,0 +1,183 @@
+package httl.spi.caches;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.loaders.StringLoader;
+import httl.spi.translators.templates.WriterTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FragmentCacheTest {
+
+	private static final String[] CONFIGS = {"httl-fragment.properties", "httl-interpret.properties", "httl-bytecode.properties"};
+
+	@Test
+	public void testStatistics() throws Exception {
+		FragmentCache cache = new FragmentCache();
+		cache.init();
+		assertNull(cache.get("a"));
+		cache.put("a", "abc".getBytes(), 0);
+		cache.release("a");
+		assertArrayEquals("abc".getBytes(), (byte[]) cache.get("a"));
+		assertArrayEquals("abc".getBytes(), (byte[]) cache.get("a"));
+		assertNull(cache.get("b"));
+		cache.put("b", "xy".toCharArray(), 0);
+		cache.release("b");
+		assertEquals(2, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(6, cache.getHitLength());
+		assertEquals(5, cache.getMissLength());
+		assertEquals(2, cache.size());
+		cache.resetStatistics();
+		assertEquals(0, cache.getHitCount());
+		assertEquals(0, cache.getMissLength());
+	}
+
+	@Test
+	public void testExpired() throws Exception {
+		FragmentCache cache = new FragmentCache();
+		cache.init();
+		assertNull(cache.get("a"));
+		cache.put("a", "abc".getBytes(), -1);
+		cache.release("a");
+		assertNotNull(cache.get("a"));
+		cache.clear();
+		assertNull(cache.get("a"));
+		cache.release("a");
+	}
+
+	@Test
+	public void testNestedSameKey() throws Exception {
+		final FragmentCache cache = new FragmentCache();
+		cache.init();
+		assertNull(cache.get("a"));
+		// 同一线程嵌套相同的key，内层释放后仍由外层持有
+		assertNull(cache.get("a"));
+		cache.put("a", "inner".getBytes(), 0);
+		cache.remove("a");
+		cache.release("a");
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				result.set(cache.get("a"));
+			}
+		};
+		thread.start();
+		thread.join(200);
+		assertTrue(thread.isAlive());
+		cache.put("a", "outer".getBytes(), 0);
+		cache.release("a");
+		thread.join();
+		assertArrayEquals("outer".getBytes(), (byte[]) result.get());
+	}
+
+	@Test
+	public void testGetKey() throws Exception {
+		assertEquals("l:x", FragmentCache.getKey("l", "x"));
+		// 最后一个数值也是key的一部分，不作为ttl
+		assertEquals("l:[x, 60]", FragmentCache.getKey("l", new Object[] {"x", 60}));
+		assertEquals("l:[x, y]", FragmentCache.getKey("l", new Object[] {"x", "y"}));
+		assertEquals(60, FragmentCache.getTtl(60));
+		assertEquals(60, FragmentCache.getTtl("60"));
+		assertEquals(0, FragmentCache.getTtl(null));
+	}
+
+	@Test
+	public void testKeyValues() throws Exception {
+		for (String config : CONFIGS) {
+			Template template = getTemplate(config, "/fragment/key_values.httl",
+					"#set(String category, int pageNo)#cache(category, pageNo)${category}:${pageNo}#end");
+			assertEquals(config, "a:1", render(template, "a", 1));
+			assertEquals(config, "a:2", render(template, "a", 2));
+			assertEquals(config, "a:1", render(template, "a", 1));
+		}
+	}
+
+	@Test
+	public void testTtl() throws Exception {
+		for (String config : CONFIGS) {
+			Template template = getTemplate(config, "/fragment/ttl.httl",
+					"#set(String category, int pageNo)#cache(category, ttl = pageNo)${category}:${pageNo}#end");
+			FragmentCache cache = Engine.getEngine(config).getProperty("fragmentCache", FragmentCache.class);
+			cache.clear();
+			assertEquals(config, "a:1", render(template, "a", 1));
+			assertEquals(config, "a:1", render(template, "a", 2));
+			Thread.sleep(1100);
+			assertEquals(config, "a:3", render(template, "a", 3));
+		}
+	}
+
+	@Test
+	public void testException() throws Exception {
+		for (String config : CONFIGS) {
+			Template template = getTemplate(config, "/fragment/exception.httl",
+					"#set(String category, int pageNo)<b>#cache(\"k\")${category}${category.substring(pageNo)}#end</b>");
+			Map<String, Object> parameters = new HashMap<String, Object>();
+			parameters.put("category", "a");
+			parameters.put("pageNo", 5);
+			Object out = template instanceof WriterTemplate ? new StringWriter() : new ByteArrayOutputStream();
+			try {
+				template.render(parameters, out);
+				fail(config);
+			} catch (Exception e) {
+			}
+			// 异常时不缓存，也不输出已渲染的部分
+			assertEquals(config, "<b>", out instanceof StringWriter ? out.toString()
+					: new String(((ByteArrayOutputStream) out).toByteArray(), "UTF-8"));
+			assertEquals(config, "<b>abcdefgfg</b>", render(template, "abcdefg", 5));
+		}
+	}
+
+	@Test
+	public void testReuseFragment() throws Exception {
+		Engine engine = Engine.getEngine("httl-fragment.properties");
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add("/fragment/reuse.httl", "#set(String name)<b>${name}</b>#cache(\"k\")<i>${name}</i>#end");
+		Template template = engine.getTemplate("/fragment/reuse.httl");
+		FragmentCache cache = engine.getProperty("fragmentCache", FragmentCache.class);
+		cache.clear();
+		cache.resetStatistics();
+		assertEquals("<b>x</b><i>x</i>", render(template, "x"));
+		assertEquals("<b>y</b><i>x</i>", render(template, "y"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(8, cache.getHitLength());
+		assertEquals(8, cache.getMissLength());
+	}
+
+	private static Template getTemplate(String config, String name, String source) throws Exception {
+		Engine engine = Engine.getEngine(config);
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add(name, source);
+		return engine.getTemplate(name);
+	}
+
+	private static String render(Template template, String category, int pageNo) throws Exception {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("category", category);
+		parameters.put("pageNo", pageNo);
+		if (template instanceof WriterTemplate) {
+			StringWriter writer = new StringWriter();
+			template.render(parameters, writer);
+			return writer.toString();
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		template.render(parameters, output);
+		return new String(output.toByteArray(), "UTF-8");
+	}
+
+	private static String render(Template template, String name) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		template.render(new Object[] {name}, output);
+		return new String(output.toByteArray(), "UTF-8");
+	}
+
+}
@@ -0,0 +1,101 @@
+package httl.spi.filters;
+
+import httl.util.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.text.DecimalFormat;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compare the streaming AttributeSyntaxFilter with the Jericho based implementation.
+ * Run with -Dprofile=true for the full benchmark.
+ */
+public class AttributeSyntaxFilterTest {
+
+	private static final boolean profile = "true".equals(System.getProperty("profile"));
+
+	private static final String[] CASES = {
+		"<ul><li if=\"a\">x<li for=\"b in c\">y</ul>",
+		"<p if=\"x\">a<div>b</div>",
+		"<img if=\"a\" src=\"x\"><br for=\"i in l\"/>",
+		"<script if=\"z\">if (a<b) {}</script><style>p>a{}</style>",
+		"<div if=\"a &amp;&amp; b\"><div>x</div></div>",
+		"<div if=a>x</div>",
+		"<!-- <div if=\"a\"> -->x",
+		"<table><tr if=\"x\"><td>a<td if=\"y\">b</table>",
+		"<a href=\"#\" ifattr=\"href, x\" class=\"c\">t</a>"
+	};
+
+	private static <T extends AttributeSyntaxFilter> T init(T filter) {
+		filter.setSetDirective(new String[] {"set", "var"});
+		filter.setForDirective(new String[] {"for", "foreach"});
+		return filter;
+	}
+
+	private static String[] getTemplates() throws Exception {
+		File[] files = new File(AttributeSyntaxFilterTest.class.getClassLoader().getResource("attribute/templates").toURI()).listFiles();
+		String[] templates = new String[files.length];
+		for (int i = 0; i < files.length; i++) {
+			templates[i] = IOUtils.readToString(new InputStreamReader(new FileInputStream(files[i]), "UTF-8"));
+		}
+		return templates;
+	}
+
+	@Test
+	public void testSameAsJericho() throws Exception {
+		AttributeSyntaxFilter filter = init(new AttributeSyntaxFilter());
+		JerichoAttributeSyntaxFilter jericho = init(new JerichoAttributeSyntaxFilter());
+		for (String template : getTemplates()) {
+			Assert.assertEquals(jericho.filter("", template), filter.filter("", template));
+		}
+		for (String template : CASES) {
+			Assert.assertEquals(jericho.filter("", template), filter.filter("", template));
+		}
+	}
+
+	@Test
+	public void testSetattr() throws Exception {
+		AttributeSyntaxFilter filter = init(new AttributeSyntaxFilter());
+		Assert.assertEquals("<a href=\"#\" class=\"${y}\">t</a>", filter.filter("", "<a href=\"#\" class=\"c\" setattr=\"class, ${y}\">t</a>"));
+		Assert.assertEquals("<a class=\"${y}\">t</a>", filter.filter("", "<a setattr=\"class, ${y}\">t</a>"));
+	}
+
+	@Test
+	public void testBenchmark() throws Exception {
+		StringBuilder buf = new StringBuilder();
+		for (String template : getTemplates()) {
+			buf.append(template);
+		}
+		int repeat = profile ? 1000 : 10;
+		StringBuilder big = new StringBuilder(buf.length() * repeat);
+		for (int i = 0; i < repeat; i++) {
+			big.append("<div>").append(buf).append("</div>\n");
+		}
+		String template = big.toString();
+		AttributeSyntaxFilter filter = init(new AttributeSyntaxFilter());
+		JerichoAttributeSyntaxFilter jericho = init(new JerichoAttributeSyntaxFilter());
+		int count = profile ? 20 : 1;
+		long legacy = 0, current = 0;
+		for (int round = 0; round < 2; round ++) { // 首轮预热
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i ++) {
+				jericho.filter("", template);
+			}
+			legacy = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i ++) {
+				filter.filter("", template);
+			}
+			current = System.nanoTime() - start;
+		}
+		if (profile) {
+			DecimalFormat format = new DecimalFormat("###,##0.###");
+			System.out.println("AttributeSyntaxFilter(" + template.length() + " chars) jericho: " + format.format(legacy / count / 1000) + "us -> streaming: " + format.format(current / count / 1000) + "us");
+		}
+	}
+
+}
@@ -0,0 +1,61 @@
+package httl.spi.filters;
+
+import httl.util.DfaScanner;
+import httl.util.IOUtils;
+import httl.util.Token;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VelocityScannerTest {
+
+	private static final DfaScanner scanner = new DfaScanner(VelocitySyntaxFilter.states) {
+		@Override
+		protected int getCharType(char ch) {
+			return VelocitySyntaxFilter.getCharType(ch);
+		}
+	};
+
+	@Test
+	public void testTokens() throws Exception {
+		assertTokens(scanner.scan("$a.b(1, (2)).c#{else}x", 9),
+				"$a.b(1, (2)).c#{else}x@9:28");
+		assertTokens(scanner.scan("#if ($a)#elseif($b)#end", 9),
+				"#if ($a)@9:4", "#elseif($b)@17:4", "#end@28:3");
+		assertTokens(scanner.scan("${a}$!b\\$c", 9),
+				"${a}@9:7", "$!b\\$c@13:1");
+		assertTokens(scanner.scan("#foreach($i in $list)$velocityCount#end", 9),
+				"#foreach($i in $list)@9:4", "$velocityCount@30:27", "#end@44:3");
+	}
+
+	@Test
+	public void testFiles() throws Exception {
+		File directory = new File(VelocityScannerTest.class.getClassLoader().getResource("velocity/templates").getFile());
+		for (File file : directory.listFiles()) {
+			String source = IOUtils.readToString(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			// 令牌首尾相接，且拼接后还原源码
+			StringBuilder buf = new StringBuilder();
+			for (Token token : scanner.scan(source, 0)) {
+				Assert.assertEquals(file.getName(), buf.length(), token.getOffset());
+				buf.append(token.getMessage());
+			}
+			Assert.assertEquals(file.getName(), source, buf.toString());
+		}
+	}
+
+	private static void assertTokens(List<Token> tokens, String... expected) {
+		List<String> actual = new ArrayList<String>();
+		for (Token token : tokens) {
+			actual.add(token.getMessage() + "@" + token.getOffset() + ":" + token.getType());
+		}
+		Assert.assertEquals(Arrays.asList(expected), actual);
+	}
+
+}
@@ -0,0 +1,119 @@
+package httl.spi.parsers;
+
+import httl.util.DfaScanner;
+import httl.util.IOUtils;
+import httl.util.Token;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DfaScannerTest {
+
+	private static final DfaScanner templateScanner = new DfaScanner(TemplateParser.states) {
+		@Override
+		protected int getCharType(char ch) {
+			return TemplateParser.getCharType(ch);
+		}
+	};
+
+	private static final DfaScanner expressionScanner = new DfaScanner(ExpressionParser.states) {
+		@Override
+		protected int getCharType(char ch) {
+			return ExpressionParser.getCharType(ch);
+		}
+	};
+
+	@Test
+	public void testTemplateTokens() throws Exception {
+		assertTokens(templateScanner.scan("", 0));
+		assertTokens(templateScanner.scan("#if  (a)x#else y#end", 17),
+				"#if  (a)@17:4", "x@25:1", "#else@26:26", " y@31:1", "#end@33:3");
+		assertTokens(templateScanner.scan("#set(a = \"(#)\")\\#x\\$y${ \"}\" + '}' }$!{b}", 0),
+				"#set(a = \"(#)\")@0:4", "\\#x\\$y@15:1", "${ \"}\" + '}' }@21:7", "$!{b}@35:7");
+		assertTokens(templateScanner.scan("#[ literal ${a} ]##* block *###line\ntext#{else}", 0),
+				"#[ literal ${a} ]#@0:13", "#* block *#@18:11", "##line@29:9", "\ntext@35:1", "#{else}@40:7");
+		assertTokens(templateScanner.scan("中文${中}#end", 0),
+				"中文@0:1", "${中}@2:7", "#end@6:3");
+	}
+
+	@Test
+	public void testTemplateFiles() throws Exception {
+		int count = 0;
+		for (String dir : new String[] {"templates", "comment/templates", "comment/macros", "comment/layouts"}) {
+			File directory = new File(DfaScannerTest.class.getClassLoader().getResource(dir).getFile());
+			for (File file : directory.listFiles()) {
+				if (file.isFile()) {
+					String source = IOUtils.readToString(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+					// 令牌首尾相接，且拼接后还原源码
+					for (int offset : new int[] {0, 17}) {
+						StringBuilder buf = new StringBuilder();
+						for (Token token : templateScanner.scan(source, offset)) {
+							Assert.assertEquals(file.getName(), offset + buf.length(), token.getOffset());
+							buf.append(token.getMessage());
+						}
+						Assert.assertEquals(file.getName(), source, buf.toString());
+					}
+					count ++;
+				}
+			}
+		}
+		Assert.assertTrue(count > 20);
+	}
+
+	@Test
+	public void testExpressionTokens() throws Exception {
+		assertTokens(expressionScanner.scan("user.name + 1", 5, true),
+				"user@5:1", ".name@9:1", " +@14:4", " 1@16:2");
+		assertTokens(expressionScanner.scan("a==b&&!c || d >= 3.5e2", 5, true),
+				"a@5:1", "==@6:4", "b@8:1", "&&!@9:4", "c@12:1", " ||@13:4", " d@16:1", " >=@18:4", " 3.5e2@21:3");
+		assertTokens(expressionScanner.scan("list[0].get(\"k\")", 5, true),
+				"list@5:1", "[@9:6", "0@10:2", "]@11:6", ".get@12:1", "(@16:6", "\"k\"@17:7", ")@20:6");
+		assertTokens(expressionScanner.scan("'c' + \"s\\\"q\" + `x`", 5, true),
+				"'c'@5:9", " +@8:4", " \"s\\\"q\"@10:7", " +@17:4", " `x`@19:11");
+		assertTokens(expressionScanner.scan("(1 + (2 * 3)) % 4", 5, true),
+				"(@5:6", "1@6:2", " +@7:4", " (@9:6", "2@11:2", " *@12:4", " 3@14:2", ")@16:6", ")@17:6", " %@18:4", " 4@20:2");
+		assertTokens(expressionScanner.scan("a ?: b ? c : d", 5, true),
+				"a@5:1", " ?:@6:4", " b@9:1", " ?@11:4", " c@13:1", " :@15:4", " d@17:1");
+		assertTokens(expressionScanner.scan("new Object()", 5, true),
+				"new@5:1", " Object@8:1", "(@15:6", ")@16:6");
+		assertTokens(expressionScanner.scan("  x  ", 5, true),
+				"  x@5:1", "  @8:0");
+		assertTokens(expressionScanner.scan("a.b(c, d).e", 5, true),
+				"a@5:1", ".b@6:1", "(@8:6", "c@9:1", ",@10:4", " d@11:1", ")@13:6", ".e@14:1");
+		assertTokens(expressionScanner.scan("-1 - -2", 5, true),
+				"-@5:4", "1@6:2", " -@7:4", " -@9:4", "2@11:2");
+		assertTokens(expressionScanner.scan("m[\"a\"] = [1, 2]", 5, true),
+				"m@5:1", "[@6:6", "\"a\"@7:7", "]@10:6", " =@11:4", " [@13:6", "1@15:2", ",@16:4", " 2@17:2", "]@19:6");
+	}
+
+	@Test
+	public void testExpressionErrors() throws Exception {
+		for (String source : new String[] {"a\"b\"", "12'c'", "x`y`"}) {
+			try {
+				expressionScanner.scan(source, 3, true);
+				Assert.fail(source);
+			} catch (ParseException e) {
+				Assert.assertEquals("DFAScanner.state.error, error code: 0, source: " + source, e.getMessage());
+				Assert.assertEquals(source, 3, e.getErrorOffset());
+			}
+		}
+		assertTokens(expressionScanner.scan("\"unclosed", 3, true), "\"unclosed@3:7");
+	}
+
+	private static void assertTokens(List<Token> tokens, String... expected) {
+		List<String> actual = new ArrayList<String>();
+		for (Token token : tokens) {
+			actual.add(token.getMessage() + "@" + token.getOffset() + ":" + token.getType());
+		}
+		Assert.assertEquals(Arrays.asList(expected), actual);
+	}
+
+}
@@ -0,0 +1,43 @@
+package httl.spi.parsers;
+
+import httl.ast.BinaryOperator;
+import httl.ast.Expression;
+import httl.ast.Variable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExpressionParserTest {
+
+	@Test
+	public void testExpressionCache() throws Exception {
+		ExpressionParser parser = new ExpressionParser();
+		parser.setExpressionCacheCapacity(100);
+		Expression first = parser.parse("user.name + 1", 10);
+		Expression second = parser.parse("user.name + 1", 200);
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(first.toString(), second.toString());
+		Assert.assertEquals(first.getClass(), second.getClass());
+		BinaryOperator firstAdd = (BinaryOperator) first;
+		BinaryOperator secondAdd = (BinaryOperator) second;
+		Assert.assertEquals(firstAdd.getOffset() + 190, secondAdd.getOffset());
+		Assert.assertEquals(firstAdd.getRightParameter().getOffset() + 190, secondAdd.getRightParameter().getOffset());
+		Expression firstUser = ((BinaryOperator) firstAdd.getLeftParameter()).getLeftParameter();
+		Expression secondUser = ((BinaryOperator) secondAdd.getLeftParameter()).getLeftParameter();
+		Assert.assertEquals("user", ((Variable) secondUser).getName());
+		Assert.assertEquals(firstUser.getOffset() + 190, secondUser.getOffset());
+	}
+
+	@Test
+	public void testExpressionCacheDisabled() throws Exception {
+		for (int capacity : new int[] {0, -1}) {
+			ExpressionParser parser = new ExpressionParser();
+			parser.setExpressionCacheCapacity(capacity);
+			Expression first = parser.parse("!flag", 0);
+			Expression second = parser.parse("!flag", 5);
+			Assert.assertEquals(first.toString(), second.toString());
+			Assert.assertEquals(first.getOffset() + 5, second.getOffset());
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package httl.spi.resolvers;
+
+import httl.spi.loaders.ServletLoader;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ServletResolverTest {
+
+	@After
+	public void tearDown() {
+		ServletResolver.removeRequestAndResponse();
+		ServletLoader.setServletContext(null);
+	}
+
+	@Test
+	public void testApplicationWithoutSession() throws Exception {
+		ServletContext servletContext = stub(ServletContext.class, "getAttribute", "httl");
+		ServletResolver resolver = new ServletResolver();
+		// 只配置了ServletResolver过滤器，没有ServletLoader监听器和会话
+		resolver.init(stub(FilterConfig.class, "getServletContext", servletContext));
+		ServletResolver.setRequest(stub(HttpServletRequest.class, null, null));
+		assertSame(servletContext, resolver.get("application"));
+		assertEquals("httl", resolver.get("appName"));
+	}
+
+	@Test
+	public void testNoServletContext() throws Exception {
+		ServletResolver resolver = new ServletResolver();
+		ServletResolver.setRequest(stub(HttpServletRequest.class, null, null));
+		assertNull(resolver.get("application"));
+		assertNull(resolver.get("appName"));
+	}
+
+	// 只实现指定的方法，其它方法返回null，创建会话时失败
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, final String method, final Object value) {
+		return (T) Proxy.newProxyInstance(ServletResolverTest.class.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+				String name = m.getName();
+				if (name.equals(method)) {
+					return value;
+				}
+				if ("getSession".equals(name) && (args == null || Boolean.TRUE.equals(args[0]))) {
+					throw new AssertionError("The session should not be created.");
+				}
+				if (m.getReturnType() == boolean.class) {
+					return false;
+				}
+				if (m.getReturnType() == int.class) {
+					return 0;
+				}
+				return null;
+			}
+		});
+	}
+
+}
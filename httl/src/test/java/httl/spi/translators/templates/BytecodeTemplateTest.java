@@ -0,0 +1,87 @@
+package httl.spi.translators.templates;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.loaders.StringLoader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BytecodeTemplateTest {
+
+	private static final String SOURCE = "#set(String title, List<String> items)<h1>${title}</h1>$!{title}"
+			+ "|#if(items.size > 2)many#else(items.size > 0)some#else<i>none</i>#end"
+			+ "|#for(String item : items)#break(item == \"c\")<li>${for.index}:${item}</li>#else<li>empty</li>#end"
+			+ "|${row(\"x\")}#macro(row(String name))<tr>${name}</tr>#end";
+
+	@Test
+	public void testWriterTemplate() throws Exception {
+		Template template = getTemplate("httl-bytecode.properties", "/bytecode/writer.httl", SOURCE);
+		assertTrue(template.getClass().getName(), template instanceof WriterTemplate);
+		assertTrue(template.getClass().getName(), template.getClass().getSimpleName().startsWith("Template_"));
+		assertRender(template);
+	}
+
+	@Test
+	public void testStreamTemplate() throws Exception {
+		Template template = getTemplate("httl-bytecode-stream.properties", "/bytecode/stream.httl", SOURCE);
+		assertTrue(template.getClass().getName(), template instanceof OutputStreamTemplate);
+		assertTrue(template.getClass().getName(), template.getClass().getSimpleName().startsWith("Template_"));
+		assertRender(template);
+	}
+
+	@Test
+	public void testTooLargeMethod() throws Exception {
+		// 方法体超过64K时，退化为逐个调用闭包，仍生成模板类
+		StringBuilder source = new StringBuilder("#set(int n)");
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 3000; i ++) {
+			source.append("${n + ").append(i).append("},");
+			expected.append(i + 1).append(",");
+		}
+		Template template = getTemplate("httl-bytecode.properties", "/bytecode/large.httl", source.toString());
+		assertTrue(template.getClass().getName(), template instanceof WriterTemplate);
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("n", 1);
+		StringWriter writer = new StringWriter();
+		template.render(parameters, writer);
+		assertEquals(expected.toString(), writer.toString());
+	}
+
+	private static Template getTemplate(String config, String name, String source) throws Exception {
+		Engine engine = Engine.getEngine(config);
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add(name, source);
+		return engine.getTemplate(name);
+	}
+
+	private static void assertRender(Template template) throws Exception {
+		assertEquals("<h1>&lt;T&gt;</h1><T>|many|<li>0:a</li><li>1:b</li>|&lt;tr&gt;x&lt;/tr&gt;",
+				render(template, Arrays.asList("a", "b", "c", "d")));
+		assertEquals("<h1>&lt;T&gt;</h1><T>|<i>none</i>|<li>empty</li>|&lt;tr&gt;x&lt;/tr&gt;",
+				render(template, new ArrayList<String>()));
+	}
+
+	private static String render(Template template, List<String> items) throws Exception {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("title", "<T>");
+		parameters.put("items", items);
+		if (template instanceof OutputStreamTemplate) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			template.render(parameters, output);
+			return new String(output.toByteArray(), "UTF-8");
+		}
+		StringWriter writer = new StringWriter();
+		template.render(parameters, writer);
+		return writer.toString();
+	}
+
+}
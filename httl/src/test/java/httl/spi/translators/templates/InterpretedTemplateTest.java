@@ -0,0 +1,37 @@
+package httl.spi.translators.templates;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.loaders.StringLoader;
+import httl.util.SafeMarkup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InterpretedTemplateTest {
+
+	@Test
+	public void testSafeMarkup() throws Exception {
+		Engine engine = Engine.getEngine("httl-interpret.properties");
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add("/interpret/safe_markup.httl", "#set(Object any)#set(Object text)${any}|${text}|$!{text}");
+		Template template = engine.getTemplate("/interpret/safe_markup.httl");
+		assertTrue(template.getClass().getName(), template instanceof InterpretedTemplate);
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("any", new SafeMarkup("<b>中文&amp;</b>".getBytes("UTF-8"), "UTF-8"));
+		parameters.put("text", "<i>t</i>");
+		String expected = "<b>中文&amp;</b>|&lt;i&gt;t&lt;/i&gt;|<i>t</i>";
+		StringWriter writer = new StringWriter();
+		template.render(parameters, writer);
+		assertEquals(expected, writer.toString());
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		template.render(parameters, output);
+		assertEquals(expected, new String(output.toByteArray(), "UTF-8"));
+	}
+
+}
@@ -0,0 +1,42 @@
+package httl.spi.translators.templates;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.loaders.StringLoader;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MacroCacheTest {
+
+	private static final String SOURCE = "#macro(badge(String name, int count))[${name}:${count}]#end"
+			+ "#macro(plain(String name))(${name})#end"
+			+ "#for(i : 1..3)${badge(\"a\", 1)}${badge(\"b\", i)}${plain(\"c\")}#end";
+
+	@Test
+	public void testMemoizedMacro() throws Exception {
+		Engine engine = Engine.getEngine("httl-macro.properties");
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add("/macro/memoized.httl", SOURCE);
+		Template template = engine.getTemplate("/macro/memoized.httl");
+		MacroTemplate badge = (MacroTemplate) template.getMacros().get("badge");
+		MacroTemplate plain = (MacroTemplate) template.getMacros().get("plain");
+		assertTrue(badge.isMemoized());
+		assertFalse(plain.isMemoized());
+		assertNull(plain.getMacroCache());
+		MacroCache cache = badge.getMacroCache();
+		cache.clear();
+		long hit = cache.getHitCount();
+		long miss = cache.getMissCount();
+		String expected = "[a:1][b:1](c)[a:1][b:2](c)[a:1][b:3](c)";
+		assertEquals(expected, template.evaluate());
+		// badge("a", 1)只在第一次渲染，badge("b", i)每次参数不同
+		assertEquals(2, cache.getHitCount() - hit);
+		assertEquals(4, cache.getMissCount() - miss);
+		assertEquals(4, cache.size());
+		assertEquals(expected, template.evaluate());
+		assertEquals(8, cache.getHitCount() - hit);
+		assertEquals(4, cache.getMissCount() - miss);
+	}
+
+}
@@ -0,0 +1,58 @@
+package httl.test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Render the templates of TemplateTest by the closure and the bytecode translators,
+ * the templates failed in the compiled mode are skipped.
+ */
+@RunWith(Parameterized.class)
+public class ClosureTemplateTest {
+
+	private static final String[] CONFIGS = {"httl-comment-closure.properties", "httl-comment-bytecode.properties"};
+
+	@Parameters
+	public static Collection<Object[]> prepareData() throws Exception {
+		List<Object[]> data = new ArrayList<Object[]>();
+		for (Object[] compiled : TemplateTest.prepareData()) {
+			for (String config : CONFIGS) {
+				data.add(new Object[] {compiled[0], config, compiled[1], compiled[2]});
+			}
+		}
+		return data;
+	}
+
+	private final String compiledConfig;
+
+	private final String config;
+
+	private final Object data;
+
+	private final String templateName;
+
+	public ClosureTemplateTest(String compiledConfig, String config, Object data, String templateName) {
+		this.compiledConfig = compiledConfig;
+		this.config = config;
+		this.data = data;
+		this.templateName = templateName;
+	}
+
+	@Test
+	public void testTemplate() throws Exception {
+		try {
+			new TemplateTest(compiledConfig, data, templateName).testTemplate();
+		} catch (Throwable e) {
+			Assume.assumeNoException(e);
+		}
+		new TemplateTest(config, data, templateName).testTemplate();
+	}
+
+}
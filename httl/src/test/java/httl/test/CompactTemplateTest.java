@@ -0,0 +1,81 @@
+package httl.test;
+
+import httl.Engine;
+import httl.Node;
+import httl.Template;
+import httl.ast.Text;
+
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Run with -Dprofile=true to report the retained heap per template.
+ */
+public class CompactTemplateTest {
+
+	private static final boolean profile = "true".equals(System.getProperty("profile"));
+
+	private static final String SOURCE = "#set(String name = \"compact\")<b>${name}</b>#macro(item(int i))<i>${i}</i>#end${item(1)}";
+
+	@Test
+	public void testReparse() throws Exception {
+		Template normal = Engine.getEngine().parseTemplate(SOURCE);
+		Template compact = Engine.getEngine("httl-compact.properties").parseTemplate(SOURCE);
+		assertEquals(normal.evaluate(), compact.evaluate());
+		assertEquals(normal.getOffset(), compact.getOffset());
+		assertEquals(normal.isMacro(), compact.isMacro());
+		// 语法树已释放，访问时重新解析
+		List<Node> expected = normal.getChildren();
+		List<Node> actual = compact.getChildren();
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getClass(), actual.get(i).getClass());
+			assertEquals(expected.get(i).getOffset(), actual.get(i).getOffset());
+			if (expected.get(i) instanceof Text) {
+				assertEquals(((Text) expected.get(i)).getContent(), ((Text) actual.get(i)).getContent());
+			}
+		}
+		assertSame(actual, compact.getChildren());
+		assertEquals(normal.getMacros().keySet(), compact.getMacros().keySet());
+		assertEquals(normal.evaluate(), compact.evaluate());
+	}
+
+	@Test
+	public void testRetainedSize() throws Exception {
+		if (!profile) {
+			return;
+		}
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			buf.append("<div class=\"row\">static text of the row ").append(i).append(" #if(name != null)${name}#end</div>\n");
+		}
+		String text = buf.toString();
+		int count = 200;
+		long normal = getRetainedSize(Engine.getEngine(), "normal", text, count);
+		long compact = getRetainedSize(Engine.getEngine("httl-compact.properties"), "compact", text, count);
+		System.out.println("Retained per template (" + text.length() + " chars): normal " + normal / count + " bytes -> compact " + compact / count + " bytes");
+	}
+
+	private static long getRetainedSize(Engine engine, String prefix, String text, int count) throws Exception {
+		Template[] templates = new Template[count];
+		long before = getUsedMemory();
+		for (int i = 0; i < count; i++) {
+			templates[i] = engine.parseTemplate("#set(String name)<!-- " + prefix + i + " -->" + text);
+		}
+		long after = getUsedMemory();
+		assertEquals(count, templates.length);
+		return after - before;
+	}
+
+	private static long getUsedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.test;
+
+import httl.Engine;
+import httl.spi.compilers.CompileProfiler;
+import httl.spi.compilers.CompileProfiler.Profile;
+import httl.spi.engines.DefaultEngine;
+import httl.util.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CompileProfilerTest {
+
+	@Test
+	public void testProfile() throws Exception {
+		Engine engine = Engine.getEngine("httl-profiler.properties");
+		CompileProfiler profiler = ((DefaultEngine) engine).getCompileProfiler();
+		assertNotNull(profiler);
+		engine.parseTemplate("${1 + 2}<b>profile</b>");
+		List<Profile> profiles = profiler.getProfiles();
+		assertFalse(profiles.isEmpty());
+		Profile profile = profiles.get(0);
+		assertTrue(profile.getElapsed() > 0);
+		Map<String, long[]> stages = profile.getStages();
+		assertTrue(stages.containsKey(CompileProfiler.LOAD));
+		assertTrue(stages.containsKey(CompileProfiler.PARSE));
+		assertTrue(stages.containsKey(CompileProfiler.TRANSLATE));
+		assertTrue(stages.get(CompileProfiler.LOAD)[1] > 0);
+		assertFalse(profiler.getStages().isEmpty());
+		assertTrue(profiler.getReport().contains(profile.getName()));
+	}
+
+	@Test
+	public void testReportInterval() throws Exception {
+		File file = File.createTempFile("httl-compile-report", ".txt");
+		file.deleteOnExit();
+		CompileProfiler profiler = new CompileProfiler();
+		profiler.setCompileProfilerReport(file.getAbsolutePath());
+		profiler.setCompileProfilerReportInterval(60000);
+		Profile first = profiler.begin("/first.httl");
+		profiler.record(CompileProfiler.LOAD, System.nanoTime(), 5);
+		profiler.end(first);
+		assertTrue(readReport(file).contains("/first.httl"));
+		assertTrue(readReport(file).contains("5 chars"));
+		// 间隔内不重写报告，嵌套模板结束时也不写
+		Profile outer = profiler.begin("/outer.httl");
+		Profile inner = profiler.begin("/inner.httl");
+		profiler.end(inner);
+		profiler.end(outer);
+		assertFalse(readReport(file).contains("/outer.httl"));
+		profiler.writeReport();
+		String report = readReport(file);
+		assertTrue(report.contains("/outer.httl"));
+		assertTrue(report.contains("/inner.httl"));
+	}
+
+	private static String readReport(File file) throws Exception {
+		return IOUtils.readToString(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	}
+
+}
@@ -0,0 +1,59 @@
+package httl.test;
+
+import httl.Engine;
+import httl.Template;
+import httl.spi.loaders.StringLoader;
+
+import java.util.Locale;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SharedTemplateClassTest {
+
+	private static final String SOURCE = "#set(String name)<b>${name}</b>#macro(item(int i))<i>${i}</i>#end${item(1)}#cache(name)${name}#end";
+
+	private static final String MESSAGE_SOURCE = "${message(\"book\")}";
+
+	@Test
+	public void testSharedClass() throws Exception {
+		Engine engine = Engine.getEngine("httl-share.properties");
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add("/share/a.httl", SOURCE);
+		loader.add("/share/b.httl", SOURCE);
+		loader.add("/share/c.httl", SOURCE + " ");
+		Template a = engine.getTemplate("/share/a.httl");
+		Template b = engine.getTemplate("/share/b.httl");
+		Template c = engine.getTemplate("/share/c.httl");
+		assertNotSame(a, b);
+		assertSame(a.getClass(), b.getClass());
+		assertNotSame(a.getClass(), c.getClass());
+		// 共享类的模板仍使用各自的资源
+		assertEquals("/share/a.httl", a.getName());
+		assertEquals("/share/b.httl", b.getName());
+		assertEquals("/share/a.httl#item", a.getMacros().get("item").getName());
+		assertEquals("/share/b.httl#item", b.getMacros().get("item").getName());
+		assertEquals("<b>x</b><i>1</i>x", a.evaluate(new Object[] {"x"}));
+		// 片段缓存按模板区分
+		assertEquals("<b>y</b><i>1</i>y", b.evaluate(new Object[] {"y"}));
+		assertEquals("<b>x</b><i>1</i>x", a.evaluate(new Object[] {"x"}));
+	}
+
+	@Test
+	public void testLocalizedClass() throws Exception {
+		Engine engine = Engine.getEngine("httl-share.properties");
+		StringLoader loader = engine.getProperty("loaders", StringLoader.class);
+		loader.add("/share/message.httl", Locale.CHINA, MESSAGE_SOURCE);
+		loader.add("/share/message2.httl", Locale.CHINA, MESSAGE_SOURCE);
+		loader.add("/share/message.httl", Locale.US, MESSAGE_SOURCE);
+		Template zh = engine.getTemplate("/share/message.httl", Locale.CHINA);
+		Template zh2 = engine.getTemplate("/share/message2.httl", Locale.CHINA);
+		Template en = engine.getTemplate("/share/message.httl", Locale.US);
+		assertSame(zh.getClass(), zh2.getClass());
+		assertNotSame(zh.getClass(), en.getClass());
+		assertEquals("书籍", zh.evaluate());
+		assertEquals("书籍", zh2.evaluate());
+		assertEquals("Book", en.evaluate());
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.test.performance;
+
+import httl.util.StringUtils;
+
+import java.text.DecimalFormat;
+
+/**
+ * Measure StringUtils.escapeXml on String, char[] and byte[] values.
+ * <p>
+ * java httl.test.performance.EscapeXmlBenchmark [count]
+ */
+public class EscapeXmlBenchmark {
+
+	private static final String[] VALUES = {
+		"",
+		"plain text without any special character, the common case of template values",
+		"a<table border=\"0\" color=\'red\'>b&lt;c</table>d",
+		"<<<>>>&&&\"\"\"\'\'\'",
+		"中文<b>混合</b>&amp;文本"
+	};
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 5 * 1000 * 1000;
+		DecimalFormat format = new DecimalFormat("###,##0.###");
+		for (String value : VALUES) {
+			char[] chars = value.toCharArray();
+			byte[] bytes = value.getBytes("UTF-8");
+			long string = 0, charArray = 0, byteArray = 0;
+			for (int round = 0; round < 2; round ++) { // 首轮预热
+				long start = System.nanoTime();
+				for (int i = 0; i < count; i ++) {
+					StringUtils.escapeXml(value);
+				}
+				string = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < count; i ++) {
+					StringUtils.escapeXml(chars);
+				}
+				charArray = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < count; i ++) {
+					StringUtils.escapeXml(bytes);
+				}
+				byteArray = System.nanoTime() - start;
+			}
+			System.out.println("escapeXml(" + value.length() + " chars) String: " + format.format(string / count)
+					+ "ns, char[]: " + format.format(charArray / count)
+					+ "ns, byte[]: " + format.format(byteArray / count) + "ns");
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.test.util;
+
+import httl.util.ByteArrayClassLoader;
+import httl.util.ClassWriter;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ClassWriterTest {
+
+	private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+	private static final String OBJECT = ClassWriter.getInternalName(Object.class);
+
+	@Test
+	public void testInterfaceMethod() throws Exception {
+		String className = newClassName();
+		ClassWriter writer = new ClassWriter(className, OBJECT);
+		String list = ClassWriter.getInternalName(List.class);
+		ClassWriter.Code code = writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "first",
+				ClassWriter.getMethodDescriptor(Object.class, List.class), 2);
+		code.load(0).method(ClassWriter.INVOKEINTERFACE, list, "isEmpty", ClassWriter.getMethodDescriptor(boolean.class));
+		int notEmpty = code.jump(ClassWriter.IFEQ);
+		code.op(ClassWriter.ACONST_NULL).op(ClassWriter.ARETURN);
+		code.mark(notEmpty);
+		code.load(0).push(0).method(ClassWriter.INVOKEINTERFACE, list, "get", ClassWriter.getMethodDescriptor(Object.class, int.class));
+		code.op(ClassWriter.ARETURN);
+		Method method = getMethod(className, writer, "first", List.class);
+		assertEquals("a", method.invoke(null, Arrays.asList("a", "b")));
+		assertNull(method.invoke(null, new ArrayList<Object>()));
+	}
+
+	@Test
+	public void testBackwardJump() throws Exception {
+		String className = newClassName();
+		ClassWriter writer = new ClassWriter(className, OBJECT);
+		String iterator = ClassWriter.getInternalName(Iterator.class);
+		ClassWriter.Code code = writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "last",
+				ClassWriter.getMethodDescriptor(Object.class, Iterator.class), 1);
+		code.op(ClassWriter.ACONST_NULL).store(1);
+		int begin = code.size();
+		code.load(0).method(ClassWriter.INVOKEINTERFACE, iterator, "hasNext", ClassWriter.getMethodDescriptor(boolean.class));
+		int end = code.jump(ClassWriter.IFEQ);
+		code.load(0).method(ClassWriter.INVOKEINTERFACE, iterator, "next", ClassWriter.getMethodDescriptor(Object.class));
+		code.store(1);
+		code.jump(ClassWriter.GOTO, begin);
+		code.mark(end);
+		code.load(1).op(ClassWriter.ARETURN);
+		Method method = getMethod(className, writer, "last", Iterator.class);
+		assertEquals("c", method.invoke(null, Arrays.asList("a", "b", "c").iterator()));
+		assertNull(method.invoke(null, new ArrayList<Object>().iterator()));
+	}
+
+	@Test
+	public void testStaticField() throws Exception {
+		String className = newClassName();
+		ClassWriter writer = new ClassWriter(className, OBJECT);
+		String descriptor = ClassWriter.getDescriptor(Object.class);
+		writer.addField(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_STATIC, "value", descriptor);
+		writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "set",
+				ClassWriter.getMethodDescriptor(void.class, Object.class), 1)
+				.load(0).field(ClassWriter.PUTSTATIC, className, "value", descriptor).op(ClassWriter.RETURN);
+		writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "get",
+				ClassWriter.getMethodDescriptor(Object.class), 1)
+				.field(ClassWriter.GETSTATIC, className, "value", descriptor).op(ClassWriter.ARETURN);
+		Class<?> cls = new ByteArrayClassLoader().getClass(className, writer.toByteArray());
+		cls.getMethod("set", Object.class).invoke(null, "v");
+		assertEquals("v", cls.getMethod("get").invoke(null));
+	}
+
+	@Test
+	public void testLongArgument() throws Exception {
+		// long参数占两个局部变量槽，max locals不足时类校验失败
+		String className = newClassName();
+		ClassWriter writer = new ClassWriter(className, OBJECT);
+		writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "first",
+				ClassWriter.getMethodDescriptor(Object.class, Object.class, long.class), 1)
+				.load(0).op(ClassWriter.ARETURN);
+		Method method = getMethod(className, writer, "first", Object.class, long.class);
+		assertEquals("a", method.invoke(null, "a", 1L));
+	}
+
+	@Test
+	public void testTooLargeMethod() throws Exception {
+		ClassWriter writer = new ClassWriter(newClassName(), OBJECT);
+		ClassWriter.Code code = writer.addMethod(ClassWriter.ACC_PUBLIC | ClassWriter.ACC_STATIC, "large",
+				ClassWriter.getMethodDescriptor(void.class), 1);
+		int jump = code.jump(ClassWriter.GOTO);
+		for (int i = 0; i < 20000; i ++) {
+			code.op(ClassWriter.ACONST_NULL).op(ClassWriter.POP);
+		}
+		try {
+			code.mark(jump);
+			fail("The jump offset is too large.");
+		} catch (IllegalStateException e) {
+		}
+		for (int i = 0; i < 20000; i ++) {
+			code.op(ClassWriter.ACONST_NULL).op(ClassWriter.POP);
+		}
+		code.op(ClassWriter.RETURN);
+		try {
+			writer.toByteArray();
+			fail("The method code is too large.");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	private static String newClassName() {
+		return "httl.test.util.Generated_" + SEQUENCE.incrementAndGet();
+	}
+
+	private static Method getMethod(String className, ClassWriter writer, String name, Class<?>... parameterTypes) throws Exception {
+		return new ByteArrayClassLoader().getClass(className, writer.toByteArray()).getMethod(name, parameterTypes);
+	}
+
+}
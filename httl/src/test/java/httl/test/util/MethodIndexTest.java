@@ -0,0 +1,74 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.test.util;
+
+import httl.spi.methods.LangMethod;
+import httl.util.ClassUtils;
+import httl.util.MethodIndex;
+
+import java.lang.reflect.Method;
+import java.util.Date;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MethodIndexTest {
+
+	@Test
+	public void testSameAsSearchMethod() throws Exception {
+		MethodIndex index = new MethodIndex();
+		index.addClass(LangMethod.class);
+		Class<?>[][] types = new Class<?>[][] {
+				{int.class, int.class}, {Integer.class, Long.class}, {String.class, int.class},
+				{Object.class, Object.class}, {null, Integer.class}, {Date.class, Date.class}};
+		for (String name : new String[] {"add", "sub", "eq", "lt", "mul"}) {
+			for (Class<?>[] parameterTypes : types) {
+				for (boolean boxed : new boolean[] {true, false}) {
+					Method expected = search(name, parameterTypes, boxed);
+					Method actual = null;
+					try {
+						actual = index.searchMethod(LangMethod.class, name, parameterTypes, boxed);
+					} catch (NoSuchMethodException e) {
+					}
+					assertEquals(expected, actual);
+					if (actual != null) {
+						assertSame(actual, index.searchMethod(LangMethod.class, name, parameterTypes, boxed));
+					}
+				}
+			}
+		}
+	}
+
+	@Test(expected = NoSuchMethodException.class)
+	public void testNoSuchMethod() throws Exception {
+		MethodIndex index = new MethodIndex();
+		try {
+			index.searchMethod(LangMethod.class, "notExists", new Class<?>[] {int.class}, true);
+		} catch (NoSuchMethodException e) {
+			// 未找到的结果同样被缓存
+		}
+		index.searchMethod(LangMethod.class, "notExists", new Class<?>[] {int.class}, true);
+	}
+
+	private static Method search(String name, Class<?>[] parameterTypes, boolean boxed) {
+		try {
+			return ClassUtils.searchMethod(LangMethod.class, name, parameterTypes, boxed);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+}
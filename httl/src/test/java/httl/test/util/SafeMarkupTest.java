@@ -0,0 +1,48 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.test.util;
+
+import httl.spi.formatters.MultiFormatter;
+import httl.util.SafeMarkup;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SafeMarkupTest {
+
+	@Test
+	public void testEncodedNoCopy() throws Exception {
+		byte[] bytes = "<b>中文</b>".getBytes("UTF-8");
+		SafeMarkup markup = new SafeMarkup(bytes, "UTF-8");
+		assertSame(bytes, markup.toBytes("UTF-8"));
+		assertSame(bytes, markup.toBytes("utf8"));
+		assertArrayEquals("<b>中文</b>".getBytes("GBK"), markup.toBytes("GBK"));
+		assertEquals("<b>中文</b>", markup.toString());
+		assertEquals(new SafeMarkup("<b>中文</b>"), markup);
+	}
+
+	@Test
+	public void testFormatter() throws Exception {
+		byte[] bytes = "<b>&amp;</b>".getBytes("UTF-8");
+		MultiFormatter formatter = new MultiFormatter();
+		formatter.setOutputEncoding("UTF-8");
+		Object markup = new SafeMarkup(bytes, "UTF-8");
+		assertSame(bytes, formatter.toBytes(null, markup));
+		assertEquals("<b>&amp;</b>", formatter.toString(null, markup));
+		assertArrayEquals("<b>&amp;</b>".toCharArray(), formatter.toChars(null, markup));
+	}
+
+}
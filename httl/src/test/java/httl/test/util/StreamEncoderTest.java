@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.test.util;
+
+import httl.util.StreamEncoder;
+import httl.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StreamEncoderTest {
+
+	private static final String[] VALUES = {"", "abc", "a<b>&\"c'", "中文<é>",
+			"😀 emoji", "lone \ud83d surrogate", "ÿĀ"};
+
+	@Test
+	public void testWrite() throws Exception {
+		for (String encoding : new String[] {"UTF-8", "ISO-8859-1", "US-ASCII", "GBK", "UTF-16"}) {
+			StreamEncoder encoder = StreamEncoder.getEncoder(encoding);
+			for (String value : VALUES) {
+				assertArrayEquals(encoding + ": " + value, value.getBytes(encoding), write(encoder, value, false));
+				assertArrayEquals(encoding + ": " + value, StringUtils.escapeXml(value).getBytes(encoding), write(encoder, value, true));
+			}
+		}
+	}
+
+	@Test
+	public void testWriteLongString() throws Exception {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			buf.append("<中>");
+			if (i % 7 == 0) {
+				buf.append("😀"); // 让代理对跨越缓冲区边界
+			}
+		}
+		String value = buf.toString();
+		for (String encoding : new String[] {"UTF-8", "GBK", "UTF-16"}) {
+			StreamEncoder encoder = StreamEncoder.getEncoder(encoding);
+			assertArrayEquals(encoding, value.getBytes(encoding), write(encoder, value, false));
+			assertArrayEquals(encoding, StringUtils.escapeXml(value).getBytes(encoding), write(encoder, value, true));
+		}
+	}
+
+	@Test
+	public void testWriteNumber() throws Exception {
+		for (String encoding : new String[] {"UTF-8", "UTF-16"}) {
+			StreamEncoder encoder = StreamEncoder.getEncoder(encoding);
+			for (long value : new long[] {0, 7, -7, 10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				encoder.write(output, value);
+				assertArrayEquals(String.valueOf(value).getBytes(encoding), output.toByteArray());
+			}
+		}
+	}
+
+	private static byte[] write(StreamEncoder encoder, String value, boolean escapeXml) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		encoder.write(output, value, escapeXml);
+		return output.toByteArray();
+	}
+
+}
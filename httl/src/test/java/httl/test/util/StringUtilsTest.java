@@ -15,7 +15,9 @@
  */
 package httl.test.util;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import httl.util.StringUtils;
 
 import java.text.DecimalFormat;
@@ -68,6 +70,27 @@ public class StringUtilsTest {
 		assertEquals("a&lt;table border=&quot;0&quot; color=&apos;red&apos;&gt;b&amp;lt;c&lt;/table&gt;d", StringUtils.escapeXml("a<table border=\"0\" color=\'red\'>b&lt;c</table>d"));
 	}
 
+	@Test
+	public void testEscapeXmlAll() throws Exception {
+		String value = "<<<>>>&&&\"\"\"'''中文";
+		String expected = "&lt;&lt;&lt;&gt;&gt;&gt;&amp;&amp;&amp;&quot;&quot;&quot;&apos;&apos;&apos;中文";
+		assertEquals("", StringUtils.escapeXml(""));
+		assertEquals(expected, StringUtils.escapeXml(value));
+		assertEquals(expected, new String(StringUtils.escapeXml(value.toCharArray())));
+		assertArrayEquals(expected.getBytes("UTF-8"), StringUtils.escapeXml(value.getBytes("UTF-8")));
+	}
+
+	@Test
+	public void testEscapeXmlNoCopy() throws Exception {
+		// 无需转义时返回原对象
+		String value = "中文 plain text";
+		char[] chars = value.toCharArray();
+		byte[] bytes = value.getBytes("UTF-8");
+		assertSame(value, StringUtils.escapeXml(value));
+		assertSame(chars, StringUtils.escapeXml(chars));
+		assertSame(bytes, StringUtils.escapeXml(bytes));
+	}
+
 	@Test
 	public void testUnescapeXml() {
 		assertEquals("abcd", StringUtils.unescapeXml("abcd"));
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011-2013 HTTL Team.
+ *  
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *  
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *  
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package httl.test.util;
+
+import httl.Engine;
+import httl.Template;
+import httl.util.TextPool;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TextPoolTest {
+
+	@Test
+	public void testIntern() throws Exception {
+		TextPool pool = new TextPool();
+		byte[] bytes = "<html>".getBytes("UTF-8");
+		char[] chars = "<html>".toCharArray();
+		String string = new String("<html>");
+		assertSame(bytes, pool.intern(bytes));
+		assertSame(bytes, pool.intern("<html>".getBytes("UTF-8")));
+		assertSame(chars, pool.intern(chars));
+		assertSame(chars, pool.intern("<html>".toCharArray()));
+		assertSame(string, pool.intern(string));
+		assertSame(string, pool.intern(new String("<html>")));
+		assertNotSame(bytes, pool.intern("<body>".getBytes("UTF-8")));
+		assertEquals(4, pool.size());
+		assertNull(pool.intern((byte[]) null));
+	}
+
+	@Test
+	public void testSharedText() throws Exception {
+		Engine engine = Engine.getEngine();
+		String text = "<script>var shared = 'text pool';</script>";
+		Template first = engine.parseTemplate(text + "${1}");
+		Template second = engine.parseTemplate(text + "${2}");
+		List<Object> firstTexts = getTexts(first);
+		List<Object> secondTexts = getTexts(second);
+		int shared = 0;
+		for (Object firstText : firstTexts) {
+			for (Object secondText : secondTexts) {
+				if (firstText.getClass() == secondText.getClass() && toString(firstText).equals(toString(secondText))) {
+					assertSame(firstText, secondText);
+					shared++;
+				}
+			}
+		}
+		assertTrue(shared > 0);
+	}
+
+	private static String toString(Object text) throws Exception {
+		if (text instanceof byte[]) {
+			return new String((byte[]) text, "UTF-8");
+		}
+		if (text instanceof char[]) {
+			return new String((char[]) text);
+		}
+		return String.valueOf(text);
+	}
+
+	private static List<Object> getTexts(Object template) throws Exception {
+		List<Object> texts = new ArrayList<Object>();
+		for (Class<?> cls = template.getClass(); cls != null; cls = cls.getSuperclass()) {
+			for (Field field : cls.getDeclaredFields()) {
+				field.setAccessible(true);
+				if (field.getName().startsWith("$TXT") && Modifier.isStatic(field.getModifiers())) {
+					texts.add(field.get(null));
+				} else if (Template.class.isAssignableFrom(field.getType()) && !Modifier.isStatic(field.getModifiers())
+						&& field.get(template) != null && field.get(template) != template) {
+					texts.addAll(getTexts(field.get(template)));
+				}
+			}
+		}
+		return texts;
+	}
+
+}